@@ -36,6 +36,8 @@ public enum ConfigMessageType implements MessageTypeInt {
   // If a key appeared in a white list that was not recognized.
   // If "denies" is mis-spelled as "denied", then this will trigger.
   UNRECOGNIZED_KEY("%s: unrecognized key %s", MessageLevel.WARNING),
+  // If a well-formed whitelist cannot be turned into a CSS or HTML schema.
+  BAD_SCHEMA("%s: cannot build schema: %s", MessageLevel.FATAL_ERROR),
   ;
 
   private final String formatString;
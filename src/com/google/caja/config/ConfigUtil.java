@@ -21,11 +21,9 @@ import com.google.caja.reporting.Message;
 import com.google.caja.reporting.MessageLevel;
 import com.google.caja.reporting.MessageQueue;
 import com.google.caja.reporting.MessagePart;
-import com.google.caja.reporting.SimpleMessageQueue;
 import com.google.caja.util.Pair;
 import com.google.caja.util.Strings;
 
-import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -43,7 +41,6 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.WeakHashMap;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -207,19 +204,10 @@ public class ConfigUtil {
   private ConfigUtil() {}
 }
 
-final class UriReader extends BufferedReader {
-  private final URI uri;
-  UriReader(URI uri, Reader underlying) {
-    super(underlying);
-    this.uri = uri;
-  }
-  public URI getUri() { return uri; }
-}
-
 class JSONWhiteListLoader {
   final FilePosition src;
   final ImportResolver resolver;
-  MessageQueue mq;
+  final MessageQueue mq;
 
   JSONWhiteListLoader(
       FilePosition src, ImportResolver resolver, MessageQueue mq) {
@@ -236,37 +224,9 @@ class JSONWhiteListLoader {
     return fromSkeleton(loadSkeleton(value));
   }
 
-  // Prevent unnecessary reparsing of schemas.
-  private static final Map<URI, Pair<WhiteListSkeleton, List<Message>>> cache
-      = Collections.synchronizedMap(
-            new WeakHashMap<URI, Pair<WhiteListSkeleton, List<Message>>>());
-
   private WhiteListSkeleton loadSkeleton(Reader in)
       throws IOException, ParseException {
-    if (in instanceof UriReader) {
-      URI uri = ((UriReader) in).getUri();
-      Pair<WhiteListSkeleton, List<Message>> p = cache.get(uri);
-      if (p != null) {
-        mq.getMessages().addAll(p.b);
-        return p.a;
-      }
-    }
-    MessageQueue origMq = mq;
-    SimpleMessageQueue cacheMq = new SimpleMessageQueue();
-    this.mq = cacheMq;
-    try {
-      WhiteListSkeleton skel = loadSkeleton(
-          expectJSONObject(JSONValue.parse(in), "whitelist"));
-      if (in instanceof UriReader) {
-        cache.put(
-            ((UriReader) in).getUri(),
-            Pair.pair(skel, cacheMq.getMessages()));
-      }
-      return skel;
-    } finally {
-      this.mq = origMq;
-      origMq.getMessages().addAll(cacheMq.getMessages());
-    }
+    return loadSkeleton(expectJSONObject(JSONValue.parse(in), "whitelist"));
   }
 
   /**
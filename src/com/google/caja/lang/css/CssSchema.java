@@ -32,11 +32,11 @@ import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -48,42 +48,69 @@ import java.util.regex.Pattern;
  * @author mikesamuel@gmail.com
  */
 public final class CssSchema {
-  private final Map<Name, CssPropertyInfo> properties =
-    new HashMap<Name, CssPropertyInfo>();
-  private final Map<Name, SymbolInfo> symbols =
-    new HashMap<Name, SymbolInfo>();
-  private final Set<Name> keywords = new HashSet<Name>();
-  private final Set<Name> functionsAllowed;
-  private final Set<Name> propertiesAllowed;
+  private final Map<Name, CssPropertyInfo> properties;
+  private final Map<Name, SymbolInfo> symbols;
+  // Kept so that the schema can be written to a CssSchemaSnapshot.
+  final Set<Name> functionsAllowed;
+  final Set<Name> propertiesAllowed;
+  // Tables indexed by Name#getInternedId.  All names in the schema are
+  // interned, so a name without an id is not in any of them.
+  private final CssPropertyInfo[] propertiesById;
+  private final SymbolInfo[] symbolsById;
+  private final BitSet keywordIds = new BitSet();
+  private final BitSet functionsAllowedIds = new BitSet();
+  private final BitSet propertiesAllowedIds = new BitSet();
 
   private static Pair<CssSchema, List<Message>> defaultSchema;
+  /**
+   * The default CSS2.1 whitelist.  Schemas are immutable, so the default is
+   * loaded once and shared by all threads.
+   */
   public static CssSchema getDefaultCss21Schema(MessageQueue mq) {
+    Pair<CssSchema, List<Message>> schema = loadDefaultSchema(mq);
+    mq.getMessages().addAll(schema.b);
+    return schema.a;
+  }
+
+  private static synchronized Pair<CssSchema, List<Message>>
+      loadDefaultSchema(MessageQueue mq) {
     if (defaultSchema == null) {
       SimpleMessageQueue cacheMq = new SimpleMessageQueue();
-      URI fnSrc = URI.create(
-              "resource:///com/google/caja/lang/css/css-extensions-fns.json"),
-          propSrc = URI.create(
-              "resource:///com/google/caja/lang/css/css-extensions.json");
-      WhiteList propDefs, fnDefs;
-      try {
-        propDefs = ConfigUtil.loadWhiteListFromJson(
-            propSrc, ConfigUtil.RESOURCE_RESOLVER, cacheMq);
-        fnDefs = ConfigUtil.loadWhiteListFromJson(
-            fnSrc, ConfigUtil.RESOURCE_RESOLVER, cacheMq);
-      // If the default schema is borked, there's not much we can do.
-      } catch (IOException ex) {
-        mq.getMessages().addAll(cacheMq.getMessages());
-        throw new RuntimeException(ex);
-      } catch (ParseException ex) {
-        ex.toMessageQueue(cacheMq);
-        mq.getMessages().addAll(cacheMq.getMessages());
-        throw new RuntimeException(ex);
+      // Prefer the snapshot written at build time.
+      CssSchema schema = CssSchemaSnapshot.loadDefault();
+      if (schema == null) {
+        try {
+          schema = loadDefaultFromWhiteLists(cacheMq);
+        } catch (RuntimeException ex) {
+          mq.getMessages().addAll(cacheMq.getMessages());
+          throw ex;
+        }
       }
-      defaultSchema = Pair.pair(
-          new CssSchema(propDefs, fnDefs), cacheMq.getMessages());
+      defaultSchema = Pair.pair(schema, cacheMq.getMessages());
+    }
+    return defaultSchema;
+  }
+
+  /** Builds the default schema from the JSON whitelists. */
+  static CssSchema loadDefaultFromWhiteLists(MessageQueue mq) {
+    URI fnSrc = URI.create(
+            "resource:///com/google/caja/lang/css/css-extensions-fns.json"),
+        propSrc = URI.create(
+            "resource:///com/google/caja/lang/css/css-extensions.json");
+    WhiteList propDefs, fnDefs;
+    try {
+      propDefs = ConfigUtil.loadWhiteListFromJson(
+          propSrc, ConfigUtil.RESOURCE_RESOLVER, mq);
+      fnDefs = ConfigUtil.loadWhiteListFromJson(
+          fnSrc, ConfigUtil.RESOURCE_RESOLVER, mq);
+    // If the default schema is borked, there's not much we can do.
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    } catch (ParseException ex) {
+      ex.toMessageQueue(mq);
+      throw new RuntimeException(ex);
     }
-    mq.getMessages().addAll(defaultSchema.b);
-    return defaultSchema.a;
+    return new CssSchema(propDefs, fnDefs);
   }
 
   /**
@@ -95,7 +122,8 @@ public final class CssSchema {
     // http://www.w3.org/TR/CSS21/syndata.html#characters
     // All CSS style sheets are case-insensitive, except for parts
     // that are not under the control of CSS.
-    return properties.get(propertyName);
+    int id = propertyName.getInternedId();
+    return id >= 0 && id < propertiesById.length ? propertiesById[id] : null;
   }
 
   /** All defined properties including disallowed ones. */
@@ -103,6 +131,11 @@ public final class CssSchema {
     return Collections.unmodifiableCollection(properties.values());
   }
 
+  /** All defined symbols. */
+  Collection<SymbolInfo> getSymbols() {
+    return Collections.unmodifiableCollection(symbols.values());
+  }
+
   /**
    * Returns the signature for a css symbol.
    * Not all symbols can be defined in terms of a signature.
@@ -111,22 +144,26 @@ public final class CssSchema {
    *   signature.
    */
   public SymbolInfo getSymbol(Name symbolName) {
-    return symbols.get(symbolName);
+    int id = symbolName.getInternedId();
+    return id >= 0 && id < symbolsById.length ? symbolsById[id] : null;
   }
 
   /** Is the given word a css keyword? */
   public boolean isKeyword(Name name) {
-    return keywords.contains(name);
+    int id = name.getInternedId();
+    return id >= 0 && keywordIds.get(id);
   }
 
   /** Is the given word the name of a CSS function? */
   public boolean isFunctionAllowed(Name name) {
-    return functionsAllowed.contains(name);
+    int id = name.getInternedId();
+    return id >= 0 && functionsAllowedIds.get(id);
   }
 
   /** Is the given word the name of an allowed CSS property? */
   public boolean isPropertyAllowed(Name name) {
-    return propertiesAllowed.contains(name);
+    int id = name.getInternedId();
+    return id >= 0 && propertiesAllowedIds.get(id);
   }
 
   public static boolean isMediaType(String mediaType) {
@@ -155,7 +192,7 @@ public final class CssSchema {
      */
     public final List<String> dom2properties;
 
-    private CssPropertyInfo(
+    CssPropertyInfo(
         Name name, CssPropertySignature sig, Criterion<String> mediaGroups,
         boolean inherited, Criterion<String> appliesTo, String defaultValue,
         List<String> dom2properties) {
@@ -178,7 +215,7 @@ public final class CssSchema {
     public final Name name;
     public final CssPropertySignature sig;
 
-    private SymbolInfo(Name name, CssPropertySignature sig) {
+    SymbolInfo(Name name, CssPropertySignature sig) {
       this.name = name;
       this.sig = sig;
     }
@@ -191,10 +228,10 @@ public final class CssSchema {
     Pattern.compile("^[a-zA-Z\\-][\\w\\-]*$");
   private static final Pattern JS_IDENTIFIER =
     Pattern.compile("^[a-zA-Z_][\\w_]*$");
-  private static final Criterion<String> ALL_ELEMENTS
+  static final Criterion<String> ALL_ELEMENTS
       = new RegexpCriterion(HTML_IDENTIFIER);
   // See http://www.w3.org/TR/REC-CSS2/media.html section 7.3
-  private static final Criterion<String> ALL_MEDIA = in(
+  static final Criterion<String> ALL_MEDIA = in(
       "all", "aural", "braille", "embossed", "handheld", "print", "projection",
       "screen", "tty", "tv");
 
@@ -210,7 +247,9 @@ public final class CssSchema {
 
   private static Criterion<String> criterionFromConfig(
       Object type, Criterion<String> permissiveCriterion) {
-    if ("*".equals(type)) { return permissiveCriterion; }
+    if ("*".equals(type)) {
+      return new MemberCriterion(permissiveCriterion, null, false);
+    }
     boolean invert = false;
     if (type instanceof Map<?, ?>) {
       Map<?, ?> map = (Map<?, ?>) type;
@@ -221,7 +260,7 @@ public final class CssSchema {
         type = map.get("include");
       }
     }
-    List<String> members = new ArrayList<String>();
+    Set<String> members = new HashSet<String>();
     for (Object member : (List<?>) type) {
       if (member instanceof String) {
         members.add((String) member);
@@ -229,129 +268,212 @@ public final class CssSchema {
         members.add((String) ((Map<?, ?>) member).get("key"));
       }
     }
-    Criterion<String> set = in(members.toArray(new String[0]));
-    if (invert) {
-      return Criterion.Factory.and(
-          permissiveCriterion, Criterion.Factory.not(set));
-    } else {
-      return set;
+    return new MemberCriterion(permissiveCriterion, members, invert);
+  }
+
+  /**
+   * The {@code appliesTo} or {@code mediaGroups} of a property: all elements
+   * or media types, those listed, or all but those listed.
+   */
+  static final class MemberCriterion implements Criterion<String> {
+    /** {@link #ALL_ELEMENTS} or {@link #ALL_MEDIA}. */
+    final Criterion<String> all;
+    /** Null if all are accepted. */
+    final Set<String> members;
+    /** True if members are excluded instead of included. */
+    final boolean exclude;
+
+    MemberCriterion(
+        Criterion<String> all, Set<String> members, boolean exclude) {
+      this.all = all;
+      this.members = members;
+      this.exclude = exclude;
     }
+
+    public boolean accept(String s) {
+      if (members == null) { return all.accept(s); }
+      if (exclude) { return all.accept(s) && !members.contains(s); }
+      return members.contains(s);
+    }
+  }
+
+  /** Builds the definitions in a whitelist and indexes them. */
+  public CssSchema(WhiteList symbolsAndProperties, WhiteList functions) {
+    this(new Definitions(symbolsAndProperties, functions));
+  }
+
+  /**
+   * Indexes definitions that have already been built, as by
+   * {@link CssSchemaSnapshot}.
+   */
+  CssSchema(
+      Collection<? extends SymbolInfo> symbols,
+      Collection<? extends CssPropertyInfo> properties,
+      Set<Name> functionsAllowed, Set<Name> propertiesAllowed) {
+    this(new Definitions(
+        symbols, properties, functionsAllowed, propertiesAllowed));
   }
 
-  private void defineProperty(
-      Name name,
-      String sig,
-      String defaultValue,
-      Criterion<String> appliesTo,
-      boolean inherited,
-      Criterion<String> mediaGroups,
-      List<String> dom2properties) {
-    if ("".equals(defaultValue)) {
-      throw new IllegalArgumentException(
-          "Bad default value for symbol " + name + ", use null instead");
+  private CssSchema(Definitions defs) {
+    this.properties = defs.properties;
+    this.symbols = defs.symbols;
+    this.functionsAllowed = Collections.unmodifiableSet(defs.functionsAllowed);
+    this.propertiesAllowed = Collections.unmodifiableSet(
+        defs.propertiesAllowed);
+    for (Name name : functionsAllowed) {
+      functionsAllowedIds.set(name.intern().getInternedId());
     }
-    if (!CSS_IDENTIFIER.matcher(name.getCanonicalForm()).matches()) {
-      throw new IllegalArgumentException("Bad property name: " + name);
+    for (Name name : propertiesAllowed) {
+      propertiesAllowedIds.set(name.intern().getInternedId());
     }
-    for (String dom2property : dom2properties) {
-      if (!JS_IDENTIFIER.matcher(dom2property).matches()) {
-        throw new IllegalArgumentException("Bad DOM2 name: " + dom2property);
+
+    // Examine the property signatures and extract a list of keywords
+    Visitor keywordFinder = new Visitor() {
+      public boolean visit(AncestorChain<?> ancestors) {
+        ParseTreeNode n = ancestors.node;
+        if (n instanceof CssPropertySignature.LiteralSignature) {
+          String kw = ((CssPropertySignature.LiteralSignature) n).value;
+          keywordIds.set(Name.css(kw).intern().getInternedId());
+        }
+        return true;
       }
+    };
+    for (CssPropertyInfo pi : properties.values()) {
+      pi.sig.acceptPreOrder(keywordFinder, null);
     }
+    for (SymbolInfo si : symbols.values()) {
+      si.sig.acceptPreOrder(keywordFinder, null);
+    }
+    keywordIds.set(Name.css("initial").intern().getInternedId());
 
-    CssPropertySignature csssig = parseSignature(name, sig);
-    properties.put(name, new CssPropertyInfo(
-        name, csssig, mediaGroups, inherited, appliesTo, defaultValue,
-        dom2properties));
-  }
-
-  private void defineSymbol(Name name, String sig) {
-    if (sig == null) {
-      throw new NullPointerException("Null signature for symbol " + name);
+    int maxPropertyId = -1;
+    for (Name name : properties.keySet()) {
+      maxPropertyId = Math.max(maxPropertyId, name.getInternedId());
+    }
+    propertiesById = new CssPropertyInfo[maxPropertyId + 1];
+    for (CssPropertyInfo pi : properties.values()) {
+      propertiesById[pi.name.getInternedId()] = pi;
+    }
+    int maxSymbolId = -1;
+    for (Name name : symbols.keySet()) {
+      maxSymbolId = Math.max(maxSymbolId, name.getInternedId());
     }
-    if (!CSS_IDENTIFIER.matcher(name.getCanonicalForm()).matches()) {
-      throw new IllegalArgumentException("Bad symbol name: " + name);
+    symbolsById = new SymbolInfo[maxSymbolId + 1];
+    for (SymbolInfo si : symbols.values()) {
+      symbolsById[si.name.getInternedId()] = si;
     }
-    CssPropertySignature csssig = parseSignature(name, sig);
-    symbols.put(name, new SymbolInfo(name, csssig));
   }
 
-  public CssSchema(WhiteList symbolsAndProperties, WhiteList functions) {
-    for (WhiteList.TypeDefinition def
-           : symbolsAndProperties.typeDefinitions().values()) {
-      String key = (String) def.get("key", null);
-      String aliasKey = (String) def.get("as", null);
-      if (aliasKey != null) {
-        // "as" aliases definition.
-        def = merge(def, symbolsAndProperties.typeDefinitions().get(aliasKey));
-      }
-      if (key.startsWith("<") && key.endsWith(">")) {
-        defineSymbol(
-            Name.css(key.substring(1, key.length() - 1)),
-            (String) def.get("signature", null));
-      } else {
-        Criterion<String> appliesTo = criterionFromConfig(
-            def.get("appliesTo", "*"), ALL_ELEMENTS);
-        Criterion<String> mediaGroups = criterionFromConfig(
-            def.get("mediaGroups", "*"), ALL_MEDIA);
-        Object dom2property = def.get("dom2property", null);
-        List<String> dom2properties;
-        if (dom2property instanceof String) {
-          dom2properties = Collections.singletonList((String) dom2property);
-        } else if (dom2property == null) {
-          dom2properties = Collections.<String>emptyList();
+  /** The definitions in a schema, before they are indexed. */
+  private static final class Definitions {
+    final Map<Name, CssPropertyInfo> properties
+        = new HashMap<Name, CssPropertyInfo>();
+    final Map<Name, SymbolInfo> symbols = new HashMap<Name, SymbolInfo>();
+    final Set<Name> functionsAllowed = new HashSet<Name>();
+    final Set<Name> propertiesAllowed = new HashSet<Name>();
+
+    Definitions(WhiteList symbolsAndProperties, WhiteList functions) {
+      for (WhiteList.TypeDefinition def
+             : symbolsAndProperties.typeDefinitions().values()) {
+        String key = (String) def.get("key", null);
+        String aliasKey = (String) def.get("as", null);
+        if (aliasKey != null) {
+          // "as" aliases definition.
+          def = merge(
+              def, symbolsAndProperties.typeDefinitions().get(aliasKey));
+        }
+        if (key.startsWith("<") && key.endsWith(">")) {
+          defineSymbol(
+              Name.css(key.substring(1, key.length() - 1)).intern(),
+              (String) def.get("signature", null));
         } else {
-          dom2properties = new ArrayList<String>();
-          for (Object item : (Iterable<?>) dom2property) {
-            dom2properties.add((String) item);
+          Criterion<String> appliesTo = criterionFromConfig(
+              def.get("appliesTo", "*"), ALL_ELEMENTS);
+          Criterion<String> mediaGroups = criterionFromConfig(
+              def.get("mediaGroups", "*"), ALL_MEDIA);
+          Object dom2property = def.get("dom2property", null);
+          List<String> dom2properties;
+          if (dom2property instanceof String) {
+            dom2properties = Collections.singletonList((String) dom2property);
+          } else if (dom2property == null) {
+            dom2properties = Collections.<String>emptyList();
+          } else {
+            dom2properties = new ArrayList<String>();
+            for (Object item : (Iterable<?>) dom2property) {
+              dom2properties.add((String) item);
+            }
           }
+          defineProperty(
+              Name.css(key).intern(),
+              (String) def.get("signature", null),
+              (String) def.get("default", null),
+              appliesTo,
+              Boolean.TRUE.equals(def.get("inherited", null)),
+              mediaGroups,
+              dom2properties);
         }
-        defineProperty(
-            Name.css(key),
-            (String) def.get("signature", null),
-            (String) def.get("default", null),
-            appliesTo,
-            Boolean.TRUE.equals(def.get("inherited", null)),
-            mediaGroups,
-            dom2properties);
       }
-    }
 
-    functionsAllowed = new LinkedHashSet<Name>();
-    for (String k : functions.allowedItems()) {
-      functionsAllowed.add(Name.css(k));
+      for (String k : functions.allowedItems()) {
+        functionsAllowed.add(Name.css(k).intern());
+      }
+      for (String k : symbolsAndProperties.allowedItems()) {
+        propertiesAllowed.add(Name.css(k).intern());
+      }
     }
-    propertiesAllowed = new LinkedHashSet<Name>();
-    for (String k : symbolsAndProperties.allowedItems()) {
-      propertiesAllowed.add(Name.css(k));
+
+    Definitions(
+        Collection<? extends SymbolInfo> symbols,
+        Collection<? extends CssPropertyInfo> properties,
+        Set<Name> functionsAllowed, Set<Name> propertiesAllowed) {
+      for (SymbolInfo si : symbols) {
+        this.symbols.put(si.name.intern(), si);
+      }
+      for (CssPropertyInfo pi : properties) {
+        this.properties.put(pi.name.intern(), pi);
+      }
+      this.functionsAllowed.addAll(functionsAllowed);
+      this.propertiesAllowed.addAll(propertiesAllowed);
     }
 
-    // Examine the property signatures and extract a list of keywords
-    for (CssPropertyInfo pi : properties.values()) {
-      pi.sig.acceptPreOrder(new Visitor() {
-        public boolean visit(AncestorChain<?> ancestors) {
-          ParseTreeNode n = ancestors.node;
-          if (n instanceof CssPropertySignature.LiteralSignature) {
-            String kw = ((CssPropertySignature.LiteralSignature) n).value;
-            keywords.add(Name.css(kw));
-          }
-          return true;
+    private void defineProperty(
+        Name name,
+        String sig,
+        String defaultValue,
+        Criterion<String> appliesTo,
+        boolean inherited,
+        Criterion<String> mediaGroups,
+        List<String> dom2properties) {
+      if ("".equals(defaultValue)) {
+        throw new IllegalArgumentException(
+            "Bad default value for symbol " + name + ", use null instead");
+      }
+      if (!CSS_IDENTIFIER.matcher(name.getCanonicalForm()).matches()) {
+        throw new IllegalArgumentException("Bad property name: " + name);
+      }
+      for (String dom2property : dom2properties) {
+        if (!JS_IDENTIFIER.matcher(dom2property).matches()) {
+          throw new IllegalArgumentException(
+              "Bad DOM2 name: " + dom2property);
         }
-      }, null);
+      }
+
+      CssPropertySignature csssig = parseSignature(name, sig);
+      properties.put(name, new CssPropertyInfo(
+          name, csssig, mediaGroups, inherited, appliesTo, defaultValue,
+          dom2properties));
     }
-    for (SymbolInfo si : symbols.values()) {
-      si.sig.acceptPreOrder(new Visitor() {
-        public boolean visit(AncestorChain<?> ancestors) {
-          ParseTreeNode n = ancestors.node;
-          if (n instanceof CssPropertySignature.LiteralSignature) {
-            String kw = ((CssPropertySignature.LiteralSignature) n).value;
-            keywords.add(Name.css(kw));
-          }
-          return true;
-        }
-      }, null);
+
+    private void defineSymbol(Name name, String sig) {
+      if (sig == null) {
+        throw new NullPointerException("Null signature for symbol " + name);
+      }
+      if (!CSS_IDENTIFIER.matcher(name.getCanonicalForm()).matches()) {
+        throw new IllegalArgumentException("Bad symbol name: " + name);
+      }
+      CssPropertySignature csssig = parseSignature(name, sig);
+      symbols.put(name, new SymbolInfo(name, csssig));
     }
-    keywords.add(Name.css("initial"));
   }
 
   private static class RegexpCriterion implements Criterion<String> {
@@ -0,0 +1,245 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.lang.css;
+
+import com.google.caja.parser.css.CssPropertySignature;
+import com.google.caja.reporting.Message;
+import com.google.caja.reporting.SimpleMessageQueue;
+import com.google.caja.tools.BuildCommand;
+import com.google.caja.util.Criterion;
+import com.google.caja.util.Name;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A compact binary encoding of a built {@link CssSchema}, so that the default
+ * schema can be built once at build time instead of on every startup.
+ * <p>
+ * The encoding holds each symbol and property with its parsed signature,
+ * followed by the allowed functions and properties.  Keywords are recovered
+ * from the signatures when the schema is indexed.
+ */
+final class CssSchemaSnapshot {
+  /** The name of the classpath resource loaded by {@link CssSchema}. */
+  static final String RESOURCE_NAME = "css-schema.bin";
+
+  private static final int MAGIC = 0x43535353;  // "CSSS"
+  /** Must change whenever the encoding or CssSchema's definitions change. */
+  private static final int VERSION = 1;
+
+  // Criterion tags
+  private static final int ALL = 0;
+  private static final int INCLUDE = 1;
+  private static final int EXCLUDE = 2;
+
+  private CssSchemaSnapshot() { /* not instantiable */ }
+
+  /**
+   * Reads the snapshot built into the classpath.
+   * @return null if there is no usable snapshot, in which case the default
+   *     schema is built from its whitelists.
+   */
+  static CssSchema loadDefault() {
+    InputStream in = CssSchemaSnapshot.class.getResourceAsStream(
+        RESOURCE_NAME);
+    if (in == null) { return null; }
+    try {
+      try {
+        return read(new BufferedInputStream(in));
+      } finally {
+        in.close();
+      }
+    } catch (IOException ex) {
+      // A stale or corrupt snapshot is not fatal.
+      return null;
+    }
+  }
+
+  /** Encodes the given schema to out. */
+  static void write(CssSchema schema, OutputStream out) throws IOException {
+    DataOutputStream data = new DataOutputStream(out);
+    data.writeInt(MAGIC);
+    data.writeInt(VERSION);
+    List<CssSchema.SymbolInfo> symbols = new ArrayList<CssSchema.SymbolInfo>();
+    List<CssSchema.CssPropertyInfo> properties
+        = new ArrayList<CssSchema.CssPropertyInfo>();
+    for (CssSchema.CssPropertyInfo pi : schema.getCssProperties()) {
+      properties.add(pi);
+    }
+    for (CssSchema.SymbolInfo si : schema.getSymbols()) { symbols.add(si); }
+    data.writeInt(symbols.size());
+    for (CssSchema.SymbolInfo si : symbols) {
+      data.writeUTF(si.name.getCanonicalForm());
+      si.sig.write(data);
+    }
+    data.writeInt(properties.size());
+    for (CssSchema.CssPropertyInfo pi : properties) {
+      data.writeUTF(pi.name.getCanonicalForm());
+      pi.sig.write(data);
+      writeCriterion(pi.mediaGroups, CssSchema.ALL_MEDIA, data);
+      data.writeBoolean(pi.inherited);
+      writeCriterion(pi.appliesTo, CssSchema.ALL_ELEMENTS, data);
+      data.writeBoolean(pi.defaultValue != null);
+      if (pi.defaultValue != null) { data.writeUTF(pi.defaultValue); }
+      writeStrings(pi.dom2properties, data);
+    }
+    writeNames(schema.functionsAllowed, data);
+    writeNames(schema.propertiesAllowed, data);
+    data.flush();
+  }
+
+  /** Decodes a schema encoded by {@link #write}. */
+  static CssSchema read(InputStream in) throws IOException {
+    DataInputStream data = new DataInputStream(in);
+    if (data.readInt() != MAGIC) {
+      throw new IOException("Not a CSS schema snapshot");
+    }
+    if (data.readInt() != VERSION) {
+      throw new IOException("CSS schema snapshot version mismatch");
+    }
+    List<CssSchema.SymbolInfo> symbols = new ArrayList<CssSchema.SymbolInfo>();
+    for (int i = readCount(data); --i >= 0;) {
+      Name name = Name.css(data.readUTF()).intern();
+      symbols.add(new CssSchema.SymbolInfo(
+          name, CssPropertySignature.read(data)));
+    }
+    List<CssSchema.CssPropertyInfo> properties
+        = new ArrayList<CssSchema.CssPropertyInfo>();
+    for (int i = readCount(data); --i >= 0;) {
+      Name name = Name.css(data.readUTF()).intern();
+      CssPropertySignature sig = CssPropertySignature.read(data);
+      Criterion<String> mediaGroups = readCriterion(CssSchema.ALL_MEDIA, data);
+      boolean inherited = data.readBoolean();
+      Criterion<String> appliesTo = readCriterion(
+          CssSchema.ALL_ELEMENTS, data);
+      String defaultValue = data.readBoolean() ? data.readUTF() : null;
+      List<String> dom2properties = readStrings(data);
+      properties.add(new CssSchema.CssPropertyInfo(
+          name, sig, mediaGroups, inherited, appliesTo, defaultValue,
+          dom2properties.isEmpty()
+          ? Collections.<String>emptyList()
+          : Collections.unmodifiableList(dom2properties)));
+    }
+    Set<Name> functionsAllowed = readNames(data);
+    Set<Name> propertiesAllowed = readNames(data);
+    return new CssSchema(
+        symbols, properties, functionsAllowed, propertiesAllowed);
+  }
+
+  private static void writeCriterion(
+      Criterion<String> c, Criterion<String> all, DataOutputStream out)
+      throws IOException {
+    if (!(c instanceof CssSchema.MemberCriterion)
+        || ((CssSchema.MemberCriterion) c).all != all) {
+      throw new IOException("Unknown criterion " + c);
+    }
+    CssSchema.MemberCriterion mc = (CssSchema.MemberCriterion) c;
+    if (mc.members == null) {
+      out.writeByte(ALL);
+    } else {
+      out.writeByte(mc.exclude ? EXCLUDE : INCLUDE);
+      writeStrings(mc.members, out);
+    }
+  }
+
+  private static Criterion<String> readCriterion(
+      Criterion<String> all, DataInputStream in) throws IOException {
+    int tag = in.readByte();
+    switch (tag) {
+      case ALL:
+        return new CssSchema.MemberCriterion(all, null, false);
+      case INCLUDE: case EXCLUDE:
+        return new CssSchema.MemberCriterion(
+            all, new HashSet<String>(readStrings(in)), tag == EXCLUDE);
+      default:
+        throw new IOException("Bad criterion tag " + tag);
+    }
+  }
+
+  private static void writeStrings(
+      Collection<String> strings, DataOutputStream out) throws IOException {
+    out.writeInt(strings.size());
+    for (String s : strings) { out.writeUTF(s); }
+  }
+
+  private static List<String> readStrings(DataInputStream in)
+      throws IOException {
+    int n = readCount(in);
+    List<String> strings = new ArrayList<String>(n);
+    for (int i = 0; i < n; ++i) { strings.add(in.readUTF()); }
+    return strings;
+  }
+
+  private static void writeNames(Collection<Name> names, DataOutputStream out)
+      throws IOException {
+    out.writeInt(names.size());
+    for (Name name : names) { out.writeUTF(name.getCanonicalForm()); }
+  }
+
+  private static Set<Name> readNames(DataInputStream in) throws IOException {
+    Set<Name> names = new HashSet<Name>();
+    for (int i = readCount(in); --i >= 0;) {
+      names.add(Name.css(in.readUTF()).intern());
+    }
+    return names;
+  }
+
+  private static int readCount(DataInputStream in) throws IOException {
+    int n = in.readInt();
+    if (n < 0) { throw new IOException("Bad count " + n); }
+    return n;
+  }
+
+  /**
+   * Writes a snapshot of the default CSS schema for {@link CssSchema} to load
+   * at startup.
+   * Invoked by the build via {@code GenRuleAntTask}; the whitelists are read
+   * from the classpath, so inputs are only dependencies.
+   */
+  public static class Builder implements BuildCommand {
+    public boolean build(List<File> inputs, List<File> deps, File output)
+        throws IOException {
+      SimpleMessageQueue mq = new SimpleMessageQueue();
+      CssSchema schema = CssSchema.loadDefaultFromWhiteLists(mq);
+      // The snapshot does not record messages, so there must not be any.
+      if (!mq.getMessages().isEmpty()) {
+        for (Message msg : mq.getMessages()) { System.err.println(msg); }
+        return false;
+      }
+      OutputStream out = new BufferedOutputStream(
+          new FileOutputStream(output));
+      try {
+        write(schema, out);
+      } finally {
+        out.close();
+      }
+      return true;
+    }
+  }
+}
@@ -28,6 +28,7 @@ import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -42,47 +43,72 @@ import java.util.Set;
  * @author mikesamuel@gmail.com
  */
 public final class HtmlSchema {
-  private static final Name WILDCARD = Name.html("*");
+  private static final Name WILDCARD = Name.html("*").intern();
 
-  private final Set<Name> allowedElements;
+  // The allowed sets are package-private for HtmlSchemaSnapshot.
+  final Set<Name> allowedElements;
   private final Map<Name, HTML.Element> elementDetails;
-  private final Set<Pair<Name, Name>> allowedAttributes;
+  final Set<Pair<Name, Name>> allowedAttributes;
   private final Map<Pair<Name, Name>, HTML.Attribute> attributeDetails;
+  /** Whether an element is allowed by {@link Name#getInternedId}. */
+  private final BitSet allowedElementIds;
+  /** The element with a given {@link Name#getInternedId} or null. */
+  private final HTML.Element[] elementsById;
+  /** Attribute policy by element and attribute id. */
+  private final AttributeTable attributesById;
 
   private static Pair<HtmlSchema, List<Message>> defaultSchema;
   /**
    * The default HTML4 whitelist.  See the JSON files in this directory for
-   * the actual definitions.
+   * the actual definitions.  Schemas are immutable, so the default is loaded
+   * once and shared by all threads.
    */
   public static HtmlSchema getDefault(MessageQueue mq) {
+    Pair<HtmlSchema, List<Message>> schema = loadDefaultSchema(mq);
+    mq.getMessages().addAll(schema.b);
+    return schema.a;
+  }
+
+  private static synchronized Pair<HtmlSchema, List<Message>>
+      loadDefaultSchema(MessageQueue mq) {
     if (defaultSchema == null) {
       SimpleMessageQueue cacheMq = new SimpleMessageQueue();
-      URI elSrc = URI.create(
-              "resource:///com/google/caja/lang/html/"
-              + "html4-elements-extensions.json");
-      URI attrSrc = URI.create(
-              "resource:///com/google/caja/lang/html/"
-              + "html4-attributes-extensions.json");
-      try {
-        defaultSchema = Pair.pair(
-            new HtmlSchema(
-                ConfigUtil.loadWhiteListFromJson(
-                    elSrc, ConfigUtil.RESOURCE_RESOLVER, cacheMq),
-                ConfigUtil.loadWhiteListFromJson(
-                    attrSrc, ConfigUtil.RESOURCE_RESOLVER, cacheMq)),
-            cacheMq.getMessages());
-      // If the default schema is borked, there's not much we can do.
-      } catch (IOException ex) {
-        mq.getMessages().addAll(cacheMq.getMessages());
-        throw new RuntimeException(ex);
-      } catch (ParseException ex) {
-        cacheMq.getMessages().add(ex.getCajaMessage());
-        mq.getMessages().addAll(cacheMq.getMessages());
-        throw new RuntimeException(ex);
+      // Prefer the snapshot written at build time.
+      HtmlSchema schema = HtmlSchemaSnapshot.loadDefault();
+      if (schema == null) {
+        try {
+          schema = loadDefaultFromWhiteLists(cacheMq);
+        } catch (RuntimeException ex) {
+          mq.getMessages().addAll(cacheMq.getMessages());
+          throw ex;
+        }
       }
+      defaultSchema = Pair.pair(schema, cacheMq.getMessages());
+    }
+    return defaultSchema;
+  }
+
+  /** Builds the default schema from the JSON whitelists. */
+  static HtmlSchema loadDefaultFromWhiteLists(MessageQueue mq) {
+    URI elSrc = URI.create(
+            "resource:///com/google/caja/lang/html/"
+            + "html4-elements-extensions.json");
+    URI attrSrc = URI.create(
+            "resource:///com/google/caja/lang/html/"
+            + "html4-attributes-extensions.json");
+    try {
+      return new HtmlSchema(
+          ConfigUtil.loadWhiteListFromJson(
+              elSrc, ConfigUtil.RESOURCE_RESOLVER, mq),
+          ConfigUtil.loadWhiteListFromJson(
+              attrSrc, ConfigUtil.RESOURCE_RESOLVER, mq));
+    // If the default schema is borked, there's not much we can do.
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    } catch (ParseException ex) {
+      mq.getMessages().add(ex.getCajaMessage());
+      throw new RuntimeException(ex);
     }
-    mq.getMessages().addAll(defaultSchema.b);
-    return defaultSchema.a;
   }
 
   /**
@@ -94,120 +120,190 @@ public final class HtmlSchema {
     return "head".equals(cname) || "body".equals(cname) || "html".equals(cname);
   }
 
+  /** Builds the definitions in a whitelist and indexes them. */
   public HtmlSchema(WhiteList tagList, WhiteList attribList) {
-    this.allowedAttributes = new HashSet<Pair<Name, Name>>();
-    for (String key : attribList.allowedItems()) {
-      allowedAttributes.add(elAndAttrib(key));
+    this(new Definitions(tagList, attribList));
+  }
+
+  /**
+   * Indexes definitions that have already been built, as by
+   * {@link HtmlSchemaSnapshot}.
+   */
+  HtmlSchema(
+      Set<Name> allowedElements, Map<Name, HTML.Element> elementDetails,
+      Set<Pair<Name, Name>> allowedAttributes,
+      Map<Pair<Name, Name>, HTML.Attribute> attributeDetails) {
+    this(new Definitions(
+        allowedElements, elementDetails, allowedAttributes,
+        attributeDetails));
+  }
+
+  private HtmlSchema(Definitions defs) {
+    this.allowedElements = defs.allowedElements;
+    this.elementDetails = defs.elementDetails;
+    this.allowedAttributes = defs.allowedAttributes;
+    this.attributeDetails = defs.attributeDetails;
+
+    this.allowedElementIds = new BitSet();
+    for (Name name : allowedElements) {
+      allowedElementIds.set(name.getInternedId());
     }
-    Map<Pair<Name, Name>, RegularCriterion> criteria
-        = new HashMap<Pair<Name, Name>, RegularCriterion>();
-    for (WhiteList.TypeDefinition def : attribList.typeDefinitions().values()) {
-      final String values = (String) def.get("values", null);
-      RegularCriterion criterion = null;
-      if (values != null) {
-        criterion = RegularCriterion.Factory.fromValueSet(
-            Arrays.asList(values.split(",")));
-      } else {
-        String pattern = (String) def.get("pattern", null);
-        if (pattern != null) {
-          criterion = RegularCriterion.Factory.fromPattern(
-              "(?i:" + pattern + ")");
-        }
-      }
-      if (criterion != null) {
-        String key = Strings.toLowerCase((String) def.get("key", null));
-        criteria.put(elAndAttrib(key), criterion);
-      }
+    int maxElementId = -1;
+    for (Name name : elementDetails.keySet()) {
+      maxElementId = Math.max(maxElementId, name.getInternedId());
+    }
+    this.elementsById = new HTML.Element[maxElementId + 1];
+    for (HTML.Element el : elementDetails.values()) {
+      elementsById[el.getName().getInternedId()] = el;
     }
+    Set<Pair<Name, Name>> attributeNames = new HashSet<Pair<Name, Name>>(
+        allowedAttributes);
+    attributeNames.addAll(attributeDetails.keySet());
+    this.attributesById = new AttributeTable(attributeNames.size());
+    for (Pair<Name, Name> elAndAttrib : attributeNames) {
+      attributesById.put(
+          elAndAttrib.a.getInternedId(), elAndAttrib.b.getInternedId(),
+          attributeDetails.get(elAndAttrib),
+          allowedAttributes.contains(elAndAttrib));
+    }
+  }
+
+  /** The definitions in a schema, before they are indexed. */
+  private static final class Definitions {
+    final Set<Name> allowedElements;
+    final Map<Name, HTML.Element> elementDetails;
+    final Set<Pair<Name, Name>> allowedAttributes;
+    final Map<Pair<Name, Name>, HTML.Attribute> attributeDetails;
 
-    this.attributeDetails = new HashMap<Pair<Name, Name>, HTML.Attribute>();
-    Map<Name, List<HTML.Attribute>> attributeDetailsByElement
-        = new HashMap<Name, List<HTML.Attribute>>();
-    for (WhiteList.TypeDefinition def : attribList.typeDefinitions().values()) {
-      String key = Strings.toLowerCase((String) def.get("key", null));
-      Pair<Name, Name> elAndAttrib = elAndAttrib(key);
-      Name element = elAndAttrib.a;
-      Name attrib = elAndAttrib.b;
-      HTML.Attribute.Type type = HTML.Attribute.Type.NONE;
-      String typeName = (String) def.get("type", null);
-      if (typeName != null) {
-        // TODO(mikesamuel): divert IllegalArgumentExceptions to MessageQueue
-        type = HTML.Attribute.Type.valueOf(typeName);
+    Definitions(WhiteList tagList, WhiteList attribList) {
+      this.allowedAttributes = new HashSet<Pair<Name, Name>>();
+      for (String key : attribList.allowedItems()) {
+        allowedAttributes.add(elAndAttrib(key));
       }
-      String mimeTypes = (String) def.get("mimeTypes", null);
-      RegularCriterion elCriterion = criteria.get(elAndAttrib);
-      RegularCriterion wcCriterion = criteria.get(Pair.pair(WILDCARD, attrib));
-      RegularCriterion criterion;
-      if (elCriterion != null) {
-        if (wcCriterion != null) {
-          criterion = RegularCriterion.Factory.and(elCriterion, wcCriterion);
+      Map<Pair<Name, Name>, RegularCriterion> criteria
+          = new HashMap<Pair<Name, Name>, RegularCriterion>();
+      for (WhiteList.TypeDefinition def
+           : attribList.typeDefinitions().values()) {
+        final String values = (String) def.get("values", null);
+        RegularCriterion criterion = null;
+        if (values != null) {
+          criterion = RegularCriterion.Factory.fromValueSet(
+              Arrays.asList(values.split(",")));
         } else {
-          criterion = elCriterion;
+          String pattern = (String) def.get("pattern", null);
+          if (pattern != null) {
+            criterion = RegularCriterion.Factory.fromPattern(
+                "(?i:" + pattern + ")");
+          }
+        }
+        if (criterion != null) {
+          String key = Strings.toLowerCase((String) def.get("key", null));
+          criteria.put(elAndAttrib(key), criterion);
         }
-      } else if (wcCriterion != null) {
-        criterion = wcCriterion;
-      } else {
-        criterion = RegularCriterion.Factory.optimist();
       }
-      String defaultValue = (String) def.get("default", null);
-      boolean optional = Boolean.TRUE.equals(def.get("optional", true));
-      String safeValue = (String) def.get("safeValue", null);
-      if (safeValue == null) {
-        String candidate = defaultValue != null ? defaultValue : "";
-        if (criterion.accept(candidate)) {
-          safeValue = candidate;
+
+      this.attributeDetails = new HashMap<Pair<Name, Name>, HTML.Attribute>();
+      Map<Name, List<HTML.Attribute>> attributeDetailsByElement
+          = new HashMap<Name, List<HTML.Attribute>>();
+      for (WhiteList.TypeDefinition def
+           : attribList.typeDefinitions().values()) {
+        String key = Strings.toLowerCase((String) def.get("key", null));
+        Pair<Name, Name> elAndAttrib = elAndAttrib(key);
+        Name element = elAndAttrib.a;
+        Name attrib = elAndAttrib.b;
+        HTML.Attribute.Type type = HTML.Attribute.Type.NONE;
+        String typeName = (String) def.get("type", null);
+        if (typeName != null) {
+          // TODO(mikesamuel): divert IllegalArgumentExceptions to MessageQueue
+          type = HTML.Attribute.Type.valueOf(typeName);
+        }
+        String mimeTypes = (String) def.get("mimeTypes", null);
+        RegularCriterion elCriterion = criteria.get(elAndAttrib);
+        RegularCriterion wcCriterion = criteria.get(
+            Pair.pair(WILDCARD, attrib));
+        RegularCriterion criterion;
+        if (elCriterion != null) {
+          if (wcCriterion != null) {
+            criterion = RegularCriterion.Factory.and(elCriterion, wcCriterion);
+          } else {
+            criterion = elCriterion;
+          }
+        } else if (wcCriterion != null) {
+          criterion = wcCriterion;
         } else {
-          String values = (String) def.get("values", null);
-          if (values != null) {
-            safeValue = values.split(",")[0];
+          criterion = RegularCriterion.Factory.optimist();
+        }
+        String defaultValue = (String) def.get("default", null);
+        boolean optional = Boolean.TRUE.equals(def.get("optional", true));
+        String safeValue = (String) def.get("safeValue", null);
+        if (safeValue == null) {
+          String candidate = defaultValue != null ? defaultValue : "";
+          if (criterion.accept(candidate)) {
+            safeValue = candidate;
+          } else {
+            String values = (String) def.get("values", null);
+            if (values != null) {
+              safeValue = values.split(",")[0];
+            }
           }
         }
+        boolean valueless = Boolean.TRUE.equals(def.get("valueless", false));
+        HTML.Attribute a = new HTML.Attribute(
+            element, attrib, type, defaultValue, safeValue, valueless, optional,
+            mimeTypes, criterion);
+        attributeDetails.put(elAndAttrib, a);
+        List<HTML.Attribute> byElement = attributeDetailsByElement.get(element);
+        if (byElement == null) {
+          byElement = new ArrayList<HTML.Attribute>();
+          attributeDetailsByElement.put(element, byElement);
+        }
+        byElement.add(a);
       }
-      boolean valueless = Boolean.TRUE.equals(def.get("valueless", false));
-      HTML.Attribute a = new HTML.Attribute(
-          element, attrib, type, defaultValue, safeValue, valueless, optional,
-          mimeTypes, criterion);
-      attributeDetails.put(elAndAttrib, a);
-      List<HTML.Attribute> byElement = attributeDetailsByElement.get(element);
-      if (byElement == null) {
-        byElement = new ArrayList<HTML.Attribute>();
-        attributeDetailsByElement.put(element, byElement);
-      }
-      byElement.add(a);
-    }
 
-    List<HTML.Attribute> all = attributeDetailsByElement.get(WILDCARD);
-    if (all != null) {
-      for (Map.Entry<Name, List<HTML.Attribute>> e
-           : attributeDetailsByElement.entrySet()) {
-        Name element = e.getKey();
-        if (!WILDCARD.equals(element)) {
-          for (HTML.Attribute ecAttr : all) {
-            if (!attributeDetails.containsKey(
-                    Pair.pair(element, ecAttr.getAttributeName()))) {
-              e.getValue().add(ecAttr);
+      List<HTML.Attribute> all = attributeDetailsByElement.get(WILDCARD);
+      if (all != null) {
+        for (Map.Entry<Name, List<HTML.Attribute>> e
+             : attributeDetailsByElement.entrySet()) {
+          Name element = e.getKey();
+          if (!WILDCARD.equals(element)) {
+            for (HTML.Attribute ecAttr : all) {
+              if (!attributeDetails.containsKey(
+                      Pair.pair(element, ecAttr.getAttributeName()))) {
+                e.getValue().add(ecAttr);
+              }
             }
           }
+          e.setValue(Collections.unmodifiableList(e.getValue()));
         }
-        e.setValue(Collections.unmodifiableList(e.getValue()));
+        all = Collections.unmodifiableList(all);
+      } else {
+        all = Collections.<HTML.Attribute>emptyList();
       }
-      all = Collections.unmodifiableList(all);
-    } else {
-      all = Collections.<HTML.Attribute>emptyList();
-    }
-    this.allowedElements = new HashSet<Name>();
-    for (String name : tagList.allowedItems()) {
-      allowedElements.add(Name.html(name));
+      this.allowedElements = new HashSet<Name>();
+      for (String name : tagList.allowedItems()) {
+        allowedElements.add(Name.html(name).intern());
+      }
+      this.elementDetails = new HashMap<Name, HTML.Element>();
+      for (WhiteList.TypeDefinition def : tagList.typeDefinitions().values()) {
+        Name name = Name.html((String) def.get("key", null)).intern();
+        List<HTML.Attribute> attrs = attributeDetailsByElement.get(name);
+        if (attrs == null) { attrs = all; }
+        boolean empty = (Boolean) def.get("empty", Boolean.FALSE);
+        boolean optionalEnd = (Boolean) def.get("optionalEnd", Boolean.FALSE);
+        elementDetails.put(
+            name, new HTML.Element(name, attrs, empty, optionalEnd));
+      }
+
     }
-    this.elementDetails = new HashMap<Name, HTML.Element>();
-    for (WhiteList.TypeDefinition def : tagList.typeDefinitions().values()) {
-      Name name = Name.html((String) def.get("key", null));
-      List<HTML.Attribute> attrs = attributeDetailsByElement.get(name);
-      if (attrs == null) { attrs = all; }
-      boolean empty = (Boolean) def.get("empty", Boolean.FALSE);
-      boolean optionalEnd = (Boolean) def.get("optionalEnd", Boolean.FALSE);
-      elementDetails.put(
-          name, new HTML.Element(name, attrs, empty, optionalEnd));
+
+    Definitions(
+        Set<Name> allowedElements, Map<Name, HTML.Element> elementDetails,
+        Set<Pair<Name, Name>> allowedAttributes,
+        Map<Pair<Name, Name>, HTML.Attribute> attributeDetails) {
+      this.allowedElements = allowedElements;
+      this.elementDetails = elementDetails;
+      this.allowedAttributes = allowedAttributes;
+      this.attributeDetails = attributeDetails;
     }
   }
 
@@ -219,32 +315,103 @@ public final class HtmlSchema {
     return elementDetails.keySet();
   }
 
+  // The lookups below are on the path of every element and attribute that is
+  // sanitized, so they use the names' interned ids instead of allocating keys.
+  // Every name in the schema is interned, so a name without an id is unknown.
+
   public boolean isElementAllowed(Name elementName) {
-    return allowedElements.contains(elementName);
+    int id = elementName.getInternedId();
+    return id >= 0 && allowedElementIds.get(id);
   }
 
   public HTML.Element lookupElement(Name elementName) {
-    return elementDetails.get(elementName);
+    int id = elementName.getInternedId();
+    return id >= 0 && id < elementsById.length ? elementsById[id] : null;
   }
 
   public boolean isAttributeAllowed(Name elementName, Name attribName) {
-    return allowedAttributes.contains(Pair.pair(elementName, attribName))
-        || allowedAttributes.contains(Pair.pair(WILDCARD, attribName));
+    int attribId = attribName.getInternedId();
+    if (attribId < 0) { return false; }
+    int slot = attributesById.find(elementName.getInternedId(), attribId);
+    if (slot >= 0 && attributesById.allowed[slot]) { return true; }
+    slot = attributesById.find(WILDCARD.getInternedId(), attribId);
+    return slot >= 0 && attributesById.allowed[slot];
   }
 
   public HTML.Attribute lookupAttribute(Name elementName, Name attribName) {
-    HTML.Attribute attr = attributeDetails.get(
-        Pair.pair(elementName, attribName));
+    int attribId = attribName.getInternedId();
+    if (attribId < 0) { return null; }
+    int slot = attributesById.find(elementName.getInternedId(), attribId);
+    HTML.Attribute attr = slot >= 0 ? attributesById.details[slot] : null;
     if (attr == null) {
-      attr = attributeDetails.get(Pair.pair(WILDCARD, attribName));
+      slot = attributesById.find(WILDCARD.getInternedId(), attribId);
+      attr = slot >= 0 ? attributesById.details[slot] : null;
     }
     return attr;
   }
 
   private static Pair<Name, Name> elAndAttrib(String key) {
     int separator = key.indexOf("::");
-    Name element = Name.html(key.substring(0, separator));
-    Name attrib = Name.html(key.substring(separator + 2));
+    Name element = Name.html(key.substring(0, separator)).intern();
+    Name attrib = Name.html(key.substring(separator + 2)).intern();
     return Pair.pair(element, attrib);
   }
+
+  /**
+   * An open-addressed hash table from a pair of element and attribute ids to
+   * the attribute's details and whether it is allowed.
+   * Filled in by the schema's constructor and read-only thereafter.
+   */
+  private static final class AttributeTable {
+    /**
+     * The element and attribute id packed into a long, or -1 for an unused
+     * slot.
+     */
+    final long[] keys;
+    final HTML.Attribute[] details;
+    final boolean[] allowed;
+
+    AttributeTable(int count) {
+      // Keep the load factor at or below one half.
+      int size = 2;
+      while (size < count * 2) { size <<= 1; }
+      keys = new long[size];
+      Arrays.fill(keys, -1L);
+      details = new HTML.Attribute[size];
+      allowed = new boolean[size];
+    }
+
+    void put(int elementId, int attribId, HTML.Attribute a, boolean ok) {
+      long key = key(elementId, attribId);
+      int slot = hash(key) & (keys.length - 1);
+      while (keys[slot] != -1L && keys[slot] != key) {
+        slot = (slot + 1) & (keys.length - 1);
+      }
+      keys[slot] = key;
+      details[slot] = a;
+      allowed[slot] = ok;
+    }
+
+    /** The slot for the given ids or -1. */
+    int find(int elementId, int attribId) {
+      if (elementId < 0) { return -1; }
+      long key = key(elementId, attribId);
+      int slot = hash(key) & (keys.length - 1);
+      while (true) {
+        long k = keys[slot];
+        if (k == key) { return slot; }
+        if (k == -1L) { return -1; }
+        slot = (slot + 1) & (keys.length - 1);
+      }
+    }
+
+    private static long key(int elementId, int attribId) {
+      return (((long) elementId) << 32) | attribId;
+    }
+
+    private static int hash(long key) {
+      int h = (int) (key ^ (key >>> 32)) * 0x9e3779b9;
+      return h ^ (h >>> 16);
+    }
+  }
 }
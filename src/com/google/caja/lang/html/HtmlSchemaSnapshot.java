@@ -0,0 +1,302 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.lang.html;
+
+import com.google.caja.reporting.Message;
+import com.google.caja.reporting.SimpleMessageQueue;
+import com.google.caja.tools.BuildCommand;
+import com.google.caja.util.Name;
+import com.google.caja.util.Pair;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A compact binary encoding of a built {@link HtmlSchema}, so that the default
+ * schema can be built once at build time instead of on every startup.
+ * <p>
+ * The encoding is a table of attributes, each with the source of its value
+ * criterion, followed by the elements, which refer to their attributes by
+ * index, and the allowed elements and attributes.
+ */
+final class HtmlSchemaSnapshot {
+  /** The name of the classpath resource loaded by {@link HtmlSchema}. */
+  static final String RESOURCE_NAME = "html-schema.bin";
+
+  private static final int MAGIC = 0x48544d4c;  // "HTML"
+  /** Must change whenever the encoding or HtmlSchema's definitions change. */
+  private static final int VERSION = 1;
+
+  // Criterion tags
+  private static final int OPTIMIST = 0;
+  private static final int PATTERN = 1;
+  private static final int VALUE_SET = 2;
+  private static final int AND = 3;
+
+  private HtmlSchemaSnapshot() { /* not instantiable */ }
+
+  /**
+   * Reads the snapshot built into the classpath.
+   * @return null if there is no usable snapshot, in which case the default
+   *     schema is built from its whitelists.
+   */
+  static HtmlSchema loadDefault() {
+    InputStream in = HtmlSchemaSnapshot.class.getResourceAsStream(
+        RESOURCE_NAME);
+    if (in == null) { return null; }
+    try {
+      try {
+        return read(new BufferedInputStream(in));
+      } finally {
+        in.close();
+      }
+    } catch (IOException ex) {
+      // A stale or corrupt snapshot is not fatal.
+      return null;
+    }
+  }
+
+  /** Encodes the given schema to out. */
+  static void write(HtmlSchema schema, OutputStream out) throws IOException {
+    DataOutputStream data = new DataOutputStream(out);
+    data.writeInt(MAGIC);
+    data.writeInt(VERSION);
+
+    Map<HTML.Attribute, Integer> indices
+        = new IdentityHashMap<HTML.Attribute, Integer>();
+    List<HTML.Attribute> attributes = new ArrayList<HTML.Attribute>();
+    for (Pair<Name, Name> key : schema.getAttributeNames()) {
+      HTML.Attribute a = schema.lookupAttribute(key.a, key.b);
+      if (!indices.containsKey(a)) {
+        indices.put(a, attributes.size());
+        attributes.add(a);
+      }
+    }
+    data.writeInt(attributes.size());
+    for (HTML.Attribute a : attributes) {
+      writeName(a.getElementName(), data);
+      writeName(a.getAttributeName(), data);
+      data.writeUTF(a.getType().name());
+      writeOptionalString(a.getDefaultValue(), data);
+      writeOptionalString(a.getSafeValue(), data);
+      data.writeBoolean(a.isValueless());
+      data.writeBoolean(a.isOptional());
+      writeOptionalString(a.getMimeTypes(), data);
+      writeCriterion(a.getValueCriterion(), data);
+    }
+
+    data.writeInt(schema.getElementNames().size());
+    for (Name name : schema.getElementNames()) {
+      HTML.Element el = schema.lookupElement(name);
+      writeName(el.getName(), data);
+      data.writeBoolean(el.isEmpty());
+      data.writeBoolean(el.isEndTagOptional());
+      data.writeInt(el.getAttributes().size());
+      for (HTML.Attribute a : el.getAttributes()) {
+        Integer index = indices.get(a);
+        if (index == null) { throw new IOException("Unknown attribute " + a); }
+        data.writeInt(index);
+      }
+    }
+
+    data.writeInt(schema.allowedElements.size());
+    for (Name name : schema.allowedElements) { writeName(name, data); }
+
+    data.writeInt(schema.allowedAttributes.size());
+    for (Pair<Name, Name> key : schema.allowedAttributes) {
+      writeName(key.a, data);
+      writeName(key.b, data);
+    }
+    data.flush();
+  }
+
+  /** Decodes a schema encoded by {@link #write}. */
+  static HtmlSchema read(InputStream in) throws IOException {
+    DataInputStream data = new DataInputStream(in);
+    if (data.readInt() != MAGIC) {
+      throw new IOException("Not an HTML schema snapshot");
+    }
+    if (data.readInt() != VERSION) {
+      throw new IOException("HTML schema snapshot version mismatch");
+    }
+
+    HTML.Attribute[] attributes = new HTML.Attribute[readCount(data)];
+    Map<Pair<Name, Name>, HTML.Attribute> attributeDetails
+        = new HashMap<Pair<Name, Name>, HTML.Attribute>();
+    for (int i = 0; i < attributes.length; ++i) {
+      Name element = readName(data);
+      Name attrib = readName(data);
+      HTML.Attribute.Type type;
+      try {
+        type = HTML.Attribute.Type.valueOf(data.readUTF());
+      } catch (IllegalArgumentException ex) {
+        throw (IOException) new IOException("Bad attribute type")
+            .initCause(ex);
+      }
+      String defaultValue = readOptionalString(data);
+      String safeValue = readOptionalString(data);
+      boolean valueless = data.readBoolean();
+      boolean optional = data.readBoolean();
+      String mimeTypes = readOptionalString(data);
+      RegularCriterion criterion = readCriterion(data);
+      attributes[i] = new HTML.Attribute(
+          element, attrib, type, defaultValue, safeValue, valueless, optional,
+          mimeTypes, criterion);
+      attributeDetails.put(Pair.pair(element, attrib), attributes[i]);
+    }
+
+    Map<Name, HTML.Element> elementDetails = new HashMap<Name, HTML.Element>();
+    for (int i = readCount(data); --i >= 0;) {
+      Name name = readName(data);
+      boolean empty = data.readBoolean();
+      boolean optionalEnd = data.readBoolean();
+      int n = readCount(data);
+      List<HTML.Attribute> attrs = new ArrayList<HTML.Attribute>(n);
+      for (int j = 0; j < n; ++j) {
+        int index = data.readInt();
+        if (index < 0 || index >= attributes.length) {
+          throw new IOException("Bad attribute index " + index);
+        }
+        attrs.add(attributes[index]);
+      }
+      elementDetails.put(
+          name, new HTML.Element(name, attrs, empty, optionalEnd));
+    }
+
+    Set<Name> allowedElements = new HashSet<Name>();
+    for (int i = readCount(data); --i >= 0;) {
+      allowedElements.add(readName(data));
+    }
+    Set<Pair<Name, Name>> allowedAttributes = new HashSet<Pair<Name, Name>>();
+    for (int i = readCount(data); --i >= 0;) {
+      Name element = readName(data);
+      allowedAttributes.add(Pair.pair(element, readName(data)));
+    }
+    return new HtmlSchema(
+        allowedElements, elementDetails, allowedAttributes, attributeDetails);
+  }
+
+  private static void writeCriterion(RegularCriterion c, DataOutputStream out)
+      throws IOException {
+    if (c instanceof RegularCriterion.Optimist) {
+      out.writeByte(OPTIMIST);
+    } else if (c instanceof RegularCriterion.PatternCriterion) {
+      out.writeByte(PATTERN);
+      out.writeUTF(((RegularCriterion.PatternCriterion) c).p.pattern());
+    } else if (c instanceof RegularCriterion.ValueSetCriterion) {
+      Set<String> values = ((RegularCriterion.ValueSetCriterion) c).valueSet;
+      out.writeByte(VALUE_SET);
+      out.writeInt(values.size());
+      for (String value : values) { out.writeUTF(value); }
+    } else if (c instanceof RegularCriterion.AndCriterion) {
+      RegularCriterion.AndCriterion and = (RegularCriterion.AndCriterion) c;
+      out.writeByte(AND);
+      writeCriterion(and.a, out);
+      writeCriterion(and.b, out);
+    } else {
+      throw new IOException("Unknown criterion " + c);
+    }
+  }
+
+  private static RegularCriterion readCriterion(DataInputStream in)
+      throws IOException {
+    int tag = in.readByte();
+    switch (tag) {
+      case OPTIMIST:
+        return RegularCriterion.Factory.optimist();
+      case PATTERN:
+        return RegularCriterion.Factory.fromPattern(in.readUTF());
+      case VALUE_SET: {
+        List<String> values = new ArrayList<String>();
+        for (int i = readCount(in); --i >= 0;) { values.add(in.readUTF()); }
+        return RegularCriterion.Factory.fromValueSet(values);
+      }
+      case AND: {
+        RegularCriterion a = readCriterion(in);
+        return new RegularCriterion.AndCriterion(a, readCriterion(in));
+      }
+      default:
+        throw new IOException("Bad criterion tag " + tag);
+    }
+  }
+
+  private static void writeName(Name name, DataOutputStream out)
+      throws IOException {
+    out.writeUTF(name.getCanonicalForm());
+  }
+
+  /** Names are already canonical, so are read as XML names. */
+  private static Name readName(DataInputStream in) throws IOException {
+    return Name.xml(in.readUTF()).intern();
+  }
+
+  private static void writeOptionalString(String s, DataOutputStream out)
+      throws IOException {
+    out.writeBoolean(s != null);
+    if (s != null) { out.writeUTF(s); }
+  }
+
+  private static String readOptionalString(DataInputStream in)
+      throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  private static int readCount(DataInputStream in) throws IOException {
+    int n = in.readInt();
+    if (n < 0) { throw new IOException("Bad count " + n); }
+    return n;
+  }
+
+  /**
+   * Writes a snapshot of the default HTML schema for {@link HtmlSchema} to
+   * load at startup.
+   * Invoked by the build via {@code GenRuleAntTask}; the whitelists are read
+   * from the classpath, so inputs are only dependencies.
+   */
+  public static class Builder implements BuildCommand {
+    public boolean build(List<File> inputs, List<File> deps, File output)
+        throws IOException {
+      SimpleMessageQueue mq = new SimpleMessageQueue();
+      HtmlSchema schema = HtmlSchema.loadDefaultFromWhiteLists(mq);
+      // The snapshot does not record messages, so there must not be any.
+      if (!mq.getMessages().isEmpty()) {
+        for (Message msg : mq.getMessages()) { System.err.println(msg); }
+        return false;
+      }
+      OutputStream out = new BufferedOutputStream(
+          new FileOutputStream(output));
+      try {
+        write(schema, out);
+      } finally {
+        out.close();
+      }
+      return true;
+    }
+  }
+}
@@ -32,21 +32,8 @@ public interface RegularCriterion extends Criterion<String> {
 
   static final class Factory {
     static RegularCriterion fromPattern(String regex) {
-      final Pattern p = Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
-      return new RegularCriterion() {
-        public String toRegularExpression() {
-          StringBuilder sb = new StringBuilder();
-          sb.append('/');
-          Escaping.normalizeRegex(p.pattern(), true, false, sb);
-          sb.append('/');
-          if ((p.flags() & Pattern.CASE_INSENSITIVE) != 0) { sb.append('i'); }
-          return sb.toString();
-        }
-
-        public boolean accept(String candidate) {
-          return p.matcher(candidate).find();
-        }
-      };
+      return new PatternCriterion(
+          Pattern.compile(regex, Pattern.CASE_INSENSITIVE));
     }
 
     /**
@@ -54,63 +41,105 @@ public interface RegularCriterion extends Criterion<String> {
      * case-insensitively.
      */
     static RegularCriterion fromValueSet(Iterable<String> values) {
-      final Set<String> valueSet = new LinkedHashSet<String>();
+      Set<String> valueSet = new LinkedHashSet<String>();
       for (String value : values) {
         valueSet.add(Strings.toLowerCase(value));
       }
-      return new RegularCriterion() {
-        public String toRegularExpression() {
-          StringBuilder sb = new StringBuilder();
-          sb.append("/^(?:");
-          boolean first = true;
-          for (String value : valueSet) {
-            if (first) {
-              first = false;
-            } else {
-              sb.append('|');
-            }
-            Escaping.escapeRegex(value, true, false, sb);
-          }
-          sb.append(")$/i");
-          return sb.toString();
-        }
-
-        public boolean accept(String candidate) {
-          return valueSet.contains(Strings.toLowerCase(candidate));
-        }
-      };
+      return new ValueSetCriterion(valueSet);
     }
 
-    static RegularCriterion and(
-        final RegularCriterion a, final RegularCriterion b) {
+    static RegularCriterion and(RegularCriterion a, RegularCriterion b) {
       if ("".equals(a.toRegularExpression())) { return b; }
       if ("".equals(b.toRegularExpression())) { return a; }
-      return new RegularCriterion() {
-        public String toRegularExpression() {
-          String ra = stripDelims(a.toRegularExpression());
-          String rb = stripDelims(b.toRegularExpression());
-          // Use a positive lookahead assertion to require both to match.
-          return "/^(?=" + ra + "$)(?:" + rb + "$)/i";
-        }
+      return new AndCriterion(a, b);
+    }
 
-        public boolean accept(String candidate) {
-          return a.accept(candidate) && b.accept(candidate);
-        }
+    static RegularCriterion optimist() {
+      return Optimist.INSTANCE;
+    }
+  }
+
+  // The criteria are named so that HtmlSchemaSnapshot can take them apart.
+
+  static final class PatternCriterion implements RegularCriterion {
+    final Pattern p;
+
+    PatternCriterion(Pattern p) { this.p = p; }
+
+    public String toRegularExpression() {
+      StringBuilder sb = new StringBuilder();
+      sb.append('/');
+      Escaping.normalizeRegex(p.pattern(), true, false, sb);
+      sb.append('/');
+      if ((p.flags() & Pattern.CASE_INSENSITIVE) != 0) { sb.append('i'); }
+      return sb.toString();
+    }
+
+    public boolean accept(String candidate) {
+      return p.matcher(candidate).find();
+    }
+  }
 
-        private String stripDelims(String regex) {
-          if (!(regex.startsWith("/") && regex.endsWith("/i"))) {
-            throw new RuntimeException(regex);
-          }
-          return regex.substring(1, regex.length() - 2);
+  static final class ValueSetCriterion implements RegularCriterion {
+    /** Lower-case values. */
+    final Set<String> valueSet;
+
+    ValueSetCriterion(Set<String> valueSet) { this.valueSet = valueSet; }
+
+    public String toRegularExpression() {
+      StringBuilder sb = new StringBuilder();
+      sb.append("/^(?:");
+      boolean first = true;
+      for (String value : valueSet) {
+        if (first) {
+          first = false;
+        } else {
+          sb.append('|');
         }
-      };
+        Escaping.escapeRegex(value, true, false, sb);
+      }
+      sb.append(")$/i");
+      return sb.toString();
     }
 
-    static RegularCriterion optimist() {
-      return new RegularCriterion() {
-        public String toRegularExpression() { return ""; }
-        public boolean accept(String candidate) { return true; }
-      };
+    public boolean accept(String candidate) {
+      return valueSet.contains(Strings.toLowerCase(candidate));
+    }
+  }
+
+  static final class AndCriterion implements RegularCriterion {
+    final RegularCriterion a, b;
+
+    AndCriterion(RegularCriterion a, RegularCriterion b) {
+      this.a = a;
+      this.b = b;
+    }
+
+    public String toRegularExpression() {
+      String ra = stripDelims(a.toRegularExpression());
+      String rb = stripDelims(b.toRegularExpression());
+      // Use a positive lookahead assertion to require both to match.
+      return "/^(?=" + ra + "$)(?:" + rb + "$)/i";
     }
+
+    public boolean accept(String candidate) {
+      return a.accept(candidate) && b.accept(candidate);
+    }
+
+    private static String stripDelims(String regex) {
+      if (!(regex.startsWith("/") && regex.endsWith("/i"))) {
+        throw new RuntimeException(regex);
+      }
+      return regex.substring(1, regex.length() - 2);
+    }
+  }
+
+  static final class Optimist implements RegularCriterion {
+    static final Optimist INSTANCE = new Optimist();
+
+    private Optimist() {}
+
+    public String toRegularExpression() { return ""; }
+    public boolean accept(String candidate) { return true; }
   }
 }
@@ -14,9 +14,18 @@
 
 package com.google.caja.lexer;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 
 import java.util.Arrays;
 
@@ -135,6 +144,83 @@ public abstract class CharProducer {
       return new CharProducerImpl(buf, limit, pos);
     }
 
+    /**
+     * Files at least this long are memory mapped and decoded a chunk at a time
+     * instead of being read onto the heap.
+     */
+    private static final int MAPPED_CHUNK_SIZE = 1 << 16;
+
+    /**
+     * Decodes a file directly into the producer's buffer, without the
+     * intermediate copies made by reading it through a {@link Reader}.
+     * As with an {@link java.io.InputStreamReader}, malformed input is
+     * replaced with the charset's replacement string.
+     */
+    public static CharProducer fromFile(
+        File f, String charset, FilePosition pos)
+        throws IOException {
+      CharsetDecoder decoder = Charset.forName(charset).newDecoder()
+          .onMalformedInput(CodingErrorAction.REPLACE)
+          .onUnmappableCharacter(CodingErrorAction.REPLACE);
+      FileInputStream in = new FileInputStream(f);
+      try {
+        FileChannel channel = in.getChannel();
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE) {
+          throw new IOException(f + " is too large");
+        }
+        // Sized for the worst case.  For UTF-8 that is one char per byte.
+        char[] buf = new char[(int) Math.min(
+            Integer.MAX_VALUE,
+            (long) Math.ceil(size * decoder.maxCharsPerByte()))];
+        CharBuffer chars = CharBuffer.wrap(buf);
+        if (size < MAPPED_CHUNK_SIZE) {
+          ByteBuffer bytes = ByteBuffer.allocate((int) size);
+          while (bytes.hasRemaining()) {
+            if (channel.read(bytes) < 0) { break; }
+          }
+          bytes.flip();
+          decode(decoder, bytes, chars, true);
+        } else {
+          // Decoders are much faster on heap buffers, so copy the mapped
+          // bytes a chunk at a time onto the heap.
+          ByteBuffer mapped = channel.map(
+              FileChannel.MapMode.READ_ONLY, 0, size);
+          ByteBuffer chunk = ByteBuffer.allocate(MAPPED_CHUNK_SIZE);
+          boolean eof;
+          do {
+            int n = Math.min(chunk.remaining(), mapped.remaining());
+            mapped.get(chunk.array(), chunk.position(), n);
+            chunk.position(chunk.position() + n);
+            chunk.flip();
+            eof = !mapped.hasRemaining();
+            decode(decoder, chunk, chars, eof);
+            // Keep any partial code-unit sequence for the next chunk.
+            chunk.compact();
+          } while (!eof);
+        }
+        CoderResult result = decoder.flush(chars);
+        if (!result.isUnderflow()) { result.throwException(); }
+        return new CharProducerImpl(buf, chars.position(), pos);
+      } finally {
+        in.close();
+      }
+    }
+
+    private static void decode(
+        CharsetDecoder decoder, ByteBuffer bytes, CharBuffer chars,
+        boolean endOfInput)
+        throws IOException {
+      CoderResult result = decoder.decode(bytes, chars, endOfInput);
+      if (!result.isUnderflow()) { result.throwException(); }
+    }
+
+    public static CharProducer fromFile(
+        File f, String charset, InputSource src)
+        throws IOException {
+      return fromFile(f, charset, FilePosition.startOfFile(src));
+    }
+
     public static CharProducer fromString(String s, InputSource src) {
       return fromString(s, FilePosition.startOfFile(src));
     }
@@ -55,7 +55,8 @@ public final class FilePosition implements MessagePart {
     this.length = length;
   }
 
-  SourceBreaks getBreaks() { return breaks; }
+  /** The line breaks of the source that this position is in. */
+  public SourceBreaks getBreaks() { return breaks; }
 
   public InputSource source() { return breaks.source(); }
   /**
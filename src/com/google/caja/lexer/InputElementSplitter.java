@@ -21,21 +21,35 @@ import com.google.caja.reporting.MessageType;
  * Splits lines into strings, comments, regular expression literals, and
  * blocks of non-whitespace.
  *
+ * <p>Tokens are described by their type and their offsets in
+ * {@link #getBuffer}, so that no {@link Token} need be created for them.
+ *
  * @author mikesamuel@gmail.com
  */
-final class InputElementSplitter extends AbstractTokenStream<JsTokenType> {
-  private final DecodingCharProducer p;
+final class InputElementSplitter {
+  /**
+   * The input with line continuations removed, or the input itself if it has
+   * none.
+   */
+  private final CharProducer p;
+  /** True if p has had line continuations removed. */
+  private final boolean hasLineContinuations;
   /**
    * A trie used to split a chunk of text into punctuation tokens and
    * non-punctuation tokens.
    */
   private final PunctuationTrie<?> punctuation;
+  /** The type of the current token, or null if there is none. */
+  private JsTokenType type;
+  /** The offsets in the buffer of the current token. */
+  private int start, end;
   /**
    * The last token that was not a comment token.
    * This can be used to decide whether to take a particular parsing path
    * based on token lookbehind, as javascript requires.
    */
-  private Token<JsTokenType> lastNonCommentToken;
+  private JsTokenType lastNonCommentType;
+  private int lastNonCommentStart, lastNonCommentEnd;
 
   /**
    * Whether we are parsing a quasiliteral pattern, as opposed to plain
@@ -49,22 +63,55 @@ final class InputElementSplitter extends AbstractTokenStream<JsTokenType> {
 
   public InputElementSplitter(CharProducer p, PunctuationTrie<?> punctuation,
                               boolean isQuasiliteral) {
-    this.p = lineContinuingCharProducer(p);
+    this.hasLineContinuations = hasLineContinuations(p);
+    // Decoding copies the input, so skip it when there is nothing to decode.
+    this.p = hasLineContinuations
+        ? lineContinuingCharProducer(p) : p.clone();
     this.punctuation = punctuation;
     this.isQuasiliteral = isQuasiliteral;
   }
 
-  @Override
-  public Token<JsTokenType> next() throws ParseException {
-    Token<JsTokenType> t = super.next();
-    if (t.type != JsTokenType.COMMENT) {
-      this.lastNonCommentToken = t;
+  /** The buffer into which {@link #getStart} and {@link #getEnd} index. */
+  char[] getBuffer() { return p.getBuffer(); }
+  /** The type of the current token. */
+  JsTokenType getType() { return type; }
+  /** The offset in {@link #getBuffer} of the start of the current token. */
+  int getStart() { return start; }
+  /** The offset in {@link #getBuffer} past the end of the current token. */
+  int getEnd() { return end; }
+
+  /**
+   * The text of a token.  Unlike other tokens, a line continuation's text
+   * does not appear in the buffer.
+   */
+  String text(JsTokenType type, int start, int end) {
+    if (type == JsTokenType.LINE_CONTINUATION) { return "\\"; }
+    return p.toString(start, end);
+  }
+
+  FilePosition position(int start, int end) {
+    return p.filePositionForOffsets(start, end);
+  }
+
+  /**
+   * Moves to the next token.
+   * @return false if there are no more tokens.
+   */
+  boolean advance() throws ParseException {
+    if (type != null && type != JsTokenType.COMMENT) {
+      lastNonCommentType = type;
+      lastNonCommentStart = start;
+      lastNonCommentEnd = end;
     }
-    return t;
+    type = produce();
+    return type != null;
   }
 
-  @Override
-  protected Token<JsTokenType> produce() throws ParseException {
+  /**
+   * Finds the next token, and sets {@link #start} and {@link #end}.
+   * @return the type of the token, or null if there are no more tokens.
+   */
+  private JsTokenType produce() throws ParseException {
     final char[] buf = p.getBuffer();
     int start = p.getOffset();
     final int limit = p.getLimit();
@@ -73,8 +120,8 @@ final class InputElementSplitter extends AbstractTokenStream<JsTokenType> {
       while (start < limit && JsLexer.isJsSpace(buf[start])) {
         if (tokenBreak(start)) {
           p.consumeTo(start);
-          return Token.instance(
-              "\\", JsTokenType.LINE_CONTINUATION, p.getCurrentPosition());
+          this.start = this.end = start;
+          return JsTokenType.LINE_CONTINUATION;
         }
         ++start;
       }
@@ -148,8 +195,10 @@ final class InputElementSplitter extends AbstractTokenStream<JsTokenType> {
             break;
           default:
             {
-              if (lastNonCommentToken == null
-                  || JsLexer.isRegexp(lastNonCommentToken.text)) {
+              if (lastNonCommentType == null
+                  || JsLexer.isRegexp(text(
+                      lastNonCommentType, lastNonCommentStart,
+                      lastNonCommentEnd))) {
                 boolean closed = false;
                 boolean escaped = false;
                 boolean inCharSet = false;
@@ -248,9 +297,10 @@ final class InputElementSplitter extends AbstractTokenStream<JsTokenType> {
         break;
     }
 
-    FilePosition pos = p.filePositionForOffsets(start, end);
     p.consumeTo(end);
-    return Token.instance(p.toString(start, end), type, pos);
+    this.start = start;
+    this.end = end;
+    return type;
   }
 
   static final class ParsedNumber {
@@ -329,12 +379,28 @@ final class InputElementSplitter extends AbstractTokenStream<JsTokenType> {
    * <pre>{ (a + (+b)); }</pre>.
    */
   private boolean tokenBreak(int offset) {
-    if (offset == p.getLimit()) { return false; }
+    if (!hasLineContinuations || offset == p.getLimit()) { return false; }
+    DecodingCharProducer dp = (DecodingCharProducer) p;
     int nUnderlyingChars = (
-        p.getUnderlyingOffset(offset + 1) - p.getUnderlyingOffset(offset));
+        dp.getUnderlyingOffset(offset + 1) - dp.getUnderlyingOffset(offset));
     return nUnderlyingChars != 1;
   }
 
+  /**
+   * True if p contains a line continuation, or if p does not start at
+   * the beginning of its buffer, since decoding adjusts offsets.
+   */
+  private static boolean hasLineContinuations(CharProducer p) {
+    if (p.getOffset() != 0) { return true; }
+    char[] buf = p.getBuffer();
+    for (int i = 0, n = p.getLimit() - 1; i < n; ++i) {
+      if (buf[i] == '\\' && (buf[i + 1] == '\r' || buf[i + 1] == '\n')) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   DecodingCharProducer lineContinuingCharProducer(CharProducer p) {
     return DecodingCharProducer.make(new DecodingCharProducer.Decoder() {
       @Override
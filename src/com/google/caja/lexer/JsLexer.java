@@ -14,16 +14,33 @@
 
 package com.google.caja.lexer;
 
+import java.util.NoSuchElementException;
 import java.util.TreeMap;
 import java.util.regex.Pattern;
 
 /**
  * Tokenizes javascript source.
  *
+ * <p>Tokens can be read as {@link Token}s via {@link #next}, or, by a
+ * {@link TokenQueue}, as offsets into the input so that tokens that are only
+ * compared or skipped are never created.
+ *
  * @author mikesamuel@gmail.com (Mike Samuel)
  */
-public class JsLexer implements TokenStream<JsTokenType> {
-  private TokenStream<JsTokenType> ts;
+public class JsLexer implements PackedTokenStream<JsTokenType> {
+  private final InputElementSplitter splitter;
+  /** The type of the current token after words have been classified. */
+  private JsTokenType type;
+  /**
+   * True if {@link #hasNext} has advanced to a token that {@link #next} has
+   * not yet returned.
+   */
+  private boolean fetched;
+  /**
+   * The text of word and punctuation tokens, which recur often, so that each
+   * distinct word is only copied out of the input once.
+   */
+  private final WordTable words = new WordTable();
 
   private static PunctuationTrie<?> JAVASCRIPT_PUNCTUATOR;
   static {
@@ -39,14 +56,72 @@ public class JsLexer implements TokenStream<JsTokenType> {
   }
 
   public JsLexer(CharProducer producer, boolean isQuasiliteral) {
-    this.ts = new WordClassifier(
-        new InputElementSplitter(producer, JAVASCRIPT_PUNCTUATOR,
-                                 isQuasiliteral));
+    this.splitter = new InputElementSplitter(
+        producer, JAVASCRIPT_PUNCTUATOR, isQuasiliteral);
+  }
+
+  public boolean hasNext() throws ParseException {
+    if (!fetched) { fetched = advance(); }
+    return fetched;
+  }
+
+  public Token<JsTokenType> next() throws ParseException {
+    if (!hasNext()) { throw new NoSuchElementException(); }
+    fetched = false;
+    int start = splitter.getStart(), end = splitter.getEnd();
+    return Token.instance(
+        text(type, start, end), type, splitter.position(start, end));
   }
 
-  public boolean hasNext() throws ParseException { return ts.hasNext(); }
+  public boolean advance() throws ParseException {
+    if (fetched) {
+      fetched = false;
+      return true;
+    }
+    if (!splitter.advance()) {
+      type = null;
+      return false;
+    }
+    type = splitter.getType();
+    if (type == JsTokenType.WORD) {
+      type = words.get(
+          splitter.getBuffer(), splitter.getStart(), splitter.getEnd()).type;
+    }
+    return true;
+  }
+
+  public JsTokenType getType() { return type; }
+
+  public int getStart() { return splitter.getStart(); }
+
+  public int getEnd() { return splitter.getEnd(); }
+
+  public String text(JsTokenType type, int start, int end) {
+    switch (type) {
+      case WORD: case KEYWORD: case INTEGER: case FLOAT: case PUNCTUATION:
+        return words.get(splitter.getBuffer(), start, end).text;
+      default:
+        return splitter.text(type, start, end);
+    }
+  }
+
+  public boolean textEquals(
+      JsTokenType type, int start, int end, String text) {
+    if (type == JsTokenType.LINE_CONTINUATION) {
+      return "\\".equals(text);
+    }
+    int n = text.length();
+    if (end - start != n) { return false; }
+    char[] buf = splitter.getBuffer();
+    for (int i = 0; i < n; ++i) {
+      if (buf[start + i] != text.charAt(i)) { return false; }
+    }
+    return true;
+  }
 
-  public Token<JsTokenType> next() throws ParseException { return ts.next(); }
+  public FilePosition position(int start, int end) {
+    return splitter.position(start, end);
+  }
 
   /**
    * According to
@@ -131,50 +206,93 @@ public class JsLexer implements TokenStream<JsTokenType> {
       + "|(?:[1-9][0-9]*))"
       + "$");
 
-  static class WordClassifier implements TokenStream<JsTokenType> {
-
-    private TokenStream<JsTokenType> stream;
-
-    public WordClassifier(TokenStream<JsTokenType> stream) {
-      this.stream = stream;
+  /**
+   * The type of a word, which may be a keyword or number instead of an
+   * identifier.
+   */
+  static JsTokenType classify(String word) {
+    JsTokenType type = JsTokenType.WORD;
+    if (null != Keyword.fromString(word)) {
+      type = JsTokenType.KEYWORD;
+    } else if (0 < word.length()) {
+      char ch = word.charAt(0);
+      if ((ch >= '0' && ch <= '9') || '-' == ch || '+' == ch || '.' == ch) {
+        // Verify tok is a well formed numeric token.
+        if (INTEGER_LITERAL_RE.matcher(word).matches()) {
+          type = JsTokenType.INTEGER;
+        } else {
+          try {
+            Double.parseDouble(word);
+            type = JsTokenType.FLOAT;
+          } catch (NumberFormatException ex) {
+            // Not a valid numeric token.  Will be rejected as an identifier
+            // by the parser.
+          }
+        }
+      }
     }
+    return type;
+  }
 
-    public boolean hasNext() throws ParseException {
-      return stream.hasNext();
-    }
+  /**
+   * Maps runs of characters to strings and their word classification, without
+   * creating a string to look them up.
+   */
+  private static final class WordTable {
+    /** Open addressed, with a power of two size. */
+    private Word[] table = new Word[256];
+    private int size;
 
-    public Token<JsTokenType> next() throws ParseException {
-      Token<JsTokenType> tok = stream.next();
-      if (tok.type == JsTokenType.WORD) {
-        JsTokenType type = JsTokenType.WORD;
-        if (null != Keyword.fromString(tok.text)) {
-          type = JsTokenType.KEYWORD;
-        } else if (0 < tok.text.length()) {
-          char ch = tok.text.charAt(0);
-          if ((ch >= '0' && ch <= '9') || '-' == ch || '+' == ch || '.' == ch) {
-            // Verify tok is a well formed numeric token.
-            if (INTEGER_LITERAL_RE.matcher(tok.text).matches()) {
-              type = JsTokenType.INTEGER;
-            } else {
-              String text = tok.text;
-              try {
-                Double.parseDouble(text);
-                type = JsTokenType.FLOAT;
-              } catch (NumberFormatException ex) {
-                // Not a valid numeric token.  Will be rejected as an identifier
-                // by the parser.
-              }
-            }
-          }
-        }
-        if (JsTokenType.WORD != type) {
-          tok = Token.instance(tok.text, type, tok.pos);
+    Word get(char[] buf, int start, int end) {
+      int hash = 0;
+      for (int i = start; i < end; ++i) { hash = 31 * hash + buf[i]; }
+      int mask = table.length - 1;
+      int len = end - start;
+      for (int i = hash & mask;; i = (i + 1) & mask) {
+        Word w = table[i];
+        if (w == null) { break; }
+        if (w.hash == hash && w.text.length() == len) {
+          String text = w.text;
+          int j = 0;
+          while (j < len && text.charAt(j) == buf[start + j]) { ++j; }
+          if (j == len) { return w; }
         }
       }
-      return tok;
+      String text = new String(buf, start, len);
+      Word w = new Word(text, hash, classify(text));
+      if (++size * 2 > table.length) { rehash(); }
+      mask = table.length - 1;
+      int i = hash & mask;
+      while (table[i] != null) { i = (i + 1) & mask; }
+      table[i] = w;
+      return w;
     }
 
-  }  // WordClassifier
+    private void rehash() {
+      Word[] old = table;
+      table = new Word[old.length * 2];
+      int mask = table.length - 1;
+      for (Word w : old) {
+        if (w == null) { continue; }
+        int i = w.hash & mask;
+        while (table[i] != null) { i = (i + 1) & mask; }
+        table[i] = w;
+      }
+    }
+  }
+
+  private static final class Word {
+    final String text;
+    final int hash;
+    /** The type of the text if it is lexed as a word. */
+    final JsTokenType type;
+
+    Word(String text, int hash, JsTokenType type) {
+      this.text = text;
+      this.hash = hash;
+      this.type = type;
+    }
+  }
 
   public static boolean isJsSpace(char ch) {
     // From http://www.mozilla.org/js/language/es4/formal/lexer-grammar.html
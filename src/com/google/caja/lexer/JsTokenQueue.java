@@ -38,10 +38,11 @@ public final class JsTokenQueue extends TokenQueue<JsTokenType> {
    * @see #JsTokenQueue(TokenStream, InputSource, Criterion)
    */
   public static final Criterion<Token<JsTokenType>> NO_COMMENT =
-    new Criterion<Token<JsTokenType>>() {
-      public boolean accept(Token<JsTokenType> t) {
-        return JsTokenType.COMMENT != t.type
-            && JsTokenType.LINE_CONTINUATION != t.type;
+    new TokenTypeCriterion<JsTokenType>() {
+      @Override
+      public boolean acceptType(JsTokenType type) {
+        return JsTokenType.COMMENT != type
+            && JsTokenType.LINE_CONTINUATION != type;
       }
     };
 
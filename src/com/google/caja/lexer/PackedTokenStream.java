@@ -0,0 +1,49 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.lexer;
+
+/**
+ * A token stream that describes each token by its type and its offsets in the
+ * input, so that a client can skip past or compare tokens without creating
+ * {@link Token}s or their text or {@link FilePosition}s.
+ *
+ * <p>Offsets are only meaningful to the stream that produced them.
+ * A client should read tokens via either {@link #advance} or {@link #next}.
+ */
+interface PackedTokenStream<T extends TokenType> extends TokenStream<T> {
+  /**
+   * Moves to the next token.
+   * @return false if there are no more tokens.
+   */
+  boolean advance() throws ParseException;
+
+  /** The type of the current token. */
+  T getType();
+
+  /** The start offset of the current token. */
+  int getStart();
+
+  /** The end offset of the current token. */
+  int getEnd();
+
+  /** The text of the token with the given type and offsets. */
+  String text(T type, int start, int end);
+
+  /** True iff {@code text(type, start, end).equals(text)}. */
+  boolean textEquals(T type, int start, int end, String text);
+
+  /** The position of the token with the given offsets. */
+  FilePosition position(int start, int end);
+}
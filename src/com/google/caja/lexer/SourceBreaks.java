@@ -42,6 +42,21 @@ public final class SourceBreaks {
 
   public InputSource source() { return src; }
 
+  /** The line-number on which character zero falls. */
+  public int lineNumberZero() { return lineNumberZero; }
+
+  /** The number of line breaks added via {@link #lineStartsAt}. */
+  public int lineCount() { return nLines; }
+
+  /**
+   * The index of the first character of the line following the i-th line
+   * break.
+   */
+  public int lineStart(int i) {
+    if (i >= nLines) { throw new IndexOutOfBoundsException("" + i); }
+    return lineNums[i];
+  }
+
   int charInLineAt(int charInFile) {
     int lineno = lineAt(charInFile) - lineNumberZero;
     if (lineno == 0) { return charInFile; }
@@ -27,16 +27,56 @@ import java.util.List;
  * A queue of tokens extracted from a Lexer and a bunch of convenience
  * methods for parsing.
  *
+ * <p>Tokens are stored in parallel arrays indexed by their position in the
+ * queue.  When the token stream is a {@link PackedTokenStream} and the filter
+ * only looks at token types, tokens are stored as their type and offsets, and
+ * a {@link Token} or {@link FilePosition} is only created for a token when a
+ * parser asks for one.  Comparing a token's text does not create either.
+ *
+ * <p>Once created, a token is kept until the queue can no longer rewind to it.
+ * Marks cannot be tracked once dropped, so that is until the queue has
+ * advanced past every token since the earliest {@link #mark}.  The JS and CSS
+ * parsers mark the start of their input, so keep every token they consume,
+ * as the linked list this replaced did.  Queues that are never marked, like
+ * the HTML parser's, only keep the tokens since the array was last compacted.
+ *
  * @author mikesamuel@gmail.com
  */
 public class TokenQueue<T extends TokenType> {
   private TokenStream<T> tstream;
+  /** tstream if tokens can be stored as offsets, or null. */
+  private final PackedTokenStream<T> packed;
   private InputSource file;
   /** Null or the range of file that is being parsed. */
   private FilePosition inputRange;
   private Criterion<Token<T>> tokenFilter;
 
-  private TokenList<T> current, prev;
+  /** The number of tokens fetched. */
+  private int count;
+  /** The index of the current token. */
+  private int current;
+  /**
+   * The index of the token at the start of the arrays below.  Tokens before
+   * it have been dropped.
+   */
+  private int base;
+  /** The lowest index at which a mark has been taken. */
+  private int lowestMark = Integer.MAX_VALUE;
+  private TokenType[] types = new TokenType[64];
+  /** Offsets in the packed stream, or null if not packed. */
+  private int[] starts, ends;
+  /** Tokens, created lazily if packed. */
+  private Token<T>[] tokens = newTokenArray(64);
+  /** Positions, created lazily if packed. */
+  private FilePosition[] positions;
+  /**
+   * The tokens filtered before token i are
+   * {@code filtered[filteredEnds[i - 1]:filteredEnds[i]]}.
+   */
+  private int[] filteredEnds = new int[64];
+  private List<Token<T>> filtered;
+  /** The number of filtered tokens dropped from the start of filtered. */
+  private int filteredBase;
 
   private boolean eof = false;
 
@@ -45,12 +85,33 @@ public class TokenQueue<T extends TokenType> {
     this.tstream = tokenStream;
     this.file = file;
     this.tokenFilter = tokenFilter;
+    if (tokenStream instanceof PackedTokenStream<?>
+        && (tokenFilter instanceof TokenTypeCriterion<?>
+            || tokenFilter == Criterion.Factory.<Token<T>>optimist())) {
+      this.packed = (PackedTokenStream<T>) tokenStream;
+      this.starts = new int[64];
+      this.ends = new int[64];
+      this.positions = new FilePosition[64];
+    } else {
+      this.packed = null;
+    }
   }
 
   public TokenQueue(TokenStream<T> tokenStream, InputSource file) {
     this(tokenStream, file, Criterion.Factory.<Token<T>>optimist());
   }
 
+  /**
+   * A filter that only looks at token types, so can be applied to tokens
+   * that have not been created.
+   */
+  public static abstract class TokenTypeCriterion<T extends TokenType>
+      implements Criterion<Token<T>> {
+    public abstract boolean acceptType(T type);
+
+    public final boolean accept(Token<T> t) { return acceptType(t.type); }
+  }
+
   public InputSource getInputSource() { return this.file; }
 
   /** Null or the range within the file which is being parsed. */
@@ -59,8 +120,7 @@ public class TokenQueue<T extends TokenType> {
 
   /** True iff there are no more tokens on the queue. */
   public boolean isEmpty() throws ParseException {
-    fetch(false);
-    return null == current;
+    return !fetch(false);
   }
 
   /** Throws a ParseException if the queue is not empty. */
@@ -75,56 +135,178 @@ public class TokenQueue<T extends TokenType> {
   /**
    * Ensures that there is a token on the queue ready for fetching.
    *
+   * @return true if there is a current token.
    * @throws ParseException if there is an error parsing a token or if the
    *   end of file has been reached.
    * @see MessageType#END_OF_FILE
    */
-  private void fetch(boolean failOnEof) throws ParseException {
-    if (null != current) { return; }
-
-    List<Token<T>> filtered = null;
-    Token<T> t = null;
+  private boolean fetch(boolean failOnEof) throws ParseException {
+    if (current < count) { return true; }
 
+    int nFiltered = filtered != null ? filtered.size() : 0;
+    boolean found = false;
     if (!eof) {
-      while (tstream.hasNext()) {
-        t = tstream.next();
-        if (tokenFilter.accept(t)) { break; }
-        if (null == filtered) { filtered = new ArrayList<Token<T>>(); }
-        filtered.add(t);
-        t = null;
+      if (packed != null) {
+        found = fetchPacked();
+      } else {
+        while (tstream.hasNext()) {
+          Token<T> t = tstream.next();
+          if (tokenFilter.accept(t)) {
+            ensureCapacity();
+            types[count - base] = t.type;
+            tokens[count - base] = t;
+            found = true;
+            break;
+          }
+          addFiltered(t);
+        }
       }
     }
 
-    if (null == t) {
+    if (!found) {
       eof = true;
+      if (filtered != null) {
+        // Tokens filtered after the last token are not reported.
+        while (filtered.size() > nFiltered) {
+          filtered.remove(filtered.size() - 1);
+        }
+      }
       if (failOnEof) {
         throw new ParseException(
             new Message(MessageType.END_OF_FILE,
                         (null != inputRange ? this.inputRange : this.file)));
       }
-      return;
+      return false;
+    }
+
+    filteredEnds[count - base] = filteredBase
+        + (filtered != null ? filtered.size() : 0);
+    ++count;
+    return true;
+  }
+
+  /**
+   * Stores the next token that passes the filter at index count.
+   * @return false if there are no more tokens.
+   */
+  private boolean fetchPacked() throws ParseException {
+    PackedTokenStream<T> packed = this.packed;
+    while (packed.advance()) {
+      T type = packed.getType();
+      int start = packed.getStart(), end = packed.getEnd();
+      if (tokenFilter instanceof TokenTypeCriterion<?>
+          && !((TokenTypeCriterion<T>) tokenFilter).acceptType(type)) {
+        addFiltered(Token.instance(
+            packed.text(type, start, end), type,
+            packed.position(start, end)));
+        continue;
+      }
+      ensureCapacity();
+      types[count - base] = type;
+      starts[count - base] = start;
+      ends[count - base] = end;
+      return true;
+    }
+    return false;
+  }
+
+  private void addFiltered(Token<T> t) {
+    if (filtered == null) { filtered = new ArrayList<Token<T>>(); }
+    filtered.add(t);
+  }
+
+  /**
+   * Makes room for the token at index count, dropping tokens that can no
+   * longer be reached before growing the arrays.
+   */
+  private void ensureCapacity() {
+    int n = count - base;
+    if (n < types.length) { return; }
+    // The current token's predecessor is needed for lastPosition and
+    // filteredTokens, as is a rewound-to mark's.
+    int keepFrom = Math.max(base, Math.min(lowestMark, current) - 1);
+    int drop = keepFrom - base;
+    if (drop != 0 && filtered != null) {
+      // Filtered tokens that precede the first kept token's successor.
+      int nFiltered = filteredEnds[drop] - filteredBase;
+      filtered.subList(0, nFiltered).clear();
+      filteredBase += nFiltered;
+    }
+    int size = drop >= types.length / 2 ? types.length : types.length * 2;
+    int kept = n - drop;
+    TokenType[] newTypes = new TokenType[size];
+    System.arraycopy(types, drop, newTypes, 0, kept);
+    types = newTypes;
+    Token<T>[] newTokens = newTokenArray(size);
+    System.arraycopy(tokens, drop, newTokens, 0, kept);
+    tokens = newTokens;
+    int[] newFilteredEnds = new int[size];
+    System.arraycopy(filteredEnds, drop, newFilteredEnds, 0, kept);
+    filteredEnds = newFilteredEnds;
+    if (packed != null) {
+      int[] newStarts = new int[size];
+      System.arraycopy(starts, drop, newStarts, 0, kept);
+      starts = newStarts;
+      int[] newEnds = new int[size];
+      System.arraycopy(ends, drop, newEnds, 0, kept);
+      ends = newEnds;
+      FilePosition[] newPositions = new FilePosition[size];
+      System.arraycopy(positions, drop, newPositions, 0, kept);
+      positions = newPositions;
+    }
+    base = keepFrom;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T extends TokenType> Token<T>[] newTokenArray(int n) {
+    return (Token<T>[]) new Token<?>[n];
+  }
+
+  /** The token at index i, creating it if necessary. */
+  private Token<T> token(int i) {
+    int j = i - base;
+    Token<T> t = tokens[j];
+    if (t == null) {
+      @SuppressWarnings("unchecked")
+      T type = (T) types[j];
+      t = tokens[j] = Token.instance(
+          packed.text(type, starts[j], ends[j]), type, position(i));
+    }
+    return t;
+  }
+
+  /** The position of the token at index i, creating it if necessary. */
+  private FilePosition position(int i) {
+    int j = i - base;
+    if (packed == null) { return tokens[j].pos; }
+    FilePosition pos = positions[j];
+    if (pos == null) {
+      pos = positions[j] = packed.position(starts[j], ends[j]);
     }
+    return pos;
+  }
 
-    TokenList<T> tl = new TokenList<T>();
-    tl.t = t;
-    tl.filteredTokens = null != filtered
-        ? Collections.<Token<T>>unmodifiableList(filtered)
-        : Collections.<Token<T>>emptyList();
-    current = tl;
-    if (null != prev) { prev.next = tl; }
+  /** True if the text of the token at index i is text. */
+  private boolean textEquals(int i, String text) {
+    int j = i - base;
+    if (packed == null || tokens[j] != null) {
+      return tokens[j].text.equals(text);
+    }
+    @SuppressWarnings("unchecked")
+    T type = (T) types[j];
+    return packed.textEquals(type, starts[j], ends[j], text);
   }
 
   /** Advance to the next token. */
   public void advance() throws ParseException {
     fetch(true);
-    prev = current;
-    current = current.next;
+    ++current;
   }
 
   /** Fetch the current token. */
   public Token<T> peek() throws ParseException {
     fetch(true);
-    return current.t;
+    return token(current);
   }
 
   /** Fetch the current token and advance to the next token. */
@@ -143,7 +325,11 @@ public class TokenQueue<T extends TokenType> {
    */
   public List<Token<T>> filteredTokens() throws ParseException {
     fetch(true);
-    return current.filteredTokens;
+    int end = filteredEnds[current - base];
+    int start = current != 0 ? filteredEnds[current - 1 - base] : 0;
+    if (start == end) { return Collections.<Token<T>>emptyList(); }
+    return Collections.unmodifiableList(
+        filtered.subList(start - filteredBase, end - filteredBase));
   }
 
   /**
@@ -151,11 +337,8 @@ public class TokenQueue<T extends TokenType> {
    * queue can be "rewound" to the current position later on.
    */
   public Mark mark() throws ParseException {
-    if (null == this.current && null == this.prev) {
-      fetch(true);
-    }
-    // tokens from prev on will not be garbage collectible until the Mark
-    // object is garbage collectible.
+    if (count == 0) { fetch(true); }
+    if (current < lowestMark) { lowestMark = current; }
     return new Mark(this);
   }
 
@@ -164,18 +347,9 @@ public class TokenQueue<T extends TokenType> {
    * was created.
    * @see #mark
    */
-  @SuppressWarnings("unchecked")
   public void rewind(Mark m) {
     if (m.tq != this) { throw new IllegalStateException(); }
-    // Since Mark was created from this tokenqueue, we know that it is typesafe
-    // to assign savedPrev and savedCurrent, which warrants
-    // @SuppressWarnings above.
-    this.prev = (TokenList<T>) m.savedPrev;
-    if (null != this.prev) {
-      this.current = this.prev.next;
-    } else {
-      this.current = (TokenList<T>) m.savedCurrent;
-    }
+    this.current = m.index;
   }
 
   /**
@@ -184,13 +358,12 @@ public class TokenQueue<T extends TokenType> {
    * @see TokenQueue#mark
    */
   public static class Mark {
-    final TokenList<?> savedCurrent, savedPrev;
+    final int index;
     final TokenQueue<?> tq;
 
     Mark(TokenQueue<?> tq) {
       this.tq = tq;
-      this.savedCurrent = tq.current;
-      this.savedPrev = tq.prev;
+      this.index = tq.current;
      }
 
     public FilePosition getFilePosition() throws ParseException {
@@ -209,11 +382,12 @@ public class TokenQueue<T extends TokenType> {
   }
 
   public FilePosition currentPosition() throws ParseException {
-    return peek().pos;
+    fetch(true);
+    return position(current);
   }
 
   public FilePosition lastPosition() {
-    return prev != null ? prev.t.pos : null;
+    return current != 0 ? position(current - 1) : null;
   }
 
   /**
@@ -222,8 +396,8 @@ public class TokenQueue<T extends TokenType> {
    */
   public boolean checkToken(String text) throws ParseException {
     if (isEmpty()) { return false; }
-    if (peek().text.equals(text)) {
-      advance();
+    if (textEquals(current, text)) {
+      ++current;
       return true;
     }
     return false;
@@ -234,25 +408,25 @@ public class TokenQueue<T extends TokenType> {
    * raises a ParseException otherwise.
    */
   public void expectToken(String text) throws ParseException {
-    Token<T> t;
     try {
-      t = peek();
+      fetch(true);
     } catch (ParseException ex) {
-      if (prev != null
+      if (current != 0
           && ex.getCajaMessage().getMessageType() == MessageType.END_OF_FILE) {
         throw new ParseException(
             new Message(MessageType.EXPECTED_TOKEN,
-                        FilePosition.endOf(prev.t.pos),
+                        FilePosition.endOf(position(current - 1)),
                         MessagePart.Factory.valueOf(text),
                         MessagePart.Factory.valueOf("EOF")));
       }
       throw ex;
     }
-    if (t.text.equals(text)) {
-      advance();
+    if (textEquals(current, text)) {
+      ++current;
       return;
     }
 
+    Token<T> t = token(current);
     throw new ParseException(
         new Message(MessageType.EXPECTED_TOKEN, t.pos,
                     MessagePart.Factory.valueOf(text),
@@ -264,7 +438,7 @@ public class TokenQueue<T extends TokenType> {
    * @return true iff the current token matched text.
    */
   public boolean lookaheadToken(String text) throws ParseException {
-    return !isEmpty() && peek().text.equals(text);
+    return !isEmpty() && textEquals(current, text);
   }
 
   /**
@@ -283,16 +457,4 @@ public class TokenQueue<T extends TokenType> {
                     MessagePart.Factory.valueOf(tt.toString()),
                     MessagePart.Factory.valueOf(t.text)));
   }
-
-  /**
-   * A singly linked list of tokens.
-   * The elements of this list will become garbage colltible as they are
-   * skipped past and the Marks that allow rewinding to earlier positions
-   * are discarded.
-   */
-  private static class TokenList<TT extends TokenType> {
-    Token<TT> t;
-    TokenList<TT> next;
-    List<Token<TT>> filteredTokens;
-  }
 }
@@ -25,7 +25,6 @@ import com.google.caja.util.SyntheticAttributes;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 
@@ -348,10 +347,11 @@ public abstract class AbstractParseTreeNode
 
   @Override
   public ParseTreeNode clone() {
-    List<ParseTreeNode> clonedChildren
-        = new ArrayList<ParseTreeNode>(children.getImmutableFacet().size());
-    for (ParseTreeNode child : children.getImmutableFacet()) {
-      clonedChildren.add(child.clone());
+    List<? extends ParseTreeNode> children = this.children.getImmutableFacet();
+    int n = children.size();
+    List<ParseTreeNode> clonedChildren = new ArrayList<ParseTreeNode>(n);
+    for (int i = 0; i < n; ++i) {
+      clonedChildren.add(children.get(i).clone());
     }
     AbstractParseTreeNode cloned = ParseTreeNodes.newNodeInstance(
         getClass(), getFilePosition(), getValue(), clonedChildren);
@@ -380,12 +380,12 @@ public abstract class AbstractParseTreeNode
       return insertBefore(toAppend, null);
     }
 
-    @SuppressWarnings("unchecked")
     public Mutation appendChildren(Iterable<? extends ParseTreeNode> nodes) {
-      for (Iterator it=nodes.iterator(); it.hasNext(); ) {
-        ParseTreeNode node = (ParseTreeNode)it.next();
-        changes.add(new Insertion(node, null));
-      }
+      // Copied now since nodes may be a live view, like another node's
+      // children, that changes before the mutation is executed.
+      List<ParseTreeNode> toAdd = new ArrayList<ParseTreeNode>();
+      for (ParseTreeNode node : nodes) { toAdd.add(node); }
+      changes.add(new Append(toAdd));
       return this;
     }
 
@@ -515,6 +515,34 @@ public abstract class AbstractParseTreeNode
     }
   }
 
+  /**
+   * Appends any number of children, the common case when a node is
+   * constructed, with one change instead of one {@link Insertion} per child.
+   */
+  private final class Append extends Change {
+    private final List<ParseTreeNode> toAdd;
+
+    Append(List<ParseTreeNode> toAdd) {
+      this.toAdd = toAdd;
+    }
+
+    @Override
+    boolean apply(boolean copied) {
+      List<ParseTreeNode> mutable = children.getMutableFacet();
+      backupIndex = mutable.size();
+      for (ParseTreeNode node : toAdd) {
+        mutable.add(mutable.size(), node);
+      }
+      return copied;
+    }
+
+    @Override
+    void rollback() {
+      List<ParseTreeNode> mutable = children.getMutableFacet();
+      mutable.subList(backupIndex, mutable.size()).clear();
+    }
+  }
+
   private final class Insertion extends Change {
     private final ParseTreeNode toAdd;
     private final ParseTreeNode before;
@@ -19,10 +19,9 @@ import com.google.caja.lexer.FilePosition;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A utility class for common operations on {@link ParseTreeNode}s.
@@ -84,8 +83,8 @@ public class ParseTreeNodes {
   }
 
   private static final Map<Class<? extends ParseTreeNode>, Constructor<?>>
-      cloneCtorCache = Collections.synchronizedMap(
-          new HashMap<Class<? extends ParseTreeNode>, Constructor<?>>());
+      cloneCtorCache
+      = new ConcurrentHashMap<Class<? extends ParseTreeNode>, Constructor<?>>();
   private static <T extends ParseTreeNode>
   Constructor<T> findCloneCtor(Class<T> clazz) {
     {
@@ -98,6 +97,13 @@ public class ParseTreeNodes {
           && FilePosition.class.equals(parameterTypes[0])
           && parameterTypes[2].isAssignableFrom(List.class)
           && isReflectiveCtorAnnotated(ctor)) {
+        try {
+          // Skips the access check on every call, which is a significant part
+          // of the cost of cloning a node.
+          ctor.setAccessible(true);
+        } catch (SecurityException ex) {
+          // Access will be checked on each call.
+        }
         cloneCtorCache.put(clazz, ctor);
         return ctor;
       }
@@ -159,15 +159,35 @@ public abstract class ParserBase {
   }
 
   public static boolean isJavascriptIdentifier(String s) {
+    if (isAsciiIdentifier(s)) { return true; }
     return IDENTIFIER_OR_KEYWORD_RE.matcher(decodeIdentifier(s)).matches()
         && Normalizer.isNormalized(s);
   }
 
   public static boolean isQuasiIdentifier(String s) {
+    if (isAsciiIdentifier(s)) { return true; }
     return QUASI_IDENTIFIER_OR_KEYWORD_RE.matcher(decodeIdentifier(s)).matches()
         && Normalizer.isNormalized(s);
   }
 
+  /**
+   * True for the common case of an identifier made of ASCII letters, digits,
+   * {@code $} and {@code _}, which needs no decoding or normalization.
+   * False does not mean that s is not an identifier.
+   */
+  private static boolean isAsciiIdentifier(String s) {
+    int n = s.length();
+    if (n == 0) { return false; }
+    for (int i = 0; i < n; ++i) {
+      char ch = s.charAt(i);
+      if (!(('a' <= ch && ch <= 'z') || ('A' <= ch && ch <= 'Z')
+            || ch == '_' || ch == '$' || (i != 0 && '0' <= ch && ch <= '9'))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   public boolean isIdentifier(String s) {
     return (isQuasiliteral
             ? QUASI_IDENTIFIER_OR_KEYWORD_RE
@@ -0,0 +1,568 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.parser.js;
+
+import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.InputSource;
+import com.google.caja.lexer.SourceBreaks;
+import com.google.caja.lexer.Token;
+import com.google.caja.lexer.TokenType;
+import com.google.caja.parser.AbstractParseTreeNode;
+import com.google.caja.parser.ParseTreeNode;
+import com.google.caja.parser.ParseTreeNodes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary encoding of javascript parse trees, including
+ * {@link CajoledModule}s, that can be decoded much faster than the rendered
+ * source can be reparsed.
+ *
+ * <p>Node values, {@link FilePosition}s, comments, and the
+ * {@link SyntheticNodes#SYNTHETIC synthetic} and
+ * {@link ParseTreeNode#TAINTED tainted} markers are preserved.
+ * Other synthetic attributes hold the results of analyses, and are not.
+ *
+ * <p>The encoding is a header followed by the nodes in pre-order.
+ * Integers are written as base-128 varints.  Strings, node classes, and the
+ * line breaks of source files are each written in full the first time they
+ * appear, and thereafter as an index into a table built up as the input is
+ * read, so repeated identifiers and positions in the same file cost a byte or
+ * two.  Each position is written as an offset from the start of the previous
+ * position and a length.
+ */
+public final class JsTreeSerializer {
+  private static final int MAGIC = 0xCA1A;
+  private static final int VERSION = 1;
+
+  // A node's header holds these flags in the low bits and the kind of its
+  // value above them, so fits in one byte.
+  // Most positions are in the same file as the one before, and with
+  // IN_SAME_FILE, the position need not say which file it is in.
+  private static final int SYNTHETIC = 1, TAINTED = 2, HAS_COMMENTS = 4,
+      IN_SAME_FILE = 8;
+  private static final int VALUE_KIND_SHIFT = 4;
+
+  // Value kinds
+  private static final int NO_VALUE = 0, STRING = 1, FALSE = 2, TRUE = 3,
+      LONG = 4, DOUBLE = 5, OPERATOR = 6, REGEXP = 7;
+
+  // Position prefixes.  Larger values are indices into the line breaks table,
+  // offset by NEW_BREAKS + 1.
+  private static final int SAME_BREAKS = 0, UNKNOWN_POS = 1, NEW_BREAKS = 2;
+
+  private JsTreeSerializer() { /* uninstantiable */ }
+
+  /**
+   * @throws IllegalArgumentException if node contains a node that has no
+   *     {@link ParseTreeNode.ReflectiveCtor reflective constructor} or whose
+   *     value is not one of the types used by javascript nodes.
+   */
+  public static byte[] serialize(ParseTreeNode node) {
+    Encoder e = new Encoder();
+    e.writeVarint(MAGIC);
+    e.writeVarint(VERSION);
+    e.writeNode(node);
+    return e.toByteArray();
+  }
+
+  /** Like {@link #serialize(ParseTreeNode)} but writes to out. */
+  public static void serialize(ParseTreeNode node, OutputStream out)
+      throws IOException {
+    out.write(serialize(node));
+  }
+
+  /**
+   * @throws IOException if bytes is not a well-formed tree in this format.
+   */
+  public static ParseTreeNode deserialize(byte[] bytes) throws IOException {
+    Decoder d = new Decoder(bytes);
+    if (d.readVarint() != MAGIC) { throw new IOException("Not a JS tree"); }
+    int version = d.readVarint();
+    if (version != VERSION) {
+      throw new IOException("Unsupported version " + version);
+    }
+    ParseTreeNode node = d.readNode();
+    if (d.pos != bytes.length) { throw new IOException("Trailing bytes"); }
+    return node;
+  }
+
+  /** Like {@link #deserialize(byte[])} but reads in to the end of in. */
+  public static ParseTreeNode deserialize(InputStream in) throws IOException {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    byte[] chunk = new byte[4096];
+    for (int n; (n = in.read(chunk)) > 0;) { buf.write(chunk, 0, n); }
+    return deserialize(buf.toByteArray());
+  }
+
+  /**
+   * Like {@link #deserialize(byte[])} but checks the type of the root.
+   * @throws IOException if the root is not an instance of type.
+   */
+  public static <T extends ParseTreeNode> T deserialize(
+      byte[] bytes, Class<T> type) throws IOException {
+    ParseTreeNode node = deserialize(bytes);
+    if (!type.isInstance(node)) {
+      throw new IOException("Expected " + type.getName() + " not "
+                            + node.getClass().getName());
+    }
+    return type.cast(node);
+  }
+
+  private static final class Encoder {
+    private byte[] buf = new byte[4096];
+    private int n;
+    private final Map<String, Integer> strings
+        = new HashMap<String, Integer>();
+    private final Map<Class<?>, Integer> classes
+        = new IdentityHashMap<Class<?>, Integer>();
+    private final Map<SourceBreaks, Integer> breaks
+        = new IdentityHashMap<SourceBreaks, Integer>();
+    private SourceBreaks lastBreaks;
+    private int lastStart;
+
+    void writeNode(ParseTreeNode node) {
+      writeClass(node.getClass());
+      List<Token<?>> comments = node.getComments();
+      int flags = 0;
+      if (node.getAttributes().is(SyntheticNodes.SYNTHETIC)) {
+        flags |= SYNTHETIC;
+      }
+      if (node.getAttributes().is(ParseTreeNode.TAINTED)) { flags |= TAINTED; }
+      if (!comments.isEmpty()) { flags |= HAS_COMMENTS; }
+      // The value of a null literal is a private placeholder that its
+      // constructor ignores.
+      Object value = node instanceof NullLiteral ? null : node.getValue();
+      int kind = valueKind(node, value);
+      FilePosition pos = node.getFilePosition();
+      boolean inSameFile = pos != FilePosition.UNKNOWN
+          && pos.getBreaks() == lastBreaks;
+      if (inSameFile) { flags |= IN_SAME_FILE; }
+      writeVarint(flags | (kind << VALUE_KIND_SHIFT));
+      writePosition(pos, inSameFile);
+      writeValue(kind, value);
+      if (!comments.isEmpty()) {
+        writeVarint(comments.size());
+        for (Token<?> comment : comments) {
+          TokenType type = comment.type;
+          if (!(type instanceof Enum<?>)) {
+            throw new IllegalArgumentException(type.toString());
+          }
+          writeString(((Enum<?>) type).getDeclaringClass().getName());
+          writeString(((Enum<?>) type).name());
+          writeString(comment.text);
+          writePosition(comment.pos, false);
+        }
+      }
+      List<? extends ParseTreeNode> children = node.children();
+      int nChildren = children.size();
+      writeVarint(nChildren);
+      for (int i = 0; i < nChildren; ++i) {
+        writeNode(children.get(i));
+      }
+    }
+
+    private static int valueKind(ParseTreeNode node, Object value) {
+      if (value == null) { return NO_VALUE; }
+      if (value instanceof String) { return STRING; }
+      if (value instanceof Boolean) {
+        return ((Boolean) value).booleanValue() ? TRUE : FALSE;
+      }
+      if (value instanceof Long) { return LONG; }
+      if (value instanceof Double) { return DOUBLE; }
+      if (value instanceof Operator) { return OPERATOR; }
+      if (value instanceof RegexpLiteral.RegexpWrapper) { return REGEXP; }
+      throw new IllegalArgumentException(
+          "Cannot serialize value of " + node.getClass().getSimpleName()
+          + " : " + value.getClass());
+    }
+
+    private void writeValue(int kind, Object value) {
+      switch (kind) {
+        case STRING: writeString((String) value); break;
+        case LONG:
+          long l = ((Long) value).longValue();
+          writeVarlong((l << 1) ^ (l >> 63));
+          break;
+        case DOUBLE:
+          // Reversed so that the zero low bits of common values like 0.5
+          // become high bits that the varint encoding drops.
+          writeVarlong(Long.reverseBytes(
+              Double.doubleToRawLongBits(((Double) value).doubleValue())));
+          break;
+        case OPERATOR: writeString(((Operator) value).name()); break;
+        case REGEXP: writeString(value.toString()); break;
+      }
+    }
+
+    private void writePosition(FilePosition pos, boolean inSameFile) {
+      if (pos == FilePosition.UNKNOWN) {
+        writeVarint(UNKNOWN_POS);
+        return;
+      }
+      SourceBreaks sb = pos.getBreaks();
+      Integer index = sb == lastBreaks ? null : breaks.get(sb);
+      if (inSameFile) {
+        // Implied by the header.
+      } else if (sb == lastBreaks) {
+        writeVarint(SAME_BREAKS);
+      } else if (index == null) {
+        breaks.put(sb, breaks.size());
+        writeVarint(NEW_BREAKS);
+        writeString(sb.source().getUri().toString());
+        writeVarint(sb.lineNumberZero());
+        int nLines = sb.lineCount();
+        writeVarint(nLines);
+        int last = 0;
+        for (int i = 0; i < nLines; ++i) {
+          int start = sb.lineStart(i);
+          writeVarint(start - last);
+          last = start;
+        }
+      } else {
+        writeVarint(index + NEW_BREAKS + 1);
+      }
+      lastBreaks = sb;
+      int start = pos.startCharInFile();
+      int delta = start - lastStart;
+      writeVarint((delta << 1) ^ (delta >> 31));
+      writeVarint(pos.length());
+      lastStart = start;
+    }
+
+    private void writeClass(Class<?> clazz) {
+      Integer index = classes.get(clazz);
+      if (index == null) {
+        classes.put(clazz, classes.size());
+        writeVarint(0);
+        writeString(clazz.getName());
+      } else {
+        writeVarint(index + 1);
+      }
+    }
+
+    private void writeString(String s) {
+      Integer index = strings.get(s);
+      if (index != null) {
+        writeVarint(index + 1);
+        return;
+      }
+      strings.put(s, strings.size());
+      writeVarint(0);
+      int len = s.length();
+      writeVarint(len);
+      ensureCapacity(len * 3);
+      byte[] buf = this.buf;
+      int n = this.n;
+      for (int i = 0; i < len; ++i) {
+        char ch = s.charAt(i);
+        if (ch < 0x80) {
+          buf[n++] = (byte) ch;
+        } else if (ch < 0x4000) {
+          buf[n++] = (byte) (ch | 0x80);
+          buf[n++] = (byte) (ch >>> 7);
+        } else {
+          buf[n++] = (byte) (ch | 0x80);
+          buf[n++] = (byte) ((ch >>> 7) | 0x80);
+          buf[n++] = (byte) (ch >>> 14);
+        }
+      }
+      this.n = n;
+    }
+
+    void writeVarint(int i) {
+      ensureCapacity(5);
+      while ((i & ~0x7f) != 0) {
+        buf[n++] = (byte) (i | 0x80);
+        i >>>= 7;
+      }
+      buf[n++] = (byte) i;
+    }
+
+    private void writeVarlong(long l) {
+      ensureCapacity(10);
+      while ((l & ~0x7fL) != 0) {
+        buf[n++] = (byte) (l | 0x80);
+        l >>>= 7;
+      }
+      buf[n++] = (byte) l;
+    }
+
+    private void ensureCapacity(int extra) {
+      if (n + extra > buf.length) {
+        byte[] newBuf = new byte[Math.max(buf.length * 2, n + extra)];
+        System.arraycopy(buf, 0, newBuf, 0, n);
+        buf = newBuf;
+      }
+    }
+
+    byte[] toByteArray() {
+      byte[] bytes = new byte[n];
+      System.arraycopy(buf, 0, bytes, 0, n);
+      return bytes;
+    }
+  }
+
+  private static final class Decoder {
+    private final byte[] buf;
+    int pos;
+    private final List<String> strings = new ArrayList<String>();
+    private final List<Class<? extends ParseTreeNode>> classes
+        = new ArrayList<Class<? extends ParseTreeNode>>();
+    private final List<SourceBreaks> breaks = new ArrayList<SourceBreaks>();
+    private SourceBreaks lastBreaks;
+    private int lastStart;
+
+    Decoder(byte[] buf) { this.buf = buf; }
+
+    ParseTreeNode readNode() throws IOException {
+      Class<? extends ParseTreeNode> clazz = readClass();
+      int flags = readVarint();
+      FilePosition fp = readPosition((flags & IN_SAME_FILE) != 0);
+      Object value = readValue(flags >>> VALUE_KIND_SHIFT);
+      List<Token<?>> comments = Collections.emptyList();
+      if ((flags & HAS_COMMENTS) != 0) {
+        int nComments = readCount();
+        comments = new ArrayList<Token<?>>(nComments);
+        for (int i = 0; i < nComments; ++i) {
+          TokenType type = readTokenType();
+          String text = readString();
+          comments.add(Token.instance(text, type, readPosition(false)));
+        }
+      }
+      int nChildren = readCount();
+      List<ParseTreeNode> children;
+      if (nChildren == 0) {
+        children = Collections.emptyList();
+      } else {
+        children = new ArrayList<ParseTreeNode>(nChildren);
+        for (int i = 0; i < nChildren; ++i) { children.add(readNode()); }
+      }
+      ParseTreeNode node;
+      try {
+        node = ParseTreeNodes.newNodeInstance(clazz, fp, value, children);
+      } catch (RuntimeException ex) {
+        IOException ioe = new IOException("Malformed " + clazz.getName());
+        ioe.initCause(ex);
+        throw ioe;
+      }
+      if ((flags & SYNTHETIC) != 0) {
+        node.getAttributes().set(SyntheticNodes.SYNTHETIC, Boolean.TRUE);
+      }
+      if ((flags & TAINTED) != 0) {
+        node.getAttributes().set(ParseTreeNode.TAINTED, Boolean.TRUE);
+      }
+      if (!comments.isEmpty()) {
+        if (!(node instanceof AbstractParseTreeNode)) {
+          throw new IOException("Cannot attach comments to " + clazz);
+        }
+        ((AbstractParseTreeNode) node).setComments(comments);
+      }
+      return node;
+    }
+
+    private Object readValue(int kind) throws IOException {
+      switch (kind) {
+        case NO_VALUE: return null;
+        case STRING: return readString();
+        case FALSE: return Boolean.FALSE;
+        case TRUE: return Boolean.TRUE;
+        case LONG: {
+          long l = readVarlong();
+          return Long.valueOf((l >>> 1) ^ -(l & 1));
+        }
+        case DOUBLE:
+          return Double.valueOf(
+              Double.longBitsToDouble(Long.reverseBytes(readVarlong())));
+        case OPERATOR:
+          try {
+            return Operator.valueOf(readString());
+          } catch (IllegalArgumentException ex) {
+            throw new IOException("Unknown operator");
+          }
+        case REGEXP: return new RegexpLiteral.RegexpWrapper(readString());
+        default: throw new IOException("Unknown value kind " + kind);
+      }
+    }
+
+    private FilePosition readPosition(boolean inSameFile)
+        throws IOException {
+      int ref = inSameFile ? SAME_BREAKS : readVarint();
+      if (ref == UNKNOWN_POS) { return FilePosition.UNKNOWN; }
+      SourceBreaks sb;
+      if (ref == SAME_BREAKS) {
+        sb = lastBreaks;
+        if (sb == null) { throw new IOException("Bad position"); }
+      } else if (ref == NEW_BREAKS) {
+        InputSource src;
+        try {
+          src = new InputSource(new URI(readString()));
+        } catch (URISyntaxException ex) {
+          throw new IOException(ex.getMessage());
+        } catch (IllegalArgumentException ex) {  // Not absolute
+          throw new IOException(ex.getMessage());
+        }
+        sb = new SourceBreaks(src, readVarint());
+        int nLines = readCount();
+        int last = 0;
+        for (int i = 0; i < nLines; ++i) {
+          int delta = readVarint();
+          if (delta < 0 || (delta == 0 && i != 0)
+              || delta > Integer.MAX_VALUE - last) {
+            throw new IOException("Bad line");
+          }
+          sb.lineStartsAt(last += delta);
+        }
+        breaks.add(sb);
+      } else {
+        int index = ref - (NEW_BREAKS + 1);
+        if (index < 0 || index >= breaks.size()) {
+          throw new IOException("Bad position");
+        }
+        sb = breaks.get(index);
+      }
+      lastBreaks = sb;
+      int delta = readVarint();
+      int start = lastStart + ((delta >>> 1) ^ -(delta & 1));
+      int length = readVarint();
+      if (start < 0 || length < 0 || length > Integer.MAX_VALUE - start) {
+        throw new IOException("Bad position");
+      }
+      lastStart = start;
+      return sb.toFilePosition(start, start + length);
+    }
+
+    private Class<? extends ParseTreeNode> readClass() throws IOException {
+      int ref = readVarint();
+      if (ref != 0) {
+        if (ref < 0 || ref > classes.size()) {
+          throw new IOException("Bad class");
+        }
+        return classes.get(ref - 1);
+      }
+      String name = readString();
+      Class<? extends ParseTreeNode> clazz;
+      try {
+        // Do not initialize classes that turn out not to be nodes.
+        clazz = Class.forName(
+            name, false, JsTreeSerializer.class.getClassLoader())
+            .asSubclass(ParseTreeNode.class);
+      } catch (ClassNotFoundException ex) {
+        throw new IOException("Unknown node type " + name);
+      } catch (ClassCastException ex) {
+        throw new IOException("Not a node type " + name);
+      }
+      classes.add(clazz);
+      return clazz;
+    }
+
+    private TokenType readTokenType() throws IOException {
+      String className = readString();
+      String name = readString();
+      try {
+        Class<?> clazz = Class.forName(
+            className, false, JsTreeSerializer.class.getClassLoader());
+        if (clazz.isEnum() && TokenType.class.isAssignableFrom(clazz)) {
+          for (Object type : clazz.getEnumConstants()) {
+            if (((Enum<?>) type).name().equals(name)) {
+              return (TokenType) type;
+            }
+          }
+        }
+      } catch (ClassNotFoundException ex) {
+        // Reported below
+      }
+      throw new IOException("Unknown token type " + className + "." + name);
+    }
+
+    private String readString() throws IOException {
+      int ref = readVarint();
+      if (ref != 0) {
+        if (ref < 0 || ref > strings.size()) {
+          throw new IOException("Bad string");
+        }
+        return strings.get(ref - 1);
+      }
+      int len = readCount();
+      char[] chars = new char[len];
+      byte[] buf = this.buf;
+      int pos = this.pos;
+      try {
+        for (int i = 0; i < len; ++i) {
+          int b = buf[pos++];
+          if (b >= 0) {
+            chars[i] = (char) b;
+          } else {
+            int ch = b & 0x7f;
+            b = buf[pos++];
+            ch |= (b & 0x7f) << 7;
+            if (b < 0) { ch |= (buf[pos++] & 0x7f) << 14; }
+            chars[i] = (char) ch;
+          }
+        }
+      } catch (ArrayIndexOutOfBoundsException ex) {
+        throw new IOException("Truncated");
+      }
+      this.pos = pos;
+      String s = new String(chars);
+      strings.add(s);
+      return s;
+    }
+
+    /**
+     * Reads the number of items that follow.  Each item takes at least one
+     * byte, so a count that could not fit in the rest of the input is
+     * rejected before anything is allocated for it.
+     */
+    private int readCount() throws IOException {
+      int n = readVarint();
+      if (n < 0 || n > buf.length - pos) { throw new IOException("Bad count"); }
+      return n;
+    }
+
+    int readVarint() throws IOException {
+      int i = 0;
+      for (int shift = 0; shift < 32; shift += 7) {
+        if (pos == buf.length) { throw new IOException("Truncated"); }
+        int b = buf[pos++];
+        i |= (b & 0x7f) << shift;
+        if (b >= 0) { return i; }
+      }
+      throw new IOException("Bad varint");
+    }
+
+    private long readVarlong() throws IOException {
+      long l = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        if (pos == buf.length) { throw new IOException("Truncated"); }
+        int b = buf[pos++];
+        l |= ((long) (b & 0x7f)) << shift;
+        if (b >= 0) { return l; }
+      }
+      throw new IOException("Bad varint");
+    }
+  }
+}
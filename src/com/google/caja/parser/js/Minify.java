@@ -33,9 +33,7 @@ import com.google.caja.util.Callback;
 import com.google.caja.util.Pair;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.Writer;
 import java.io.PrintWriter;
 import java.util.ArrayList;
@@ -100,9 +98,8 @@ public class Minify {
         })));
 
     for (Pair<InputSource, File> input : inputs) {
-      CharProducer cp = CharProducer.Factory.create(
-          new InputStreamReader(new FileInputStream(input.b), "UTF-8"),
-          input.a);
+      CharProducer cp = CharProducer.Factory.fromFile(
+          input.b, "UTF-8", input.a);
       JsLexer lexer = new JsLexer(cp);
       JsTokenQueue tq = new JsTokenQueue(lexer, input.a);
       Parser p = new Parser(tq, errs);
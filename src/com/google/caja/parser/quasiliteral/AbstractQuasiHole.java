@@ -16,6 +16,8 @@ package com.google.caja.parser.quasiliteral;
 
 import com.google.caja.parser.ParseTreeNode;
 
+import java.util.Map;
+
 /**
  * Superclass of all quasiliteral "hole" nodes that bind one identifier to some value.
  *
@@ -24,6 +26,8 @@ import com.google.caja.parser.ParseTreeNode;
 public abstract class AbstractQuasiHole extends QuasiNode {
   private final Class<? extends ParseTreeNode> matchedClass;
   private final String identifier;
+  /** The slot bound, assigned by {@link #assignSlots}. */
+  private int slot = -1;
 
   protected AbstractQuasiHole(Class<? extends ParseTreeNode> matchedClass, String identifier) {
     super();
@@ -35,6 +39,17 @@ public abstract class AbstractQuasiHole extends QuasiNode {
     return identifier;
   }
 
+  @Override
+  void assignSlots(Map<String, Integer> slots) {
+    slot = slotFor(identifier, slots);
+  }
+
+  int getSlot() { return slot; }
+
+  Class<? extends ParseTreeNode> getMatchedClass() {
+    return matchedClass;
+  }
+
   protected boolean isCompatibleClass(ParseTreeNode specimen) {
     return matchedClass.isAssignableFrom(specimen.getClass());
   }
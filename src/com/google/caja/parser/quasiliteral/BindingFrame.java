@@ -0,0 +1,162 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.parser.quasiliteral;
+
+import com.google.caja.parser.ParseTreeNode;
+import com.google.caja.parser.ParseTreeNodeContainer;
+import com.google.caja.parser.ParseTreeNodes;
+import com.google.caja.parser.js.Identifier;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The bindings made while matching a quasi pattern, indexed by the slots that
+ * {@link QuasiNode#getSlotNames} assigns to the pattern's hole names.
+ * <p>
+ * A frame can be reused for any number of match attempts against any number
+ * of patterns, so a failed match allocates nothing.  Runs of nodes bound by
+ * {@code @foo*} style holes are recorded as ranges of their parent's children,
+ * and only wrapped in a {@link ParseTreeNodeContainer} when the bindings are
+ * {@link #toMap read out}.
+ * <p>
+ * Frames are not thread-safe.
+ */
+final class BindingFrame {
+  private String[] names;
+  /** A node bound to each slot, or null. */
+  private ParseTreeNode[] nodes = new ParseTreeNode[8];
+  /** For slots bound to a range of nodes, the list containing the range. */
+  @SuppressWarnings("unchecked")
+  private List<? extends ParseTreeNode>[] rangeLists = new List[8];
+  private int[] rangeStarts = new int[8];
+  private int[] rangeEnds = new int[8];
+  /** Holds the single specimen that a pattern's root is matched against. */
+  private final ParseTreeNode[] root = new ParseTreeNode[1];
+  private final List<ParseTreeNode> rootList = Arrays.asList(root);
+
+  /** Unbinds all slots, and prepares to bind the given names. */
+  @SuppressWarnings("unchecked")
+  void reset(String[] names) {
+    int n = names.length;
+    if (nodes.length < n) {
+      nodes = new ParseTreeNode[n];
+      rangeLists = new List[n];
+      rangeStarts = new int[n];
+      rangeEnds = new int[n];
+    } else {
+      clear();
+    }
+    this.names = names;
+  }
+
+  /** Drops references to bound nodes so that they can be collected. */
+  void clear() {
+    if (names != null) {
+      int n = names.length;
+      Arrays.fill(nodes, 0, n, null);
+      Arrays.fill(rangeLists, 0, n, null);
+    }
+    root[0] = null;
+  }
+
+  /** A list containing only specimen, valid until the next call. */
+  List<ParseTreeNode> root(ParseTreeNode specimen) {
+    root[0] = specimen;
+    return rootList;
+  }
+
+  boolean isBound(int slot) {
+    return nodes[slot] != null || rangeLists[slot] != null;
+  }
+
+  /** The node bound to slot, or null if none. */
+  ParseTreeNode get(int slot) {
+    ParseTreeNode node = nodes[slot];
+    if (node == null && rangeLists[slot] != null) {
+      node = new ParseTreeNodeContainer(
+          new ArrayList<ParseTreeNode>(
+              rangeLists[slot].subList(rangeStarts[slot], rangeEnds[slot])));
+      nodes[slot] = node;
+    }
+    return node;
+  }
+
+  /** Binds slot to value, replacing any existing binding. */
+  void put(int slot, ParseTreeNode value) {
+    nodes[slot] = value;
+    rangeLists[slot] = null;
+  }
+
+  /**
+   * Binds slot to value if it is unbound, and otherwise checks that it is
+   * bound to an equivalent node.
+   * @return false if the binding conflicts with an existing one.
+   */
+  boolean putIfDeepEquals(int slot, ParseTreeNode value) {
+    if (isBound(slot)) {
+      return ParseTreeNodes.deepEquals(value, get(slot));
+    }
+    // TODO(ihab.awad): As a special case, an Identifier with a null value is
+    // considered to not match anything, so we reject it. See the following:
+    // http://code.google.com/p/google-caja/issues/detail?id=397
+    if (value instanceof Identifier && value.getValue() == null) {
+      return false;
+    }
+    nodes[slot] = value;
+    return true;
+  }
+
+  /**
+   * Like {@link #putIfDeepEquals}, but binds slot to a container of the nodes
+   * in list from start inclusive to end exclusive.
+   */
+  boolean putRangeIfDeepEquals(
+      int slot, List<? extends ParseTreeNode> list, int start, int end) {
+    if (isBound(slot)) {
+      List<? extends ParseTreeNode> bound = get(slot).children();
+      if (bound.size() != end - start) { return false; }
+      for (int i = start; i < end; ++i) {
+        if (!ParseTreeNodes.deepEquals(list.get(i), bound.get(i - start))) {
+          return false;
+        }
+      }
+      return true;
+    }
+    rangeLists[slot] = list;
+    rangeStarts[slot] = start;
+    rangeEnds[slot] = end;
+    return true;
+  }
+
+  /** Copies the bindings, in slot order, into out. */
+  void putAll(Map<String, ParseTreeNode> out) {
+    for (int i = 0, n = names.length; i < n; ++i) {
+      ParseTreeNode node = get(i);
+      if (node != null) { out.put(names[i], node); }
+    }
+  }
+
+  /** A new map containing the bindings, in slot order. */
+  Map<String, ParseTreeNode> toMap() {
+    Map<String, ParseTreeNode> bindings
+        = new LinkedHashMap<String, ParseTreeNode>();
+    putAll(bindings);
+    return bindings;
+  }
+}
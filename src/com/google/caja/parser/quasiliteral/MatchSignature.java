@@ -0,0 +1,261 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.parser.quasiliteral;
+
+import com.google.caja.parser.ParseTreeNode;
+import com.google.caja.parser.js.Identifier;
+import com.google.caja.parser.js.ObjectConstructor;
+import com.google.caja.parser.js.Operation;
+import com.google.caja.parser.js.Operator;
+import com.google.caja.parser.js.Reference;
+import com.google.caja.parser.js.StringLiteral;
+import com.google.caja.parser.js.UseSubsetDirective;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Necessary conditions for a node to match a quasi pattern, computed from the
+ * pattern's top level node and its fixed position children.
+ * <p>
+ * A signature only looks at features that can be cheaply extracted from a
+ * node: its operator, its number of children, and the class, operator,
+ * identifier name and trailing underscores of its leading children.  Those features are
+ * collected into a {@link #featuresOf key} so that the rules that might match
+ * a node can be looked up by key instead of tried one by one.
+ */
+final class MatchSignature {
+  /**
+   * Identifiers with more trailing underscores than this are treated as having
+   * this many.  No pattern requires more.
+   */
+  static final int MAX_UNDERSCORES = 3;
+  /**
+   * Each leading child is described by its class, operator, number of
+   * trailing underscores, and name.
+   */
+  private static final int FEATURES_PER_CHILD = 4;
+
+  /** The exact class of the node matched. */
+  final Class<? extends ParseTreeNode> nodeClass;
+  /** The operator of matched nodes, or null if any. */
+  final Operator operator;
+  /**
+   * The least number of children of a matched node.
+   * There is no upper bound since patterns like {@code var @a=@b?, @c=@d*}
+   * are sometimes written to describe rules that handle any number of
+   * children.
+   */
+  final int minChildren;
+  /** Tests for the children before the first variable width quasi node. */
+  private final ChildTest[] prefix;
+
+  private MatchSignature(
+      Class<? extends ParseTreeNode> nodeClass, Operator operator,
+      int minChildren, ChildTest[] prefix) {
+    this.nodeClass = nodeClass;
+    this.operator = operator;
+    this.minChildren = minChildren;
+    this.prefix = prefix;
+  }
+
+  /**
+   * The signature of nodes matched by the given pattern, or null if the
+   * pattern does not constrain its top level node beyond its class.
+   */
+  static MatchSignature forPattern(QuasiNode p) {
+    if (!(p instanceof SimpleQuasiNode)) { return null; }
+    SimpleQuasiNode sqn = (SimpleQuasiNode) p;
+    Object value = sqn.getMatchedValue();
+    int min = 0;
+    List<ChildTest> prefix = new ArrayList<ChildTest>();
+    boolean fixed = true;
+    for (QuasiNode child : sqn.getChildren()) {
+      boolean optional = child instanceof SingleOptionalQuasiHole
+          || (child instanceof MultipleQuasiHole
+              && !(child instanceof MultipleNonemptyQuasiHole));
+      boolean repeated = child instanceof MultipleQuasiHole;
+      if (!optional) { ++min; }
+      fixed &= !(optional || repeated);
+      if (fixed) { prefix.add(ChildTest.forPattern(child)); }
+    }
+    return new MatchSignature(
+        sqn.getMatchedClass(),
+        value instanceof Operator ? (Operator) value : null,
+        min, prefix.toArray(new ChildTest[prefix.size()]));
+  }
+
+  /** The number of leading children examined by {@link #accepts}. */
+  int getPrefixLength() { return prefix.length; }
+
+  /**
+   * The smallest child count such that all larger counts are accepted or
+   * rejected alike.
+   */
+  int getChildCountLimit() { return minChildren; }
+
+  /** Adds the identifier names that this signature tests for to out. */
+  void getNames(Set<String> out) {
+    for (ChildTest test : prefix) {
+      if (test.name != null) { out.add(test.name); }
+    }
+  }
+
+  /**
+   * Computes the features of a node that signatures examine.
+   *
+   * @param childCountLimit child counts larger than this are replaced with
+   *     this.
+   * @param prefixLength the number of leading children to describe.
+   * @param names the identifier names that signatures test for.  Other names
+   *     are not distinguished from one another.
+   */
+  static List<Object> featuresOf(
+      ParseTreeNode node, int childCountLimit, int prefixLength,
+      Set<String> names) {
+    List<? extends ParseTreeNode> children = node.children();
+    int n = Math.min(prefixLength, children.size());
+    Object[] features = new Object[2 + FEATURES_PER_CHILD * n];
+    features[0] = node instanceof Operation ? node.getValue() : null;
+    features[1] = Math.min(children.size(), childCountLimit);
+    for (int i = 0, k = 2; i < n; ++i) {
+      ParseTreeNode child = children.get(i);
+      String name = identifierName(child);
+      features[k++] = child.getClass();
+      features[k++] = child instanceof Operation ? child.getValue() : null;
+      features[k++] = trailingUnderscores(name);
+      features[k++] = names.contains(name) ? name : null;
+    }
+    return Arrays.asList(features);
+  }
+
+  /**
+   * True if a node with the given features, as computed by
+   * {@link #featuresOf}, might match this signature's pattern.
+   */
+  boolean accepts(List<Object> features) {
+    if (operator != null && operator != features.get(0)) { return false; }
+    int nChildren = (Integer) features.get(1);
+    if (nChildren < minChildren) { return false; }
+    int n = Math.min(
+        prefix.length, (features.size() - 2) / FEATURES_PER_CHILD);
+    for (int i = 0, k = 2; i < n; ++i, k += FEATURES_PER_CHILD) {
+      @SuppressWarnings("unchecked")
+      Class<? extends ParseTreeNode> childClass
+          = (Class<? extends ParseTreeNode>) features.get(k);
+      Object childOperator = features.get(k + 1);
+      int underscores = (Integer) features.get(k + 2);
+      String name = (String) features.get(k + 3);
+      if (!prefix[i].accepts(childClass, childOperator, underscores, name)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String identifierName(ParseTreeNode node) {
+    if (node instanceof Identifier) {
+      return ((Identifier) node).getName();
+    } else if (node instanceof Reference) {
+      return ((Reference) node).getIdentifierName();
+    }
+    return null;
+  }
+
+  private static int trailingUnderscores(String name) {
+    if (name == null) { return 0; }
+    int n = 0;
+    for (int i = name.length(); --i >= 0 && name.charAt(i) == '_';) {
+      if (++n == MAX_UNDERSCORES) { break; }
+    }
+    return n;
+  }
+
+  /** Necessary conditions for a node to match one child of a pattern. */
+  private static final class ChildTest {
+    static final ChildTest ANY = new ChildTest(
+        ParseTreeNode.class, false, null, 0, null);
+
+    final Class<? extends ParseTreeNode> type;
+    /** True if type must match exactly instead of being a super type. */
+    final boolean exact;
+    final Operator operator;
+    final int minUnderscores;
+    /** The name of a matching identifier or reference, or null if any. */
+    final String name;
+
+    ChildTest(Class<? extends ParseTreeNode> type, boolean exact,
+              Operator operator, int minUnderscores, String name) {
+      this.type = type;
+      this.exact = exact;
+      this.operator = operator;
+      this.minUnderscores = Math.min(minUnderscores, MAX_UNDERSCORES);
+      this.name = name;
+    }
+
+    static ChildTest forPattern(QuasiNode p) {
+      if (p instanceof SimpleQuasiNode) {
+        SimpleQuasiNode sqn = (SimpleQuasiNode) p;
+        Class<? extends ParseTreeNode> type = sqn.getMatchedClass();
+        Object value = sqn.getMatchedValue();
+        int underscores = 0;
+        String name = null;
+        if (type == Identifier.class) {
+          name = (String) value;
+        } else if (type == Reference.class && sqn.getChildren().size() == 1) {
+          QuasiNode ident = sqn.getChildren().get(0);
+          if (ident instanceof TrailingUnderscoresHole) {
+            underscores = ((TrailingUnderscoresHole) ident)
+                .getNumberOfUnderscores();
+          } else if (ident instanceof SimpleQuasiNode) {
+            name = (String) ((SimpleQuasiNode) ident).getMatchedValue();
+          }
+        }
+        return new ChildTest(
+            type, true, value instanceof Operator ? (Operator) value : null,
+            underscores, name);
+      } else if (p instanceof TrailingUnderscoresHole) {
+        return new ChildTest(
+            Identifier.class, false, null,
+            ((TrailingUnderscoresHole) p).getNumberOfUnderscores(), null);
+      } else if (p instanceof SingleQuasiHole) {
+        return new ChildTest(
+            ((SingleQuasiHole) p).getMatchedClass(), false, null, 0, null);
+      } else if (p instanceof StringLiteralQuasiNode) {
+        return new ChildTest(StringLiteral.class, false, null, 0, null);
+      } else if (p instanceof ObjectConstructorHole) {
+        return new ChildTest(ObjectConstructor.class, false, null, 0, null);
+      } else if (p instanceof UseSubsetQuasiNode) {
+        return new ChildTest(UseSubsetDirective.class, false, null, 0, null);
+      }
+      return ANY;
+    }
+
+    /**
+     * @param childName the child's identifier name if it is one tested for
+     *     by some signature, or null otherwise.
+     */
+    boolean accepts(
+        Class<? extends ParseTreeNode> childClass, Object childOperator,
+        int underscores, String childName) {
+      return (exact ? type == childClass : type.isAssignableFrom(childClass))
+          && (operator == null || operator == childOperator)
+          && underscores >= minUnderscores
+          && (name == null || name.equals(childName));
+    }
+  }
+}
@@ -31,13 +31,11 @@ public class MultipleNonemptyQuasiHole extends MultipleQuasiHole {
   }
 
   @Override
-  protected boolean consumeSpecimens(
-      List<ParseTreeNode> specimens,
-      Map<String, ParseTreeNode> bindings) {
-    int previousSize = specimens.size();
-    return
-        super.consumeSpecimens(specimens, bindings) &&
-        specimens.size() < previousSize;
+  int consumeSpecimens(
+      List<? extends ParseTreeNode> specimens, int start,
+      BindingFrame bindings) {
+    int end = super.consumeSpecimens(specimens, start, bindings);
+    return end > start ? end : -1;
   }
 
   @Override
@@ -15,9 +15,7 @@
 package com.google.caja.parser.quasiliteral;
 
 import com.google.caja.parser.ParseTreeNode;
-import com.google.caja.parser.ParseTreeNodeContainer;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -33,14 +31,14 @@ public class MultipleQuasiHole extends AbstractQuasiHole {
   }
 
   @Override
-  protected boolean consumeSpecimens(
-      List<ParseTreeNode> specimens,
-      Map<String, ParseTreeNode> bindings) {
-    List<ParseTreeNode> matches = new ArrayList<ParseTreeNode>();
-    while (specimens.size() > 0 && isCompatibleClass(specimens.get(0))) {
-      matches.add(specimens.remove(0));
-    }
-    return putIfDeepEquals(bindings, getIdentifier(), new ParseTreeNodeContainer(matches));
+  int consumeSpecimens(
+      List<? extends ParseTreeNode> specimens, int start,
+      BindingFrame bindings) {
+    int end = start;
+    for (int n = specimens.size();
+         end < n && isCompatibleClass(specimens.get(end)); ++end) {}
+    return bindings.putRangeIfDeepEquals(getSlot(), specimens, start, end)
+        ? end : -1;
   }
 
   @Override
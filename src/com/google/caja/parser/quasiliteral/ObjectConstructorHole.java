@@ -40,29 +40,43 @@ import java.util.ArrayList;
 public class ObjectConstructorHole extends QuasiNode {
   private final String keyIdentifier;
   private final String valueIdentifier;
+  /** The slots bound, assigned by {@link #assignSlots}. */
+  private int keySlot = -1, valueSlot = -1;
 
   public ObjectConstructorHole(String keyIdentifier, String valueIdentifier) {
     this.keyIdentifier = keyIdentifier;
     this.valueIdentifier = valueIdentifier;
   }
 
+  String getKeyIdentifier() { return keyIdentifier; }
+
+  String getValueIdentifier() { return valueIdentifier; }
+
   @Override
-  protected boolean consumeSpecimens(
-      List<ParseTreeNode> specimens,
-      Map<String, ParseTreeNode> bindings) {
-    if (specimens.isEmpty()) return false;
-    if (!(specimens.get(0) instanceof ObjectConstructor)) return false;
-    assert(specimens.get(0).children().size() % 2 == 0);
+  void assignSlots(Map<String, Integer> slots) {
+    keySlot = slotFor(keyIdentifier, slots);
+    valueSlot = slotFor(valueIdentifier, slots);
+  }
+
+  @Override
+  int consumeSpecimens(
+      List<? extends ParseTreeNode> specimens, int start,
+      BindingFrame bindings) {
+    if (start == specimens.size()) return -1;
+    ParseTreeNode specimen = specimens.get(start);
+    if (!(specimen instanceof ObjectConstructor)) return -1;
+    List<? extends ParseTreeNode> children = specimen.children();
+    assert(children.size() % 2 == 0);
     List<ParseTreeNode> keyList = new ArrayList<ParseTreeNode>();
     List<ParseTreeNode> valueList = new ArrayList<ParseTreeNode>();
-    for (int i = 0; i < specimens.get(0).children().size(); ) {
-      keyList.add(specimens.get(0).children().get(i++));
-      valueList.add(specimens.get(0).children().get(i++));
+    for (int i = 0; i < children.size(); ) {
+      keyList.add(children.get(i++));
+      valueList.add(children.get(i++));
     }
-    specimens.remove(0);
     return
-        putIfDeepEquals(bindings, keyIdentifier, new ParseTreeNodeContainer(keyList)) &&
-        putIfDeepEquals(bindings, valueIdentifier, new ParseTreeNodeContainer(valueList));
+        bindings.putIfDeepEquals(keySlot, new ParseTreeNodeContainer(keyList)) &&
+        bindings.putIfDeepEquals(valueSlot, new ParseTreeNodeContainer(valueList))
+        ? start + 1 : -1;
   }
 
   @Override
@@ -85,4 +99,10 @@ public class ObjectConstructorHole extends QuasiNode {
     }
     return false;
   }
+
+  @Override
+  public String toString() {
+    return "ObjectConstructor : @" + keyIdentifier + "*: @" + valueIdentifier
+        + "*";
+  }
 }
@@ -14,6 +14,7 @@
 
 package com.google.caja.parser.quasiliteral;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -22,6 +23,9 @@ import java.util.Map;
  * <p>
  * Only {@link Permit} should access PermitTemplate directly. All other
  * inquiries should go through Permit.
+ * <p>
+ * Templates are immutable, so the default template can be shared by
+ * compilations running on different threads.
  *
  * @author erights
  */
@@ -38,11 +42,11 @@ final class PermitTemplate {
     for (int i = 0; i < pairs.length; i += 2) {
       templates.put((String)pairs[i], (PermitTemplate)pairs[i+1]);
     }
-    this.templates = templates;
+    this.templates = Collections.unmodifiableMap(templates);
   }
 
   // TODO(erights): to be read in from a JSON config
-  static PermitTemplate DefaultTemplate = new PermitTemplate(
+  static final PermitTemplate DefaultTemplate = new PermitTemplate(
       "$v", new PermitTemplate(
           "typeOf", CanCall,
           "instanceOf", CanCall,
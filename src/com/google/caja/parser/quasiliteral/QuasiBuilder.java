@@ -36,14 +36,18 @@ import com.google.caja.parser.js.Statement;
 import com.google.caja.parser.js.StringLiteral;
 import com.google.caja.parser.js.SyntheticNodes;
 import com.google.caja.parser.js.UseSubsetDirective;
+import com.google.caja.reporting.BuildInfo;
 import com.google.caja.reporting.DevNullMessageQueue;
+import com.google.caja.reporting.MessageQueue;
 
 import java.io.StringReader;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Creates a JavaScript {@link QuasiNode} tree given a JavaScript
@@ -52,8 +56,16 @@ import java.util.Set;
  * @author ihab.awad@gmail.com (Ihab Awad)
  */
 public class QuasiBuilder {
-  private static final Map<String, QuasiNode> patternCache
-      = new HashMap<String, QuasiNode>();
+  /**
+   * Parsed patterns shared by all threads.  Quasi nodes are immutable, so once
+   * published here they can be used concurrently.
+   */
+  private static final ConcurrentMap<String, QuasiNode> patternCache
+      = new ConcurrentHashMap<String, QuasiNode>();
+  static {
+    // Start with the patterns precompiled at build time, if available.
+    patternCache.putAll(QuasiPatternSnapshot.loadDefault());
+  }
 
   /**
    * Match a quasiliteral pattern against a specimen.
@@ -64,7 +76,7 @@ public class QuasiBuilder {
    * @see QuasiNode#match(com.google.caja.parser.ParseTreeNode)
    */
   public static boolean match(String patternText, ParseTreeNode specimen) {
-    return match(patternText, specimen, Rule.makeBindings());
+    return getPatternNode(patternText).match(specimen, new BindingFrame());
   }
 
   /**
@@ -82,11 +94,9 @@ public class QuasiBuilder {
       String patternText,
       ParseTreeNode specimen,
       Map<String, ParseTreeNode> bindings) {
-    Map<String, ParseTreeNode> tempBindings = getPatternNode(patternText)
-        .match(specimen);
-
-    if (tempBindings != null) {
-      bindings.putAll(tempBindings);
+    BindingFrame frame = new BindingFrame();
+    if (getPatternNode(patternText).match(specimen, frame)) {
+      frame.putAll(bindings);
       return true;
     }
     return false;
@@ -182,18 +192,89 @@ public class QuasiBuilder {
     return parseQuasiNode(FilePosition.UNKNOWN.source(), pattern);
   }
 
-  private static QuasiNode getPatternNode(String patternText) {
-    if (!patternCache.containsKey(patternText)) {
+  static QuasiNode getPatternNode(String patternText) {
+    QuasiNode node = patternCache.get(patternText);
+    if (node == null) {
       try {
-        patternCache.put(
-            patternText,
-            QuasiBuilder.parseQuasiNode(patternText));
+        node = QuasiBuilder.parseQuasiNode(patternText);
       } catch (ParseException e) {
         // Pattern programming error
         throw new RuntimeException(e);
       }
+      // If another thread parsed the same pattern first, use its copy.
+      QuasiNode prior = patternCache.putIfAbsent(patternText, node);
+      if (prior != null) { node = prior; }
     }
-    return patternCache.get(patternText);
+    return node;
+  }
+
+  /**
+   * Parses the match and substitute patterns of the rules of the Cajita,
+   * Valija, and innocent code rewriters so that the first compilations need
+   * not.
+   *
+   * @return the number of patterns newly parsed.
+   */
+  public static int warmUp() {
+    return warmUp(defaultRewriters());
+  }
+
+  /**
+   * Parses the match and substitute patterns of the given rewriters' rules.
+   *
+   * @return the number of patterns newly parsed.
+   */
+  public static int warmUp(Rewriter... rewriters) {
+    int nParsed = 0;
+    for (String pattern : rulePatterns(rewriters)) {
+      if (patternCache.containsKey(pattern)) { continue; }
+      QuasiNode node = tryParse(pattern);
+      if (node != null && patternCache.putIfAbsent(pattern, node) == null) {
+        ++nParsed;
+      }
+    }
+    return nParsed;
+  }
+
+  /** The rewriters whose patterns are parsed by {@link #warmUp()}. */
+  static Rewriter[] defaultRewriters() {
+    MessageQueue mq = DevNullMessageQueue.singleton();
+    return new Rewriter[] {
+      new CajitaRewriter(BuildInfo.getInstance(), mq, false),
+      new DefaultValijaRewriter(mq, false),
+      new InnocentCodeRewriter(mq, false)
+    };
+  }
+
+  /**
+   * The match and substitute patterns of the given rewriters' rules, in rule
+   * order.  Some of these, such as descriptive text in rule documentation, may
+   * not be parseable patterns.
+   */
+  static Set<String> rulePatterns(Rewriter... rewriters) {
+    Set<String> patterns = new LinkedHashSet<String>();
+    for (Rewriter rewriter : rewriters) {
+      for (Rule rule : rewriter.getRules()) {
+        RuleDescription desc = rule.getRuleDescription();
+        patterns.add(desc.matches());
+        patterns.add(desc.substitutes());
+      }
+    }
+    return patterns;
+  }
+
+  /** The parsed pattern, or null if it does not parse. */
+  static QuasiNode tryParse(String pattern) {
+    try {
+      return parseQuasiNode(pattern);
+    } catch (ParseException ex) {
+      return null;
+    }
+  }
+
+  /** True if the given pattern has already been parsed and cached. */
+  static boolean isCached(String patternText) {
+    return patternCache.containsKey(patternText);
   }
 
   private static QuasiNode build(ParseTreeNode n) {
@@ -15,12 +15,11 @@
 package com.google.caja.parser.quasiliteral;
 
 import com.google.caja.parser.ParseTreeNode;
-import com.google.caja.parser.ParseTreeNodes;
-import com.google.caja.parser.js.Identifier;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -28,11 +27,18 @@ import java.util.Map;
  * A quasiliteral node that can match trees and substitute into trees of
  * {@link com.google.caja.parser.ParseTreeNode} objects, as parsed by the
  * Caja JavaScript {@link com.google.caja.parser.js.Parser}.
+ * <p>
+ * The first time a pattern is matched, each hole name in it is assigned a
+ * slot so that bindings can be stored in a {@link BindingFrame} by index.
+ * So a quasi node should only be matched as the root of the pattern that it
+ * was built for.
  *
  * @author ihab.awad@gmail.com (Ihab Awad)
  */
 public abstract class QuasiNode {
   private final List<QuasiNode> children;
+  /** The hole names in this pattern by slot, or null until first matched. */
+  private volatile String[] slotNames;
 
   protected QuasiNode(QuasiNode... children) {
     this.children = Collections.unmodifiableList(Arrays.asList(children));
@@ -41,10 +47,55 @@ public abstract class QuasiNode {
   public List<QuasiNode> getChildren() { return children; }
 
   public Map<String, ParseTreeNode> match(ParseTreeNode specimen) {
-    List<ParseTreeNode> specimens = new ArrayList<ParseTreeNode>();
-    specimens.add(specimen);
-    Map<String, ParseTreeNode> bindings = Rule.makeBindings();
-    return consumeSpecimens(specimens, bindings) ? bindings : null;
+    BindingFrame bindings = new BindingFrame();
+    return match(specimen, bindings) ? bindings.toMap() : null;
+  }
+
+  /**
+   * Matches specimen against this pattern, leaving any bindings in the given
+   * frame, which is reset first.
+   */
+  final boolean match(ParseTreeNode specimen, BindingFrame bindings) {
+    bindings.reset(getSlotNames());
+    return consumeSpecimens(bindings.root(specimen), 0, bindings) == 1;
+  }
+
+  /**
+   * The hole names in this pattern, in the order in which a match binds them,
+   * indexed by slot.
+   */
+  final String[] getSlotNames() {
+    String[] names = slotNames;
+    if (names == null) {
+      synchronized (this) {
+        names = slotNames;
+        if (names == null) {
+          Map<String, Integer> slots = new LinkedHashMap<String, Integer>();
+          assignSlots(slots);
+          names = slotNames = slots.keySet().toArray(new String[0]);
+        }
+      }
+    }
+    return names;
+  }
+
+  /**
+   * Assigns slots to the hole names in this subtree, in the order in which
+   * they are matched.
+   * @param slots maps names already assigned to their slots.
+   */
+  void assignSlots(Map<String, Integer> slots) {
+    for (QuasiNode child : children) { child.assignSlots(slots); }
+  }
+
+  /** The slot for name, which is assigned the next slot if it has none. */
+  static int slotFor(String name, Map<String, Integer> slots) {
+    Integer slot = slots.get(name);
+    if (slot == null) {
+      slot = slots.size();
+      slots.put(name, slot);
+    }
+    return slot;
   }
 
   public ParseTreeNode substitute(Map<String, ParseTreeNode> bindings) {
@@ -52,9 +103,13 @@ public abstract class QuasiNode {
     return (createSubstitutes(results, bindings) && results.size() == 1) ? results.get(0) : null;
   }
 
-  protected abstract boolean consumeSpecimens(
-      List<ParseTreeNode> specimens,
-      Map<String, ParseTreeNode> bindings);
+  /**
+   * Matches specimens starting at index start.
+   * @return the index past the specimens consumed, or -1 if there is no match.
+   */
+  abstract int consumeSpecimens(
+      List<? extends ParseTreeNode> specimens, int start,
+      BindingFrame bindings);
 
   protected abstract boolean createSubstitutes(
       List<ParseTreeNode> substitutes,
@@ -76,17 +131,4 @@ public abstract class QuasiNode {
   protected static boolean safeEquals(Object x, Object y) {
     return x != null ? x.equals(y) : y == null;
   }
-
-  protected static boolean putIfDeepEquals(
-      Map<String, ParseTreeNode> bindings,
-      String key,
-      ParseTreeNode value) {
-    if (bindings.containsKey(key)) return ParseTreeNodes.deepEquals(value, bindings.get(key));
-    // TODO(ihab.awad): As a special case, an Identifier with a null value is
-    // considered to not match anything, so we reject it. See the following:
-    // http://code.google.com/p/google-caja/issues/detail?id=397
-    if (value instanceof Identifier && value.getValue() == null) return false;
-    bindings.put(key, value);
-    return true;
-  }
 }
@@ -0,0 +1,392 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.parser.quasiliteral;
+
+import com.google.caja.lexer.FilePosition;
+import com.google.caja.parser.ParseTreeNode;
+import com.google.caja.parser.js.NullLiteral;
+import com.google.caja.parser.js.RegexpLiteral;
+import com.google.caja.tools.BuildCommand;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A compact binary encoding of parsed quasi patterns, so that the rewriters'
+ * patterns can be parsed once at build time instead of on every startup.
+ * <p>
+ * The encoding is a string table followed by a list of pattern texts, each
+ * with its {@link QuasiNode} tree in prefix order.  Class names, identifiers
+ * and string values are stored once in the string table and referred to by
+ * index.
+ */
+final class QuasiPatternSnapshot {
+  /** The name of the classpath resource loaded by {@link QuasiBuilder}. */
+  static final String RESOURCE_NAME = "quasi-patterns.bin";
+
+  private static final int MAGIC = 0x51554153;  // "QUAS"
+  /** Must change whenever the encoding or QuasiBuilder's output changes. */
+  private static final int VERSION = 1;
+
+  // Node tags
+  private static final int SIMPLE = 0;
+  private static final int SYNTHETIC = 1;
+  private static final int SINGLE_HOLE = 2;
+  private static final int MULTIPLE_HOLE = 3;
+  private static final int MULTIPLE_NONEMPTY_HOLE = 4;
+  private static final int SINGLE_OPTIONAL_HOLE = 5;
+  private static final int TRAILING_UNDERSCORES_HOLE = 6;
+  private static final int OBJECT_CONSTRUCTOR_HOLE = 7;
+  private static final int STRING_LITERAL = 8;
+  private static final int USE_SUBSET = 9;
+  private static final int OPTIONAL_IDENTIFIER = 10;
+
+  // Value tags
+  private static final int NULL = 0;
+  private static final int STRING = 1;
+  private static final int BOOLEAN = 2;
+  private static final int LONG = 3;
+  private static final int DOUBLE = 4;
+  private static final int ENUM = 5;
+  private static final int REGEXP = 6;
+  private static final int NULL_LITERAL = 7;
+
+  private static final Object NULL_LITERAL_VALUE
+      = new NullLiteral(FilePosition.UNKNOWN).getValue();
+
+  private QuasiPatternSnapshot() { /* not instantiable */ }
+
+  /**
+   * Reads the snapshot built into the classpath.
+   * @return an empty map if there is no usable snapshot, in which case
+   *     patterns are parsed as needed.
+   */
+  static Map<String, QuasiNode> loadDefault() {
+    InputStream in = QuasiPatternSnapshot.class.getResourceAsStream(
+        RESOURCE_NAME);
+    if (in == null) { return Collections.emptyMap(); }
+    try {
+      try {
+        return read(new BufferedInputStream(in));
+      } finally {
+        in.close();
+      }
+    } catch (IOException ex) {
+      // A stale or corrupt snapshot is not fatal.
+      return Collections.emptyMap();
+    }
+  }
+
+  /** Encodes the given patterns to out. */
+  static void write(Map<String, QuasiNode> patterns, OutputStream out)
+      throws IOException {
+    Writer w = new Writer();
+    for (Map.Entry<String, QuasiNode> e : patterns.entrySet()) {
+      w.intern(e.getKey());
+      w.collectStrings(e.getValue());
+    }
+    DataOutputStream data = new DataOutputStream(out);
+    data.writeInt(MAGIC);
+    data.writeInt(VERSION);
+    data.writeInt(w.strings.size());
+    for (String s : w.strings) { data.writeUTF(s); }
+    data.writeInt(patterns.size());
+    for (Map.Entry<String, QuasiNode> e : patterns.entrySet()) {
+      data.writeInt(w.intern(e.getKey()));
+      w.writeNode(e.getValue(), data);
+    }
+    data.flush();
+  }
+
+  /** Decodes patterns encoded by {@link #write}. */
+  static Map<String, QuasiNode> read(InputStream in) throws IOException {
+    DataInputStream data = new DataInputStream(in);
+    if (data.readInt() != MAGIC) {
+      throw new IOException("Not a quasi pattern snapshot");
+    }
+    if (data.readInt() != VERSION) {
+      throw new IOException("Quasi pattern snapshot version mismatch");
+    }
+    String[] strings = new String[data.readInt()];
+    for (int i = 0; i < strings.length; ++i) { strings[i] = data.readUTF(); }
+    Reader r = new Reader(strings, data);
+    int n = data.readInt();
+    Map<String, QuasiNode> patterns = new LinkedHashMap<String, QuasiNode>();
+    for (int i = 0; i < n; ++i) {
+      String pattern = r.readString();
+      patterns.put(pattern, r.readNode());
+    }
+    return patterns;
+  }
+
+  private static final class Writer {
+    final List<String> strings = new ArrayList<String>();
+    final Map<String, Integer> indices = new HashMap<String, Integer>();
+
+    int intern(String s) {
+      Integer index = indices.get(s);
+      if (index == null) {
+        index = strings.size();
+        strings.add(s);
+        indices.put(s, index);
+      }
+      return index;
+    }
+
+    void collectStrings(QuasiNode n) throws IOException {
+      writeNode(n, null);
+    }
+
+    /** Interns strings, and if out is non null, writes the node. */
+    void writeNode(QuasiNode n, DataOutputStream out) throws IOException {
+      if (n instanceof SimpleQuasiNode) {
+        SimpleQuasiNode sn = (SimpleQuasiNode) n;
+        tag(n instanceof SyntheticQuasiNode ? SYNTHETIC : SIMPLE, out);
+        string(sn.getMatchedClass().getName(), out);
+        value(sn.getMatchedValue(), out);
+        if (out != null) { out.writeInt(n.getChildren().size()); }
+        for (QuasiNode child : n.getChildren()) { writeNode(child, out); }
+      } else if (n instanceof TrailingUnderscoresHole) {
+        TrailingUnderscoresHole h = (TrailingUnderscoresHole) n;
+        tag(TRAILING_UNDERSCORES_HOLE, out);
+        string(h.getIdentifier(), out);
+        if (out != null) { out.writeInt(h.getNumberOfUnderscores()); }
+      } else if (n instanceof AbstractQuasiHole) {
+        AbstractQuasiHole h = (AbstractQuasiHole) n;
+        int tag;
+        if (h instanceof MultipleNonemptyQuasiHole) {
+          tag = MULTIPLE_NONEMPTY_HOLE;
+        } else if (h instanceof MultipleQuasiHole) {
+          tag = MULTIPLE_HOLE;
+        } else if (h instanceof SingleOptionalQuasiHole) {
+          tag = SINGLE_OPTIONAL_HOLE;
+        } else if (h instanceof SingleQuasiHole) {
+          tag = SINGLE_HOLE;
+        } else {
+          throw new IOException("Unknown hole type " + h.getClass());
+        }
+        tag(tag, out);
+        string(h.getMatchedClass().getName(), out);
+        string(h.getIdentifier(), out);
+      } else if (n instanceof ObjectConstructorHole) {
+        ObjectConstructorHole h = (ObjectConstructorHole) n;
+        tag(OBJECT_CONSTRUCTOR_HOLE, out);
+        string(h.getKeyIdentifier(), out);
+        string(h.getValueIdentifier(), out);
+      } else if (n instanceof StringLiteralQuasiNode) {
+        tag(STRING_LITERAL, out);
+        string(((StringLiteralQuasiNode) n).getBindingName(), out);
+      } else if (n instanceof UseSubsetQuasiNode) {
+        Set<String> names = ((UseSubsetQuasiNode) n).getSubsetNames();
+        tag(USE_SUBSET, out);
+        if (out != null) { out.writeInt(names.size()); }
+        for (String name : names) { string(name, out); }
+      } else if (n instanceof SingleOptionalIdentifierQuasiNode) {
+        tag(OPTIONAL_IDENTIFIER, out);
+        writeNode(((SingleOptionalIdentifierQuasiNode) n).getIdentifierNode(),
+                  out);
+      } else {
+        throw new IOException("Unknown quasi node type " + n.getClass());
+      }
+    }
+
+    private void value(Object value, DataOutputStream out) throws IOException {
+      if (value == null) {
+        tag(NULL, out);
+      } else if (value instanceof String) {
+        tag(STRING, out);
+        string((String) value, out);
+      } else if (value instanceof Boolean) {
+        tag(BOOLEAN, out);
+        if (out != null) { out.writeBoolean((Boolean) value); }
+      } else if (value instanceof Long) {
+        tag(LONG, out);
+        if (out != null) { out.writeLong((Long) value); }
+      } else if (value instanceof Double) {
+        tag(DOUBLE, out);
+        if (out != null) { out.writeDouble((Double) value); }
+      } else if (value instanceof Enum<?>) {
+        tag(ENUM, out);
+        string(((Enum<?>) value).getDeclaringClass().getName(), out);
+        string(((Enum<?>) value).name(), out);
+      } else if (value instanceof RegexpLiteral.RegexpWrapper) {
+        tag(REGEXP, out);
+        string(value.toString(), out);
+      } else if (value == NULL_LITERAL_VALUE) {
+        tag(NULL_LITERAL, out);
+      } else {
+        throw new IOException("Unknown value type " + value.getClass());
+      }
+    }
+
+    private static void tag(int tag, DataOutputStream out)
+        throws IOException {
+      if (out != null) { out.writeByte(tag); }
+    }
+
+    private void string(String s, DataOutputStream out) throws IOException {
+      int index = intern(s);
+      if (out != null) { out.writeInt(index); }
+    }
+  }
+
+  private static final class Reader {
+    final String[] strings;
+    final DataInputStream in;
+
+    Reader(String[] strings, DataInputStream in) {
+      this.strings = strings;
+      this.in = in;
+    }
+
+    String readString() throws IOException {
+      int index = in.readInt();
+      if (index < 0 || index >= strings.length) {
+        throw new IOException("Bad string index " + index);
+      }
+      return strings[index];
+    }
+
+    QuasiNode readNode() throws IOException {
+      int tag = in.readByte();
+      switch (tag) {
+        case SIMPLE: case SYNTHETIC: {
+          Class<? extends ParseTreeNode> clazz = readNodeClass();
+          Object value = readValue();
+          QuasiNode[] children = new QuasiNode[in.readInt()];
+          for (int i = 0; i < children.length; ++i) {
+            children[i] = readNode();
+          }
+          return tag == SYNTHETIC
+              ? new SyntheticQuasiNode(clazz, value, children)
+              : new SimpleQuasiNode(clazz, value, children);
+        }
+        case SINGLE_HOLE:
+          return new SingleQuasiHole(readNodeClass(), readString());
+        case MULTIPLE_HOLE:
+          return new MultipleQuasiHole(readNodeClass(), readString());
+        case MULTIPLE_NONEMPTY_HOLE:
+          return new MultipleNonemptyQuasiHole(readNodeClass(), readString());
+        case SINGLE_OPTIONAL_HOLE:
+          return new SingleOptionalQuasiHole(readNodeClass(), readString());
+        case TRAILING_UNDERSCORES_HOLE: {
+          String identifier = readString();
+          return new TrailingUnderscoresHole(identifier, in.readInt());
+        }
+        case OBJECT_CONSTRUCTOR_HOLE: {
+          String key = readString();
+          return new ObjectConstructorHole(key, readString());
+        }
+        case STRING_LITERAL:
+          return new StringLiteralQuasiNode(readString());
+        case USE_SUBSET: {
+          Set<String> names = new LinkedHashSet<String>();
+          for (int i = in.readInt(); --i >= 0;) { names.add(readString()); }
+          return new UseSubsetQuasiNode(names);
+        }
+        case OPTIONAL_IDENTIFIER:
+          return new SingleOptionalIdentifierQuasiNode(readNode());
+        default:
+          throw new IOException("Bad node tag " + tag);
+      }
+    }
+
+    private Object readValue() throws IOException {
+      int tag = in.readByte();
+      switch (tag) {
+        case NULL: return null;
+        case STRING: return readString();
+        case BOOLEAN: return in.readBoolean();
+        case LONG: return in.readLong();
+        case DOUBLE: return in.readDouble();
+        case ENUM: {
+          Class<?> enumClass = loadClass(readString());
+          String name = readString();
+          Object[] constants = enumClass.getEnumConstants();
+          if (constants != null) {
+            for (Object constant : constants) {
+              if (((Enum<?>) constant).name().equals(name)) {
+                return constant;
+              }
+            }
+          }
+          throw new IOException("No enum constant " + name);
+        }
+        case REGEXP: return new RegexpLiteral.RegexpWrapper(readString());
+        case NULL_LITERAL: return NULL_LITERAL_VALUE;
+        default: throw new IOException("Bad value tag " + tag);
+      }
+    }
+
+    private Class<? extends ParseTreeNode> readNodeClass() throws IOException {
+      Class<?> clazz = loadClass(readString());
+      if (!ParseTreeNode.class.isAssignableFrom(clazz)) {
+        throw new IOException("Not a node class " + clazz);
+      }
+      return clazz.asSubclass(ParseTreeNode.class);
+    }
+
+    private static Class<?> loadClass(String name) throws IOException {
+      try {
+        return Class.forName(
+            name, false, QuasiPatternSnapshot.class.getClassLoader());
+      } catch (ClassNotFoundException ex) {
+        IOException ioe = new IOException(name);
+        ioe.initCause(ex);
+        throw ioe;
+      }
+    }
+  }
+
+  /**
+   * Writes a snapshot of the rewriters' quasi patterns for
+   * {@link QuasiBuilder} to load at startup.
+   * Invoked by the build via {@code GenRuleAntTask}; takes no inputs.
+   */
+  public static class Builder implements BuildCommand {
+    public boolean build(List<File> inputs, List<File> deps, File output)
+        throws IOException {
+      Map<String, QuasiNode> patterns = new LinkedHashMap<String, QuasiNode>();
+      for (String pattern
+           : QuasiBuilder.rulePatterns(QuasiBuilder.defaultRewriters())) {
+        QuasiNode node = QuasiBuilder.tryParse(pattern);
+        if (node != null) { patterns.put(pattern, node); }
+      }
+      OutputStream out = new BufferedOutputStream(
+          new FileOutputStream(output));
+      try {
+        write(patterns, out);
+      } finally {
+        out.close();
+      }
+      return true;
+    }
+  }
+}
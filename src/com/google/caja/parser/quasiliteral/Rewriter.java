@@ -32,10 +32,13 @@ import com.google.caja.render.JsPrettyPrinter;
 import com.google.caja.reporting.MessageLevel;
 import com.google.caja.reporting.MessageQueue;
 import com.google.caja.reporting.RenderContext;
+import com.google.caja.util.Callback;
 import com.google.caja.util.SyntheticAttributes;
 
+import java.io.IOException;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
 
 /**
  * Rewrites a JavaScript parse tree.
@@ -53,6 +56,17 @@ public abstract class Rewriter {
   final MessageQueue mq;
   private final boolean taintChecking;
   private final boolean logging;
+  /** The number of nodes passed to {@link #expand(ParseTreeNode, Scope)}. */
+  private long expandCount;
+  /** The number of rules tried against those nodes. */
+  private long fireCount;
+  /** Receives rule statistics, or null if rules are not being profiled. */
+  private RuleProfile profile;
+  /**
+   * While profiling, the time spent in nested expansions of the rule
+   * currently firing.
+   */
+  private long profileChildNanos;
 
   /**
    * Creates a new Rewriter.
@@ -80,13 +94,21 @@ public abstract class Rewriter {
    * @param node a parse tree node to expand.
    * @param scope the scope in which 'node' is defined.
    * @return the expanded parse tree node.
+   * @throws CancellationException if the current thread has been interrupted,
+   *     so that a long running rewrite can be abandoned.
    */
   protected final ParseTreeNode expand(ParseTreeNode node, Scope scope) {
+    if (Thread.currentThread().isInterrupted()) {
+      throw new CancellationException("Interrupted while rewriting");
+    }
     boolean debug = false;
     Iterable<Rule> run = debug ? rules.getAllRules() : rules.applicableTo(node);
+    ++expandCount;
     for (Rule rule : run) {
+      ++fireCount;
       try {
-        ParseTreeNode result = rule.fire(node, scope);
+        ParseTreeNode result = profile != null
+            ? profiledFire(rule, node, scope) : rule.fire(node, scope);
         if (result != Rule.NONE) {
           if (debug && !rules.applicableTo(node).contains(rule)) {
             throw new AssertionError(
@@ -102,6 +124,7 @@ public abstract class Rewriter {
           return result;
         }
       } catch (RuntimeException ex) {
+        if (profile != null) { profile.recordException(rule, ex); }
         if (logging) { logResults(rule, node, null, ex); }
         throw ex;
       }
@@ -113,6 +136,58 @@ public abstract class Rewriter {
     return node;
   }
 
+  /**
+   * Fires rule, recording to profile the time spent, with and without the
+   * time spent in any expansions nested inside it.
+   */
+  private ParseTreeNode profiledFire(
+      Rule rule, ParseTreeNode node, Scope scope) {
+    long outerChildNanos = profileChildNanos;
+    profileChildNanos = 0;
+    long t0 = System.nanoTime();
+    boolean fired = false;
+    try {
+      ParseTreeNode result = rule.fire(node, scope);
+      fired = result != Rule.NONE;
+      return result;
+    } finally {
+      long nanos = System.nanoTime() - t0;
+      profile.record(rule, fired, nanos, nanos - profileChildNanos);
+      profileChildNanos = outerChildNanos + nanos;
+    }
+  }
+
+  /**
+   * Sets the profile that receives statistics about the rules this rewriter
+   * tries.  Profiles may be shared between rewriters.
+   *
+   * @param profile null to stop profiling.
+   */
+  public void setProfile(RuleProfile profile) { this.profile = profile; }
+
+  /** The profile set by {@link #setProfile}, or null. */
+  public RuleProfile getProfile() { return profile; }
+
+  /** The number of nodes this rewriter has expanded. */
+  public long getExpandCount() { return expandCount; }
+
+  /**
+   * The number of times this rewriter has tried a rule against a node.
+   * Together with {@link #getExpandCount} this measures how well rules are
+   * dispatched.
+   */
+  public long getFireCount() { return fireCount; }
+
+  /**
+   * Whether rules are dispatched by node class alone, or also by the
+   * features of the node that their match patterns constrain.
+   *
+   * @see RuleChain#setDiscriminating
+   */
+  public void setDiscriminatingDispatch(boolean discriminating) {
+    rules.setDiscriminating(discriminating);
+  }
+
   /**
    * Adds a rule to this rewriter. Rules are evaluated in the order in
    * which they have been added to the rewriter via this method. Rules
@@ -183,6 +258,27 @@ public abstract class Rewriter {
     return output.toString();
   }
 
+  /**
+   * Renders n to out as it is laid out, instead of first rendering it to a
+   * string.
+   * @throws IOException the first exception raised by out, after which the
+   *     rest of the output is discarded.
+   */
+  public static void render(ParseTreeNode n, Appendable out)
+      throws IOException {
+    final IOException[] failure = new IOException[1];
+    Callback<IOException> exHandler = new Callback<IOException>() {
+      public void handle(IOException ex) {
+        if (failure[0] == null) { failure[0] = ex; }
+      }
+    };
+    TokenConsumer renderer = new JsPrettyPrinter(
+        new Concatenator(out, exHandler));
+    n.render(new RenderContext(renderer));
+    renderer.noMoreTokens();
+    if (failure[0] != null) { throw failure[0]; }
+  }
+
   /**
    * Expands a parse tree node according to the rules of this
    * rewriter, returning the expanded result.
@@ -73,6 +73,10 @@ public abstract class Rule implements MessagePart {
   private final String name;
   private Rewriter rewriter;
   private RuleDescription description;
+  /** The pattern from {@link RuleDescription#matches}, once parsed. */
+  private QuasiNode matchPattern;
+  /** Reused by each call to {@link #match}. */
+  private BindingFrame matchBindings;
 
   /**
    * Creates a new Rule, inferring name and other state from the {@link #fire}
@@ -442,11 +446,17 @@ public abstract class Rule implements MessagePart {
    * @return null iff node was not matched.
    */
   protected Map<String, ParseTreeNode> match(ParseTreeNode node) {
-    Map<String, ParseTreeNode> bindings = makeBindings();
-    if (QuasiBuilder.match(getRuleDescription().matches(), node, bindings)) {
-      return bindings;
+    if (matchPattern == null) {
+      matchPattern = QuasiBuilder.getPatternNode(
+          getRuleDescription().matches());
+      matchBindings = new BindingFrame();
     }
-    return null;
+    Map<String, ParseTreeNode> bindings = null;
+    if (matchPattern.match(node, matchBindings)) {
+      bindings = matchBindings.toMap();
+    }
+    matchBindings.clear();
+    return bindings;
   }
 
   protected static Map<String, ParseTreeNode> makeBindings() {
@@ -28,18 +28,30 @@ import com.google.caja.parser.js.Reference;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * An order-significant series of rules.
+ * <p>
+ * Rules are indexed first by the class of node their match pattern applies
+ * to, and then, for nodes of exactly the pattern's class, by the
+ * {@link MatchSignature features} of the node that the pattern constrains,
+ * so that a node is only tried against rules that might match it.
+ * The order of rules is preserved by every index.
+ * <p>
+ * A chain belongs to one {@link Rewriter} and is not thread-safe, but the
+ * pattern analysis behind the indices is cached for all chains.
  *
  * @author mikesamuel@gmail.com
  */
 public final class RuleChain {
   private final List<Rule> rules = new ArrayList<Rule>();
-  private final Map<Class<? extends ParseTreeNode>, List<Rule>> filtered
-      = new HashMap<Class<? extends ParseTreeNode>, List<Rule>>();
+  private final Map<Class<? extends ParseTreeNode>, NodeTypeIndex> filtered
+      = new HashMap<Class<? extends ParseTreeNode>, NodeTypeIndex>();
+  private boolean discriminating = true;
 
   public void add(Rule r) {
     rules.add(r);
@@ -50,58 +62,142 @@ public final class RuleChain {
    * Return at least the rules applicable to the given node, but possibly more.
    */
   public List<Rule> applicableTo(ParseTreeNode node) {
-    Class<? extends ParseTreeNode> nodeType = toNodeType(node.getClass());
-    List<Rule> filteredRules = filtered.get(nodeType);
-    if (filteredRules == null) {
-      computeRulesFor(nodeType);
-      filteredRules = filtered.get(nodeType);
+    Class<? extends ParseTreeNode> nodeClass = node.getClass();
+    NodeTypeIndex index = filtered.get(nodeClass);
+    if (index == null) {
+      index = new NodeTypeIndex(nodeClass);
+      filtered.put(nodeClass, index);
     }
-    return filteredRules;
+    return discriminating ? index.applicableTo(node) : index.byType;
   }
 
   public Iterable<Rule> getAllRules() {
     return Collections.unmodifiableList(rules);
   }
 
+  /**
+   * If false, rules are filtered by node class alone.
+   * Discrimination is on by default; this allows its effect to be measured.
+   */
+  public void setDiscriminating(boolean discriminating) {
+    this.discriminating = discriminating;
+  }
+
   /**
    * Caches quasi text to a conservative lower bound for ParseTreeNode types
-   * that it might match.
+   * that it might match, and the signature of the nodes that it might match.
    * This does not assume that quasi-strings parse to a valid parse tree.
    * Some of the quasi-strings look like "<Approximately> @foo = @bar" and
    * so on parse failures we return a lower bound of ParseTreeNode.
    */
-  private static final Map<String, Class<? extends ParseTreeNode>> lowerBounds
-      = Collections.synchronizedMap(
-          new HashMap<String, Class<? extends ParseTreeNode>>());
+  private static final Map<String, PatternInfo> patternInfos
+      = Collections.synchronizedMap(new HashMap<String, PatternInfo>());
   static {
-    lowerBounds.put(null, ParseTreeNode.class);  // lower bound for no pattern
+    // lower bound for no pattern
+    patternInfos.put(null, new PatternInfo(ParseTreeNode.class, null));
   }
-  private void computeRulesFor(Class<? extends ParseTreeNode> nodeType) {
-    List<Rule> applicableRules = new ArrayList<Rule>();
-    for (Rule rule : rules) {
-      String pattern = rule.getRuleDescription().matches();
-      Class<? extends ParseTreeNode> lowerBound = lowerBounds.get(pattern);
-      if (lowerBound == null) {
-        try {
-          QuasiNode p = QuasiBuilder.parseQuasiNode(pattern);
-          if (p instanceof SimpleQuasiNode) {
-            lowerBound = toNodeType(((SimpleQuasiNode) p).getMatchedClass());
-          } else {
-            lowerBound = ParseTreeNode.class;
-          }
-        } catch (ParseException ex) {
-          // If the match pattern can't be parsed then assume the lowest lower
-          // bound.  This may happen if the match string is documentation, not
-          // a real pattern.
-          lowerBound = ParseTreeNode.class;
+
+  private static PatternInfo patternInfo(String pattern) {
+    PatternInfo info = patternInfos.get(pattern);
+    if (info == null) {
+      try {
+        QuasiNode p = QuasiBuilder.parseQuasiNode(pattern);
+        if (p instanceof SimpleQuasiNode) {
+          info = new PatternInfo(
+              toNodeType(((SimpleQuasiNode) p).getMatchedClass()),
+              MatchSignature.forPattern(p));
+        } else {
+          info = new PatternInfo(ParseTreeNode.class, null);
         }
-        lowerBounds.put(pattern, lowerBound);
+      } catch (ParseException ex) {
+        // If the match pattern can't be parsed then assume the lowest lower
+        // bound.  This may happen if the match string is documentation, not
+        // a real pattern.
+        info = new PatternInfo(ParseTreeNode.class, null);
       }
-      if (lowerBound.isAssignableFrom(nodeType)) {
+      patternInfos.put(pattern, info);
+    }
+    return info;
+  }
+
+  private static final class PatternInfo {
+    final Class<? extends ParseTreeNode> lowerBound;
+    /** Null if the pattern does not constrain nodes beyond their type. */
+    final MatchSignature signature;
+
+    PatternInfo(Class<? extends ParseTreeNode> lowerBound,
+                MatchSignature signature) {
+      this.lowerBound = lowerBound;
+      this.signature = signature;
+    }
+  }
+
+  /** The rules applicable to one class of node. */
+  private final class NodeTypeIndex {
+    /** The rules whose match patterns' lower bounds admit the node type. */
+    final List<Rule> byType;
+    /**
+     * Parallels byType.  The signature of each rule's pattern, or null for
+     * rules that might fire on any node in the type.
+     */
+    final MatchSignature[] signatures;
+    final int childCountLimit;
+    final int prefixLength;
+    final Set<String> names = new HashSet<String>();
+    /** Null if no rule's signature applies. */
+    final Map<List<Object>, List<Rule>> byFeatures;
+
+    NodeTypeIndex(Class<? extends ParseTreeNode> nodeClass) {
+      Class<? extends ParseTreeNode> nodeType = toNodeType(nodeClass);
+      List<Rule> applicableRules = new ArrayList<Rule>();
+      List<MatchSignature> applicableSignatures
+          = new ArrayList<MatchSignature>();
+      int childCountLimit = 0, prefixLength = 0;
+      boolean hasSignature = false;
+      for (Rule rule : rules) {
+        PatternInfo info = patternInfo(rule.getRuleDescription().matches());
+        if (!info.lowerBound.isAssignableFrom(nodeType)) { continue; }
+        MatchSignature sig = info.signature;
+        // Only use a signature when the node is exactly the kind of node the
+        // pattern describes.  Rules for fuzzed types, e.g. function
+        // declarations matched by function constructor patterns, examine
+        // the node in their own way.
+        if (sig != null && sig.nodeClass != nodeClass) { sig = null; }
         applicableRules.add(rule);
+        applicableSignatures.add(sig);
+        if (sig != null) {
+          hasSignature = true;
+          childCountLimit = Math.max(childCountLimit, sig.getChildCountLimit());
+          prefixLength = Math.max(prefixLength, sig.getPrefixLength());
+          sig.getNames(names);
+        }
+      }
+      this.byType = Collections.unmodifiableList(applicableRules);
+      this.signatures = applicableSignatures.toArray(
+          new MatchSignature[applicableSignatures.size()]);
+      this.childCountLimit = childCountLimit;
+      this.prefixLength = prefixLength;
+      this.byFeatures = hasSignature
+          ? new HashMap<List<Object>, List<Rule>>() : null;
+    }
+
+    List<Rule> applicableTo(ParseTreeNode node) {
+      if (byFeatures == null) { return byType; }
+      List<Object> features = MatchSignature.featuresOf(
+          node, childCountLimit, prefixLength, names);
+      List<Rule> applicableRules = byFeatures.get(features);
+      if (applicableRules == null) {
+        applicableRules = new ArrayList<Rule>();
+        for (int i = 0, n = signatures.length; i < n; ++i) {
+          if (signatures[i] == null || signatures[i].accepts(features)) {
+            applicableRules.add(byType.get(i));
+          }
+        }
+        applicableRules = Collections.unmodifiableList(applicableRules);
+        byFeatures.put(features, applicableRules);
       }
+      return applicableRules;
     }
-    filtered.put(nodeType, Collections.unmodifiableList(applicableRules));
   }
 
   /** Parallels fuzzing done in QuasiBuilder.parseQuasiNode */
@@ -0,0 +1,150 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.parser.quasiliteral;
+
+import com.google.caja.util.Json;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Counts how often each rule is tried and fires, and how long it takes.
+ * A profile may be shared by any number of {@link Rewriter}s, including ones
+ * running concurrently, so that statistics aggregate across compilations.
+ * <p>
+ * Time is measured both inclusive of the nested expansions a rule performs,
+ * and exclusive of them, so that the rules that do the most work themselves
+ * can be told apart from the ones that merely recurse.
+ *
+ * @see Rewriter#setProfile
+ */
+public final class RuleProfile {
+  /** The number of exception descriptions retained per rule. */
+  public static final int MAX_EXCEPTIONS_PER_RULE = 10;
+
+  private final ConcurrentMap<String, Stats> statsByRule
+      = new ConcurrentHashMap<String, Stats>();
+
+  /**
+   * Records one call to {@link Rule#fire}.
+   *
+   * @param fired true if the rule produced a result.
+   * @param nanos the time spent in the call.
+   * @param selfNanos nanos less the time spent expanding other nodes.
+   */
+  void record(Rule rule, boolean fired, long nanos, long selfNanos) {
+    Stats stats = statsFor(rule);
+    stats.attempts.incrementAndGet();
+    if (fired) { stats.firings.incrementAndGet(); }
+    stats.nanos.addAndGet(nanos);
+    stats.selfNanos.addAndGet(selfNanos);
+  }
+
+  /** Records an exception thrown by {@link Rule#fire}. */
+  void recordException(Rule rule, Throwable th) {
+    Stats stats = statsFor(rule);
+    stats.exceptionCount.incrementAndGet();
+    synchronized (stats.exceptions) {
+      if (stats.exceptions.size() < MAX_EXCEPTIONS_PER_RULE) {
+        stats.exceptions.add(th.toString());
+      }
+    }
+  }
+
+  private Stats statsFor(Rule rule) {
+    String key = keyFor(rule);
+    Stats stats = statsByRule.get(key);
+    if (stats == null) {
+      Stats newStats = new Stats();
+      stats = statsByRule.putIfAbsent(key, newStats);
+      if (stats == null) { stats = newStats; }
+    }
+    return stats;
+  }
+
+  /**
+   * Rules are identified by rewriter and name since different rewriters
+   * have rules of the same name.
+   */
+  private static String keyFor(Rule rule) {
+    Rewriter rw = rule.getRewriter();
+    return (rw != null ? rw.getClass().getSimpleName() : "") + "."
+        + rule.getName();
+  }
+
+  /** The number of times the named rule was tried. */
+  public long getAttempts(String rewriterAndRuleName) {
+    Stats stats = statsByRule.get(rewriterAndRuleName);
+    return stats != null ? stats.attempts.get() : 0;
+  }
+
+  /** The number of times the named rule fired. */
+  public long getFirings(String rewriterAndRuleName) {
+    Stats stats = statsByRule.get(rewriterAndRuleName);
+    return stats != null ? stats.firings.get() : 0;
+  }
+
+  /** Discards all statistics. */
+  public void clear() { statsByRule.clear(); }
+
+  /**
+   * A JSON object mapping each rule, as
+   * <code><i>RewriterClass</i>.<i>ruleName</i></code>, to its statistics,
+   * with the rules sorted by name.
+   * For example:<pre>
+   * { "CajitaRewriter.readPublic": {
+   *     "attempts": 120, "firings": 40, "nanos": 2000000,
+   *     "selfNanos": 900000, "exceptionCount": 0, "exceptions": [] } }
+   * </pre>
+   */
+  public JSONObject toJson() {
+    JSONObject json = new JSONObject();
+    Map<String, Stats> sorted = new TreeMap<String, Stats>(statsByRule);
+    for (Map.Entry<String, Stats> e : sorted.entrySet()) {
+      Stats stats = e.getValue();
+      JSONArray exceptions = new JSONArray();
+      synchronized (stats.exceptions) {
+        Json.pushJson(exceptions, stats.exceptions.toArray());
+      }
+      Json.putJson(
+          json, e.getKey(), Json.formatAsJson(
+              "attempts", stats.attempts.get(),
+              "firings", stats.firings.get(),
+              "nanos", stats.nanos.get(),
+              "selfNanos", stats.selfNanos.get(),
+              "exceptionCount", stats.exceptionCount.get(),
+              "exceptions", exceptions));
+    }
+    return json;
+  }
+
+  private static final class Stats {
+    final AtomicLong attempts = new AtomicLong();
+    final AtomicLong firings = new AtomicLong();
+    final AtomicLong nanos = new AtomicLong();
+    final AtomicLong selfNanos = new AtomicLong();
+    final AtomicLong exceptionCount = new AtomicLong();
+    /** Guarded by itself. */
+    final List<String> exceptions = new ArrayList<String>();
+  }
+}
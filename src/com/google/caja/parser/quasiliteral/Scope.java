@@ -46,6 +46,8 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Map;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Set;
@@ -54,6 +56,14 @@ import java.util.TreeSet;
 
 /**
  * A scope analysis of a {@link com.google.caja.parser.ParseTreeNode}.
+ * <p>
+ * {@link #fromProgram} harvests the symbols of every function in the program
+ * in a single pass, so creating a scope for one of those functions later
+ * needs only the function's own, already harvested, declarations and free
+ * names, and does not walk its body again.
+ * The harvest assumes that the program is not modified while its scopes are
+ * in use; a function that is not part of the analyzed program is walked when
+ * its scope is created.
  *
  * @author ihab.awad@gmail.com (Ihab Awad)
  */
@@ -190,10 +200,17 @@ public class Scope {
   // overlapping of instance variables does not occur.
   private final SortedSet<String> importedVariables = new TreeSet<String>();
   private final Permit permitsUsed;
+  /**
+   * The symbols harvested for each function in the program, shared by all
+   * scopes descended from the same program scope.
+   */
+  private final Map<FunctionConstructor, Symbols> functionSymbols;
 
   public static Scope fromProgram(Block root, MessageQueue mq) {
     Scope s = new Scope(ScopeType.PROGRAM, mq);
-    walkBlock(s, root);
+    SymbolHarvestVisitor v = new SymbolHarvestVisitor(s.functionSymbols);
+    v.visit(root);
+    declareAndResolve(s, v.finish());
     return s;
   }
 
@@ -210,28 +227,22 @@ public class Scope {
 
   public static Scope fromParseTreeNodeContainer(Scope parent, ParseTreeNodeContainer root) {
     Scope s = new Scope(ScopeType.PLAIN_BLOCK, parent);
-    walkBlock(s, root);
+    SymbolHarvestVisitor v = new SymbolHarvestVisitor(s.functionSymbols);
+    v.visit(root);
+    declareAndResolve(s, v.finish());
     return s;
   }
 
   public static Scope fromFunctionConstructor(
       Scope parent, FunctionConstructor root) {
     Scope s = new Scope(ScopeType.FUNCTION_BODY, parent);
-
-    // A function's name is bound to it in its body. After executing
-    //    var g = function f() { return f; };
-    // the following is true
-    //    typeof f === 'undefined' && g === g()
-    if (root.getIdentifierName() != null) {
-      declare(s, root.getIdentifier(), LocalType.FUNCTION);
-    }
-
-    for (ParseTreeNode n : root.getParams()) {
-      walkBlock(s, n);
+    Symbols symbols = s.functionSymbols.get(root);
+    if (symbols == null) {
+      SymbolHarvestVisitor v = new SymbolHarvestVisitor(s.functionSymbols);
+      v.visit(root);
+      symbols = s.functionSymbols.get(root);
     }
-
-    walkBlock(s, root.getBody());
-
+    declareAndResolve(s, symbols);
     return s;
   }
 
@@ -240,6 +251,7 @@ public class Scope {
     this.parent = null;
     this.mq = mq;
     this.permitsUsed = new Permit();
+    this.functionSymbols = new IdentityHashMap<FunctionConstructor, Symbols>();
   }
 
   private Scope(ScopeType type, Scope parent) {
@@ -247,6 +259,7 @@ public class Scope {
     this.parent = parent;
     this.mq = parent.mq;
     this.permitsUsed = parent.permitsUsed;
+    this.functionSymbols = parent.functionSymbols;
   }
 
   /**
@@ -493,46 +506,68 @@ public class Scope {
         LocalType.DECLARED_FUNCTION : LocalType.DATA;
   }
 
-  private static void walkBlock(final Scope s, ParseTreeNode root) {
-    SymbolHarvestVisitor v = new SymbolHarvestVisitor();
-    v.visit(root);
-
-    // Record in this scope all the declarations that have been harvested
-    // by the visitor.
-    for (Declaration decl : v.getDeclarations()) {
-      declare(s, decl.getIdentifier(), computeDeclarationType(decl));
+  private static void declareAndResolve(Scope s, Symbols symbols) {
+    // Record in this scope all the declarations that have been harvested.
+    for (int i = 0, n = symbols.declarations.size(); i < n; ++i) {
+      declare(s, symbols.declarations.get(i), symbols.declarationTypes.get(i));
     }
 
-    // Now resolve all the references harvested by the visitor. If they have
-    // not been defined in the scope chain (including the declarations we just
-    // harvested), then they must be free variables, so record them as such.
-    for (Reference ref : v.getReferences()) {
-      String name = ref.getIdentifierName();
-      if (ReservedNames.ARGUMENTS.equals(name)) {
-        s.containsArguments = true;
-      } else if (Keyword.THIS.toString().equals(name)) {
-        s.hasFreeThis = true;
-      } else if (!s.isDefined(name)) {
+    // Now resolve all the free names harvested. If they have not been defined
+    // in the scope chain (including the declarations we just harvested), then
+    // they must be free variables, so record them as such.
+    if (symbols.hasFreeArguments) { s.containsArguments = true; }
+    if (symbols.hasFreeThis) { s.hasFreeThis = true; }
+    for (String name : symbols.freeNames) {
+      if (!s.isDefined(name)) {
         addImportedVariable(s, name);
       }
     }
   }
 
+  /**
+   * The declarations and references that belong to a function body, or to
+   * the top level of a program.
+   */
+  private static final class Symbols {
+    /** Identifiers declared, in the order they are declared. */
+    final List<Identifier> declarations = new ArrayList<Identifier>();
+    final List<LocalType> declarationTypes = new ArrayList<LocalType>();
+    /**
+     * Names referenced but not declared by the declarations above, excluding
+     * "this" and "arguments".
+     */
+    final Set<String> freeNames = new LinkedHashSet<String>();
+    boolean hasFreeThis;
+    boolean hasFreeArguments;
+
+    void declare(Identifier ident, LocalType type) {
+      declarations.add(ident);
+      declarationTypes.add(type);
+    }
+  }
+
   // A SymbolHarvestVisitor traverses a parse tree node tree and harvests
-  // declarations and references for scope analysis. It stops the traversal
-  // at the right places according to JavaScript scoping rules.
+  // declarations and references for scope analysis, following JavaScript
+  // scoping rules.  Each function it finds, nested or not, gets its own
+  // Symbols which are recorded in functionSymbols, so that one traversal
+  // serves the scopes of all the functions in a program.  Catch blocks and
+  // plain blocks do not introduce declaration containers, so need no
+  // Symbols of their own.
   //
   // TODO(ihab.awad): Refactor to use standard Caja Visitor. Currently not
   // using it because, due to the MEMBER_ACCESS case, we need more control
   // over when to stop traversing the children of a node.
   private static class SymbolHarvestVisitor {
-    private final List<Reference> references = new ArrayList<Reference>();
-    private final List<Declaration> declarations = new ArrayList<Declaration>();
-    private final List<String> exceptionVariables = new ArrayList<String>();
+    private final Map<FunctionConstructor, Symbols> functionSymbols;
+    /** The harvest for the innermost enclosing function or the root. */
+    private Harvest harvest = new Harvest();
 
-    public List<Reference> getReferences() { return references; }
+    SymbolHarvestVisitor(Map<FunctionConstructor, Symbols> functionSymbols) {
+      this.functionSymbols = functionSymbols;
+    }
 
-    public List<Declaration> getDeclarations() { return declarations; }
+    /** The symbols of the nodes visited outside any function. */
+    public Symbols finish() { return harvest.finish(); }
 
     public void visit(ParseTreeNode node) {
       // Dispatch to methods for specific node types of interest
@@ -558,14 +593,38 @@ public class Scope {
     }
 
     private void visitFunctionConstructor(FunctionConstructor node) {
+      Harvest outer = harvest;
+      harvest = new Harvest();
+      // A function's name is bound to it in its body. After executing
+      //    var g = function f() { return f; };
+      // the following is true
+      //    typeof f === 'undefined' && g === g()
+      Identifier name = node.getIdentifier();
+      if (name.getName() != null) {
+        harvest.symbols.declare(name, LocalType.FUNCTION);
+      }
+      int nameDecls = harvest.symbols.declarations.size();
+      for (ParseTreeNode param : node.getParams()) { visit(param); }
+      visit(node.getBody());
+      Harvest inner = harvest;
+      harvest = outer;
+      functionSymbols.put(node, inner.finish());
       if (node.getAttributes().is(SyntheticNodes.SYNTHETIC)) {
         // Synthetic function definitions are treated as "transparent"; our
         // scope analysis should "see through" them as though they were just
-        // part of the surrounding code.
-        visitChildren(node);
+        // part of the surrounding code, but not their names.
+        Symbols symbols = inner.symbols;
+        for (int i = nameDecls, n = symbols.declarations.size(); i < n; ++i) {
+          outer.symbols.declare(
+              symbols.declarations.get(i), symbols.declarationTypes.get(i));
+        }
+        for (Reference ref : inner.references) {
+          if (!outer.exceptionVariables.contains(ref.getIdentifierName())) {
+            outer.references.add(ref);
+          }
+        }
       } else {
-        // Stuff inside a nested function is not part of this scope,
-        // so stop the traversal.
+        // Stuff inside a nested function is not part of this scope.
       }
     }
 
@@ -573,13 +632,15 @@ public class Scope {
       // Skip the CatchStmt's exception variable -- that is only defined
       // within the CatchStmt's body -- but dig into the body itself to grab
       // all the declarations within it, which *are* hoisted into this scope.
+      List<String> exceptionVariables = harvest.exceptionVariables;
       exceptionVariables.add(node.getException().getIdentifierName());
       visit(node.getBody());
       exceptionVariables.remove(exceptionVariables.size() - 1);
     }
 
     private void visitDeclaration(Declaration node) {
-      declarations.add(node);
+      harvest.symbols.declare(
+          node.getIdentifier(), computeDeclarationType(node));
       if (node.getInitializer() != null) {
         visit(node.getInitializer());
       }
@@ -599,8 +660,8 @@ public class Scope {
 
     private void visitReference(Reference node) {
       if (!node.getIdentifier().getAttributes().is(SyntheticNodes.SYNTHETIC) &&
-          !exceptionVariables.contains(node.getIdentifierName())) {
-        references.add(node);
+          !harvest.exceptionVariables.contains(node.getIdentifierName())) {
+        harvest.references.add(node);
       }
     }
 
@@ -610,6 +671,31 @@ public class Scope {
     }
   }
 
+  /** The symbols being harvested for one function body or the root. */
+  private static final class Harvest {
+    final Symbols symbols = new Symbols();
+    final List<Reference> references = new ArrayList<Reference>();
+    final List<String> exceptionVariables = new ArrayList<String>();
+
+    Symbols finish() {
+      Set<String> declared = new HashSet<String>();
+      for (Identifier decl : symbols.declarations) {
+        declared.add(decl.getName());
+      }
+      for (Reference ref : references) {
+        String name = ref.getIdentifierName();
+        if (ReservedNames.ARGUMENTS.equals(name)) {
+          symbols.hasFreeArguments = true;
+        } else if (Keyword.THIS.toString().equals(name)) {
+          symbols.hasFreeThis = true;
+        } else if (!declared.contains(name)) {
+          symbols.freeNames.add(name);
+        }
+      }
+      return symbols;
+    }
+  }
+
   /**
    * JavaScript identifiers where masking may change the behavior of synthetic
    * code or cause lots of confusion.
@@ -42,16 +42,15 @@ public class SimpleQuasiNode extends QuasiNode {
   }
 
   @Override
-  protected boolean consumeSpecimens(
-      List<ParseTreeNode> specimens,
-      Map<String, ParseTreeNode> bindings) {
-    if (specimens.isEmpty()) return false;
-    if (matchSelf(specimens.get(0)) &&
-        matchChildren(specimens.get(0), bindings)) {
-      specimens.remove(0);
-      return true;
+  int consumeSpecimens(
+      List<? extends ParseTreeNode> specimens, int start,
+      BindingFrame bindings) {
+    if (start == specimens.size()) return -1;
+    ParseTreeNode specimen = specimens.get(start);
+    if (matchSelf(specimen) && matchChildren(specimen, bindings)) {
+      return start + 1;
     }
-    return false;
+    return -1;
   }
 
   private boolean matchSelf(ParseTreeNode specimen) {
@@ -61,16 +60,16 @@ public class SimpleQuasiNode extends QuasiNode {
   }
 
   private boolean matchChildren(
-      ParseTreeNode specimen,
-      Map<String, ParseTreeNode> bindings) {
-    List<ParseTreeNode> specimenChildren = new ArrayList<ParseTreeNode>();
-    specimenChildren.addAll(specimen.children());
-
-    for (QuasiNode child : getChildren()) {
-      if (!child.consumeSpecimens(specimenChildren, bindings)) return false;
+      ParseTreeNode specimen, BindingFrame bindings) {
+    List<? extends ParseTreeNode> specimenChildren = specimen.children();
+    List<QuasiNode> children = getChildren();
+    int pos = 0;
+    for (int i = 0, n = children.size(); i < n; ++i) {
+      pos = children.get(i).consumeSpecimens(specimenChildren, pos, bindings);
+      if (pos < 0) return false;
     }
 
-    return specimenChildren.size() == 0;
+    return pos == specimenChildren.size();
   }
 
   @Override
@@ -95,6 +94,9 @@ public class SimpleQuasiNode extends QuasiNode {
   /** The class of node matched by this quasi node. */
   public Class<? extends ParseTreeNode> getMatchedClass() { return clazz; }
 
+  /** The value of nodes matched by this quasi node. */
+  Object getMatchedValue() { return value; }
+
   @Override
   public String toString() {
     return clazz.getSimpleName() + (value == null ? "" : " : " + value);
@@ -30,16 +30,21 @@ final class SingleOptionalIdentifierQuasiNode extends QuasiNode {
 
   SingleOptionalIdentifierQuasiNode(QuasiNode qn) { this.qn = qn; }
 
+  QuasiNode getIdentifierNode() { return qn; }
+
+  @Override
+  void assignSlots(Map<String, Integer> slots) { qn.assignSlots(slots); }
+
   @Override
-  protected boolean consumeSpecimens(
-      List<ParseTreeNode> specimens, Map<String, ParseTreeNode> bindings) {
-    if (specimens.isEmpty()) { return false; }
-    ParseTreeNode specimen = specimens.get(0);
+  int consumeSpecimens(
+      List<? extends ParseTreeNode> specimens, int start,
+      BindingFrame bindings) {
+    if (start == specimens.size()) { return -1; }
+    ParseTreeNode specimen = specimens.get(start);
     if (specimen instanceof Identifier && null == specimen.getValue()) {
-      specimens.remove(0);
-      return true;
+      return start + 1;
     }
-    return qn.consumeSpecimens(specimens, bindings);
+    return qn.consumeSpecimens(specimens, start, bindings);
   }
 
   @Override
@@ -53,4 +58,7 @@ final class SingleOptionalIdentifierQuasiNode extends QuasiNode {
       return true;
     }
   }
+
+  @Override
+  public String toString() { return qn + "?"; }
 }
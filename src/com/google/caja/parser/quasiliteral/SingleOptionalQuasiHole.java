@@ -30,14 +30,15 @@ public class SingleOptionalQuasiHole extends AbstractQuasiHole {
   }
 
   @Override
-  protected boolean consumeSpecimens(
-      List<ParseTreeNode> specimens,
-      Map<String, ParseTreeNode> bindings) {
-    if (specimens.size() >= 1 &&
-        isCompatibleClass(specimens.get(0))) {
-      return putIfDeepEquals(bindings, getIdentifier(), specimens.remove(0));
+  int consumeSpecimens(
+      List<? extends ParseTreeNode> specimens, int start,
+      BindingFrame bindings) {
+    if (start < specimens.size() &&
+        isCompatibleClass(specimens.get(start))) {
+      return bindings.putIfDeepEquals(getSlot(), specimens.get(start))
+          ? start + 1 : -1;
     }
-    return true;
+    return start;
   }
 
   @Override
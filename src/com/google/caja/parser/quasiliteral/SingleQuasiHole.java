@@ -30,13 +30,14 @@ public class SingleQuasiHole extends AbstractQuasiHole {
   }
 
   @Override
-  protected boolean consumeSpecimens(
-      List<ParseTreeNode> specimens,
-      Map<String, ParseTreeNode> bindings) {
+  int consumeSpecimens(
+      List<? extends ParseTreeNode> specimens, int start,
+      BindingFrame bindings) {
     return
-        specimens.size() >= 1 &&
-        isCompatibleClass(specimens.get(0)) &&
-        putIfDeepEquals(bindings, getIdentifier(), specimens.remove(0));
+        start < specimens.size() &&
+        isCompatibleClass(specimens.get(start)) &&
+        bindings.putIfDeepEquals(getSlot(), specimens.get(start))
+        ? start + 1 : -1;
   }
 
   @Override
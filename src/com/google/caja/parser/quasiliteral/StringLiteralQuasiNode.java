@@ -35,31 +35,40 @@ import java.util.Map;
  */
 class StringLiteralQuasiNode extends QuasiNode {
   private final String bindingName;
+  /** The slot bound, assigned by {@link #assignSlots}. */
+  private int slot = -1;
 
   StringLiteralQuasiNode(String bindingName) {
     this.bindingName = bindingName;
   }
 
+  String getBindingName() { return bindingName; }
+
+  @Override
+  void assignSlots(Map<String, Integer> slots) {
+    slot = slotFor(bindingName, slots);
+  }
+
   @Override
-  protected boolean consumeSpecimens(
-      List<ParseTreeNode> specimens, Map<String, ParseTreeNode> bindings) {
-    if (specimens.isEmpty()) { return false; }
-    ParseTreeNode specimen = specimens.get(0);
-    if (!(specimen instanceof StringLiteral)) { return false; }
+  int consumeSpecimens(
+      List<? extends ParseTreeNode> specimens, int start,
+      BindingFrame bindings) {
+    if (start == specimens.size()) { return -1; }
+    ParseTreeNode specimen = specimens.get(start);
+    if (!(specimen instanceof StringLiteral)) { return -1; }
     StringLiteral lit = (StringLiteral) specimen;
     String ident = lit.getUnquotedValue();
-    if (!ParserBase.isJavascriptIdentifier(ident)) { return false; }
+    if (!ParserBase.isJavascriptIdentifier(ident)) { return -1; }
 
-    ParseTreeNode existing = bindings.get(bindingName);
+    ParseTreeNode existing = bindings.get(slot);
     if (existing != null
         && !(existing instanceof Identifier
              && ident.equals(existing.getValue()))) {
-      return false;
+      return -1;
     } else {
       Identifier identBinding = new Identifier(lit.getFilePosition(), ident);
-      bindings.put(bindingName, identBinding);
-      specimens.remove(0);
-      return true;
+      bindings.put(slot, identBinding);
+      return start + 1;
     }
   }
 
@@ -81,4 +90,7 @@ class StringLiteralQuasiNode extends QuasiNode {
     substitutes.add(sl);
     return true;
   }
+
+  @Override
+  public String toString() { return "StringLiteral : '@" + bindingName + "'"; }
 }
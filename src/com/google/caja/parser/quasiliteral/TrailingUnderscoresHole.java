@@ -35,26 +35,26 @@ public class TrailingUnderscoresHole extends AbstractQuasiHole {
     trailing = b.toString();
   }
 
+  int getNumberOfUnderscores() { return trailing.length(); }
+
   @Override
-  protected boolean consumeSpecimens(
-      List<ParseTreeNode> specimens, Map<String, ParseTreeNode> bindings) {
-    if (specimens.size() > 0 && isCompatibleClass(specimens.get(0))) {
-      Identifier specimen = (Identifier) specimens.get(0);
+  int consumeSpecimens(
+      List<? extends ParseTreeNode> specimens, int start,
+      BindingFrame bindings) {
+    if (start < specimens.size() && isCompatibleClass(specimens.get(start))) {
+      Identifier specimen = (Identifier) specimens.get(start);
       String value = specimen.getName();
       if (value != null && value.endsWith(trailing)) {
-        specimens.remove(0);
         Identifier shortIdentifier = new Identifier(
             specimen.getFilePosition(),
             value.substring(0, value.length() - trailing.length()));
         shortIdentifier.getAttributes().putAll(specimen.getAttributes());
 
-        return putIfDeepEquals(
-            bindings,
-            getIdentifier(),
-            shortIdentifier);
+        return bindings.putIfDeepEquals(getSlot(), shortIdentifier)
+            ? start + 1 : -1;
       }
     }
-    return false;
+    return -1;
   }
 
   @Override
@@ -20,6 +20,7 @@ import com.google.caja.parser.js.UseSubset;
 import com.google.caja.parser.js.UseSubsetDirective;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -43,16 +44,20 @@ final class UseSubsetQuasiNode extends QuasiNode {
     this.subsetNames = new LinkedHashSet<String>(subsetNames);
   }
 
+  Set<String> getSubsetNames() {
+    return Collections.unmodifiableSet(subsetNames);
+  }
+
   @Override
-  protected boolean consumeSpecimens(
-      List<ParseTreeNode> specimens, Map<String, ParseTreeNode> bindings) {
-    if (specimens.isEmpty()) { return false; }
-    ParseTreeNode specimen = specimens.get(0);
-    if (!(specimen instanceof UseSubsetDirective)) { return false; }
+  int consumeSpecimens(
+      List<? extends ParseTreeNode> specimens, int start,
+      BindingFrame bindings) {
+    if (start == specimens.size()) { return -1; }
+    ParseTreeNode specimen = specimens.get(start);
+    if (!(specimen instanceof UseSubsetDirective)) { return -1; }
     UseSubsetDirective usd = ((UseSubsetDirective) specimen);
-    if (!usd.getSubsetNames().containsAll(subsetNames)) { return false; }
-    specimens.remove(0);
-    return true;
+    if (!usd.getSubsetNames().containsAll(subsetNames)) { return -1; }
+    return start + 1;
   }
 
   @Override
@@ -65,4 +70,7 @@ final class UseSubsetQuasiNode extends QuasiNode {
     substitutes.add(new UseSubsetDirective(FilePosition.UNKNOWN, subsets));
     return true;
   }
+
+  @Override
+  public String toString() { return "UseSubsetDirective : " + subsetNames; }
 }
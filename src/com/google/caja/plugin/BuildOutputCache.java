@@ -0,0 +1,226 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.plugin;
+
+import com.google.caja.reporting.BuildInfo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An on-disk cache of the results of successful builds, so that a build whose
+ * inputs have not changed since an earlier build need not recompile them, even
+ * if its output has been deleted or its inputs touched.
+ * <p>
+ * Results are keyed by a hash of everything that can affect them: the version
+ * and timestamp of the compiler's build, the build options, the output file's
+ * name, and the names and content of the input and dependee files.
+ * Entries are written atomically, so one cache directory can be shared by
+ * concurrent builds.
+ *
+ * @see BuildServiceImplementation
+ */
+public final class BuildOutputCache {
+  /** Changed whenever the format of cache files changes. */
+  private static final int FORMAT_VERSION = 1;
+
+  private final File dir;
+
+  public BuildOutputCache(File dir) {
+    if (dir == null) { throw new NullPointerException(); }
+    this.dir = dir;
+  }
+
+  /** The output of a successful build, and the messages it logged. */
+  public static final class Entry {
+    public final List<String> log;
+    public final String output;
+
+    public Entry(List<String> log, String output) {
+      this.log = Collections.unmodifiableList(new ArrayList<String>(log));
+      this.output = output;
+    }
+  }
+
+  /**
+   * A key for the cached result of building inputs to output.
+   *
+   * @param options build options.  Collections are treated as unordered.
+   *     Options whose values are files, such as the cache directory itself,
+   *     are ignored.
+   * @throws IOException if an input or dependee cannot be read.
+   */
+  public static String key(
+      BuildInfo buildInfo, List<File> dependees, List<File> inputs,
+      File output, Map<String, Object> options)
+      throws IOException {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new RuntimeException(ex);  // Required of all JVMs.
+    }
+    update(md, "format", String.valueOf(FORMAT_VERSION));
+    update(md, "version", buildInfo.getBuildVersion());
+    update(md, "timestamp", buildInfo.getBuildTimestamp());
+    update(md, "output", output.getName());
+    for (Map.Entry<String, Object> option
+         : new TreeMap<String, Object>(options).entrySet()) {
+      Object value = option.getValue();
+      if (value instanceof File) { continue; }
+      if (value instanceof Collection<?>) {
+        List<String> parts = new ArrayList<String>();
+        for (Object part : (Collection<?>) value) {
+          parts.add(String.valueOf(part));
+        }
+        Collections.sort(parts);
+        value = parts;
+      }
+      update(md, option.getKey(), String.valueOf(value));
+    }
+    updateFiles(md, "input", inputs);
+    updateFiles(md, "dependee", dependees);
+
+    StringBuilder sb = new StringBuilder();
+    for (byte b : md.digest()) {
+      sb.append(Character.forDigit((b >>> 4) & 0xf, 16))
+          .append(Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
+  }
+
+  /** The entry for key, or null if there is none or it cannot be read. */
+  public Entry get(String key) {
+    File f = new File(dir, key);
+    if (!f.isFile()) { return null; }
+    try {
+      DataInputStream in = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(f)));
+      try {
+        if (in.readInt() != FORMAT_VERSION) { return null; }
+        long size = f.length();
+        int nLines = in.readInt();
+        if (nLines < 0 || nLines > size) { return null; }
+        List<String> log = new ArrayList<String>(nLines);
+        for (int i = 0; i < nLines; ++i) { log.add(readString(in, size)); }
+        return new Entry(log, readString(in, size));
+      } finally {
+        in.close();
+      }
+    } catch (IOException ex) {
+      return null;  // Treat a truncated or corrupt entry as a miss.
+    }
+  }
+
+  /**
+   * Stores entry under key, replacing any existing entry.
+   * @throws IOException if the entry cannot be written.
+   */
+  public void put(String key, Entry entry) throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Cannot create " + dir);
+    }
+    // Write to a temporary file and rename it into place so that concurrent
+    // readers never see a partial entry.
+    File tmp = File.createTempFile("entry", ".tmp", dir);
+    try {
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(tmp)));
+      try {
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(entry.log.size());
+        for (String line : entry.log) { writeString(line, out); }
+        writeString(entry.output, out);
+      } finally {
+        out.close();
+      }
+      File f = new File(dir, key);
+      if (!tmp.renameTo(f)) {
+        // Some platforms will not rename over an existing file.
+        f.delete();
+        if (!tmp.renameTo(f)) { throw new IOException("Cannot write " + f); }
+      }
+    } finally {
+      if (tmp.exists()) { tmp.delete(); }
+    }
+  }
+
+  private static void update(MessageDigest md, String name, String value)
+      throws IOException {
+    // Length prefixes keep adjacent fields from running together.
+    byte[] nameBytes = name.getBytes("UTF-8");
+    byte[] valueBytes = value.getBytes("UTF-8");
+    updateLength(md, nameBytes.length);
+    md.update(nameBytes);
+    updateLength(md, valueBytes.length);
+    md.update(valueBytes);
+  }
+
+  private static void updateFiles(
+      MessageDigest md, String kind, List<File> files)
+      throws IOException {
+    updateLength(md, files.size());
+    byte[] buf = new byte[8192];
+    for (File f : files) {
+      update(md, kind, f.getCanonicalPath());
+      updateLength(md, f.length());
+      InputStream in = new FileInputStream(f);
+      try {
+        for (int n; (n = in.read(buf)) > 0;) { md.update(buf, 0, n); }
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  private static void updateLength(MessageDigest md, long n) {
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      md.update((byte) (n >>> shift));
+    }
+  }
+
+  private static String readString(DataInputStream in, long maxLength)
+      throws IOException {
+    int length = in.readInt();
+    if (length < 0 || length > maxLength) {
+      throw new IOException("Corrupt cache entry");
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  private static void writeString(String s, DataOutputStream out)
+      throws IOException {
+    byte[] bytes = s.getBytes("UTF-8");
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+}
@@ -40,20 +40,19 @@ import com.google.caja.render.Innocent;
 import com.google.caja.render.JsMinimalPrinter;
 import com.google.caja.render.JsPrettyPrinter;
 import com.google.caja.tools.BuildService;
+import com.google.caja.util.Callback;
 import com.google.caja.util.Pair;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.io.Reader;
-import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.net.URI;
 import java.net.URLEncoder;
+import java.nio.CharBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -72,12 +71,15 @@ import org.w3c.dom.Node;
  * @author mikesamuel@gmail.com
  */
 public class BuildServiceImplementation implements BuildService {
-  private final Map<InputSource, String> originalSources
-      = new HashMap<InputSource, String>();
+  private final Map<InputSource, CharProducer> originalSources
+      = new HashMap<InputSource, CharProducer>();
 
   /**
    * Cajoles inputs to output writing any messages to logger, returning true
    * iff the task passes.
+   * If the {@code cacheDir} option is a directory, then the output and messages
+   * of a successful build are cached there, and reused by later builds of the
+   * same inputs.
    */
   public boolean cajole(
       PrintWriter logger, List<File> dependees, List<File> inputs, File output,
@@ -90,6 +92,25 @@ public class BuildServiceImplementation implements BuildService {
       logger.println(ex.toString());
       return false;
     }
+
+    File cacheDir = (File) options.get("cacheDir");
+    BuildOutputCache cache = null;
+    String cacheKey = null;
+    if (cacheDir != null) {
+      cache = new BuildOutputCache(cacheDir);
+      try {
+        cacheKey = BuildOutputCache.key(
+            BuildInfo.getInstance(), dependees, inputs, output, options);
+      } catch (IOException ex) {
+        logger.println(ex.toString());
+        return false;
+      }
+      BuildOutputCache.Entry cached = cache.get(cacheKey);
+      if (cached != null) {
+        for (String line : cached.log) { logger.println(line); }
+        return writeOutput(logger, cached.output, output);
+      }
+    }
     final MessageQueue mq = new SimpleMessageQueue();
 
     PluginEnvironment env = new PluginEnvironment() {
@@ -110,9 +131,7 @@ public class BuildServiceImplementation implements BuildService {
           }
 
           try {
-            String content = getSourceContent(is);
-            if (content == null) { return null; }
-            return CharProducer.Factory.create(new StringReader(content), is);
+            return getSourceContent(is);
           } catch (IOException ex) {
             mq.addMessage(MessageType.IO_ERROR, is);
             return null;
@@ -208,7 +227,15 @@ public class BuildServiceImplementation implements BuildService {
     if (toIgnore == null) { toIgnore = Collections.emptySet(); }
 
     // Log messages
-    SnippetProducer snippetProducer = new SnippetProducer(originalSources, mc);
+    List<String> log = new ArrayList<String>();
+    Map<InputSource, CharSequence> originalText
+        = new HashMap<InputSource, CharSequence>();
+    for (Map.Entry<InputSource, CharProducer> e : originalSources.entrySet()) {
+      CharProducer cp = e.getValue();
+      originalText.put(
+          e.getKey(), CharBuffer.wrap(cp.getBuffer(), 0, cp.getLimit()));
+    }
+    SnippetProducer snippetProducer = new SnippetProducer(originalText, mc);
     for (Message msg : mq.getMessages()) {
       if (passed && MessageLevel.LOG.compareTo(msg.getMessageLevel()) >= 0) {
         continue;
@@ -216,8 +243,9 @@ public class BuildServiceImplementation implements BuildService {
       String snippet = snippetProducer.getSnippet(msg);
       if (!"".equals(snippet)) { snippet = "\n" + snippet; }
       if (!passed || !toIgnore.contains(msg.getMessageType().name())) {
-        logger.println(
-            msg.getMessageLevel() + " : " + msg.format(mc) + snippet);
+        String line = msg.getMessageLevel() + " : " + msg.format(mc) + snippet;
+        logger.println(line);
+        log.add(line);
       }
     }
 
@@ -227,25 +255,27 @@ public class BuildServiceImplementation implements BuildService {
       boolean asXml = output.getName().endsWith(".xhtml");
       boolean emitMarkup = asXml || output.getName().endsWith(".html");
 
-      StringBuilder jsOut = new StringBuilder();
-      TokenConsumer renderer;
+      String htmlOut = "";
+      if (outputHtml != null) {
+        htmlOut = Nodes.render(outputHtml, asXml);
+      }
+      if (!emitMarkup && !"".equals(htmlOut)) {
+        throw new RuntimeException("Can't emit HTML to " + output);
+      }
       String rendererType = (String) options.get("renderer");
-      if ("pretty".equals(rendererType)) {
-        renderer = new JsPrettyPrinter(new Concatenator(jsOut));
-      } else if ("minify".equals(rendererType)) {
-        renderer = new JsMinimalPrinter(new Concatenator(jsOut));
-      } else {
-        throw new RuntimeException("Unrecognized renderer " + rendererType);
+
+      if (!emitMarkup && cache == null) {
+        // Nothing needs the rendered program as a string, so write it to the
+        // output file as it is rendered.
+        return writeJs(logger, outputJs, rendererType, output);
       }
+
+      StringBuilder jsOut = new StringBuilder();
+      TokenConsumer renderer = makeRenderer(rendererType, jsOut, null);
       RenderContext rc = new RenderContext(renderer).withEmbeddable(emitMarkup);
       outputJs.render(rc);
       rc.getOut().noMoreTokens();
 
-      String htmlOut = "";
-      if (outputHtml != null) {
-        htmlOut = Nodes.render(outputHtml, asXml);
-      }
-
       String translatedCode;
       if (emitMarkup) {
         Document doc = DomParser.makeDocument(null, null);
@@ -254,53 +284,93 @@ public class BuildServiceImplementation implements BuildService {
         script.appendChild(doc.createCDATASection(jsOut.toString()));
         translatedCode = htmlOut + Nodes.render(script, asXml);
       } else {
-        if (!"".equals(htmlOut)) {
-          throw new RuntimeException("Can't emit HTML to " + output);
-        }
         translatedCode = jsOut.toString();
       }
 
-      try {
-        Writer w = new OutputStreamWriter(new FileOutputStream(output));
+      if (!writeOutput(logger, translatedCode, output)) { return false; }
+      if (cache != null) {
         try {
-          w.write(translatedCode);
-        } finally {
-          w.close();
+          cache.put(cacheKey, new BuildOutputCache.Entry(log, translatedCode));
+        } catch (IOException ex) {
+          // The build succeeded, so a failure to cache it is not fatal.
+          logger.println("Failed to cache " + output + ": " + ex);
         }
-      } catch (IOException ex) {
-        logger.println("Failed to write " + output);
-        return false;
       }
     }
     return passed;
   }
 
-  private String getSourceContent(InputSource is) throws IOException {
-    String content = originalSources.get(is);
-    if (content == null) {
-      File f = new File(is.getUri());
-      // Read it in and stuff it back in the map so we can generate
-      // snippets.
-      Reader in = new InputStreamReader(new FileInputStream(f), "UTF-8");
+  private static TokenConsumer makeRenderer(
+      String rendererType, Appendable out, Callback<IOException> exHandler) {
+    if ("pretty".equals(rendererType)) {
+      return new JsPrettyPrinter(new Concatenator(out, exHandler));
+    } else if ("minify".equals(rendererType)) {
+      return new JsMinimalPrinter(new Concatenator(out, exHandler));
+    } else {
+      throw new RuntimeException("Unrecognized renderer " + rendererType);
+    }
+  }
+
+  private static boolean writeJs(
+      PrintWriter logger, ParseTreeNode js, String rendererType,
+      File output) {
+    final IOException[] failure = new IOException[1];
+    Callback<IOException> exHandler = new Callback<IOException>() {
+      public void handle(IOException ex) {
+        if (failure[0] == null) { failure[0] = ex; }
+      }
+    };
+    try {
+      Writer w = new BufferedWriter(
+          new OutputStreamWriter(new FileOutputStream(output)));
       try {
-        char[] buf = new char[4096];
-        StringBuilder sb = new StringBuilder();
-        for (int n; (n = in.read(buf, 0, buf.length)) > 0;) {
-          sb.append(buf, 0, n);
-        }
-        content = sb.toString();
+        TokenConsumer renderer = makeRenderer(rendererType, w, exHandler);
+        js.render(new RenderContext(renderer));
+        renderer.noMoreTokens();
+      } finally {
+        w.close();
+      }
+    } catch (IOException ex) {
+      failure[0] = ex;
+    }
+    if (failure[0] != null) {
+      logger.println("Failed to write " + output);
+      return false;
+    }
+    return true;
+  }
+
+  private static boolean writeOutput(
+      PrintWriter logger, String translatedCode, File output) {
+    try {
+      Writer w = new OutputStreamWriter(new FileOutputStream(output));
+      try {
+        w.write(translatedCode);
       } finally {
-        in.close();
+        w.close();
       }
+    } catch (IOException ex) {
+      logger.println("Failed to write " + output);
+      return false;
+    }
+    return true;
+  }
+
+  private CharProducer getSourceContent(InputSource is) throws IOException {
+    CharProducer content = originalSources.get(is);
+    if (content == null) {
+      // Read it in and stuff it back in the map so we can generate
+      // snippets.
+      content = CharProducer.Factory.fromFile(
+          new File(is.getUri()), "UTF-8", is);
       originalSources.put(is, content);
     }
-    return content;
+    return content.clone();
   }
 
   private AncestorChain<?> parseInput(InputSource is, MessageQueue mq)
       throws IOException {
-    CharProducer cp = CharProducer.Factory.create(
-        new StringReader(getSourceContent(is)), is);
+    CharProducer cp = getSourceContent(is);
     try {
       return AncestorChain.instance(PluginCompilerMain.parseInput(is, cp, mq));
     } catch (ParseException ex) {
@@ -0,0 +1,75 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.plugin;
+
+import com.google.caja.lang.css.CssSchema;
+import com.google.caja.lang.html.HtmlSchema;
+import com.google.caja.reporting.BuildInfo;
+import com.google.caja.reporting.MessageQueue;
+
+/**
+ * The configuration that a {@link PluginCompiler} shares with other
+ * compilations: the build info and the CSS and HTML whitelists.
+ * <p>
+ * A context is immutable, so one context can be used by any number of
+ * compilers running concurrently.  State that changes during a compilation,
+ * such as the {@link PluginMeta#generateUniqueName unique name} counter and
+ * the message queue, belongs to the compiler and must not be shared.
+ * The rewriters' quasi patterns are parsed once per process and shared
+ * regardless of context; see
+ * {@link com.google.caja.parser.quasiliteral.QuasiBuilder#warmUp}.
+ */
+public final class CompilerContext {
+  private final BuildInfo buildInfo;
+  private final CssSchema cssSchema;
+  private final HtmlSchema htmlSchema;
+
+  public CompilerContext(
+      BuildInfo buildInfo, CssSchema cssSchema, HtmlSchema htmlSchema) {
+    if (buildInfo == null || cssSchema == null || htmlSchema == null) {
+      throw new NullPointerException();
+    }
+    this.buildInfo = buildInfo;
+    this.cssSchema = cssSchema;
+    this.htmlSchema = htmlSchema;
+  }
+
+  /**
+   * A context using the default CSS and HTML whitelists.
+   * @param mq receives any messages from loading the whitelists.
+   */
+  public static CompilerContext getDefault(
+      BuildInfo buildInfo, MessageQueue mq) {
+    return new CompilerContext(
+        buildInfo, CssSchema.getDefaultCss21Schema(mq),
+        HtmlSchema.getDefault(mq));
+  }
+
+  public BuildInfo getBuildInfo() { return buildInfo; }
+
+  public CssSchema getCssSchema() { return cssSchema; }
+
+  public HtmlSchema getHtmlSchema() { return htmlSchema; }
+
+  /** A context like this one but with the given CSS whitelist. */
+  public CompilerContext withCssSchema(CssSchema cssSchema) {
+    return new CompilerContext(buildInfo, cssSchema, htmlSchema);
+  }
+
+  /** A context like this one but with the given HTML whitelist. */
+  public CompilerContext withHtmlSchema(HtmlSchema htmlSchema) {
+    return new CompilerContext(buildInfo, cssSchema, htmlSchema);
+  }
+}
@@ -0,0 +1,278 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.plugin;
+
+import com.google.caja.lang.css.CssSchema;
+import com.google.caja.parser.css.CssTree;
+import com.google.caja.util.Name;
+import com.google.caja.util.Strings;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded cache of the outcome of validating CSS property declarations,
+ * so that a declaration like {@code margin: 0 auto} that appears in many
+ * stylesheets is checked against its property signature once.
+ * <p>
+ * Entries are keyed by the {@link CssSchema} and by a normalized form of the
+ * property name and value, and record how {@link CssValidator} should
+ * annotate the terms of any declaration with that key.  Entries are evicted in
+ * least recently used order once there are more than a maximum number.
+ * <p>
+ * A cache may be shared by validators running in different threads.
+ * It holds references to the schemas it has seen until their entries are
+ * evicted or the cache is {@link #clear cleared}.
+ */
+public final class CssDeclarationCache {
+  /** The default bound on the number of cached declarations. */
+  public static final int DEFAULT_MAX_ENTRIES = 8192;
+  /**
+   * Declarations with longer keys are not cached since they are unlikely to
+   * recur.
+   */
+  static final int MAX_KEY_LENGTH = 1024;
+
+  private static final CssDeclarationCache DEFAULT
+      = new CssDeclarationCache(DEFAULT_MAX_ENTRIES);
+
+  private final int maxEntries;
+  /** Guarded by this.  Iteration order is least recently used first. */
+  private final LinkedHashMap<Key, Entry> entries
+      = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+  /** Guarded by this. */
+  private long hits, misses, evictions;
+
+  /** @param maxEntries the maximum number of declarations to cache. */
+  public CssDeclarationCache(int maxEntries) {
+    if (maxEntries < 0) { throw new IllegalArgumentException(); }
+    this.maxEntries = maxEntries;
+  }
+
+  /** The cache used by {@link CssValidator}s unless told otherwise. */
+  public static CssDeclarationCache getDefault() { return DEFAULT; }
+
+  /**
+   * Walks a declaration's value, appending each {@link CssTree.Term} to terms
+   * in pre-order, including those in function arguments.  Entries identify
+   * terms by their index in this list.
+   * @return a key for the declaration or null if it should not be cached.
+   */
+  static String makeKey(
+      Name propertyName, CssTree.Expr expr, List<CssTree.Term> terms) {
+    StringBuilder sb = new StringBuilder();
+    appendValue(propertyName.getCanonicalForm(), sb);
+    boolean cacheable = appendExpr(expr, sb, terms);
+    return cacheable && sb.length() <= MAX_KEY_LENGTH ? sb.toString() : null;
+  }
+
+  /** Appends all terms in expr to terms, without computing a key. */
+  static void collectTerms(CssTree.Expr expr, List<CssTree.Term> terms) {
+    appendExpr(expr, null, terms);
+  }
+
+  /**
+   * Appends an unambiguous description of expr to sb.
+   * Identifiers are lower-cased since the validator treats keywords and other
+   * identifiers case-insensitively.
+   * @param sb null to only collect terms.
+   * @return false if expr contains a construct that the key cannot describe.
+   */
+  private static boolean appendExpr(
+      CssTree.Expr expr, StringBuilder sb, List<CssTree.Term> terms) {
+    boolean cacheable = true;
+    for (CssTree child : expr.children()) {
+      if (child instanceof CssTree.Operation) {
+        if (sb != null) {
+          sb.append('o').append(
+              ((CssTree.Operation) child).getOperator().ordinal());
+        }
+      } else {
+        cacheable &= appendTerm((CssTree.Term) child, sb, terms);
+      }
+    }
+    if (sb != null) { sb.append(';'); }
+    return cacheable;
+  }
+
+  private static boolean appendTerm(
+      CssTree.Term term, StringBuilder sb, List<CssTree.Term> terms) {
+    terms.add(term);
+    CssTree.CssExprAtom atom = term.getExprAtom();
+    if (sb != null) {
+      CssTree.UnaryOperator op = term.getOperator();
+      sb.append('t').append(op != null ? op.getSymbol() : "");
+    }
+    if (atom instanceof CssTree.FunctionCall) {
+      CssTree.FunctionCall fn = (CssTree.FunctionCall) atom;
+      if (sb != null) {
+        sb.append('f');
+        appendValue(fn.getName().getCanonicalForm(), sb);
+      }
+      return appendExpr(fn.getArguments(), sb, terms);
+    } else if (atom instanceof CssTree.ProgId) {
+      CssTree.ProgId progId = (CssTree.ProgId) atom;
+      if (sb != null) {
+        sb.append('p');
+        appendValue(progId.getName().getCanonicalForm(), sb);
+      }
+      boolean cacheable = true;
+      for (CssTree.ProgIdAttribute attr : progId.children()) {
+        if (sb != null) { appendValue(attr.getName().getCanonicalForm(), sb); }
+        cacheable &= appendTerm(attr.getPropertyValue(), sb, terms);
+      }
+      if (sb != null) { sb.append(';'); }
+      return cacheable;
+    }
+    if (sb == null) { return true; }
+    char type;
+    String value;
+    if (atom instanceof CssTree.IdentLiteral) {
+      type = 'i';
+      value = Strings.toLowerCase(((CssTree.IdentLiteral) atom).getValue());
+    } else if (atom instanceof CssTree.QuantityLiteral) {
+      type = 'q';
+      value = ((CssTree.QuantityLiteral) atom).getValue();
+    } else if (atom instanceof CssTree.StringLiteral) {
+      type = 's';
+      value = ((CssTree.StringLiteral) atom).getValue();
+    } else if (atom instanceof CssTree.HashLiteral) {
+      type = 'h';
+      value = ((CssTree.HashLiteral) atom).getValue();
+    } else if (atom instanceof CssTree.UriLiteral) {
+      type = 'u';
+      value = ((CssTree.UriLiteral) atom).getValue();
+    } else if (atom instanceof CssTree.Substitution) {
+      type = '$';
+      value = ((CssTree.Substitution) atom).getValue();
+    } else {
+      return false;
+    }
+    sb.append(type);
+    appendValue(value, sb);
+    return true;
+  }
+
+  /** Appends a length prefixed string so that values cannot run together. */
+  private static void appendValue(String value, StringBuilder sb) {
+    sb.append(value.length()).append(':').append(value);
+  }
+
+  /** @return null if there is no entry for the given declaration. */
+  synchronized Entry get(CssSchema schema, String key) {
+    Entry e = entries.get(new Key(schema, key));
+    if (e == null) {
+      ++misses;
+    } else {
+      ++hits;
+    }
+    return e;
+  }
+
+  synchronized void put(CssSchema schema, String key, Entry e) {
+    entries.put(new Key(schema, key), e);
+    for (Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+         entries.size() > maxEntries && it.hasNext();) {
+      it.next();
+      it.remove();
+      ++evictions;
+    }
+  }
+
+  /** Removes all entries.  Does not reset the counters. */
+  public synchronized void clear() { entries.clear(); }
+
+  /** The number of lookups that found an entry. */
+  public synchronized long getHitCount() { return hits; }
+  /** The number of lookups that did not find an entry. */
+  public synchronized long getMissCount() { return misses; }
+  /** The fraction of lookups that found an entry, or 0 if there were none. */
+  public synchronized double getHitRate() {
+    long lookups = hits + misses;
+    return lookups != 0 ? ((double) hits) / lookups : 0;
+  }
+  /** The number of entries removed to stay within the bound. */
+  public synchronized long getEvictionCount() { return evictions; }
+  /** The number of declarations currently cached. */
+  public synchronized int size() { return entries.size(); }
+
+  /** How a declaration fared. */
+  enum Outcome {
+    VALID,
+    UNKNOWN_PROPERTY,
+    UNSAFE_PROPERTY,
+    MALFORMED_VALUE,
+    ;
+  }
+
+  /** The result of validating a declaration, independent of its position. */
+  static final class Entry {
+    /** The property the declaration was specialized to, or null. */
+    final Name specializedName;
+    /**
+     * The property in the schema whose signature was checked, or null if the
+     * outcome is not {@link Outcome#VALID} or {@link Outcome#MALFORMED_VALUE}.
+     */
+    final Name schemaPropertyName;
+    final Outcome outcome;
+    /**
+     * For {@link Outcome#MALFORMED_VALUE}, the index of the child of the
+     * value at which matching failed.
+     */
+    final int failureIndex;
+    /**
+     * For {@link Outcome#VALID}, {@link CssValidator#CSS_PROPERTY_PART} by
+     * term index.  Null for terms that are not annotated.
+     */
+    final Name[] parts;
+    /** {@link CssValidator#CSS_PROPERTY_PART_TYPE} by term index. */
+    final CssPropertyPartType[] types;
+
+    Entry(Name specializedName, Name schemaPropertyName, Outcome outcome,
+          int failureIndex, Name[] parts, CssPropertyPartType[] types) {
+      this.specializedName = specializedName;
+      this.schemaPropertyName = schemaPropertyName;
+      this.outcome = outcome;
+      this.failureIndex = failureIndex;
+      this.parts = parts;
+      this.types = types;
+    }
+  }
+
+  private static final class Key {
+    final CssSchema schema;
+    final String declaration;
+
+    Key(CssSchema schema, String declaration) {
+      this.schema = schema;
+      this.declaration = declaration;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) { return false; }
+      Key that = (Key) o;
+      return this.schema == that.schema
+          && this.declaration.equals(that.declaration);
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(schema) * 31 + declaration.hashCode();
+    }
+  }
+}
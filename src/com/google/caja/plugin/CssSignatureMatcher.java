@@ -0,0 +1,862 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.plugin;
+
+import com.google.caja.lang.css.CssSchema;
+import com.google.caja.parser.css.CssPropertySignature;
+import com.google.caja.parser.css.CssTree;
+import com.google.caja.reporting.MessagePart;
+import com.google.caja.util.Name;
+import com.google.caja.util.Strings;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * A {@link CssPropertySignature} compiled against a {@link CssSchema} for a
+ * particular property name.
+ * <p>
+ * Compiling resolves symbol names, parses the constraints on builtin symbols
+ * like {@code <length:0,>}, and precomputes the property part names that
+ * terms are annotated with, so matching a declaration does not redo that work
+ * for every term it tries.  Matchers are cached per schema and shared by all
+ * validators of that schema.
+ *
+ * @see SignatureResolver
+ */
+abstract class CssSignatureMatcher {
+
+  /**
+   * Applies this signature to a candidate that has not consumed the whole
+   * expression.
+   * @param passed receives the candidates that match.  The candidate given may
+   *     be modified in place and added.
+   */
+  abstract void apply(
+      SignatureResolver r, Candidate candidate, List<Candidate> passed);
+
+  /** True if this signature matches when there are no terms left. */
+  boolean matchesEmpty() { return false; }
+
+  /**
+   * True if applying this signature is expensive enough that candidates at
+   * the same position should share one application.
+   */
+  boolean isComposite() { return false; }
+
+  /** The matchers compiled against each schema so far. */
+  private static final Map<CssSchema, Cache> COMPILED
+      = new WeakHashMap<CssSchema, Cache>();
+
+  /**
+   * The matchers compiled against schema.  Validators look this up once when
+   * they are created so that compiling a signature need not lock.
+   */
+  static Cache cacheFor(CssSchema schema) {
+    synchronized (COMPILED) {
+      Cache cache = COMPILED.get(schema);
+      if (cache == null) {
+        cache = new Cache();
+        COMPILED.put(schema, cache);
+      }
+      return cache;
+    }
+  }
+
+  /**
+   * Signatures compiled against one schema, by signature identity, then by
+   * the name of the property whose value the signature describes.
+   * <p>
+   * Lookups do not lock.  Threads that race to compile the same signature may
+   * each build a matcher, but all of them get the one stored first.  A cache
+   * does not refer to its schema, so it does not keep its schema alive.
+   */
+  static final class Cache {
+    private final ConcurrentMap<
+        CssPropertySignature, ConcurrentMap<Name, CssSignatureMatcher>> bySig
+        = new ConcurrentHashMap<
+            CssPropertySignature, ConcurrentMap<Name, CssSignatureMatcher>>();
+
+    private Cache() {}
+
+    /**
+     * The compiled form of sig.
+     * @param schema the schema this cache was obtained for.
+     * @param propertyName the name terms matched by sig will be annotated
+     *     with via {@link CssValidator#CSS_PROPERTY_PART}.
+     */
+    CssSignatureMatcher compile(
+        CssSchema schema, CssPropertySignature sig, Name propertyName) {
+      ConcurrentMap<Name, CssSignatureMatcher> byName = bySig.get(sig);
+      if (byName == null) {
+        byName = new ConcurrentHashMap<Name, CssSignatureMatcher>();
+        ConcurrentMap<Name, CssSignatureMatcher> prev
+            = bySig.putIfAbsent(sig, byName);
+        if (prev != null) { byName = prev; }
+      }
+      CssSignatureMatcher m = byName.get(propertyName);
+      if (m == null) {
+        m = make(this, schema, sig, propertyName);
+        CssSignatureMatcher prev = byName.putIfAbsent(propertyName, m);
+        if (prev != null) { m = prev; }
+      }
+      return m;
+    }
+  }
+
+  private static CssSignatureMatcher make(
+      Cache cache, CssSchema schema, CssPropertySignature sig,
+      Name propertyName) {
+    if (sig instanceof CssPropertySignature.SetSignature) {
+      return new SetMatcher(
+          compileAll(cache, schema, sig.children(), propertyName),
+          sig instanceof CssPropertySignature.ExclusiveSetSignature);
+    } else if (sig instanceof CssPropertySignature.SeriesSignature) {
+      return new SeriesMatcher(
+          compileAll(cache, schema, sig.children(), propertyName));
+    } else if (sig instanceof CssPropertySignature.RepeatedSignature) {
+      CssPropertySignature.RepeatedSignature rsig
+          = (CssPropertySignature.RepeatedSignature) sig;
+      return new RepeatedMatcher(
+          cache.compile(schema, rsig.getRepeatedSignature(), propertyName),
+          rsig.minCount, rsig.maxCount);
+    } else if (sig instanceof CssPropertySignature.LiteralSignature) {
+      return new LiteralMatcher(
+          ((CssPropertySignature.LiteralSignature) sig).value, propertyName);
+    } else if (sig instanceof CssPropertySignature.QuotedLiteralSignature) {
+      return new QuotedLiteralMatcher(
+          ((CssPropertySignature.QuotedLiteralSignature) sig).value,
+          propertyName);
+    } else if (sig instanceof CssPropertySignature.SymbolSignature) {
+      Name symbolName = ((CssPropertySignature.SymbolSignature) sig).symbolName;
+      CssSchema.SymbolInfo symbolInfo = schema.getSymbol(symbolName);
+      if (null != symbolInfo) {
+        return new RefMatcher(
+            cache, symbolInfo.sig,
+            Name.css(propertyName + "::" + symbolInfo.name));
+      }
+      return new BuiltinSymbolMatcher(symbolName, propertyName);
+    } else if (sig instanceof CssPropertySignature.PropertyRefSignature) {
+      CssSchema.CssPropertyInfo info = schema.getCssProperty(
+          ((CssPropertySignature.PropertyRefSignature) sig).getPropertyName());
+      if (null == info) {
+        final Name unknownFrom = propertyName;
+        return new CssSignatureMatcher() {
+          @Override
+          void apply(SignatureResolver r, Candidate c, List<Candidate> out) {
+            throw new AssertionError(
+                "Unknown property in css property signature: " + unknownFrom);
+          }
+        };
+      }
+      return new RefMatcher(cache, info.sig, info.name);
+    } else if (sig instanceof CssPropertySignature.CallSignature) {
+      return new CallMatcher(
+          sig.children().get(0).getValue(),
+          cache.compile(schema, sig.children().get(1), propertyName));
+    } else if (sig instanceof CssPropertySignature.ProgIdSignature) {
+      CssPropertySignature.ProgIdSignature progIdSig
+          = (CssPropertySignature.ProgIdSignature) sig;
+      Map<Name, CssSignatureMatcher> attrs
+          = new HashMap<Name, CssSignatureMatcher>();
+      // Compile in reverse so that the first attribute with a name wins as in
+      // CssPropertySignature.ProgIdSignature#getProgIdAttr.
+      List<? extends CssPropertySignature> attrSigs = progIdSig.children();
+      for (int i = attrSigs.size(); --i >= 0;) {
+        CssPropertySignature.ProgIdAttrSignature attrSig
+            = (CssPropertySignature.ProgIdAttrSignature) attrSigs.get(i);
+        attrs.put(attrSig.getName(),
+                  cache.compile(
+                      schema, attrSig.getValueSig(), propertyName));
+      }
+      return new ProgIdMatcher(progIdSig.getName(), attrs);
+    } else {
+      throw new AssertionError(sig.getClass().getName());
+    }
+  }
+
+  private static CssSignatureMatcher[] compileAll(
+      Cache cache, CssSchema schema, List<? extends CssPropertySignature> sigs,
+      Name propertyName) {
+    CssSignatureMatcher[] matchers = new CssSignatureMatcher[sigs.size()];
+    for (int i = 0; i < matchers.length; ++i) {
+      matchers[i] = cache.compile(schema, sigs.get(i), propertyName);
+    }
+    return matchers;
+  }
+
+  /** Matches the first alternative that matches. */
+  static final class SetMatcher extends CssSignatureMatcher {
+    final CssSignatureMatcher[] alternatives;
+    /** True for {@code a || b} which matches each alternative at most once. */
+    final boolean exclusive;
+
+    SetMatcher(CssSignatureMatcher[] alternatives, boolean exclusive) {
+      this.alternatives = alternatives;
+      this.exclusive = exclusive;
+    }
+
+    @Override
+    boolean isComposite() { return true; }
+
+    @Override
+    void apply(
+        SignatureResolver r, Candidate candidate, List<Candidate> passed) {
+      List<Candidate> toApply = Collections.singletonList(candidate);
+      for (CssSignatureMatcher alternative : alternatives) {
+        // Most alternatives are keywords, so reject those without allocating.
+        if (alternative instanceof LiteralMatcher) {
+          // An alternative that failed may have consumed terms.
+          if (r.isAtEnd(candidate)) { continue; }
+          r.skipBlank(candidate);
+          if (!((LiteralMatcher) alternative).matches(r, candidate)) {
+            continue;
+          }
+        }
+        List<Candidate> alternativePassed = r.applySignature(
+            toApply, alternative);
+        // lazy
+        if (!alternativePassed.isEmpty()) {
+          passed.addAll(alternativePassed);
+          break;
+        }
+      }
+    }
+
+    /**
+     * Like {@link #apply} but skips alternatives that have been used, and
+     * marks the one that matches as used.
+     */
+    void applyExclusive(
+        SignatureResolver r, Candidate candidate, BitSet used,
+        List<Candidate> passed) {
+      List<Candidate> toApply = Collections.singletonList(candidate);
+      for (int k = 0; k < alternatives.length; ++k) {
+        if (used.get(k)) { continue; }
+        List<Candidate> alternativePassed = r.applySignature(
+            toApply, alternatives[k]);
+        // lazy
+        if (!alternativePassed.isEmpty()) {
+          passed.addAll(alternativePassed);
+          used.set(k);
+          break;
+        }
+      }
+    }
+  }
+
+  /** Matches each element in order. */
+  static final class SeriesMatcher extends CssSignatureMatcher {
+    final CssSignatureMatcher[] elements;
+
+    SeriesMatcher(CssSignatureMatcher[] elements) {
+      this.elements = elements;
+    }
+
+    @Override
+    boolean isComposite() { return true; }
+
+    @Override
+    void apply(
+        SignatureResolver r, Candidate candidate, List<Candidate> passed) {
+      List<Candidate> toApply = Collections.singletonList(candidate);
+      for (CssSignatureMatcher element : elements) {
+        toApply = r.applySignature(toApply, element);
+        if (toApply.isEmpty()) { break; }
+      }
+      passed.addAll(toApply);
+    }
+  }
+
+  static final class RepeatedMatcher extends CssSignatureMatcher {
+    /**
+     * The maximum branching factor for a repetition.  This is the
+     * greatest number of contiguous ambiguous elements we might encounter
+     * as in <code>{ font: inherit inherit inherit inherit }</code>.
+     * <p>
+     * TODO(mikesamuel): this is currently 5 instead of 4 because it also limits
+     * the number of font names that can appear in a comma separated list.
+     * Rework our backtracking so we can handle long font lists.
+     */
+    private static final int MAX_BRANCHING_FACTOR = 5;
+
+    final CssSignatureMatcher repeated;
+    final int minCount, maxCount;
+
+    RepeatedMatcher(CssSignatureMatcher repeated, int minCount, int maxCount) {
+      this.repeated = repeated;
+      this.minCount = minCount;
+      this.maxCount = maxCount;
+    }
+
+    @Override
+    boolean matchesEmpty() { return minCount == 0; }
+
+    @Override
+    boolean isComposite() { return true; }
+
+    @Override
+    void apply(
+        SignatureResolver r, Candidate candidate, List<Candidate> passed) {
+      List<Candidate> toApply = Collections.singletonList(candidate);
+      int k = 0;
+      for (; k < minCount; ++k) {
+        toApply = r.applySignature(toApply, repeated);
+        if (toApply.isEmpty()) { return; }
+      }
+      SetMatcher exclusiveSet = null;
+      BitSet used = null;
+      if (repeated instanceof SetMatcher && ((SetMatcher) repeated).exclusive) {
+        exclusiveSet = (SetMatcher) repeated;
+        used = new BitSet(exclusiveSet.alternatives.length);
+      }
+
+      toApply = new ArrayList<Candidate>(toApply);
+      for (; k < maxCount; ++k) {
+        if (k < MAX_BRANCHING_FACTOR) {
+          // Try not following the extra repetitions
+          passed.addAll(toApply);
+          for (int i = toApply.size(); --i >= 0;) {
+            toApply.set(i, toApply.get(i).clone());
+          }
+        } else {
+          // greedy
+        }
+        if (null == exclusiveSet) {
+          toApply = r.applySignature(toApply, repeated);
+        } else {
+          // Special handling for || groups
+          List<Candidate> passedSet = new ArrayList<Candidate>();
+          for (Candidate setCandidate : toApply) {
+            if (r.isAtEnd(setCandidate)) {
+              passed.add(setCandidate);
+              continue;
+            }
+
+            r.skipBlank(setCandidate);
+
+            exclusiveSet.applyExclusive(r, setCandidate, used, passedSet);
+          }
+          toApply = passedSet;
+        }
+        if (toApply.isEmpty()) { break; }
+      }
+      passed.addAll(toApply);
+    }
+  }
+
+  /**
+   * Matches a signature defined elsewhere in the schema: a symbol like
+   * {@code <border-style>} or another property.
+   * The target is compiled when first used.
+   */
+  static final class RefMatcher extends CssSignatureMatcher {
+    private final Cache cache;
+    private final CssPropertySignature sig;
+    private final Name propertyName;
+    private volatile CssSignatureMatcher target;
+
+    RefMatcher(Cache cache, CssPropertySignature sig, Name propertyName) {
+      this.cache = cache;
+      this.sig = sig;
+      this.propertyName = propertyName;
+    }
+
+    @Override
+    boolean isComposite() { return true; }
+
+    @Override
+    void apply(
+        SignatureResolver r, Candidate candidate, List<Candidate> passed) {
+      CssSignatureMatcher target = this.target;
+      if (target == null) {
+        this.target = target = cache.compile(r.cssSchema, sig, propertyName);
+      }
+      passed.addAll(
+          r.applySignature(Collections.singletonList(candidate), target));
+    }
+  }
+
+  /** Matches a keyword, number, or punctuation mark. */
+  static final class LiteralMatcher extends CssSignatureMatcher {
+    private final String value;
+    private final Name propertyName;
+
+    LiteralMatcher(String value, Name propertyName) {
+      this.value = value;
+      this.propertyName = propertyName;
+    }
+
+    boolean matches(SignatureResolver r, Candidate candidate) {
+      CssTree child = r.getChild(candidate.exprIdx);
+      if (0 == (candidate.exprIdx & 1)) {  // a term
+        CssTree.Term term = (CssTree.Term) child;
+        if (null != term.getOperator()) { return false; }
+        CssTree.CssExprAtom atom = term.getExprAtom();
+        if (atom instanceof CssTree.IdentLiteral) {
+          return Strings.equalsIgnoreCase(
+              value, ((CssTree.IdentLiteral) atom).getValue());
+        } else if (atom instanceof CssTree.QuantityLiteral) {
+          return value.equals(atom.getValue());
+        }
+        return false;
+      } else {  // A punctuation mark
+        return ((CssTree.Operation) child).getOperator().getSymbol()
+            .equals(value);
+      }
+    }
+
+    @Override
+    void apply(
+        SignatureResolver r, Candidate candidate, List<Candidate> passed) {
+      if (!matches(r, candidate)) { return; }
+      if (0 == (candidate.exprIdx & 1)) {
+        candidate.match(
+            (CssTree.Term) r.getChild(candidate.exprIdx),
+            CssPropertyPartType.IDENT, propertyName);
+      }
+      ++candidate.exprIdx;
+      passed.add(candidate);
+    }
+  }
+
+  static final class QuotedLiteralMatcher extends CssSignatureMatcher {
+    private final String value;
+    private final Name propertyName;
+
+    QuotedLiteralMatcher(String value, Name propertyName) {
+      this.value = value;
+      this.propertyName = propertyName;
+    }
+
+    @Override
+    void apply(
+        SignatureResolver r, Candidate candidate, List<Candidate> passed) {
+      if (0 != (candidate.exprIdx & 1)) { return; }  // not a term
+      CssTree.Term term = (CssTree.Term) r.getChild(candidate.exprIdx);
+      CssTree.CssExprAtom atom = term.getExprAtom();
+      if (null == term.getOperator()
+          && atom instanceof CssTree.StringLiteral
+          && value.equals(((CssTree.StringLiteral) atom).getValue())) {
+        candidate.match(term, CssPropertyPartType.STRING, propertyName);
+        ++candidate.exprIdx;
+        passed.add(candidate);
+      }
+    }
+  }
+
+  /** Matches a function call like {@code rgb(0, 0, 0)}. */
+  static final class CallMatcher extends CssSignatureMatcher {
+    private final Object name;
+    private final CssSignatureMatcher formals;
+
+    CallMatcher(Object name, CssSignatureMatcher formals) {
+      this.name = name;
+      this.formals = formals;
+    }
+
+    @Override
+    void apply(
+        SignatureResolver r, Candidate candidate, List<Candidate> passed) {
+      if (0 != (candidate.exprIdx & 1)) { return; }  // not a term
+      CssTree.Term term = (CssTree.Term) r.getChild(candidate.exprIdx);
+      CssTree.CssExprAtom atom = term.getExprAtom();
+      if (null != term.getOperator()
+          || !(atom instanceof CssTree.FunctionCall)) {
+        return;
+      }
+      CssTree.FunctionCall fn = (CssTree.FunctionCall) atom;
+      if (!fn.getName().getCanonicalForm().equals(name)) { return; }
+      Candidate inFnSpace = new Candidate(
+          0, candidate.match, candidate.warning);
+      for (Candidate resultInFnSpace :
+           new SignatureResolver(fn.getArguments(), r.cssSchema)
+               .applySignature(Collections.singletonList(inFnSpace), formals)) {
+        passed.add(new Candidate(
+            candidate.exprIdx + 1, resultInFnSpace.match,
+            resultInFnSpace.warning));
+      }
+    }
+  }
+
+  /**
+   * Matches an IE filter like
+   * {@code progid:DXImageTransform.Microsoft.Alpha(Opacity=80)}.
+   */
+  static final class ProgIdMatcher extends CssSignatureMatcher {
+    private final Name name;
+    private final Map<Name, CssSignatureMatcher> attrs;
+
+    ProgIdMatcher(Name name, Map<Name, CssSignatureMatcher> attrs) {
+      this.name = name;
+      this.attrs = attrs;
+    }
+
+    @Override
+    void apply(
+        SignatureResolver r, Candidate candidate, List<Candidate> passed) {
+      if (0 != (candidate.exprIdx & 1)) { return; }  // not a term
+      CssTree.Term term = (CssTree.Term) r.getChild(candidate.exprIdx);
+      CssTree.CssExprAtom atom = term.getExprAtom();
+      if (null != term.getOperator() || !(atom instanceof CssTree.ProgId)) {
+        return;
+      }
+      CssTree.ProgId progId = (CssTree.ProgId) atom;
+      if (!name.equals(progId.getName())) { return; }
+      Match match = candidate.match;
+      MessageSList warning = candidate.warning;
+      for (CssTree.ProgIdAttribute attr : progId.children()) {
+        CssSignatureMatcher valueSig = attrs.get(attr.getName());
+        if (valueSig == null) { return; }
+        Candidate inAttrSpace = new Candidate(0, match, warning);
+        CssTree.Term value = attr.getPropertyValue();
+        CssTree.Expr valueExpr = new CssTree.Expr(
+            value.getFilePosition(), Collections.singletonList(value));
+        SignatureResolver sr = new SignatureResolver(valueExpr, r.cssSchema);
+        List<Candidate> resultInAttrSpaces = sr.applySignature(
+            Collections.singletonList(inAttrSpace), valueSig);
+        boolean matched = false;
+        for (Candidate c : resultInAttrSpaces) {
+          if (c.exprIdx == 1) {
+            match = c.match;
+            warning = c.warning;
+            matched = true;
+            break;
+          }
+        }
+        if (!matched) { return; }
+      }
+      passed.add(new Candidate(candidate.exprIdx + 1, match, warning));
+    }
+  }
+
+  /**
+   * Handles symbols for which we don't have a signature.  Anything not handled
+   * by {@link CssSchema#getSymbol}.
+   */
+  static final class BuiltinSymbolMatcher extends CssSignatureMatcher {
+    private enum Kind {
+      LENGTH, NUMBER, INTEGER, PERCENTAGE, UNRESERVED_WORD, QUOTABLE_WORD,
+      HEX_COLOR, ANGLE, TIME, FREQUENCY, SPECIFIC_VOICE, URI, STRING,
+      IDENTIFIER,
+      ;
+    }
+
+    private static final Map<String, Kind> KINDS = new HashMap<String, Kind>();
+    static {
+      for (Kind k : Kind.values()) {
+        KINDS.put(Strings.toLowerCase(k.name()).replace('_', '-'), k);
+      }
+    }
+
+    private final Name symbolName;
+    private final Name propertyName;
+    /** Null if the symbol is not one we know how to handle. */
+    private final Kind kind;
+    /** True if the symbol has a range like {@code <length:0,>}. */
+    private final boolean constrained;
+    private final double min, max;
+
+    BuiltinSymbolMatcher(Name symbolName, Name propertyName) {
+      this.symbolName = symbolName;
+      this.propertyName = propertyName;
+      String name = symbolName.getCanonicalForm();
+      // Check for any constraints
+      String constraints = null;
+      int colon = name.indexOf(":");
+      if (colon >= 0) {
+        constraints = name.substring(colon + 1);
+        name = name.substring(0, colon);
+      }
+      this.kind = KINDS.get(name);
+      this.constrained = constraints != null;
+      if (constrained) {
+        int comma = constraints.indexOf(",");
+        this.min = Double.parseDouble(constraints.substring(0, comma));
+        this.max = comma + 1 == constraints.length()
+            ? Double.POSITIVE_INFINITY
+            : Double.parseDouble(constraints.substring(comma + 1));
+      } else {
+        this.min = this.max = Double.NaN;
+      }
+    }
+
+    @Override
+    void apply(
+        SignatureResolver r, Candidate candidate, List<Candidate> passed) {
+      if (match(r, candidate)) { passed.add(candidate); }
+    }
+
+    private boolean match(SignatureResolver r, Candidate candidate) {
+      if (0 != (candidate.exprIdx & 1)) { return false; }  // not a term
+      CssTree.Term term = (CssTree.Term) r.getChild(candidate.exprIdx);
+      CssTree.CssExprAtom atom = term.getExprAtom();
+
+      Object atomValue = atom.getValue();
+      String atomSValue = atomValue instanceof String ? (String) atomValue : "";
+
+      // Operators such as negation cannot be applied to substitutions.
+      // The substitution itself should return a negative value.
+      if (atom instanceof CssTree.Substitution && term.getOperator() != null) {
+        return false;
+      }
+
+      if (kind == null) {
+        throw new AssertionError("unhandled symbol " + symbolName);
+      }
+
+      CssPropertyPartType type;
+      switch (kind) {
+        case LENGTH:
+          if (!(atom instanceof CssTree.QuantityLiteral &&
+                LENGTH_RE.matcher(atomSValue).matches()) &&
+              !(atom instanceof CssTree.Substitution &&
+                LENGTH_SUFFIX_RE.matcher(atomSValue).find())) {
+            return false;
+          }
+          type = CssPropertyPartType.LENGTH;
+          break;
+        case NUMBER:
+          if (!(atom instanceof CssTree.QuantityLiteral &&
+                NUMBER_RE.matcher(atomSValue).matches()) &&
+              !(atom instanceof CssTree.Substitution &&
+                NUMBER_SUFFIX_RE.matcher(atomSValue).find())) {
+            return false;
+          }
+          type = CssPropertyPartType.NUMBER;
+          break;
+        case INTEGER:
+          if (!(atom instanceof CssTree.QuantityLiteral &&
+                INTEGER_RE.matcher(atomSValue).matches()) &&
+              !(atom instanceof CssTree.Substitution &&
+                NUMBER_SUFFIX_RE.matcher(atomSValue).find())) {
+            return false;
+          }
+          type = CssPropertyPartType.INTEGER;
+          break;
+        case PERCENTAGE:
+          if (!(atom instanceof CssTree.QuantityLiteral
+                && PERCENTAGE_RE.matcher(atomSValue).matches()) &&
+              !(atom instanceof CssTree.Substitution &&
+                PERCENTAGE_SUFFIX_RE.matcher(atomSValue).find())) {
+            return false;
+          }
+          type = CssPropertyPartType.PERCENTAGE;
+          break;
+        case UNRESERVED_WORD:
+          if (null != term.getOperator()
+              || !(atom instanceof CssTree.IdentLiteral)
+              || r.cssSchema.isKeyword(
+                  Name.css(((CssTree.IdentLiteral) atom).getValue()))) {
+            return false;
+          }
+          type = CssPropertyPartType.LOOSE_WORD;
+          break;
+        case QUOTABLE_WORD:
+          if (!(null == term.getOperator()
+                && atom instanceof CssTree.IdentLiteral)) {
+            return false;
+          }
+          type = CssPropertyPartType.LOOSE_WORD;
+          break;
+        case HEX_COLOR:
+          if (atom instanceof CssTree.HashLiteral) {
+            // Require 3 or 6 hex digits
+            String hex = ((CssTree.HashLiteral) atom).getValue();
+            if (hex.length() != 4 && hex.length() != 7) { return false; }
+          } else if (atom instanceof CssTree.Substitution) {
+            if (!COLOR_SUFFIX_RE.matcher(atomSValue).find()) {
+              return false;
+            }
+          } else {
+            return false;
+          }
+          type = CssPropertyPartType.COLOR;
+          break;
+        case ANGLE:
+          if (!(atom instanceof CssTree.QuantityLiteral &&
+                ANGLE_RE.matcher(atomSValue).matches()) &&
+              !(atom instanceof CssTree.Substitution &&
+                ANGLE_SUFFIX_RE.matcher(atomSValue).find())) {
+            return false;
+          }
+          type = CssPropertyPartType.ANGLE;
+          break;
+        case TIME:
+          if (!(atom instanceof CssTree.QuantityLiteral &&
+                null == term.getOperator() &&
+                TIME_RE.matcher(atomSValue).matches()) &&
+              !(atom instanceof CssTree.Substitution &&
+                TIME_SUFFIX_RE.matcher(atomSValue).find())) {
+            return false;
+          }
+          type = CssPropertyPartType.TIME;
+          break;
+        case FREQUENCY:
+          if (!(atom instanceof CssTree.QuantityLiteral &&
+                null == term.getOperator() &&
+                FREQUENCY_RE.matcher(atomSValue).matches()) &&
+              !(atom instanceof CssTree.Substitution &&
+                FREQUENCY_SUFFIX_RE.matcher(atomSValue).find())) {
+            return false;
+          }
+          type = CssPropertyPartType.FREQUENCY;
+          break;
+        case SPECIFIC_VOICE: {
+          if (null != term.getOperator()) { return false; }
+          String name;
+          if (atom instanceof CssTree.IdentLiteral) {
+            name = ((CssTree.IdentLiteral) atom).getValue();
+            if (r.cssSchema.isKeyword(Name.css(name))) { return false; }
+          } else if (atom instanceof CssTree.StringLiteral) {
+            name = ((CssTree.StringLiteral) atom).getValue();
+          } else {
+            return false;
+          }
+          if (!SPECIFIC_VOICE_RE.matcher(name).matches()) { return false; }
+          type = CssPropertyPartType.SPECIFIC_VOICE;
+          break;
+        }
+        case URI:
+          if (null != term.getOperator()) { return false; }
+          if (!(atom instanceof CssTree.UriLiteral
+                // This may not be per spec, but it is safest to interpret
+                // strings as URIs, since many user-agents seem to do this, and
+                // we want to apply constraints to URIs.
+                || atom instanceof CssTree.StringLiteral
+                // Uri substitutions can be fixed at runtime
+                || (atom instanceof CssTree.Substitution &&
+                    URI_SUFFIX_RE.matcher(atomSValue).find()))) {
+            return false;
+          }
+          type = CssPropertyPartType.URI;
+          break;
+        case STRING:
+          if (!(null == term.getOperator()
+                && atom instanceof CssTree.StringLiteral)) {
+            return false;
+          }
+          type = CssPropertyPartType.STRING;
+          break;
+        case IDENTIFIER:
+          if (!(null == term.getOperator()
+                && atom instanceof CssTree.IdentLiteral)) {
+            return false;
+          }
+          type = CssPropertyPartType.IDENT;
+          break;
+        default:
+          throw new AssertionError(kind);
+      }
+      candidate.match(term, type, propertyName);
+      ++candidate.exprIdx;
+
+      if (constrained
+          // Violations of these constraints are not security problems though,
+          // so we do not try to enforce them on the client for dynamic
+          // content.
+          && !(atom instanceof CssTree.Substitution)) {
+        String valueStr = ((CssTree.QuantityLiteral) atom).getValue();
+        int numEnd = 0;
+        for (char ch; numEnd < valueStr.length()
+             && (((ch = valueStr.charAt(numEnd)) >= '0' && ch <= '9')
+                 || ch == '.');) {
+          ++numEnd;
+        }
+        double value = Double.parseDouble(valueStr.substring(0, numEnd));
+        if (CssTree.UnaryOperator.NEGATION == term.getOperator()) {
+          value *= -1;
+        }
+        if (value < min || value > max) {
+          candidate.warn(PluginMessageType.CSS_VALUE_OUT_OF_RANGE,
+                         term.getFilePosition(), propertyName,
+                         MessagePart.Factory.valueOf(value),
+                         MessagePart.Factory.valueOf(min),
+                         MessagePart.Factory.valueOf(max));
+          // If this were a validation failure, it might cause us to
+          // improperly match another rule later, so issue a warning instead.
+        }
+      }
+
+      return true;
+    }
+
+    /**
+     * http://www.w3.org/TR/CSS21/syndata.html#q15
+     * http://www.w3.org/TR/REC-CSS2/syndata.html#value-def-number
+     * This syntax disallows a decimal point without any digits following, as
+     * per the spec.
+     */
+    private static final String REAL_NUMBER_RE
+        = "(?:\\d+(?:\\.\\d+)?|\\.\\d+)";
+    /**
+     * According to http://www.w3.org/TR/CSS21/syndata.html#length-units.
+     * Units are frequently left off length values, in which case all existing
+     * browsers assume pixels, so the units below are treated as optional even
+     * though, strictly, units can only be omitted from the value 0.
+     */
+    private static final Pattern LENGTH_RE = Pattern.compile(
+        "^(?:" + REAL_NUMBER_RE + "(?:in|cm|mm|pt|pc|em|ex|px)?)$",
+        Pattern.CASE_INSENSITIVE);
+    /** http://www.w3.org/TR/REC-CSS2/syndata.html#value-def-number */
+    private static final Pattern NUMBER_RE = Pattern.compile(
+        "^" + REAL_NUMBER_RE + "$");
+    /** http://www.w3.org/TR/REC-CSS2/syndata.html#value-def-integer */
+    private static final Pattern INTEGER_RE = Pattern.compile("^\\d+$");
+    /** http://www.w3.org/TR/CSS21/syndata.html#percentage-units */
+    private static final Pattern PERCENTAGE_RE = Pattern.compile(
+        "^" + REAL_NUMBER_RE + "%$");
+    /** http://www.w3.org/TR/CSS21/aural.html#value-def-specific-voice */
+    private static final Pattern SPECIFIC_VOICE_RE = Pattern.compile(
+        "^\\s*(?:[\\w\\-]+(?:\\s+[\\w\\-]+)*)\\s*$", Pattern.CASE_INSENSITIVE);
+    /** http://www.w3.org/TR/CSS21/aural.html#value-def-angle */
+    private static final Pattern ANGLE_RE = Pattern.compile(
+        "^(?:" + REAL_NUMBER_RE + "(?:deg|grad|rad)|0+)$",
+        Pattern.CASE_INSENSITIVE);
+    /** http://www.w3.org/TR/CSS21/aural.html#value-def-time */
+    private static final Pattern TIME_RE = Pattern.compile(
+        "^(?:" + REAL_NUMBER_RE + "(?:ms|s)|0+)$", Pattern.CASE_INSENSITIVE);
+    /** http://www.w3.org/TR/CSS21/aural.html#value-def-frequency */
+    private static final Pattern FREQUENCY_RE = Pattern.compile(
+        "^(?:" + REAL_NUMBER_RE + "(?:hz|kHz)|0+)$",
+        Pattern.CASE_INSENSITIVE);
+
+    // Suffixes for substitutions.  A substitution like ${x * 4}em can only be
+    // a length.  Substitutions without a suffix can only be of certain kinds
+    private static final Pattern LENGTH_SUFFIX_RE = Pattern.compile(
+        "\\}(?:in|cm|mm|pt|pc|em|ex|px)?$", Pattern.CASE_INSENSITIVE);
+    private static final Pattern PERCENTAGE_SUFFIX_RE
+        = Pattern.compile("\\}%$");
+    private static final Pattern NUMBER_SUFFIX_RE = Pattern.compile("\\}$");
+    private static final Pattern COLOR_SUFFIX_RE = NUMBER_SUFFIX_RE;
+    private static final Pattern ANGLE_SUFFIX_RE = Pattern.compile(
+        "\\}(?:deg|grad|rad)$", Pattern.CASE_INSENSITIVE);
+    private static final Pattern TIME_SUFFIX_RE = Pattern.compile(
+        "\\}(?:ms|s)$", Pattern.CASE_INSENSITIVE);
+    private static final Pattern FREQUENCY_SUFFIX_RE = Pattern.compile(
+        "\\}(?:hz|kHz)$", Pattern.CASE_INSENSITIVE);
+    private static final Pattern URI_SUFFIX_RE = Pattern.compile(
+        "\\}(?:uri)?$", Pattern.CASE_INSENSITIVE);
+  }
+}
@@ -19,15 +19,12 @@ import com.google.caja.lang.html.HTML;
 import com.google.caja.lang.html.HtmlSchema;
 import com.google.caja.lexer.TokenConsumer;
 import com.google.caja.parser.AncestorChain;
-import com.google.caja.parser.ParseTreeNode;
-import com.google.caja.parser.Visitor;
 import com.google.caja.parser.css.CssPropertySignature;
 import com.google.caja.parser.css.CssTree;
 import com.google.caja.parser.css.CssTree.Combinator;
 import com.google.caja.render.Concatenator;
 import com.google.caja.render.CssPrettyPrinter;
 import com.google.caja.reporting.Message;
-import com.google.caja.reporting.MessageContext;
 import com.google.caja.reporting.MessageLevel;
 import com.google.caja.reporting.MessagePart;
 import com.google.caja.reporting.MessageQueue;
@@ -36,19 +33,16 @@ import com.google.caja.reporting.RenderContext;
 import com.google.caja.util.Multimap;
 import com.google.caja.util.Multimaps;
 import com.google.caja.util.Name;
-import com.google.caja.util.Strings;
 import com.google.caja.util.SyntheticAttributeKey;
 import com.google.caja.util.SyntheticAttributes;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
-import java.util.Iterator;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.regex.Pattern;
 
 /**
  * A class that validates a CSS parse tree and annotates the terms with type
@@ -81,9 +75,12 @@ public final class CssValidator {
       new SyntheticAttributeKey<Boolean>(Boolean.class, "cssValidator-invalid");
 
   private final CssSchema cssSchema;
+  private final CssSignatureMatcher.Cache matchers;
   private final HtmlSchema htmlSchema;
   private final MessageQueue mq;
   private MessageLevel invalidNodeMessageLevel = MessageLevel.ERROR;
+  private CssDeclarationCache declarationCache
+      = CssDeclarationCache.getDefault();
 
   public CssValidator(
       CssSchema cssSchema, HtmlSchema htmlSchema, MessageQueue mq) {
@@ -91,6 +88,7 @@ public final class CssValidator {
       throw new NullPointerException();
     }
     this.cssSchema = cssSchema;
+    this.matchers = CssSignatureMatcher.cacheFor(cssSchema);
     this.htmlSchema = htmlSchema;
     this.mq = mq;
   }
@@ -107,6 +105,19 @@ public final class CssValidator {
     return this;
   }
 
+  /**
+   * Specifies the cache used to avoid revalidating property declarations
+   * that have been seen before, by this or another validator.
+   * Defaults to {@link CssDeclarationCache#getDefault}.
+   * @param declarationCache null to validate every declaration from scratch.
+   * @return this
+   */
+  public CssValidator withDeclarationCache(
+      CssDeclarationCache declarationCache) {
+    this.declarationCache = declarationCache;
+    return this;
+  }
+
   /**
    * True iff the given CSS tree is valid according to the CSS Schema.
    * If invalid, parts with problems will be marked {@link #INVALID}.
@@ -170,23 +181,27 @@ public final class CssValidator {
   private boolean validatePropertyDeclaration(CssTree.PropertyDeclaration d) {
     // Is it an empty declaration?  Effectively a noop, but the CSS2 spec
     // insists that a noop is a full-class declaration.
-    CssTree.Property prop = d.getProperty();
+    Name propertyName = d.getProperty().getPropertyName();
+    CssTree.Expr expr = d.getExpr();
+    List<CssTree.Term> terms = new ArrayList<CssTree.Term>();
+    String cacheKey = null;
+    if (declarationCache != null) {
+      cacheKey = CssDeclarationCache.makeKey(propertyName, expr, terms);
+      if (cacheKey != null) {
+        CssDeclarationCache.Entry e = declarationCache.get(
+            cssSchema, cacheKey);
+        if (e != null) { return applyDeclarationEntry(d, e, terms, null); }
+      }
+    } else {
+      CssDeclarationCache.collectTerms(expr, terms);
+    }
+
     // Replace invalid but commonly used forms with a valid form, e.g.
     // replace font:12px with font-size:12px.
-    Name moreSpecificName = specializeProperty(d);
-    if (!moreSpecificName.equals(prop.getPropertyName())) {
-      CssTree.Property specializedProp = new CssTree.Property(
-          prop.getFilePosition(), moreSpecificName, prop.children());
-      mq.addMessage(
-          PluginMessageType.SPECIALIZING_CSS_PROPERTY, prop.getFilePosition(),
-          prop.getPropertyName(), moreSpecificName);
-      d.replaceChild(specializedProp, prop);
-      prop = specializedProp;
-    }
+    Name moreSpecificName = specializeProperty(propertyName, expr);
     CssSchema.CssPropertyInfo pinfo = cssSchema.getCssProperty(
-        prop.getPropertyName());
-    if (null == pinfo
-        && prop.getPropertyName().getCanonicalForm().startsWith("_")) {
+        moreSpecificName);
+    if (null == pinfo && moreSpecificName.getCanonicalForm().startsWith("_")) {
       // From {@link "http://en.wikipedia.org/wiki/CSS_filter#Underscore_hack"}:
       //     Versions 6 and below of Internet Explorer recognize properties
       //     which are preceded by an underscore.  All other browsers ignore
@@ -201,30 +216,118 @@ public final class CssValidator {
       //     3. MSIE 5+ for Windows ignores the "_" at the beginning of any CSS
       //        property name
       pinfo = cssSchema.getCssProperty(
-          Name.css(prop.getPropertyName().getCanonicalForm().substring(1)));
+          Name.css(moreSpecificName.getCanonicalForm().substring(1)));
     }
+    CssDeclarationCache.Entry e;
+    MessageSList warnings = null;
+    Name specializedName = moreSpecificName.equals(propertyName)
+        ? null : moreSpecificName;
     if (null == pinfo) {
-      mq.addMessage(
-          PluginMessageType.UNKNOWN_CSS_PROPERTY, invalidNodeMessageLevel,
-          prop.getFilePosition(), prop.getPropertyName());
-      d.getAttributes().set(INVALID, Boolean.TRUE);
-      return false;
+      e = new CssDeclarationCache.Entry(
+          specializedName, null,
+          CssDeclarationCache.Outcome.UNKNOWN_PROPERTY, -1, null, null);
+    } else if (!cssSchema.isPropertyAllowed(pinfo.name)) {
+      e = new CssDeclarationCache.Entry(
+          specializedName, null,
+          CssDeclarationCache.Outcome.UNSAFE_PROPERTY, -1, null, null);
+    } else {
+      // Apply the signature
+      SignatureResolver resolver = new SignatureResolver(expr, cssSchema);
+      Candidate match = applySignature(resolver, pinfo.name, expr, pinfo.sig);
+      if (null == match) {
+        // Use the longest match attempted match to generate an error message
+        Candidate best = resolver.getBestAttempt();
+        e = new CssDeclarationCache.Entry(
+            specializedName, pinfo.name,
+            CssDeclarationCache.Outcome.MALFORMED_VALUE,
+            null != best ? best.exprIdx : 0, null, null);
+      } else {
+        e = makeValidEntry(specializedName, pinfo.name, match, terms);
+        warnings = match.warning;
+      }
     }
-    if (!cssSchema.isPropertyAllowed(pinfo.name)) {
+    // Warnings refer to the positions of particular terms, so are not
+    // replayed.
+    if (cacheKey != null && warnings == null) {
+      declarationCache.put(cssSchema, cacheKey, e);
+    }
+    return applyDeclarationEntry(d, e, terms, warnings);
+  }
+
+  /**
+   * Reports messages for and annotates a declaration based on the outcome of
+   * validating it or an equivalent declaration.
+   * @param terms as collected by {@link CssDeclarationCache#makeKey}.
+   * @param warnings null or warnings generated while matching d's signature.
+   */
+  private boolean applyDeclarationEntry(
+      CssTree.PropertyDeclaration d, CssDeclarationCache.Entry e,
+      List<CssTree.Term> terms, MessageSList warnings) {
+    CssTree.Property prop = d.getProperty();
+    if (null != e.specializedName) {
+      CssTree.Property specializedProp = new CssTree.Property(
+          prop.getFilePosition(), e.specializedName, prop.children());
       mq.addMessage(
-          PluginMessageType.UNSAFE_CSS_PROPERTY, invalidNodeMessageLevel,
-          prop.getFilePosition(), prop.getPropertyName());
-      d.getAttributes().set(INVALID, Boolean.TRUE);
-      return false;
+          PluginMessageType.SPECIALIZING_CSS_PROPERTY, prop.getFilePosition(),
+          prop.getPropertyName(), e.specializedName);
+      d.replaceChild(specializedProp, prop);
+      prop = specializedProp;
     }
-    // Apply the signature
-    if (!applySignature(pinfo.name, d.getExpr(), pinfo.sig)) {
-      // Apply takes care of adding the error message
-      d.getAttributes().set(INVALID, Boolean.TRUE);
-      return false;
+    switch (e.outcome) {
+      case UNKNOWN_PROPERTY:
+        mq.addMessage(
+            PluginMessageType.UNKNOWN_CSS_PROPERTY, invalidNodeMessageLevel,
+            prop.getFilePosition(), prop.getPropertyName());
+        d.getAttributes().set(INVALID, Boolean.TRUE);
+        return false;
+      case UNSAFE_PROPERTY:
+        mq.addMessage(
+            PluginMessageType.UNSAFE_CSS_PROPERTY, invalidNodeMessageLevel,
+            prop.getFilePosition(), prop.getPropertyName());
+        d.getAttributes().set(INVALID, Boolean.TRUE);
+        return false;
+      case MALFORMED_VALUE:
+        reportMalformedValue(e.schemaPropertyName, d.getExpr(), e.failureIndex);
+        d.getAttributes().set(INVALID, Boolean.TRUE);
+        return false;
+      case VALID:
+        for (int i = 0, n = terms.size(); i < n; ++i) {
+          if (null == e.parts[i]) { continue; }
+          SyntheticAttributes attribs = terms.get(i).getAttributes();
+          attribs.set(CSS_PROPERTY_PART_TYPE, e.types[i]);
+          attribs.set(CSS_PROPERTY_PART, e.parts[i]);
+        }
+        // Deliver warnings
+        if (null != warnings) { warnings.toMessageQueue(mq); }
+        return true;
+      default:
+        throw new AssertionError(e.outcome);
     }
+  }
 
-    return true;
+  /**
+   * An entry that records the annotations from match against the index of the
+   * term they apply to.
+   */
+  private static CssDeclarationCache.Entry makeValidEntry(
+      Name specializedName, Name propertyName, Candidate match,
+      List<CssTree.Term> terms) {
+    int n = terms.size();
+    IdentityHashMap<CssTree.Term, Integer> termIndices
+        = new IdentityHashMap<CssTree.Term, Integer>();
+    for (int i = 0; i < n; ++i) { termIndices.put(terms.get(i), i); }
+    Name[] parts = new Name[n];
+    CssPropertyPartType[] types = new CssPropertyPartType[n];
+    // Earlier matches take precedence, as when annotations are applied to the
+    // terms in reverse order.
+    for (Match m = match.match; null != m; m = m.prev) {
+      int i = termIndices.get(m.term);
+      parts[i] = m.propertyName;
+      types[i] = m.type;
+    }
+    return new CssDeclarationCache.Entry(
+        specializedName, propertyName, CssDeclarationCache.Outcome.VALID, -1,
+        parts, types);
   }
 
   /** User agent hacks' declarations must be valid. */
@@ -512,75 +615,64 @@ public final class CssValidator {
   }
 
   /**
-   * Applies the given signature to the given css expression, returning true if
-   * the expression fits.
+   * Applies the given signature to the given css expression.
    * @param propertyName the name of the css property that has sig as its
    *   signature.  Used to generate the {@link #CSS_PROPERTY_PART} attribute
    *   for the terms in expr.
    * @param expr the expression to apply to.  non null.
    * @param sig the signature that expr should match.
-   * @return true if sig applies to expr.  If true, then the terms in expr will
-   *   have their {@link #CSS_PROPERTY_PART} and {@link #CSS_PROPERTY_PART_TYPE}
-   *   attributes set.
+   * @return null if sig does not apply to expr, or the first candidate that
+   *   consumed all of expr.  Its matches are the {@link #CSS_PROPERTY_PART}
+   *   and {@link #CSS_PROPERTY_PART_TYPE} for the terms in expr.
    */
-  private boolean applySignature(
-      Name propertyName, CssTree.Expr expr, CssPropertySignature sig) {
-    SignatureResolver resolver = new SignatureResolver(expr, cssSchema);
+  private Candidate applySignature(
+      SignatureResolver resolver, Name propertyName, CssTree.Expr expr,
+      CssPropertySignature sig) {
     List<Candidate> matches = resolver.applySignature(
         Collections.singletonList(new Candidate(0, null, null)),
-        propertyName, sig);
+        matchers.compile(cssSchema, sig, propertyName));
 
     // Filter out matches that haven't consumed the entire expr
     int end = expr.children().size();
-    for (Iterator<Candidate> it = matches.iterator(); it.hasNext();) {
-      Candidate match = it.next();
-      if (match.exprIdx != end) { it.remove(); }
+    for (Candidate match : matches) {
+      if (match.exprIdx == end) { return match; }
     }
+    return null;
+  }
 
-    if (matches.isEmpty()) {
-      // Use the longest match attempted match to generate an error message
-      Candidate best = resolver.getBestAttempt();
-      int exprIdx = null != best ? best.exprIdx : 0;
-
-      StringBuilder buf = new StringBuilder();
-      TokenConsumer tc = new CssPrettyPrinter(new Concatenator(buf));
-      RenderContext rc = new RenderContext(tc);
-      boolean needsSpace = false;
-      int k = 0;
-      for (CssTree child : expr.children()) {
-        if (needsSpace) {
-          buf.append(' ');
-        }
-        int len = buf.length();
-        if (k++ == exprIdx) {
-          buf.append(" ==>");
-          child.render(rc);
-          tc.noMoreTokens();
-          buf.append("<== ");
-        } else {
-          child.render(rc);
-        }
-        needsSpace = (len < buf.length());
+  /**
+   * Reports that expr does not match the signature for propertyName, and
+   * marks it {@link #INVALID}.
+   * @param exprIdx the index of the child of expr that could not be matched.
+   */
+  private void reportMalformedValue(
+      Name propertyName, CssTree.Expr expr, int exprIdx) {
+    StringBuilder buf = new StringBuilder();
+    TokenConsumer tc = new CssPrettyPrinter(new Concatenator(buf));
+    RenderContext rc = new RenderContext(tc);
+    boolean needsSpace = false;
+    int k = 0;
+    for (CssTree child : expr.children()) {
+      if (needsSpace) {
+        buf.append(' ');
+      }
+      int len = buf.length();
+      if (k++ == exprIdx) {
+        buf.append(" ==>");
+        child.render(rc);
+        tc.noMoreTokens();
+        buf.append("<== ");
+      } else {
+        child.render(rc);
       }
-      mq.addMessage(
-          PluginMessageType.MALFORMED_CSS_PROPERTY_VALUE,
-          expr.getFilePosition(), propertyName,
-          MessagePart.Factory.valueOf(buf.toString().trim()));
-
-      expr.getAttributes().set(INVALID, Boolean.TRUE);
-      return false;
+      needsSpace = (len < buf.length());
     }
+    mq.addMessage(
+        PluginMessageType.MALFORMED_CSS_PROPERTY_VALUE,
+        expr.getFilePosition(), propertyName,
+        MessagePart.Factory.valueOf(buf.toString().trim()));
 
-    Candidate c = matches.get(0);
-    // Apply matches
-    for (Match m = c.match; null != m; m = m.prev) {
-      SyntheticAttributes attribs = m.term.getAttributes();
-      attribs.set(CSS_PROPERTY_PART_TYPE, m.type);
-      attribs.set(CSS_PROPERTY_PART, m.propertyName);
-    }
-    // Deliver warnings
-    if (null != c.warning) { c.warning.toMessageQueue(mq); }
-    return true;
+    expr.getAttributes().set(INVALID, Boolean.TRUE);
   }
 
   /**
@@ -621,14 +713,12 @@ public final class CssValidator {
     specialization("font", "font-family", "<loose-quotable-words>");
   }
 
-  private Name specializeProperty(CssTree.PropertyDeclaration p) {
-    Name propertyName = p.getProperty().getPropertyName();
-    CssTree.Expr expr = p.getExpr();
+  private Name specializeProperty(Name propertyName, CssTree.Expr expr) {
     for (Specialization s : SPECIALIZATIONS.get(propertyName)) {
       SignatureResolver r = new SignatureResolver(expr, cssSchema);
       List<Candidate> matches = r.applySignature(
           Collections.singletonList(new Candidate(0, null, null)),
-          propertyName, s.sig);
+          matchers.compile(cssSchema, s.sig, propertyName));
 
       int end = expr.children().size();
       int matchCount = 0;
@@ -726,83 +816,46 @@ final class SignatureResolver {
    * message if the application fails.
    */
   private Candidate best;
-  /** The css expression.  Non null. */
-  private final CssTree.Expr expr;
-  private final CssSchema cssSchema;
+  /** The terms and operators in the css expression.  Non null. */
+  private final List<? extends CssTree> children;
+  final CssSchema cssSchema;
 
   SignatureResolver(CssTree.Expr expr, CssSchema cssSchema) {
-    this.expr = expr;
+    this.children = expr.children();
     this.cssSchema = cssSchema;
   }
 
   Candidate getBestAttempt() { return best; }
 
+  CssTree getChild(int exprIdx) { return children.get(exprIdx); }
+
   /**
    * Given a list of candidates, apply the given signature and return any more
    * candidates.  The candidates may multiple when a signature can be applied
    * in multiple ways.
    * @param candidates the candidates to apply to the signature.
-   * @param propertyName the name of the property that we're applying this
-   *   signature for.  This will appear in {@link Match#propertyName} and
-   *   eventually in {@link CssValidator#CSS_PROPERTY_PART}.
    * @param sig the signature to apply expr to.  Non null.
    * @return the candidates that still match, some possibly modified in place.
    *   The output list may be larger or smaller than the input list.  An empty
    *   list indicates no possible matches.
    */
   List<Candidate> applySignature(
-      List<Candidate> candidates, Name propertyName,
-      CssPropertySignature sig) {
+      List<Candidate> candidates, CssSignatureMatcher sig) {
 
     List<Candidate> passed = new ArrayList<Candidate>();
 
     for (Candidate candidate : candidates) {
 
       // Have we reached the end of the input?
-      if (checkEnd(candidate, sig, passed)) {
+      if (isAtEnd(candidate)) {
+        // A repeating item that requires 0 still passes
+        if (sig.matchesEmpty()) { passed.add(candidate); }
         continue;
       }
 
       skipBlank(candidate);
 
-      // The exprIdx after sig has been processed.
-      if (sig instanceof CssPropertySignature.SetSignature) {
-        applySetSignature((CssPropertySignature.SetSignature) sig,
-                          candidate, propertyName, passed);
-      } else if (sig instanceof CssPropertySignature.SeriesSignature) {
-        applySeriesSignature((CssPropertySignature.SeriesSignature) sig,
-                             candidate, propertyName, passed);
-      } else if (sig instanceof CssPropertySignature.RepeatedSignature) {
-        applyRepeatedSignature(
-            (CssPropertySignature.RepeatedSignature) sig,
-            candidate, propertyName, passed);
-      } else if (sig instanceof CssPropertySignature.LiteralSignature) {
-        applyLiteralSignature(
-            (CssPropertySignature.LiteralSignature) sig,
-            candidate, propertyName, passed);
-      } else if (sig instanceof CssPropertySignature.QuotedLiteralSignature) {
-        applyQuotedLiteralSignature(
-            (CssPropertySignature.QuotedLiteralSignature) sig,
-            candidate, propertyName, passed);
-      } else if (sig instanceof CssPropertySignature.SymbolSignature) {
-        applySymbolSignature(
-            (CssPropertySignature.SymbolSignature) sig,
-            candidate, propertyName, passed);
-      } else if (sig instanceof CssPropertySignature.PropertyRefSignature) {
-        applyPropertyRefSignature(
-            (CssPropertySignature.PropertyRefSignature) sig,
-            candidate, propertyName, passed);
-      } else if (sig instanceof CssPropertySignature.CallSignature) {
-        applyCallSignature(
-            (CssPropertySignature.CallSignature) sig,
-            candidate, propertyName, passed);
-      } else if (sig instanceof CssPropertySignature.ProgIdSignature) {
-        applyProgIdSignature(
-            (CssPropertySignature.ProgIdSignature) sig,
-            candidate, propertyName, passed);
-      } else {
-        throw new AssertionError(sig.getClass().getName());
-      }
+      sig.apply(this, candidate, passed);
     }
     for (Candidate candidate : passed) {
       if (null == best || best.exprIdx < candidate.exprIdx) {
@@ -812,620 +865,18 @@ final class SignatureResolver {
     return passed;
   }
 
-  /**
-   * Makes sure that a candidate is on the passed list -- all succeeding rules
-   * will add the candidate except an optional rule that is satisfied because
-   * it successfully went through zero repetitions.
-   *
-   * @param passed modified in place.
-   * @return true if candidate is a complete solution to signature -- uses all
-   *    terms.
-   */
-  private boolean checkEnd(
-      Candidate candidate, CssPropertySignature sig, List<Candidate> passed) {
-    if (candidate.exprIdx == expr.children().size()) {
-      if (sig instanceof CssPropertySignature.RepeatedSignature
-          && 0 == ((CssPropertySignature.RepeatedSignature) sig).minCount) {
-        // A repeating item that requires 0 still passes
-        passed.add(candidate);
-      }
-      return true;
-    }
-    return false;
+  /** True if candidate is a complete solution -- uses all terms. */
+  boolean isAtEnd(Candidate candidate) {
+    return candidate.exprIdx == children.size();
   }
 
-  private void skipBlank(Candidate candidate) {
+  void skipBlank(Candidate candidate) {
     // Skip over any blank operators
-    CssTree child = expr.children().get(candidate.exprIdx);
+    CssTree child = children.get(candidate.exprIdx);
     if (child instanceof CssTree.Operation
         && (CssTree.Operator.NONE
             == ((CssTree.Operation) child).getOperator())) {
       ++candidate.exprIdx;
     }
   }
-
-  private void applySetSignature(
-      CssPropertySignature.SetSignature ssig,
-      Candidate candidate, Name propertyName, List<Candidate> passed) {
-    List<Candidate> toApply = Collections.singletonList(candidate);
-    for (CssPropertySignature setElement : ssig.children()) {
-      List<Candidate> elementsPassed = applySignature(
-          toApply, propertyName, setElement);
-      // lazy
-      if (!elementsPassed.isEmpty()) {
-        passed.addAll(elementsPassed);
-        break;
-      }
-    }
-  }
-
-  private void applyExclusiveSetSignature(
-      CssPropertySignature.ExclusiveSetSignature ssig,
-      Candidate candidate, Name propertyName,
-      BitSet used, List<Candidate> passed) {
-    List<Candidate> toApply = Collections.singletonList(candidate);
-    int k = -1;
-    for (CssPropertySignature setElement : ssig.children()) {
-      if (used.get(++k)) { continue; }
-      List<Candidate> elementsPassed = applySignature(
-          toApply, propertyName, setElement);
-      // lazy
-      if (!elementsPassed.isEmpty()) {
-        passed.addAll(elementsPassed);
-        used.set(k);
-        break;
-      }
-    }
-  }
-
-  private void applySeriesSignature(
-      CssPropertySignature.SeriesSignature ssig,
-      Candidate candidate, Name propertyName,
-      List<Candidate> passed) {
-    List<Candidate> toApply = Collections.singletonList(candidate);
-    for (CssPropertySignature seriesElement : ssig.children()) {
-      toApply = applySignature(toApply, propertyName, seriesElement);
-      if (toApply.isEmpty()) { break; }
-    }
-    passed.addAll(toApply);
-  }
-
-  private void applyRepeatedSignature(
-      CssPropertySignature.RepeatedSignature rsig,
-      Candidate candidate, Name propertyName, List<Candidate> passed) {
-
-    /**
-     * The maximum branching factor for a repetition.  This is the
-     * greatest number of contiguous ambiguous elements we might encounter
-     * as in <code>{ font: inherit inherit inherit inherit }</code>.
-     * <p>
-     * TODO(mikesamuel): this is currently 5 instead of 4 because it also limits
-     * the number of font names that can appear in a comma separated list.
-     * Rework our backtracking so we can handle long font lists.
-     */
-    final int MAX_BRANCHING_FACTOR = 5;
-
-    List<Candidate> toApply = Collections.singletonList(candidate);
-    int k = 0;
-    for (; k < rsig.minCount; ++k) {
-      toApply = applySignature(
-          toApply, propertyName, rsig.getRepeatedSignature());
-      if (toApply.isEmpty()) { break; }
-    }
-    if (!toApply.isEmpty()) {
-      CssPropertySignature repeated = rsig.getRepeatedSignature();
-      BitSet used = null;
-      if (repeated instanceof CssPropertySignature.ExclusiveSetSignature) {
-        used = new BitSet(repeated.children().size());
-      }
-
-      toApply = new ArrayList<Candidate>(toApply);
-      for (; k < rsig.maxCount; ++k) {
-        if (k < MAX_BRANCHING_FACTOR) {
-          // Try not following the extra repetitions
-          passed.addAll(toApply);
-          for (int i = toApply.size(); --i >= 0;) {
-            toApply.set(i, toApply.get(i).clone());
-          }
-        } else {
-          // greedy
-        }
-        if (null == used) {
-          toApply = applySignature(toApply, propertyName, repeated);
-        } else {
-          // Special handling for || groups
-          List<Candidate> passedSet = new ArrayList<Candidate>();
-          for (Candidate setCandidate : toApply) {
-            if (setCandidate.exprIdx == expr.children().size()) {
-              passed.add(setCandidate);
-              continue;
-            }
-
-            skipBlank(setCandidate);
-
-            applyExclusiveSetSignature(
-                (CssPropertySignature.ExclusiveSetSignature) repeated,
-                setCandidate, propertyName, used, passedSet);
-          }
-          toApply = passedSet;
-        }
-        if (toApply.isEmpty()) { break; }
-      }
-      passed.addAll(toApply);
-    }
-  }
-
-  private void applyLiteralSignature(
-      CssPropertySignature.LiteralSignature literal,
-      Candidate candidate, Name propertyName, List<Candidate> passed) {
-
-    if (0 == (candidate.exprIdx & 1)) {  // a term
-      CssTree.Term term = (CssTree.Term) expr.children().get(candidate.exprIdx);
-      CssTree.CssExprAtom atom = term.getExprAtom();
-      if (null == term.getOperator()) {
-        boolean match;
-        if (atom instanceof CssTree.IdentLiteral) {
-          match = Strings.equalsIgnoreCase(
-              literal.value, ((CssTree.IdentLiteral) atom).getValue());
-        } else if (atom instanceof CssTree.QuantityLiteral) {
-          match = literal.value.equals(atom.getValue());
-        } else {
-          match = false;
-        }
-        if (match) {
-          candidate.match(term, CssPropertyPartType.IDENT, propertyName);
-          ++candidate.exprIdx;
-          passed.add(candidate);
-        }
-      }
-    } else {  // A punctuation mark
-      CssTree.Operation op =
-          (CssTree.Operation) expr.children().get(candidate.exprIdx);
-      if (op.getOperator().getSymbol().equals(literal.getValue())) {
-        ++candidate.exprIdx;
-        passed.add(candidate);
-      }
-    }
-  }
-
-  private void applyQuotedLiteralSignature(
-      CssPropertySignature.QuotedLiteralSignature lit,
-      Candidate candidate, Name propertyName, List<Candidate> passed) {
-    if (0 == (candidate.exprIdx & 1)) {  // a term
-      CssTree.Term term = (CssTree.Term) expr.children().get(candidate.exprIdx);
-      CssTree.CssExprAtom atom = term.getExprAtom();
-      if (null == term.getOperator()) {
-        if (atom instanceof CssTree.StringLiteral
-            && lit.value.equals(((CssTree.StringLiteral) atom).getValue())) {
-          candidate.match(term, CssPropertyPartType.STRING, propertyName);
-          ++candidate.exprIdx;
-          passed.add(candidate);
-        }
-      }
-    }
-  }
-
-  private void applySymbolSignature(
-      CssPropertySignature.SymbolSignature ssig,
-      Candidate candidate, Name propertyName, List<Candidate> passed) {
-
-    CssSchema.SymbolInfo symbolInfo = cssSchema.getSymbol(ssig.symbolName);
-    if (null != symbolInfo) {
-      if (false) {
-        System.err.println(
-            "symbol " + symbolInfo.name + " from " + propertyName + "\n"
-            + dump(symbolInfo.sig));
-      }
-      passed.addAll(applySignature(
-                        Collections.singletonList(candidate),
-                        Name.css(propertyName + "::" + symbolInfo.name),
-                        symbolInfo.sig));
-    } else if (symbolMatch(candidate, propertyName, ssig)) {
-      passed.add(candidate);
-    }
-  }
-
-  private void applyPropertyRefSignature(
-      CssPropertySignature.PropertyRefSignature ssig,
-      Candidate candidate, Name propertyName, List<Candidate> passed) {
-
-    CssSchema.CssPropertyInfo info = cssSchema.getCssProperty(
-        ssig.getPropertyName());
-    if (null == info) {
-      throw new AssertionError(
-          "Unknown property in css property signature: " + propertyName);
-    }
-    check(info.sig);
-    passed.addAll(applySignature(Collections.singletonList(candidate),
-                                 info.name, info.sig));
-  }
-
-  private void applyCallSignature(
-      CssPropertySignature.CallSignature call,
-      Candidate candidate, Name propertyName, List<Candidate> passed) {
-
-    if (0 == (candidate.exprIdx & 1)) {  // a term
-      CssTree.Term term = (CssTree.Term) expr.children().get(candidate.exprIdx);
-      CssTree.CssExprAtom atom = term.getExprAtom();
-      if (null == term.getOperator()
-          && atom instanceof CssTree.FunctionCall) {
-        CssTree.FunctionCall fn = (CssTree.FunctionCall) atom;
-        if (fn.getName().getCanonicalForm().equals(
-                call.children().get(0).getValue())) {
-          CssPropertySignature formals = call.children().get(1);
-          CssTree.Expr actuals = fn.getArguments();
-          if (false) {
-            System.err.println("formals=\n" + dump(formals) +
-                               "\nactuals=\n" + dump(actuals));
-          }
-          Candidate inFnSpace = new Candidate(
-              0, candidate.match, candidate.warning);
-          for (Candidate resultInFnSpace :
-               new SignatureResolver(actuals, cssSchema).applySignature(
-                   Collections.singletonList(inFnSpace), propertyName,
-                   formals)) {
-            passed.add(new Candidate(
-                           candidate.exprIdx + 1, resultInFnSpace.match,
-                           resultInFnSpace.warning));
-          }
-        }
-      }
-    }
-  }
-
-  private void applyProgIdSignature(
-      CssPropertySignature.ProgIdSignature progIdSig,
-      Candidate candidate, Name propertyName, List<Candidate> passed) {
-
-    if (0 == (candidate.exprIdx & 1)) {  // a term
-      CssTree.Term term = (CssTree.Term) expr.children().get(candidate.exprIdx);
-      CssTree.CssExprAtom atom = term.getExprAtom();
-      if (null == term.getOperator() && atom instanceof CssTree.ProgId) {
-        CssTree.ProgId progId = (CssTree.ProgId) atom;
-        if (progIdSig.getName().equals(progId.getName())) {
-          Match match = candidate.match;
-          MessageSList warning = candidate.warning;
-          for (CssTree.ProgIdAttribute attr : progId.children()) {
-            CssPropertySignature.ProgIdAttrSignature attrSig
-                = progIdSig.getProgIdAttr(attr.getName());
-            if (attrSig == null) { return; }
-            Candidate inAttrSpace = new Candidate(0, match, warning);
-            CssTree.Term value = attr.getPropertyValue();
-            CssTree.Expr valueExpr = new CssTree.Expr(
-                value.getFilePosition(), Collections.singletonList(value));
-            SignatureResolver sr = new SignatureResolver(valueExpr, cssSchema);
-            List<Candidate> resultInAttrSpaces = sr.applySignature(
-                Collections.singletonList(inAttrSpace), propertyName,
-                attrSig.getValueSig());
-            boolean matched = false;
-            for (Candidate c : resultInAttrSpaces) {
-              if (c.exprIdx == 1) {
-                match = c.match;
-                warning = c.warning;
-                matched = true;
-                break;
-              }
-            }
-            if (!matched) { return; }
-          }
-          passed.add(new Candidate(candidate.exprIdx + 1, match, warning));
-        }
-      }
-    }
-  }
-
-  /**
-   * http://www.w3.org/TR/CSS21/syndata.html#q15
-   * http://www.w3.org/TR/REC-CSS2/syndata.html#value-def-number
-   * This syntax disallows a decimal point without any digits following, as
-   * per the spec.
-   */
-  private static final String REAL_NUMBER_RE = "(?:\\d+(?:\\.\\d+)?|\\.\\d+)";
-  /**
-   * According to http://www.w3.org/TR/CSS21/syndata.html#length-units.
-   * Units are frequently left off length values, in which case all existing
-   * browsers assume pixels, so the units below are treated as optional even
-   * though, strictly, units can only be omitted from the value 0.
-   */
-  private static final Pattern LENGTH_RE = Pattern.compile(
-      "^(?:" + REAL_NUMBER_RE + "(?:in|cm|mm|pt|pc|em|ex|px)?)$",
-      Pattern.CASE_INSENSITIVE);
-  /** http://www.w3.org/TR/REC-CSS2/syndata.html#value-def-number */
-  private static final Pattern NUMBER_RE = Pattern.compile(
-      "^" + REAL_NUMBER_RE + "$");
-  /** http://www.w3.org/TR/REC-CSS2/syndata.html#value-def-integer */
-  private static final Pattern INTEGER_RE = Pattern.compile("^\\d+$");
-  /** http://www.w3.org/TR/CSS21/syndata.html#percentage-units */
-  private static final Pattern PERCENTAGE_RE = Pattern.compile(
-      "^" + REAL_NUMBER_RE + "%$");
-  /** http://www.w3.org/TR/CSS21/aural.html#value-def-specific-voice */
-  private static final Pattern SPECIFIC_VOICE_RE = Pattern.compile(
-      "^\\s*(?:[\\w\\-]+(?:\\s+[\\w\\-]+)*)\\s*$", Pattern.CASE_INSENSITIVE);
-  /** http://www.w3.org/TR/CSS21/aural.html#value-def-angle */
-  private static final Pattern ANGLE_RE = Pattern.compile(
-      "^(?:" + REAL_NUMBER_RE + "(?:deg|grad|rad)|0+)$",
-      Pattern.CASE_INSENSITIVE);
-  /** http://www.w3.org/TR/CSS21/aural.html#value-def-time */
-  private static final Pattern TIME_RE = Pattern.compile(
-      "^(?:" + REAL_NUMBER_RE + "(?:ms|s)|0+)$", Pattern.CASE_INSENSITIVE);
-  /** http://www.w3.org/TR/CSS21/aural.html#value-def-frequency */
-  private static final Pattern FREQUENCY_RE = Pattern.compile(
-      "^(?:" + REAL_NUMBER_RE + "(?:hz|kHz)|0+)$",
-      Pattern.CASE_INSENSITIVE);
-
-  // Suffixes for substitutions.  A substitution like ${x * 4}em can only be
-  // a length.  Substitutions without a suffix can only be of certain kinds
-  private static final Pattern LENGTH_SUFFIX_RE = Pattern.compile(
-      "\\}(?:in|cm|mm|pt|pc|em|ex|px)?$", Pattern.CASE_INSENSITIVE);
-  private static final Pattern PERCENTAGE_SUFFIX_RE = Pattern.compile("\\}%$");
-  private static final Pattern NUMBER_SUFFIX_RE = Pattern.compile("\\}$");
-  private static final Pattern COLOR_SUFFIX_RE = NUMBER_SUFFIX_RE;
-  private static final Pattern ANGLE_SUFFIX_RE = Pattern.compile(
-      "\\}(?:deg|grad|rad)$", Pattern.CASE_INSENSITIVE);
-  private static final Pattern TIME_SUFFIX_RE = Pattern.compile(
-      "\\}(?:ms|s)$", Pattern.CASE_INSENSITIVE);
-  private static final Pattern FREQUENCY_SUFFIX_RE = Pattern.compile(
-      "\\}(?:hz|kHz)$", Pattern.CASE_INSENSITIVE);
-  private static final Pattern URI_SUFFIX_RE = Pattern.compile(
-      "\\}(?:uri)?$", Pattern.CASE_INSENSITIVE);
-
-  /**
-   * Handles symbols for which we don't have a signature.  Anything not handled
-   * by {@link CssSchema#getSymbol}.
-   */
-  private boolean symbolMatch(
-      Candidate candidate, Name propertyName,
-      CssPropertySignature.SymbolSignature sig) {
-    if (0 != (candidate.exprIdx & 1)) { return false; }  // not a term
-    CssTree.Term term = (CssTree.Term) expr.children().get(candidate.exprIdx);
-    CssTree.CssExprAtom atom = term.getExprAtom();
-
-    if (false) {
-      System.err.println(
-          "symbol " + sig.symbolName + " : matching " + propertyName + "\n"
-          + dump(sig) + "\nagainst exprIdx=" + candidate.exprIdx + "\n"
-          + dump(atom));
-    }
-
-    // If this is supposed to be a positive identifier, then disallow the
-    // negation unary operator.
-    // Positive is a bit of a misnomer since this really means non-negative.
-    String symbolName = sig.symbolName.getCanonicalForm();
-    String constraints = null;
-    // Check for any constraints
-    {
-      int colon = symbolName.indexOf(":");
-      if (colon >= 0) {
-        constraints = symbolName.substring(colon + 1);
-        symbolName = symbolName.substring(0, colon);
-      }
-    }
-
-    Object atomValue = atom.getValue();
-    String atomSValue = atomValue instanceof String ? (String) atomValue : "";
-
-    // Operators such as negation cannot be applied to substitutions.
-    // The substitution itself should return a negative value.
-    if (atom instanceof CssTree.Substitution && term.getOperator() != null) {
-      return false;
-    }
-
-    // Try each symbol type we know how to handle
-    if ("length".equals(symbolName)) {
-      if (!(atom instanceof CssTree.QuantityLiteral &&
-            LENGTH_RE.matcher(atomSValue).matches()) &&
-          !(atom instanceof CssTree.Substitution &&
-            LENGTH_SUFFIX_RE.matcher(atomSValue).find())) {
-        return false;
-      }
-      candidate.match(term, CssPropertyPartType.LENGTH, propertyName);
-      ++candidate.exprIdx;
-    } else if ("number".equals(symbolName)) {
-      if (!(atom instanceof CssTree.QuantityLiteral &&
-            NUMBER_RE.matcher(atomSValue).matches()) &&
-            !(atom instanceof CssTree.Substitution &&
-                NUMBER_SUFFIX_RE.matcher(atomSValue).find())) {
-        return false;
-      }
-      candidate.match(term, CssPropertyPartType.NUMBER, propertyName);
-      ++candidate.exprIdx;
-    } else if ("integer".equals(symbolName)) {
-      if (!(atom instanceof CssTree.QuantityLiteral &&
-            INTEGER_RE.matcher(atomSValue).matches()) &&
-          !(atom instanceof CssTree.Substitution &&
-            NUMBER_SUFFIX_RE.matcher(atomSValue).find())) {
-        return false;
-      }
-      candidate.match(term, CssPropertyPartType.INTEGER, propertyName);
-      ++candidate.exprIdx;
-    } else if ("percentage".equals(symbolName)) {
-      if (!(atom instanceof CssTree.QuantityLiteral
-            && PERCENTAGE_RE.matcher(atomSValue).matches()) &&
-          !(atom instanceof CssTree.Substitution &&
-            PERCENTAGE_SUFFIX_RE.matcher(atomSValue).find())) {
-        return false;
-      }
-      candidate.match(term, CssPropertyPartType.PERCENTAGE, propertyName);
-      ++candidate.exprIdx;
-    } else if ("unreserved-word".equals(symbolName)) {
-      if (null != term.getOperator()) { return false; }
-      String name;
-      if (atom instanceof CssTree.IdentLiteral) {
-        name = ((CssTree.IdentLiteral) atom).getValue();
-        if (cssSchema.isKeyword(Name.css(name))) { return false; }
-      } else {
-        return false;
-      }
-      candidate.match(term, CssPropertyPartType.LOOSE_WORD, propertyName);
-      ++candidate.exprIdx;
-    } else if ("quotable-word".equals(symbolName)) {
-      if (!(null == term.getOperator()
-            && atom instanceof CssTree.IdentLiteral)) {
-        return false;
-      }
-      candidate.match(term, CssPropertyPartType.LOOSE_WORD, propertyName);
-      ++candidate.exprIdx;
-    } else if ("hex-color".equals(symbolName)) {
-      if (atom instanceof CssTree.HashLiteral) {
-        // Require 3 or 6 hex digits
-        String hex = ((CssTree.HashLiteral) atom).getValue();
-        if (hex.length() != 4 && hex.length() != 7) { return false; }
-        candidate.match(term, CssPropertyPartType.COLOR, propertyName);
-        ++candidate.exprIdx;
-      } else if (atom instanceof CssTree.Substitution) {
-        if (!COLOR_SUFFIX_RE.matcher(atomSValue).find()) {
-          return false;
-        }
-        candidate.match(term, CssPropertyPartType.COLOR, propertyName);
-        ++candidate.exprIdx;
-      } else {
-        return false;
-      }
-    } else if ("angle".equals(symbolName)) {
-      if (!(atom instanceof CssTree.QuantityLiteral &&
-            ANGLE_RE.matcher(atomSValue).matches()) &&
-          !(atom instanceof CssTree.Substitution &&
-            ANGLE_SUFFIX_RE.matcher(atomSValue).find())) {
-        return false;
-      }
-      candidate.match(term, CssPropertyPartType.ANGLE, propertyName);
-      ++candidate.exprIdx;
-    } else if ("time".equals(symbolName)) {
-      if (!(atom instanceof CssTree.QuantityLiteral &&
-            null == term.getOperator() &&
-            TIME_RE.matcher(atomSValue).matches()) &&
-          !(atom instanceof CssTree.Substitution &&
-            TIME_SUFFIX_RE.matcher(atomSValue).find())) {
-        return false;
-      }
-      candidate.match(term, CssPropertyPartType.TIME, propertyName);
-      ++candidate.exprIdx;
-    } else if ("frequency".equals(symbolName)) {
-      if (!(atom instanceof CssTree.QuantityLiteral &&
-            null == term.getOperator() &&
-            FREQUENCY_RE.matcher(
-                ((CssTree.QuantityLiteral) atom).getValue()).matches()) &&
-          !(atom instanceof CssTree.Substitution &&
-            FREQUENCY_SUFFIX_RE.matcher(atomSValue).find())) {
-        return false;
-      }
-      candidate.match(term, CssPropertyPartType.FREQUENCY, propertyName);
-      ++candidate.exprIdx;
-    } else if ("specific-voice".equals(symbolName)) {
-      if (null != term.getOperator()) { return false; }
-      String name;
-      if (atom instanceof CssTree.IdentLiteral) {
-        name = ((CssTree.IdentLiteral) atom).getValue();
-        if (cssSchema.isKeyword(Name.css(name))) { return false; }
-      } else if (atom instanceof CssTree.StringLiteral) {
-        name = ((CssTree.StringLiteral) atom).getValue();
-      } else {
-        return false;
-      }
-      if (!SPECIFIC_VOICE_RE.matcher(name).matches()) { return false; }
-      candidate.match(term, CssPropertyPartType.SPECIFIC_VOICE, propertyName);
-      ++candidate.exprIdx;
-    } else if ("uri".equals(symbolName)) {
-      if (null != term.getOperator()) { return false; }
-      if (!(atom instanceof CssTree.UriLiteral
-            // This may not be per spec, but it is safest to interpret strings
-            // as URIs, since many user-agents seem to do this, and we want to
-            // apply constraints to URIs.
-            || atom instanceof CssTree.StringLiteral
-            // Uri substitutions can be fixed at runtime
-            || (atom instanceof CssTree.Substitution &&
-                URI_SUFFIX_RE.matcher(atomSValue).find()))) {
-        return false;
-      }
-      candidate.match(term, CssPropertyPartType.URI, propertyName);
-      ++candidate.exprIdx;
-    } else if ("string".equals(symbolName)) {
-      if (!(null == term.getOperator()
-            && atom instanceof CssTree.StringLiteral)) {
-        return false;
-      }
-      candidate.match(term, CssPropertyPartType.STRING, propertyName);
-      ++candidate.exprIdx;
-    } else if ("identifier".equals(symbolName)) {
-      if (!(null == term.getOperator()
-            && atom instanceof CssTree.IdentLiteral)) {
-        return false;
-      }
-      candidate.match(term, CssPropertyPartType.IDENT, propertyName);
-      ++candidate.exprIdx;
-    } else {
-      throw new AssertionError(
-          "unhandled symbol " + sig.symbolName + "\n" + dump(atom));
-    }
-
-    if (null != constraints
-        // Violations of these constraints are not security problems though,
-        // so we do not try to enforce them on the client for dynamic content.
-        && !(atom instanceof CssTree.Substitution)) {
-      int comma = constraints.indexOf(",");
-      double min = Double.parseDouble(constraints.substring(0, comma)),
-             max = comma + 1 == constraints.length()
-                 ? Double.POSITIVE_INFINITY
-                 : Double.parseDouble(constraints.substring(comma + 1));
-      String valueStr = ((CssTree.QuantityLiteral) atom).getValue();
-      int numEnd = 0;
-      for (char ch; numEnd < valueStr.length()
-           && (((ch = valueStr.charAt(numEnd)) >= '0' && ch <= '9')
-               || ch == '.');) {
-        ++numEnd;
-      }
-      double value = Double.parseDouble(valueStr.substring(0, numEnd));
-      if (CssTree.UnaryOperator.NEGATION == term.getOperator()) { value *= -1; }
-      if (false) {
-        System.err.println("min=" + min + ", max=" + max + ", value=" + value
-                           + ", valueStr=" + valueStr + ", op="
-                           + term.getOperator());
-      }
-      if (value < min || value > max) {
-        candidate.warn(PluginMessageType.CSS_VALUE_OUT_OF_RANGE,
-                       term.getFilePosition(), propertyName,
-                       MessagePart.Factory.valueOf(value),
-                       MessagePart.Factory.valueOf(min),
-                       MessagePart.Factory.valueOf(max));
-        // If this were a validation failure, it might cause us to improperly
-        // match another rule later, so issue a warning instead.
-      }
-    }
-
-    return true;
-  }
-
-  private static final SyntheticAttributeKey<Integer> NUM =  // HACK: debug
-      new SyntheticAttributeKey<Integer>(Integer.class, "serialno");
-
-  /** debugging */
-  private static int serialno = 0;
-  /** debugging */
-  private static void check(ParseTreeNode node) {
-    if (true) { return; }
-    if (!node.getAttributes().containsKey(NUM)) {
-      node.acceptPreOrder(new Visitor() {
-          public boolean visit(AncestorChain<?> ancestors) {
-            ParseTreeNode n = ancestors.node;
-            n.getAttributes().set(NUM, Integer.valueOf(serialno++));
-            return true;
-          }
-        }, null);
-    }
-  }
-
-  /** debugging */
-  private static String dump(ParseTreeNode node) {
-    check(node);
-    StringBuilder sb = new StringBuilder();
-    MessageContext mc = new MessageContext();
-    mc.relevantKeys
-        = Collections.<SyntheticAttributeKey<Integer>>singleton(NUM);
-    try {
-      node.formatTree(mc, 2, sb);
-    } catch (java.io.IOException ex) {
-      ex.printStackTrace();
-    }
-    return sb.toString();
-  }
 }
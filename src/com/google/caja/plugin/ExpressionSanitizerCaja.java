@@ -46,15 +46,16 @@ public class ExpressionSanitizerCaja {
     MutableParseTreeNode input = (MutableParseTreeNode) toSanitize.node;
     ParseTreeNode result;
     if (this.meta.isValijaMode()) {
-      result = newValijaRewriter(this.mq).expand(input);
+      result = profiled(newValijaRewriter(this.mq)).expand(input);
       if (!this.mq.hasMessageAtLevel(MessageLevel.ERROR)) {
-        result = newCajitaRewriter(this.mq).expand(result);
+        result = profiled(newCajitaRewriter(this.mq)).expand(result);
       }
     } else {
-      result = newCajitaRewriter(this.mq).expand(input);
+      result = profiled(newCajitaRewriter(this.mq)).expand(input);
     }
     if (!this.mq.hasMessageAtLevel(MessageLevel.ERROR)) {
-      result = new IllegalReferenceCheckRewriter(this.mq, false).expand(result);
+      result = profiled(new IllegalReferenceCheckRewriter(this.mq, false))
+          .expand(result);
       if (!this.mq.hasMessageAtLevel(MessageLevel.ERROR)) {
         result.acceptPreOrder(new NonAsciiCheckVisitor(mq), null);
       }
@@ -62,6 +63,11 @@ public class ExpressionSanitizerCaja {
     return result;
   }
 
+  private Rewriter profiled(Rewriter rw) {
+    rw.setProfile(meta.getRuleProfile());
+    return rw;
+  }
+
   /** Visible for testing. */
   protected Rewriter newCajitaRewriter(MessageQueue mq) {
     return new CajitaRewriter(buildInfo, mq, false);
@@ -19,9 +19,7 @@ import com.google.caja.lexer.ExternalReference;
 import com.google.caja.lexer.InputSource;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.Reader;
 import java.net.URI;
 import java.net.URISyntaxException;
 
@@ -40,9 +38,7 @@ public abstract class FileSystemEnvironment implements PluginEnvironment {
     File f = toFileUnderSameDirectory(ref.getUri());
     if (f == null) { return null; }
     try {
-      return CharProducer.Factory.create(
-          newReader(f),
-          new InputSource(f.toURI()));
+      return newCharProducer(f);
     } catch (IOException ex) {
       return null;
     }
@@ -77,7 +73,11 @@ public abstract class FileSystemEnvironment implements PluginEnvironment {
     return null;
   }
 
-  protected abstract Reader newReader(File f) throws FileNotFoundException;
+  /** Reads the given file, which is under the base directory. */
+  protected CharProducer newCharProducer(File f) throws IOException {
+    return CharProducer.Factory.fromFile(
+        f, "UTF-8", new InputSource(f.toURI()));
+  }
 
   private File toFileUnderSameDirectory(URI uri) {
     if (uri.isOpaque()) {
@@ -21,6 +21,7 @@ import com.google.caja.reporting.MessageQueue;
 import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * A group of parse trees.  Rewriting starts with one or more input parse trees,
@@ -34,6 +35,7 @@ public class Jobs {
   private final MessageQueue mq;
   private final PluginMeta meta;
   private final List<Job> jobs = new ArrayList<Job>();
+  private Executor executor;
 
   public Jobs(MessageContext mc, MessageQueue mq, PluginMeta meta) {
     if (mc == null) { throw new NullPointerException(); }
@@ -51,6 +53,15 @@ public class Jobs {
   public MessageQueue getMessageQueue() { return mq; }
 
   public PluginMeta getPluginMeta() { return meta; }
+
+  /**
+   * Runs the independent per-job work of stages such as
+   * {@link com.google.caja.plugin.stages.PerJobStage}, or null if jobs are
+   * processed one at a time on the calling thread.
+   */
+  public Executor getExecutor() { return executor; }
+
+  public void setExecutor(Executor executor) { this.executor = executor; }
   
   /** May be mutated in place. */
   public List<Job> getJobs() { return jobs; }
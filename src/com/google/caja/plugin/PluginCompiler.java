@@ -41,6 +41,7 @@ import com.google.caja.util.Pipeline;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import org.w3c.dom.Node;
 
@@ -51,24 +52,33 @@ import org.w3c.dom.Node;
  * @author mikesamuel@gmail.com (Mike Samuel)
  */
 public final class PluginCompiler {
-  private final BuildInfo buildInfo;
+  private CompilerContext context;
   private final Jobs jobs;
   /**
    * A configurable pipeline that performs the compilation of HTML, CSS, and JS
    * to CSS and JS.
    */
   private Pipeline<Jobs> compilationPipeline;
-  private CssSchema cssSchema;
-  private HtmlSchema htmlSchema;
 
   public PluginCompiler(BuildInfo buildInfo, PluginMeta meta, MessageQueue mq) {
-    this.buildInfo = buildInfo;
+    this(CompilerContext.getDefault(buildInfo, mq), meta, mq);
+  }
+
+  /**
+   * @param context configuration that may be shared with other compilers.
+   * @param meta per-compilation state that must not be shared with other
+   *     compilers running concurrently.
+   * @param mq receives messages about this compilation.
+   */
+  public PluginCompiler(
+      CompilerContext context, PluginMeta meta, MessageQueue mq) {
+    this.context = context;
     MessageContext mc = new MessageContext();
     jobs = new Jobs(mc, mq, meta);
-    cssSchema = CssSchema.getDefaultCss21Schema(mq);
-    htmlSchema = HtmlSchema.getDefault(mq);
   }
 
+  public CompilerContext getCompilerContext() { return context; }
+
   public MessageQueue getMessageQueue() { return jobs.getMessageQueue(); }
 
   public MessageContext getMessageContext() { return jobs.getMessageContext(); }
@@ -82,13 +92,25 @@ public final class PluginCompiler {
 
   public Jobs getJobs() { return jobs; }
 
+  /**
+   * Sets the executor used to process independent jobs, such as separate
+   * style-sheets, concurrently, or null to process them one at a time on the
+   * thread that calls {@link #run}.
+   * When an executor is set, the plugin environment must be thread-safe.
+   * The executor must not be one that runs compilations, lest every one of
+   * its threads wait on jobs queued behind them.
+   */
+  public void setJobExecutor(Executor executor) {
+    jobs.setExecutor(executor);
+  }
+
   public void setCssSchema(CssSchema cssSchema) {
-    this.cssSchema = cssSchema;
+    this.context = context.withCssSchema(cssSchema);
     this.compilationPipeline = null;
   }
 
   public void setHtmlSchema(HtmlSchema htmlSchema) {
-    this.htmlSchema = htmlSchema;
+    this.context = context.withHtmlSchema(htmlSchema);
     this.compilationPipeline = null;
   }
 
@@ -123,6 +145,8 @@ public final class PluginCompiler {
       }
     };
 
+    CssSchema cssSchema = context.getCssSchema();
+    HtmlSchema htmlSchema = context.getHtmlSchema();
     List<Pipeline.Stage<Jobs>> stages = compilationPipeline.getStages();
     stages.add(new RewriteHtmlStage());
     stages.add(new InlineCssImportsStage());
@@ -132,7 +156,7 @@ public final class PluginCompiler {
     stages.add(new CompileHtmlStage(cssSchema, htmlSchema));
     stages.add(new OpenTemplateStage());
     stages.add(new ConsolidateCodeStage());
-    stages.add(new ValidateJavascriptStage(buildInfo));
+    stages.add(new ValidateJavascriptStage(context.getBuildInfo()));
     stages.add(new InferFilePositionsStage());
     stages.add(new DebuggingSymbolsStage());
     stages.add(new CheckForErrorsStage());
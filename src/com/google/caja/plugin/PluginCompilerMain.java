@@ -40,7 +40,6 @@ import com.google.caja.reporting.RenderContext;
 import com.google.caja.reporting.SimpleMessageQueue;
 import com.google.caja.reporting.BuildInfo;
 import com.google.caja.util.Callback;
-import com.google.caja.util.CapturingReader;
 import com.google.caja.render.Concatenator;
 import com.google.caja.render.JsMinimalPrinter;
 import com.google.caja.render.SourceSnippetRenderer;
@@ -48,15 +47,11 @@ import com.google.caja.render.SourceSnippetRenderer;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
-import java.io.Reader;
-import java.io.FileNotFoundException;
-import java.io.FileInputStream;
-import java.io.UnsupportedEncodingException;
 import java.net.URI;
+import java.nio.CharBuffer;
 import java.util.Collection;
 import java.util.Map;
 import java.util.HashMap;
@@ -71,8 +66,8 @@ import org.w3c.dom.Node;
 public final class PluginCompilerMain {
   private final MessageQueue mq;
   private final MessageContext mc;
-  private final Map<InputSource, CapturingReader> originalInputs
-      = new HashMap<InputSource, CapturingReader>();
+  private final Map<InputSource, CharSequence> originalInputs
+      = new HashMap<InputSource, CharSequence>();
   private final Config config = new Config(
       getClass(), System.err,
       "Cajoles HTML, CSS, and JS files to JS.");
@@ -87,8 +82,10 @@ public final class PluginCompilerMain {
     public CachingEnvironment(File f) { super(f); }
 
     @Override
-    protected Reader newReader(File f) throws FileNotFoundException {
-      return createReader(new InputSource(f), new FileInputStream(f));
+    protected CharProducer newCharProducer(File f) throws IOException {
+      CharProducer cp = super.newCharProducer(f);
+      captureInput(cp.getCurrentPosition().source(), cp);
+      return cp;
     }
   }
 
@@ -172,11 +169,26 @@ public final class PluginCompilerMain {
     InputSource is = new InputSource(input);
     mc.addInputSource(is);
 
-    CharProducer cp = CharProducer.Factory.create(
-        createReader(is, input.toURL().openStream()), is);
+    CharProducer cp;
+    if ("file".equals(input.getScheme())) {
+      cp = CharProducer.Factory.fromFile(new File(input), "UTF-8", is);
+    } else {
+      cp = CharProducer.Factory.create(
+          new InputStreamReader(input.toURL().openStream(), "UTF-8"), is);
+    }
+    captureInput(is, cp);
     return parseInput(is, cp, mq);
   }
 
+  /** Keeps the text of inputs for renderers that show the original source. */
+  private void captureInput(InputSource is, CharProducer cp) {
+    if (config.renderer() == Config.SourceRenderMode.SIDEBYSIDE ||
+        config.renderer() == Config.SourceRenderMode.DEBUGGER) {
+      originalInputs.put(
+          is, CharBuffer.wrap(cp.getBuffer(), 0, cp.getLimit()));
+    }
+  }
+
   /** Classify an input by extension and use the appropriate parser. */
   static ParseTreeNode parseInput(
       InputSource is, CharProducer cp, MessageQueue mq)
@@ -262,7 +274,7 @@ public final class PluginCompilerMain {
         break;
       case SIDEBYSIDE:
         tc = new SourceSnippetRenderer(
-            buildOriginalInputCharSequences(), mc, out, exHandler);
+            originalInputs, mc, out, exHandler);
         break;
       default:
         throw new AssertionError(
@@ -278,7 +290,7 @@ public final class PluginCompilerMain {
   private void writeFileWithDebug(Writer out, CajoledModule module)
       throws IOException {
     module.renderWithDebugSymbols(
-        buildOriginalInputCharSequences(), out, exHandler);
+        originalInputs, out, exHandler);
   }
 
   /**
@@ -324,35 +336,6 @@ public final class PluginCompilerMain {
     }
   }
 
-  private Reader createReader(InputSource is, InputStream stream) {
-    InputStreamReader isr;
-
-    try {
-      isr = new InputStreamReader(stream, "UTF-8");
-    } catch (UnsupportedEncodingException e) {
-      throw new AssertionError(e);
-    }
-
-    if (config.renderer() == Config.SourceRenderMode.SIDEBYSIDE ||
-        config.renderer() == Config.SourceRenderMode.DEBUGGER) {
-      CapturingReader cr = new CapturingReader(isr);
-      originalInputs.put(is, cr);
-      return cr;
-    } else {
-      return isr;
-    }
-  }
-
-  private Map<InputSource, CharSequence> buildOriginalInputCharSequences()
-      throws IOException {
-    Map<InputSource, CharSequence> results =
-        new HashMap<InputSource, CharSequence>();
-    for (InputSource is : originalInputs.keySet()) {
-      results.put(is, originalInputs.get(is).getCapture());
-    }
-    return results;
-  }
-
   public static void main(String[] args) {
     int exitCode;
     try {
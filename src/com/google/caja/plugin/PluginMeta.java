@@ -14,8 +14,14 @@
 
 package com.google.caja.plugin;
 
+import com.google.caja.parser.quasiliteral.RuleProfile;
+
 /**
  * For a plugin, determines how its external dependencies are translated.
+ * <p>
+ * A meta generates unique names for one compilation, so it must not be shared
+ * by compilations running concurrently.  Configuration that can be shared
+ * lives in a {@link CompilerContext}.
  */
 public final class PluginMeta {
   /** Used to generate names that are unique within the plugin's namespace. */
@@ -32,6 +38,8 @@ public final class PluginMeta {
    * they can avoid overlaps.
    */
   private String idClass;
+  /** Receives statistics about rewriter rules, or null. */
+  private RuleProfile ruleProfile;
 
   public PluginMeta() {
     this(PluginEnvironment.CLOSED_PLUGIN_ENVIRONMENT);
@@ -73,4 +81,14 @@ public final class PluginMeta {
   public String getIdClass() { return idClass; }
 
   public void setIdClass(String idClass) { this.idClass = idClass; }
+
+  /**
+   * Null if rewriter rules are not being profiled.
+   * See {@link com.google.caja.parser.quasiliteral.Rewriter#setProfile}.
+   */
+  public RuleProfile getRuleProfile() { return ruleProfile; }
+
+  public void setRuleProfile(RuleProfile ruleProfile) {
+    this.ruleProfile = ruleProfile;
+  }
 }
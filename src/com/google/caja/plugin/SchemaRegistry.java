@@ -0,0 +1,320 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.plugin;
+
+import com.google.caja.config.ConfigMessageType;
+import com.google.caja.config.ConfigUtil;
+import com.google.caja.config.ImportResolver;
+import com.google.caja.config.WhiteList;
+import com.google.caja.lang.css.CssSchema;
+import com.google.caja.lang.html.HtmlSchema;
+import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.InputSource;
+import com.google.caja.lexer.ParseException;
+import com.google.caja.reporting.BuildInfo;
+import com.google.caja.reporting.Message;
+import com.google.caja.reporting.MessageLevel;
+import com.google.caja.reporting.MessagePart;
+import com.google.caja.reporting.MessageQueue;
+import com.google.caja.reporting.MessageType;
+import com.google.caja.reporting.SimpleMessageQueue;
+import com.google.caja.util.Pair;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.URI;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the CSS and HTML whitelists used by new compilations and rebuilds
+ * them when the files they were loaded from change, so that a server can pick
+ * up a new whitelist without restarting.
+ * <p>
+ * Whitelists are loaded via an {@link ImportResolver}, and every
+ * {@code file:} URI it is asked for, including whitelists inherited by the
+ * four top level ones, is watched by polling its modification time and
+ * length.  Classpath resources are assumed not to change.
+ * <p>
+ * The schemas are replaced together by a single volatile write, so a
+ * {@link #newContext context} always pairs a CSS and an HTML schema from the
+ * same load.  Compilations that already have a context keep using the schemas
+ * they started with.  If a rebuilt whitelist has errors, the previous schemas
+ * stay in use and the errors are available from
+ * {@link #getLastReloadMessages}.
+ * <p>
+ * Names in a rebuilt whitelist are {@link com.google.caja.util.Name#intern
+ * interned}, so only trusted files should be watched.
+ */
+public final class SchemaRegistry {
+  private final URI cssPropertiesUri;
+  private final URI cssFunctionsUri;
+  private final URI htmlElementsUri;
+  private final URI htmlAttributesUri;
+  private final ImportResolver resolver;
+  /** The schemas for new compilations. */
+  private volatile Snapshot current;
+  /**
+   * The modification time and length of each watched file as of the last
+   * attempt to load the whitelists, whether or not it succeeded.
+   * Guarded by this.
+   */
+  private Map<File, Pair<Long, Long>> lastSeen;
+  private volatile List<Message> lastReloadMessages
+      = Collections.<Message>emptyList();
+  /** Guarded by this. */
+  private ScheduledExecutorService poller;
+
+  /**
+   * Loads the initial schemas.
+   * @param cssPropertiesUri the whitelist of CSS properties and symbols, like
+   *     {@code resource:///com/google/caja/lang/css/css-extensions.json}.
+   * @param cssFunctionsUri the whitelist of CSS functions.
+   * @param htmlElementsUri the whitelist of HTML elements.
+   * @param htmlAttributesUri the whitelist of HTML attributes.
+   * @param resolver resolves the given URIs and any they inherit from.
+   * @param mq receives messages from loading the whitelists.
+   * @throws ParseException if a whitelist cannot be loaded or has errors.
+   */
+  public SchemaRegistry(
+      URI cssPropertiesUri, URI cssFunctionsUri,
+      URI htmlElementsUri, URI htmlAttributesUri,
+      ImportResolver resolver, MessageQueue mq)
+      throws ParseException {
+    this.cssPropertiesUri = cssPropertiesUri;
+    this.cssFunctionsUri = cssFunctionsUri;
+    this.htmlElementsUri = htmlElementsUri;
+    this.htmlAttributesUri = htmlAttributesUri;
+    this.resolver = resolver;
+    synchronized (this) {
+      RecordingResolver recorder = new RecordingResolver(resolver);
+      try {
+        this.current = load(recorder, 0, mq);
+      } finally {
+        this.lastSeen = recorder.stamps;
+      }
+    }
+  }
+
+  /**
+   * A context for a new compilation using the latest schemas.
+   * The context is not affected by later reloads.
+   */
+  public CompilerContext newContext(BuildInfo buildInfo) {
+    Snapshot s = current;
+    return new CompilerContext(buildInfo, s.cssSchema, s.htmlSchema);
+  }
+
+  /** The CSS schema for new compilations. */
+  public CssSchema getCssSchema() { return current.cssSchema; }
+
+  /** The HTML schema for new compilations. */
+  public HtmlSchema getHtmlSchema() { return current.htmlSchema; }
+
+  /**
+   * The number of times the schemas have been replaced.  Callers that cache
+   * compiled output can include this in their keys.
+   */
+  public long getGeneration() { return current.generation; }
+
+  /** The files that are polled for changes. */
+  public synchronized Set<File> getWatchedFiles() {
+    return Collections.unmodifiableSet(lastSeen.keySet());
+  }
+
+  /** Messages from the last reload attempt, including any errors. */
+  public List<Message> getLastReloadMessages() { return lastReloadMessages; }
+
+  /**
+   * Reloads the whitelists if any watched file has changed since the last
+   * attempt to load them.
+   * @param mq receives messages from loading the whitelists.
+   * @return true if the schemas were replaced.
+   */
+  public synchronized boolean checkForChanges(MessageQueue mq) {
+    for (Map.Entry<File, Pair<Long, Long>> e : lastSeen.entrySet()) {
+      if (!stamp(e.getKey()).equals(e.getValue())) { return reload(mq); }
+    }
+    return false;
+  }
+
+  /**
+   * Rebuilds the schemas, replacing the current ones if the whitelists have
+   * no errors.
+   * @param mq receives messages from loading the whitelists.
+   * @return true if the schemas were replaced.
+   */
+  public synchronized boolean reload(MessageQueue mq) {
+    RecordingResolver recorder = new RecordingResolver(resolver);
+    SimpleMessageQueue reloadMq = new SimpleMessageQueue();
+    try {
+      current = load(recorder, current.generation + 1, reloadMq);
+      return true;
+    } catch (ParseException ex) {
+      return false;
+    } catch (RuntimeException ex) {
+      // Keep serving the current schemas, and keep polling.
+      reloadMq.addMessage(
+          MessageType.INTERNAL_ERROR,
+          MessagePart.Factory.valueOf(ex.toString()));
+      return false;
+    } finally {
+      lastSeen = recorder.stamps;
+      lastReloadMessages = Collections.unmodifiableList(
+          reloadMq.getMessages());
+      mq.getMessages().addAll(reloadMq.getMessages());
+    }
+  }
+
+  /**
+   * Starts checking for changes every periodMillis on a daemon thread.
+   * Does nothing if already polling.
+   */
+  public synchronized void startPolling(long periodMillis) {
+    if (periodMillis <= 0) { throw new IllegalArgumentException(); }
+    if (poller != null) { return; }
+    poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "SchemaRegistry");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    poller.scheduleWithFixedDelay(
+        new Runnable() {
+          public void run() {
+            checkForChanges(new SimpleMessageQueue());
+          }
+        },
+        periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /** Stops any polling started by {@link #startPolling}. */
+  public synchronized void stopPolling() {
+    if (poller != null) {
+      poller.shutdownNow();
+      poller = null;
+    }
+  }
+
+  /**
+   * Loads all four whitelists and builds schemas from them.
+   * @throws ParseException if a whitelist could not be loaded, has errors,
+   *     or describes an invalid schema.  Its message is also in mq.
+   */
+  private Snapshot load(
+      ImportResolver resolver, long generation, MessageQueue mq)
+      throws ParseException {
+    SimpleMessageQueue loadMq = new SimpleMessageQueue();
+    try {
+      WhiteList cssProperties = ConfigUtil.loadWhiteListFromJson(
+          cssPropertiesUri, resolver, loadMq);
+      WhiteList cssFunctions = ConfigUtil.loadWhiteListFromJson(
+          cssFunctionsUri, resolver, loadMq);
+      WhiteList htmlElements = ConfigUtil.loadWhiteListFromJson(
+          htmlElementsUri, resolver, loadMq);
+      WhiteList htmlAttributes = ConfigUtil.loadWhiteListFromJson(
+          htmlAttributesUri, resolver, loadMq);
+      for (Message msg : loadMq.getMessages()) {
+        if (MessageLevel.ERROR.compareTo(msg.getMessageLevel()) <= 0) {
+          throw new ParseException(msg);
+        }
+      }
+      CssSchema cssSchema;
+      try {
+        cssSchema = new CssSchema(cssProperties, cssFunctions);
+      } catch (RuntimeException ex) {
+        throw badSchema(cssPropertiesUri, ex, loadMq);
+      }
+      HtmlSchema htmlSchema;
+      try {
+        htmlSchema = new HtmlSchema(htmlElements, htmlAttributes);
+      } catch (RuntimeException ex) {
+        throw badSchema(htmlAttributesUri, ex, loadMq);
+      }
+      return new Snapshot(cssSchema, htmlSchema, generation);
+    } catch (IOException ex) {
+      loadMq.addMessage(
+          MessageType.IO_ERROR, MessagePart.Factory.valueOf(ex.toString()));
+      throw new ParseException(
+          loadMq.getMessages().get(loadMq.getMessages().size() - 1), ex);
+    } catch (ParseException ex) {
+      // Errors from the loader have already been reported.
+      if (!loadMq.getMessages().contains(ex.getCajaMessage())) {
+        ex.toMessageQueue(loadMq);
+      }
+      throw ex;
+    } finally {
+      mq.getMessages().addAll(loadMq.getMessages());
+    }
+  }
+
+  private static ParseException badSchema(
+      URI uri, RuntimeException ex, MessageQueue mq) {
+    Message msg = new Message(
+        ConfigMessageType.BAD_SCHEMA,
+        FilePosition.startOfFile(new InputSource(uri)),
+        MessagePart.Factory.valueOf(ex.getMessage()));
+    mq.getMessages().add(msg);
+    return new ParseException(msg, ex);
+  }
+
+  /** The modification time and length of a file, or zeros if it is absent. */
+  private static Pair<Long, Long> stamp(File f) {
+    return Pair.pair(f.lastModified(), f.length());
+  }
+
+  private static final class Snapshot {
+    final CssSchema cssSchema;
+    final HtmlSchema htmlSchema;
+    final long generation;
+
+    Snapshot(CssSchema cssSchema, HtmlSchema htmlSchema, long generation) {
+      this.cssSchema = cssSchema;
+      this.htmlSchema = htmlSchema;
+      this.generation = generation;
+    }
+  }
+
+  /** Notes the state of each file before it is read. */
+  private static final class RecordingResolver implements ImportResolver {
+    final ImportResolver delegate;
+    final Map<File, Pair<Long, Long>> stamps
+        = new LinkedHashMap<File, Pair<Long, Long>>();
+
+    RecordingResolver(ImportResolver delegate) { this.delegate = delegate; }
+
+    public Pair<Reader, FilePosition> resolve(
+        URI uri, URI base, FilePosition refPos)
+        throws IOException {
+      URI abs = base != null && !uri.isAbsolute() ? base.resolve(uri) : uri;
+      if ("file".equals(abs.getScheme())) {
+        // Stamp before reading so that a change made while reading causes
+        // another reload.
+        File f = new File(abs);
+        stamps.put(f, stamp(f));
+      }
+      return delegate.resolve(uri, base, refPos);
+    }
+  }
+}
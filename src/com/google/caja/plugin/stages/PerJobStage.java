@@ -0,0 +1,133 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.plugin.stages;
+
+import com.google.caja.plugin.Job;
+import com.google.caja.plugin.Jobs;
+import com.google.caja.reporting.MessageQueue;
+import com.google.caja.reporting.SimpleMessageQueue;
+import com.google.caja.util.Pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A stage that processes each job of a type independently of the others, so
+ * that when the jobs have an {@link Jobs#getExecutor executor}, jobs can be
+ * processed concurrently.
+ * <p>
+ * Each job processed concurrently reports to a message queue of its own, and
+ * those queues are appended to the jobs' queue in job order, so the messages
+ * are the same, and in the same order, as when the jobs are processed one at a
+ * time.
+ */
+public abstract class PerJobStage implements Pipeline.Stage<Jobs> {
+  private final Job.JobType type;
+
+  protected PerJobStage(Job.JobType type) {
+    if (type == null) { throw new NullPointerException(); }
+    this.type = type;
+  }
+
+  /**
+   * Processes one job.  May be called concurrently for different jobs, so must
+   * not touch any job but the one given, and must not use the plugin meta to
+   * generate names.
+   *
+   * @param jobs gives access to the plugin meta and to a message queue that
+   *     receives this job's messages.  Its job list is empty.
+   * @return false if the stage should fail once all jobs are processed.
+   */
+  protected abstract boolean applyToJob(Job job, Jobs jobs);
+
+  /**
+   * Calls {@link #applyToJob} for every job of this stage's type.
+   * @return true iff every call returned true.
+   * @throws CancellationException if the current thread is interrupted while
+   *     waiting for jobs to be processed.
+   */
+  protected final boolean applyToJobs(Jobs jobs) {
+    List<Job> matches = jobs.getJobsByType(type);
+    Executor executor = jobs.getExecutor();
+    boolean ok = true;
+    if (executor == null || matches.size() < 2) {
+      for (Job job : matches) {
+        ok &= applyToJob(job, jobs);
+      }
+      return ok;
+    }
+
+    List<JobTask> tasks = new ArrayList<JobTask>();
+    for (Job job : matches) {
+      tasks.add(new JobTask(job, jobs));
+    }
+    // The calling thread processes the last job itself instead of idling.
+    int last = tasks.size() - 1;
+    for (int i = 0; i < last; ++i) {
+      executor.execute(tasks.get(i).future);
+    }
+    tasks.get(last).future.run();
+
+    MessageQueue mq = jobs.getMessageQueue();
+    for (int i = 0; i <= last; ++i) {
+      JobTask task = tasks.get(i);
+      boolean jobOk;
+      try {
+        jobOk = task.future.get();
+      } catch (InterruptedException ex) {
+        for (JobTask t : tasks) { t.future.cancel(true); }
+        Thread.currentThread().interrupt();
+        throw new CancellationException(
+            "Interrupted in " + getClass().getSimpleName());
+      } catch (ExecutionException ex) {
+        // Report what a sequential run would have reported before failing.
+        mq.getMessages().addAll(task.view.getMessageQueue().getMessages());
+        Throwable cause = ex.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw new RuntimeException(cause);
+      }
+      mq.getMessages().addAll(task.view.getMessageQueue().getMessages());
+      ok &= jobOk;
+    }
+    return ok;
+  }
+
+  /** A job and the view of the jobs that it is processed with. */
+  private final class JobTask implements Callable<Boolean> {
+    final Job job;
+    final Jobs view;
+    final FutureTask<Boolean> future = new FutureTask<Boolean>(this);
+
+    JobTask(Job job, Jobs jobs) {
+      this.job = job;
+      this.view = new Jobs(
+          jobs.getMessageContext(), new SimpleMessageQueue(),
+          jobs.getPluginMeta());
+    }
+
+    public Boolean call() {
+      return applyToJob(job, view);
+    }
+  }
+}
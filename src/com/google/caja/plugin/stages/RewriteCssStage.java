@@ -18,9 +18,6 @@ import com.google.caja.parser.css.CssTree;
 import com.google.caja.plugin.CssRuleRewriter;
 import com.google.caja.plugin.Job;
 import com.google.caja.plugin.Jobs;
-import com.google.caja.util.Pipeline;
-
-import java.util.ListIterator;
 
 /**
  * Compiles CSS style-sheets to JavaScript which outputs the same CSS, but with
@@ -29,15 +26,18 @@ import java.util.ListIterator;
  *
  * @author mikesamuel@gmail.com
  */
-public final class RewriteCssStage implements Pipeline.Stage<Jobs> {
-  public boolean apply(Jobs jobs) {
-    for (ListIterator<Job> it = jobs.getJobs().listIterator(); it.hasNext();) {
-      Job job = it.next();
-      if (job.getType() != Job.JobType.CSS) { continue; }
+public final class RewriteCssStage extends PerJobStage {
+  public RewriteCssStage() { super(Job.JobType.CSS); }
 
-      new CssRuleRewriter(jobs.getPluginMeta()).rewriteCss(
-          job.getRoot().cast(CssTree.StyleSheet.class).node);
-    }
+  public boolean apply(Jobs jobs) {
+    applyToJobs(jobs);
     return jobs.hasNoFatalErrors();
   }
+
+  @Override
+  protected boolean applyToJob(Job job, Jobs jobs) {
+    new CssRuleRewriter(jobs.getPluginMeta()).rewriteCss(
+        job.getRoot().cast(CssTree.StyleSheet.class).node);
+    return true;
+  }
 }
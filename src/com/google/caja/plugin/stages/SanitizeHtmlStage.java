@@ -19,7 +19,6 @@ import com.google.caja.plugin.Dom;
 import com.google.caja.plugin.Job;
 import com.google.caja.plugin.Jobs;
 import com.google.caja.plugin.templates.TemplateSanitizer;
-import com.google.caja.util.Pipeline;
 
 /**
  * Whitelist HTML tags and attributes, and supply values for key
@@ -29,25 +28,25 @@ import com.google.caja.util.Pipeline;
  *
  * @author mikesamuel@gmail.com
  */
-public final class SanitizeHtmlStage implements Pipeline.Stage<Jobs> {
+public final class SanitizeHtmlStage extends PerJobStage {
   private final HtmlSchema htmlSchema;
 
   public SanitizeHtmlStage(HtmlSchema htmlSchema) {
+    super(Job.JobType.HTML);
     if (null == htmlSchema) { throw new NullPointerException(); }
     this.htmlSchema = htmlSchema;
   }
 
   public boolean apply(Jobs jobs) {
+    // Keeps going after a failure so that we can display error messages for
+    // all inputs.
+    return applyToJobs(jobs);
+  }
+
+  @Override
+  protected boolean applyToJob(Job job, Jobs jobs) {
     TemplateSanitizer s = new TemplateSanitizer(
         htmlSchema, jobs.getMessageQueue());
-
-    boolean valid = true;
-    for (Job job : jobs.getJobsByType(Job.JobType.HTML)) {
-      if (!s.sanitize(job.getRoot().cast(Dom.class).node.getValue())) {
-        valid = false;
-        // Keep going so that we can display error messages for all inputs.
-      }
-    }
-    return valid;
+    return s.sanitize(job.getRoot().cast(Dom.class).node.getValue());
   }
 }
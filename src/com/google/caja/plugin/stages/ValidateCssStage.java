@@ -23,18 +23,18 @@ import com.google.caja.plugin.CssValidator;
 import com.google.caja.plugin.Job;
 import com.google.caja.plugin.Jobs;
 import com.google.caja.reporting.MessageLevel;
-import com.google.caja.util.Pipeline;
 
 /**
  * Make sure the css is well formed and obeys the HTML and CSS Schemas.
  *
  * @author mikesamuel@gmail.com
  */
-public final class ValidateCssStage implements Pipeline.Stage<Jobs> {
+public final class ValidateCssStage extends PerJobStage {
   private final CssSchema cssSchema;
   private final HtmlSchema htmlSchema;
 
   public ValidateCssStage(CssSchema cssSchema, HtmlSchema htmlSchema) {
+    super(Job.JobType.CSS);
     if (null == cssSchema) { throw new NullPointerException(); }
     if (null == htmlSchema) { throw new NullPointerException(); }
     this.cssSchema = cssSchema;
@@ -50,6 +50,12 @@ public final class ValidateCssStage implements Pipeline.Stage<Jobs> {
   public boolean apply(Jobs jobs) {
     // TODO(mikesamuel): build up a list of classes and ids for use in
     // generating "no such symbol" warnings from the GXPs/HTML.
+    applyToJobs(jobs);
+    return jobs.hasNoFatalErrors();
+  }
+
+  @Override
+  protected boolean applyToJob(Job job, Jobs jobs) {
     CssValidator v = new CssValidator(
         cssSchema, htmlSchema, jobs.getMessageQueue());
     CssRewriter rw = new CssRewriter(
@@ -57,14 +63,8 @@ public final class ValidateCssStage implements Pipeline.Stage<Jobs> {
 
     v.withInvalidNodeMessageLevel(MessageLevel.WARNING);
     rw.withInvalidNodeMessageLevel(MessageLevel.WARNING);
-    for (Job job : jobs.getJobsByType(Job.JobType.CSS)) {
-      validate(v, rw, job.getRoot().cast(CssTree.class));
-    }
-
-    v.withInvalidNodeMessageLevel(MessageLevel.ERROR);
-    rw.withInvalidNodeMessageLevel(MessageLevel.ERROR);
-
-    return jobs.hasNoFatalErrors();
+    validate(v, rw, job.getRoot().cast(CssTree.class));
+    return true;
   }
 
   private static final void validate(
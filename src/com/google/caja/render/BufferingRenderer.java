@@ -24,12 +24,27 @@ import java.util.List;
 /**
  * An abstract renderer for JavaScript tokens that ensures that implementations
  * don't fall afoul of JavaScript's syntactic quirks.
+ * <p>
+ * Output is written as it is produced.  Only a small window of tokens is
+ * buffered: implementations hold back the few tokens that later tokens can
+ * still change, and this class holds back a comment until it sees the token
+ * after it.
  *
  * @author mikesamuel@gmail.com
  */
 abstract class BufferingRenderer implements TokenConsumer {
-  private final List<Object> pending = new ArrayList<Object>();
   private final Concatenator out;
+  private final JsTokenAdjacencyChecker adjChecker
+      = new JsTokenAdjacencyChecker();
+  /**
+   * Output tokens starting with a comment that cannot be written until the
+   * next token that is not a space, line-break or comment is known.
+   */
+  private final List<String> pending = new ArrayList<String>();
+  /** The last non-comment token written. */
+  private String lastToken;
+  private boolean noOutputWritten = true;
+  private String pendingSpace;
 
   /**
    * @param out receives the rendered text.
@@ -43,68 +58,8 @@ abstract class BufferingRenderer implements TokenConsumer {
    *     and ioExceptionHandler is null.
    */
   public final void noMoreTokens() {
-    JsTokenAdjacencyChecker adjChecker = new JsTokenAdjacencyChecker();
-
-    String lastToken = null;
-    boolean noOutputWritten = true;
-    List<String> outputTokens = splitTokens(pending);
-    pending.clear();
-    String pendingSpace = null;
-    for (int i = 0, nTokens = outputTokens.size(); i < nTokens; ++i) {
-      String token = outputTokens.get(i);
-      if (token.charAt(0) == '\n' || " ".equals(token)) {
-        pendingSpace = token;
-        continue;
-      }
-      if (TokenClassification.isComment(token)) {
-        // Make sure we don't get into a situation where we have to output
-        // a newline to end a line comment, but can't output a newline because
-        // it would break a restricted production.
-        // When we see a line comment, scan forward until the next non-comment
-        // token.  If the canBreakBetween check fails, then remove any
-        // line-breaks by rewriting the comment.
-        // We have to rewrite multi-line block comments, since ES3 and ES5 say
-        // that a multi-line comment is replaced with a newline for the 
-        // purposes of semicolon insertion.
-        //
-        // This is inconsistently implemented, but the rewriting works 
-        // regardless of whether an implementation actually treats the 
-        // comment as a newline for semicolon insertion.
-        String nextToken = null;
-        for (int j = i + 1; j < nTokens; ++j) {
-          switch (TokenClassification.classify(outputTokens.get(j))) {
-            case SPACE: case LINEBREAK: case COMMENT: continue;
-            default: break;
-          }
-          nextToken = outputTokens.get(j);
-          break;
-        }
-        if (!JsRenderUtil.canBreakBetween(lastToken, nextToken)) {
-          token = removeLinebreaksFromComment(token);
-          if (pendingSpace != null) { pendingSpace = " "; }
-        }
-      }
-      boolean needSpaceBefore = adjChecker.needSpaceBefore(token);
-      if (pendingSpace == null && needSpaceBefore) {
-        pendingSpace = " ";
-      }
-      if (pendingSpace != null) {
-        if (pendingSpace.charAt(0) == '\n') {
-          if (!JsRenderUtil.canBreakBetween(lastToken, token)) {
-            pendingSpace = " ";
-          } else if (noOutputWritten) {
-            pendingSpace = pendingSpace.substring(1);
-          }
-        }
-        out.append(pendingSpace);
-        pendingSpace = null;
-      }
-      out.append(token);
-      noOutputWritten = false;
-      if (!TokenClassification.isComment(token)) {
-        lastToken = token;
-      }
-    }
+    finish();
+    flush(true);
     out.noMoreTokens();
   }
 
@@ -117,12 +72,101 @@ abstract class BufferingRenderer implements TokenConsumer {
    */
   public final void consume(String text) {
     if ("".equals(text)) { return; }
-    pending.add(text);
+    processToken(text);
   }
 
   public final void mark(FilePosition mark) {
     if (mark != null && !InputSource.UNKNOWN.equals(mark.source())) {
-      pending.add(mark);
+      processMark(mark);
+    }
+  }
+
+  /**
+   * Receives output tokens from the implementation in order: non-whitespace
+   * tokens, space tokens ({@code " "}) and newline tokens ({@code '\n'}
+   * followed by any number of spaces).
+   */
+  final void emit(String token) {
+    if (pending.isEmpty() && !TokenClassification.isComment(token)) {
+      write(token, null);
+    } else {
+      pending.add(token);
+      flush(false);
+    }
+  }
+
+  /**
+   * Writes pending tokens up to the first comment whose following token is not
+   * yet known, or all of them if atEnd.
+   */
+  private void flush(boolean atEnd) {
+    int i = 0;
+    for (int nTokens = pending.size(); i < nTokens; ++i) {
+      String token = pending.get(i);
+      String nextToken = null;
+      if (TokenClassification.isComment(token)) {
+        for (int j = i + 1; j < nTokens; ++j) {
+          switch (TokenClassification.classify(pending.get(j))) {
+            case SPACE: case LINEBREAK: case COMMENT: continue;
+            default: break;
+          }
+          nextToken = pending.get(j);
+          break;
+        }
+        if (nextToken == null && !atEnd) { break; }
+      }
+      write(token, nextToken);
+    }
+    pending.subList(0, i).clear();
+  }
+
+  /**
+   * @param nextToken if token is a comment, the next token that is not a
+   *     space, line-break or comment, or null if there is none.
+   */
+  private void write(String token, String nextToken) {
+    if (token.charAt(0) == '\n' || " ".equals(token)) {
+      pendingSpace = token;
+      return;
+    }
+    if (TokenClassification.isComment(token)) {
+      // Make sure we don't get into a situation where we have to output
+      // a newline to end a line comment, but can't output a newline because
+      // it would break a restricted production.
+      // When we see a line comment, look forward to the next non-comment
+      // token.  If the canBreakBetween check fails, then remove any
+      // line-breaks by rewriting the comment.
+      // We have to rewrite multi-line block comments, since ES3 and ES5 say
+      // that a multi-line comment is replaced with a newline for the
+      // purposes of semicolon insertion.
+      //
+      // This is inconsistently implemented, but the rewriting works
+      // regardless of whether an implementation actually treats the
+      // comment as a newline for semicolon insertion.
+      if (!JsRenderUtil.canBreakBetween(lastToken, nextToken)) {
+        token = removeLinebreaksFromComment(token);
+        if (pendingSpace != null) { pendingSpace = " "; }
+      }
+    }
+    boolean needSpaceBefore = adjChecker.needSpaceBefore(token);
+    if (pendingSpace == null && needSpaceBefore) {
+      pendingSpace = " ";
+    }
+    if (pendingSpace != null) {
+      if (pendingSpace.charAt(0) == '\n') {
+        if (!JsRenderUtil.canBreakBetween(lastToken, token)) {
+          pendingSpace = " ";
+        } else if (noOutputWritten) {
+          pendingSpace = pendingSpace.substring(1);
+        }
+      }
+      out.append(pendingSpace);
+      pendingSpace = null;
+    }
+    out.append(token);
+    noOutputWritten = false;
+    if (!TokenClassification.isComment(token)) {
+      lastToken = token;
     }
   }
 
@@ -147,13 +191,14 @@ abstract class BufferingRenderer implements TokenConsumer {
   }
 
   /**
-   * Generates a list of output tokens consisting of non-whitespace tokens,
-   * space tokens ({@code " "}) and newline tokens ({@code '\n'} followed by
-   * any number of spaces).
-   * @param tokens a heterogeneous array containing {@code String} tokens and
-   *   {@code FilePosition} marks.
-   * @return the strings in tokens in order with newline and space tokens
-   *   inserted as appropriate.
+   * Receives the tokens passed to {@link #consume}, and calls {@link #emit}
+   * with output tokens as soon as they are known.
    */
-  abstract List<String> splitTokens(List<Object> tokens);
+  abstract void processToken(String text);
+
+  /** Receives the marks passed to {@link #mark}. */
+  abstract void processMark(FilePosition mark);
+
+  /** Emits any output tokens held back by the implementation. */
+  abstract void finish();
 }
@@ -19,194 +19,296 @@ import java.util.LinkedList;
 import java.util.List;
 
 /**
- * Wraps a list of tokens and provides operations that may replace
- * whitespace tokens in that list.
+ * Receives tokens from a {@link Spacer}, replaces some whitespace tokens with
+ * newlines and indentation, and passes tokens on to a renderer as soon as
+ * they can no longer change.
+ * <p>
+ * This is done in two passes over the token stream.  The first decides which
+ * spaces to break lines at, and needs to see a few tokens past each space.
+ * The second indents, and breaks lines that are too long, which may require
+ * revisiting the tokens since the last place at which a line could be broken.
  */
-class Indenter {
-  /** The token list.  Modified in place. */
-  final List<String> tokens;
+final class Indenter {
   /**
-   * Maps indices of brackets ("(", ")", etc.) in tokens to the corresponding
-   * open or close bracket.
-   * <p>
-   * For each token in tokens, the corresponding element in this list is
-   * -1 if token is not a bracket, or the index of the close/open bracket token
-   * that ends/starts the run of tokens started/opened by token.
-   * <p>
-   * For example, for the code {@code f(a[i])}, tokens is
-   * {@code ["f", "(", "a", "[", "i", "]", ")"]}, and
-   * {@code match[1] == 6 && match[6] == 1} as the outer parentheses match up,
-   * {@code match[3] == 5 && match[5] == 3} as the inner parentheses match up.
-   * and all the other elements in match are -1.
+   * The number of tokens past a space that the first pass needs to see.
+   * See the size checks in {@link #breakLine}.
    */
-  final int[] match;
+  private static final int LOOKAHEAD = 6;
+  /** The number of tokens the first pass handles at a time. */
+  private static final int BATCH_SIZE = 64;
+
+  private final BufferingRenderer out;
   /**
-   * For each token in tokens, true if the closest containing pair of brackets
-   * are parentheses.  If token is a bracket, then the corresponding element
-   * of parenthetical is true iff token is a parenthesis.
-   * <p>
-   * For example, for the code {@code f(a[i])}, tokens is
-   * {@code ["f", "(", "a", "[", "i", "]", ")"]}, and
-   * parenthetical is {@code [false, true, true, false, false, false, true]}
+   * Whether to break after a comment.
    */
-  final boolean[] parenthetical;
+  private final boolean breakAfterComment;
+  private final int lineLengthLimit;
+
+  // State of the first pass.
   /**
-   * Whether to break after a comment.
+   * Tokens received, from the first one whose line-break has not been
+   * decided.
    */
-  final boolean breakAfterComment;
+  private final List<Entry> window = new ArrayList<Entry>();
+  /** The number of tokens received. */
+  private int nReceived;
+  /** The open brackets in the tokens received. */
+  private final List<Entry> openBrackets = new ArrayList<Entry>();
+  /** Whether the top element of openBrackets is an open parenthesis. */
+  private boolean isParenthetical;
+  /** The last token received that is not whitespace or a comment. */
+  private String lastSignificant;
+  /** The token before the first token in window. */
+  private Entry prev;
+  /** True once all tokens have been received. */
+  private boolean ended;
 
-  Indenter(List<String> tokens, boolean breakAfterComment) {
-    this.tokens = tokens;
+  // State of the second pass.
+  /**
+   * Tokens passed on by the first pass that have not been written out.
+   * The second pass inserts newlines, so the position of a token, its index in
+   * the output, can be greater than its index in the input.
+   */
+  private final List<String> positions = new ArrayList<String>();
+  /** The position of the first element of positions. */
+  private int positionsBase;
+  /** The position of the first token not yet written. */
+  private int written;
+  /**
+   * {@link Entry#parenthetical} for tokens passed on by the first pass,
+   * by index in the input.
+   */
+  private boolean[] parenthetical = new boolean[64];
+  /** The index of the first element of parenthetical. */
+  private int parentheticalBase;
+  /** The number of tokens passed on by the first pass. */
+  private int nIndentable;
+  /** True once the first pass has passed on all tokens. */
+  private boolean indentEnded;
+  /** The position of the next token to indent. */
+  private int pos;
+  /** Count of chars since last newline token. */
+  private int charsInLine;
+  private LinkedList<Indent> indents = new LinkedList<Indent>();
+  // Information about the last place at which we can insert a breakpoint.
+  private int lastBreakPt = -1;
+  private LinkedList<Indent> indentsAtLastBreakPt;
+  private int charsInLineAtLastBreakPt = -1;
+
+  Indenter(BufferingRenderer out, boolean breakAfterComment,
+           int lineLengthLimit) {
+    this.out = out;
     this.breakAfterComment = breakAfterComment;
-    match = new int[tokens.size()];
-    parenthetical = new boolean[tokens.size()];
-    // Keep track of the bracket blocks still open at point i.
-    List<Integer> openBracketStack = new ArrayList<Integer>();
-    // Whether the top element of openBracketStack is an open parenthesis.
-    boolean isParenthetical = false;
-    // Walk forward over tokens maintaining the open bracket stack.
-    // When we see a close bracket, set the elements in match corresponding to
-    // both the open bracket and the close bracket.
-    for (int i = 0, n = tokens.size(); i < n; ++i) {
-      parenthetical[i] = isParenthetical;
-      String tok = tokens.get(i);
-      if (tok.length() == 1) {
-        switch (tok.charAt(0)) {
+    this.lineLengthLimit = lineLengthLimit;
+    indents.add(new Indent(0, false));
+  }
+
+  /** A token and what the first pass knows about it. */
+  private static final class Entry {
+    /** The token, a space token until the first pass breaks the line. */
+    String text;
+    final int index;
+    /**
+     * True if the closest containing pair of brackets are parentheses.
+     * For a bracket, true iff the bracket is a parenthesis, or it is not an
+     * open parenthesis and the brackets containing it are parentheses.
+     * <p>
+     * For example, for the code {@code f(a[i])}, tokens are
+     * {@code ["f", "(", "a", "[", "i", "]", ")"]}, and
+     * parenthetical is {@code [false, true, true, false, false, false, true]}
+     */
+    boolean parenthetical;
+    /**
+     * For an open bracket, the index of the close bracket that ends the run of
+     * tokens it starts, or -1 if that has not been received.
+     * For a close bracket, the index of the open bracket, or 0 if there is
+     * none.
+     */
+    int match;
+    /**
+     * For an open bracket, true if the last token before it that is not
+     * whitespace or a comment is {@code do}.  For a close bracket, the same for
+     * its open bracket.
+     */
+    boolean afterDo;
+
+    Entry(String text, int index) {
+      this.text = text;
+      this.index = index;
+    }
+  }
+
+  void processToken(String tok) {
+    Entry e = new Entry(tok, nReceived++);
+    // Maintain the open bracket stack.  When we see a close bracket, match it
+    // with the open bracket.
+    e.parenthetical = isParenthetical;
+    if (tok.length() == 1) {
+      switch (tok.charAt(0)) {
         case '(':
-          openBracketStack.add(i);
-          parenthetical[i] = isParenthetical = true;
+          openBracket(e);
+          e.parenthetical = isParenthetical = true;
           break;
         case '[': case '{':
-          openBracketStack.add(i);
+          openBracket(e);
           isParenthetical = false;
           break;
         case '}': case ']': case ')':
-          int last = openBracketStack.size() - 1;
+          int last = openBrackets.size() - 1;
           if (last >= 0) {
-            int openIdx = openBracketStack.remove(last);
-            match[openIdx] = i;
-            match[i] = openIdx;
+            Entry open = openBrackets.remove(last);
+            open.match = e.index;
+            e.match = open.index;
+            e.afterDo = open.afterDo;
           }
           // Check whether the new topmost bracket is a parenthesis.
           isParenthetical = (
-              last >= 1
-              && "(".equals(tokens.get(openBracketStack.get(last - 1))));
-          break;
-        default:
-          match[i] = -1;
+              last >= 1 && "(".equals(openBrackets.get(last - 1).text));
           break;
-        }
       }
     }
-    for (int unclosedBracketIdx : openBracketStack) {
-      match[unclosedBracketIdx] = tokens.size();
+    if (!(TokenClassification.isComment(tok)
+          || Character.isWhitespace(tok.charAt(0)))) {
+      lastSignificant = tok;
     }
+    window.add(e);
+    breakLines();
+  }
+
+  private void openBracket(Entry e) {
+    e.match = -1;
+    e.afterDo = "do".equals(lastSignificant);
+    openBrackets.add(e);
+  }
+
+  /** Called once all tokens have been received to write out the rest. */
+  void finish() {
+    ended = true;
+    breakLines();
+    indentEnded = true;
+    indent();
+    writeUpTo(positionsBase + positions.size());
   }
 
   /**
-   * Change space tokens into newlines when a single line contains too many
-   * tokens or when a line is normally broken at that token.
+   * Decides the line-breaks for the tokens in the window that are far enough
+   * from the end, and passes them on to the second pass.
+   * Tokens are handled in batches since a call per token is noticeably slower.
+   */
+  private void breakLines() {
+    int n = window.size();
+    if (!ended && n < LOOKAHEAD + BATCH_SIZE) { return; }
+    int nReady = ended ? n : n - LOOKAHEAD;
+    if (nIndentable + nReady - parentheticalBase > parenthetical.length) {
+      boolean[] newParenthetical = new boolean[
+          Math.max(parenthetical.length * 2,
+                   nIndentable + nReady - parentheticalBase)];
+      System.arraycopy(
+          parenthetical, 0, newParenthetical, 0, parenthetical.length);
+      parenthetical = newParenthetical;
+    }
+    for (int i = 0; i < nReady; ++i) {
+      Entry e = window.get(i);
+      if (" ".equals(e.text)) { breakLine(e, i); }
+      prev = e;
+      positions.add(e.text);
+      parenthetical[nIndentable++ - parentheticalBase] = e.parenthetical;
+    }
+    window.subList(0, nReady).clear();
+    indent();
+  }
+
+  /**
+   * Change a space token into a newline when a line is normally broken at that
+   * token.
    * <p>
    * This does not need to worry about inserting newlines into restricted
-   * productions since the superclass will convert to spaces any newlines that
+   * productions since the renderer will convert to spaces any newlines that
    * would appear in a restricted context.
    */
-  void breakLines() {
-    for (int i = 0, last = tokens.size() - 1; i <= last; ++i) {
-      String tok = tokens.get(i);
-      if (!" ".equals(tok)) { continue; }
-      String prev = i != 0 ? tokens.get(i - 1) : null;
-      String next = i != last ? tokens.get(i + 1) : null;
-      boolean isBreak;
-      if ("{".equals(prev)) {
-        // Break inside curly blocks that are long.
-        // But not things like foo({})
-        isBreak = match[i - 1] - i > 6;
-      } else if ("}".equals(next)) {
-        // Matches the above.
-        isBreak = i - match[i + 1] > 6;
-      } else if (";".equals(prev)) {
-        // parenthetical check distinguishes { for(;;) } from { foo(); }
-        isBreak = !parenthetical[i];
-      } else if ("}".equals(prev)) {
-        if ("else".equals(next) || "catch".equals(next)
-            || "finally".equals(next)) {
+  private void breakLine(Entry space, int windowIndex) {
+    int i = space.index;
+    String prevTok = prev != null ? prev.text : null;
+    int nAfter = window.size() - windowIndex - 1;
+    Entry next = nAfter >= 1 ? window.get(windowIndex + 1) : null;
+    String nextTok = next != null ? next.text : null;
+    boolean isBreak;
+    if ("{".equals(prevTok)) {
+      // Break inside curly blocks that are long.
+      // But not things like foo({})
+      // If the block is unclosed, it is closed by the end of input.
+      int close = prev.match >= 0
+          ? prev.match : ended ? nReceived : Integer.MAX_VALUE;
+      isBreak = close - i > LOOKAHEAD;
+    } else if ("}".equals(nextTok)) {
+      // Matches the above.
+      isBreak = i - next.match > LOOKAHEAD;
+    } else if (";".equals(prevTok)) {
+      // parenthetical check distinguishes { for(;;) } from { foo(); }
+      isBreak = !space.parenthetical;
+    } else if ("}".equals(prevTok)) {
+      if ("else".equals(nextTok) || "catch".equals(nextTok)
+          || "finally".equals(nextTok)) {
+        isBreak = false;
+      } else if ("while".equals(nextTok)) {
+        // Distinguish { do {} while (1); } from { {} while (1) {} }
+        isBreak = !(prev.match > 0 && prev.afterDo);
+      } else {
+        isBreak = true;
+      }
+    } else if (prevTok != null && TokenClassification.isComment(prevTok)) {
+      isBreak = breakAfterComment;
+    } else {
+      isBreak = false;
+    }
+    if (isBreak) {
+      if (nextTok != null && TokenClassification.isComment(nextTok)
+          && nAfter >= 2) {
+        Entry next2 = window.get(windowIndex + 2);
+        if ("\n".equals(next2.text) || " ".equals(next2.text)) {
+          next2.text = "\n";
           isBreak = false;
-        } else if ("while".equals(next)) {
-          // Distinguish { do {} while (1); } from { {} while (1) {} }
-          isBreak = true;
-          int open = match[i - 1];
-          if (open > 0) {
-            for (int j = open; --j >= 0;) {
-              String t = tokens.get(j);
-              if ("do".equals(t)) {
-                isBreak = false;
-                break;
-              }
-              if (!(TokenClassification.isComment(t)
-                    || Character.isWhitespace(t.charAt(0)))) {
-                break;
-              }
-            }
-          }
-        } else {
-          isBreak = true;
         }
-      } else if (prev != null && TokenClassification.isComment(prev)) {
-        isBreak = breakAfterComment;
-      } else {
-        isBreak = false;
       }
       if (isBreak) {
-        if (next != null && TokenClassification.isComment(next)
-            && i + 2 <= last) {
-          String next2 = tokens.get(i + 2);
-          if ("\n".equals(next2) || " ".equals(next2)) {
-            tokens.set(i + 2, "\n");
-            isBreak = false;
-          }
-        }
-        if (isBreak) {
-          tokens.set(i, "\n");
-        }
+        space.text = "\n";
       }
     }
   }
 
   /**
-   * Called once all the line-breaks are present to introduce indentation by
-   * looking at the stack of open bracketed blocks.
-   * Turns newline tokens in tokens into newlines followed by runs of spaces.
+   * Introduces indentation by looking at the stack of open bracketed blocks.
+   * Turns newline tokens into newlines followed by runs of spaces, and breaks
+   * lines that are too long.
+   * <p>
+   * Indenting a token uses the {@link Entry#parenthetical} flag at the index
+   * in the input equal to the token's position, which differs from the
+   * token's own flag once a newline has been inserted before it.  The output
+   * has always been laid out that way, so this pass lags behind the first to
+   * keep doing so.
    */
-  void indent(int lineLengthLimit) {
-    int charsInLine = 0;  // count of chars since last newline token
-    LinkedList<Indent> indents = new LinkedList<Indent>();
-
-    // Information about the last place at which we can insert a breakpoint
-    int lastBreakPt = -1;
-    LinkedList<Indent> indentsAtLastBreakPt = null;
-    int charsInLineAtLastBreakPt = -1;
-
-    indents.add(new Indent(0, false));
-    for (int i = 0, n = tokens.size(); i < n; ++i) {
-      String tok = tokens.get(i);
+  private void indent() {
+    while (indentEnded ? pos < nIndentable : pos + 1 < nIndentable) {
+      int i = pos;
+      String tok = positions.get(i - positionsBase);
       charsInLine += tok.length();
 
       // If the line is too long, break it.
       if (lastBreakPt >= 0 && charsInLine >= lineLengthLimit
           && !(" ".equals(tok) || "\n".equals(tok))) {
-        if (" ".equals(tokens.get(lastBreakPt))) {
-          tokens.set(lastBreakPt, "\n");
-          i = lastBreakPt - 1;
+        if (" ".equals(positions.get(lastBreakPt - positionsBase))) {
+          positions.set(lastBreakPt - positionsBase, "\n");
+          pos = lastBreakPt;
         } else {
-          tokens.add(lastBreakPt + 1, "\n");
-          i = lastBreakPt;
+          positions.add(lastBreakPt + 1 - positionsBase, "\n");
+          pos = lastBreakPt + 1;
         }
         lastBreakPt = -1;
         indents = indentsAtLastBreakPt;
         charsInLine = charsInLineAtLastBreakPt;
         continue;
       }
+      pos = i + 1;
 
       // Handle non punctuation and non-space tokens which can't break a line
       // or push/pop from the indent stack.
@@ -221,7 +323,8 @@ class Indenter {
       switch (tok.charAt(0)) {
         case '(': case '[':
           int indentLevel = Math.min(charsInLine, indents.get(0).spaces + 2);
-          indents.addFirst(new Indent(indentLevel, parenthetical[i]));
+          indents.addFirst(new Indent(
+              indentLevel, parenthetical[i - parentheticalBase]));
           break;
         case '{':
           indents.set(0, indents.get(0).withInStatement(false));
@@ -237,8 +340,8 @@ class Indenter {
         case ' ':
           break;
         case '\n':
-          if (i + 1 < n) {
-            String nextToken = tokens.get(i + 1);
+          if (i + 1 < nIndentable) {
+            String nextToken = positions.get(i + 1 - positionsBase);
             if (!"\n".equals(nextToken)) {
               charsInLine = indents.get(0).getIndentLevel();
               if (nextToken.length() == 1) {
@@ -253,7 +356,7 @@ class Indenter {
                          || "default".equals(nextToken)) {
                 charsInLine = Math.max(charsInLine - 2, 0);
               }
-              tokens.set(i, makeIndent(charsInLine));
+              positions.set(i - positionsBase, makeIndent(charsInLine));
             }
           }
           lastBreakPt = -1;
@@ -278,6 +381,29 @@ class Indenter {
           break;
       }
     }
+    // Tokens before the last breakpoint will not change.
+    writeUpTo(lastBreakPt >= 0 ? lastBreakPt : pos);
+  }
+
+  /** Passes tokens before the given position on to the renderer. */
+  private void writeUpTo(int end) {
+    if (end <= written) { return; }
+    for (int p = written; p < end; ++p) {
+      out.emit(positions.get(p - positionsBase));
+    }
+    written = end;
+    // Discard written tokens in batches so that this takes amortized constant
+    // time per token.
+    int nWritten = written - positionsBase;
+    if (nWritten >= 64 && nWritten * 2 >= positions.size()) {
+      positions.subList(0, nWritten).clear();
+      positionsBase = written;
+      int nStale = Math.min(written, nIndentable) - parentheticalBase;
+      System.arraycopy(
+          parenthetical, nStale, parenthetical, 0,
+          nIndentable - parentheticalBase - nStale);
+      parentheticalBase += nStale;
+    }
   }
 
   private static String makeIndent(int nSpaces) {
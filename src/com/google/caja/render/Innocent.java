@@ -31,9 +31,7 @@ import com.google.caja.reporting.MessageQueue;
 import com.google.caja.util.Pair;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.io.Writer;
 
@@ -91,9 +89,8 @@ public class Innocent {
 
     final MessageQueue errs = new EchoingMessageQueue(
         err, mc, false);
-    CharProducer cp = CharProducer.Factory.create(
-        new InputStreamReader(new FileInputStream(input.b), "UTF-8"),
-        input.a);
+    CharProducer cp = CharProducer.Factory.fromFile(
+        input.b, "UTF-8", input.a);
 
     JsLexer lexer = new JsLexer(cp);
     JsTokenQueue tq = new JsTokenQueue(lexer, input.a);
@@ -15,8 +15,6 @@
 package com.google.caja.render;
 
 import com.google.caja.lexer.FilePosition;
-import java.util.ArrayList;
-import java.util.List;
 
 /**
  * A compact JavaScript renderer.
@@ -35,6 +33,11 @@ public final class JsMinimalPrinter extends BufferingRenderer {
   /** The last non-space/comment token. */
   private String lastToken;
   private JsTokenAdjacencyChecker adjChecker = new JsTokenAdjacencyChecker();
+  /**
+   * The last output token, which is held back since the next token may replace
+   * or remove it.
+   */
+  private String held;
 
   /**
    * @param out receives the rendered text.
@@ -49,63 +52,72 @@ public final class JsMinimalPrinter extends BufferingRenderer {
   }
 
   @Override
-  List<String> splitTokens(List<Object> tokens) {
-    List<String> outputTokens = new ArrayList<String>();
-
-    for (Object tokenEl : tokens) {
-      if (tokenEl instanceof FilePosition) { continue; }
-      String text = (String) tokenEl;
-      TokenClassification tClass = TokenClassification.classify(text);
-      if (tClass == null) { continue; }
-      switch (tClass) {
-        case LINEBREAK:
-        case SPACE:
-        case COMMENT:
-          continue;
-        default: break;
-      }
+  void processToken(String text) {
+    TokenClassification tClass = TokenClassification.classify(text);
+    if (tClass == null) { return; }
+    switch (tClass) {
+      case LINEBREAK:
+      case SPACE:
+      case COMMENT:
+        return;
+      default: break;
+    }
 
-      // Write any whitespace before the token.
-      if (adjChecker.needSpaceBefore(text)) {
-        // Some security tools/proxies/firewalls break on really long javascript
-        // lines.
-        if (charInLine >= lineLengthLimit
-            && JsRenderUtil.canBreakBetween(lastToken, text)) {
-          charInLine = 0;
-          outputTokens.add("\n");
-        } else if (charInLine != 0) {
-          ++charInLine;
-          outputTokens.add(" ");
-        }
+    // Write any whitespace before the token.
+    if (adjChecker.needSpaceBefore(text)) {
+      // Some security tools/proxies/firewalls break on really long javascript
+      // lines.
+      if (charInLine >= lineLengthLimit
+          && JsRenderUtil.canBreakBetween(lastToken, text)) {
+        charInLine = 0;
+        write("\n");
+      } else if (charInLine != 0) {
+        ++charInLine;
+        write(" ");
       }
+    }
 
-      // Actually write the token.
-      charInLine += text.length();
-      if ("}".equals(text) && ";".equals(lastToken)) {
-        // ES5 Section 7.9.1 Rules of Automatic Semicolon Insertion
-        // When, as the program is parsed from left to right, a token (called
-        // the offending token) is encountered that is not allowed by any
-        // production of the grammar, then a semicolon is automatically inserted
-        // before the offending token if one or more of the following conditions
-        // is true:
-        // ...
-        // 2.   The offending token is }.
+    // Actually write the token.
+    charInLine += text.length();
+    if ("}".equals(text) && ";".equals(lastToken)) {
+      // ES5 Section 7.9.1 Rules of Automatic Semicolon Insertion
+      // When, as the program is parsed from left to right, a token (called
+      // the offending token) is encountered that is not allowed by any
+      // production of the grammar, then a semicolon is automatically inserted
+      // before the offending token if one or more of the following conditions
+      // is true:
+      // ...
+      // 2.   The offending token is }.
 
-        // NOTE: this could turn an invalid token sequence into a valid one.
-        // E.g. ({ a: 0; }) => ({ a: 0 })
-        //             ^
-        outputTokens.set(outputTokens.size() - 1, text);
-      } else {
-        outputTokens.add(text);
-      }
-      lastToken = text;
+      // NOTE: this could turn an invalid token sequence into a valid one.
+      // E.g. ({ a: 0; }) => ({ a: 0 })
+      //             ^
+      held = text;
+    } else {
+      write(text);
     }
+    lastToken = text;
+  }
+
+  @Override
+  void processMark(FilePosition mark) {}
+
+  @Override
+  void finish() {
     // ES5 Section 7.9.1 Rules of Automatic Semicolon Insertion
     // When, as the program is parsed from left to right, the end of the input
     // stream of tokens is encountered and the parser is unable to parse the
     // input token stream as a single complete ECMAScript Program, then a
     // semicolon is automatically inserted at the end of the input stream.
-    if (";".equals(lastToken)) { outputTokens.remove(outputTokens.size() - 1); }
-    return outputTokens;
+    if (";".equals(lastToken)) { held = null; }
+    if (held != null) {
+      emit(held);
+      held = null;
+    }
+  }
+
+  private void write(String token) {
+    if (held != null) { emit(held); }
+    held = token;
   }
 }
@@ -16,8 +16,6 @@ package com.google.caja.render;
 
 import com.google.caja.lexer.FilePosition;
 
-import java.util.List;
-
 /**
  * A formatter that indents code for a C-style language with statement
  * delimited by curly brackets, and expression blocks delimited by
@@ -28,6 +26,7 @@ import java.util.List;
 public final class JsPrettyPrinter extends BufferingRenderer {
   private int lineLengthLimit = 80;
   private boolean breakAfterComment = true;
+  private Spacer spacer;
 
   /**
    * @param out receives the rendered text.
@@ -49,20 +48,23 @@ public final class JsPrettyPrinter extends BufferingRenderer {
   public boolean isBreakAfterComment() { return this.breakAfterComment; }
 
   @Override
-  List<String> splitTokens(List<Object> tokens) {
-    Spacer spacer = new Spacer();
-    for (Object lineEl : tokens) {
-      if (lineEl instanceof FilePosition) {
-        spacer.processMark((FilePosition) lineEl);
-      } else {
-        spacer.processToken((String) lineEl);
-      }
-    }
-    List<String> outputTokens = spacer.getOutputTokens();
+  void processToken(String text) { spacer().processToken(text); }
 
-    Indenter indenter = new Indenter(outputTokens, breakAfterComment);
-    indenter.breakLines();
-    indenter.indent(lineLengthLimit);
-    return outputTokens;
+  @Override
+  void processMark(FilePosition mark) { spacer().processMark(mark); }
+
+  @Override
+  void finish() { spacer().finish(); }
+
+  /**
+   * Created on the first token so that the line length limit and line-breaking
+   * policy may be set after construction.
+   */
+  private Spacer spacer() {
+    if (spacer == null) {
+      spacer = new Spacer(
+          new Indenter(this, breakAfterComment, lineLengthLimit));
+    }
+    return spacer;
   }
 }
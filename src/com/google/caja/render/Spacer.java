@@ -17,15 +17,13 @@ package com.google.caja.render;
 import com.google.caja.lexer.FilePosition;
 import com.google.caja.lexer.Keyword;
 
-import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Set;
 
 /**
- * Accumulates tokens inserting whitespace tokens where appropriate for
- * aesthetic reasons.  These whitespace tokens may later be turned into
- * newlines by an {@link Indenter}.
+ * Passes tokens to an {@link Indenter} inserting whitespace tokens where
+ * appropriate for aesthetic reasons.  These whitespace tokens may later be
+ * turned into newlines by the indenter.
  *
  * @author mikesamuel@gmail.com
  */
@@ -41,9 +39,24 @@ class Spacer {
   /** The end line number of the last token seen. */
   private int lastLine = 1;
 
-  private final List<String> outputTokens = new ArrayList<String>();
+  /**
+   * The last output token, which is held back since a following comment may
+   * turn a space into a newline.  Null until the first token is output.
+   */
+  private String held;
 
-  List<String> getOutputTokens() { return outputTokens; }
+  private final Indenter out;
+
+  Spacer(Indenter out) { this.out = out; }
+
+  /** Passes any held back token to the indenter, and tells it to finish. */
+  void finish() {
+    if (held != null) {
+      out.processToken(held);
+      held = null;
+    }
+    out.finish();
+  }
 
   void processMark(FilePosition mark) { this.mark = mark; }
 
@@ -208,23 +221,21 @@ class Spacer {
   }
 
   private void emit(String s) {
-    outputTokens.add(s);
+    if (held != null) { out.processToken(held); }
+    held = s;
   }
 
   private void newline() {
-    if (outputTokens.isEmpty()) { return; }
-    int lastIdx = outputTokens.size() - 1;
-    String last = outputTokens.get(lastIdx);
-    if (" ".equals(last)) {
-      outputTokens.set(lastIdx, "\n");
-    } else if (!"\n".equals(last)) {
+    if (held == null) { return; }
+    if (" ".equals(held)) {
+      held = "\n";
+    } else if (!"\n".equals(held)) {
       emit("\n");
     }
   }
 
   private void space() {
-    if (outputTokens.isEmpty()) { return; }
-    String last = outputTokens.get(outputTokens.size() - 1);
-    if (!("\n".equals(last) || " ".equals(last))) { emit(" "); }
+    if (held == null) { return; }
+    if (!("\n".equals(held) || " ".equals(held))) { emit(" "); }
   }
 }
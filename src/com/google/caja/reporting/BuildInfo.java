@@ -27,7 +27,7 @@ import java.io.IOException;
 public class BuildInfo {
   private static BuildInfo instance;
 
-  public static BuildInfo getInstance() {
+  public static synchronized BuildInfo getInstance() {
     if (instance == null) instance = new BuildInfo();
     return instance;
   }
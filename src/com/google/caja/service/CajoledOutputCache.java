@@ -0,0 +1,209 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.service;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, content addressed cache of cajoled output.
+ * Entries are keyed by a digest of the fetched bytes and every request
+ * parameter that can change the output, and are evicted in least recently
+ * used order once the total size of cached content exceeds a byte budget.
+ * Entries older than a time-to-live are treated as absent.
+ */
+public class CajoledOutputCache {
+  /** The default bound on the total number of content bytes cached. */
+  public static final long DEFAULT_MAX_BYTES = 32L << 20;  // 32MB
+  /** The default lifetime of a cache entry. */
+  public static final long DEFAULT_TTL_MILLIS = 60L * 60 * 1000;  // 1 hour
+
+  private final long maxBytes;
+  private final long ttlMillis;
+  /** Guarded by this.  Iteration order is least recently used first. */
+  private final LinkedHashMap<String, Entry> entries
+      = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  /** Guarded by this. */
+  private long totalBytes;
+  /** Guarded by this. */
+  private long hits, misses, evictions;
+
+  public CajoledOutputCache() {
+    this(DEFAULT_MAX_BYTES, DEFAULT_TTL_MILLIS);
+  }
+
+  /**
+   * @param maxBytes the maximum total size of the content of all entries.
+   * @param ttlMillis the number of milliseconds after which an entry expires.
+   */
+  public CajoledOutputCache(long maxBytes, long ttlMillis) {
+    if (maxBytes < 0 || ttlMillis < 0) { throw new IllegalArgumentException(); }
+    this.maxBytes = maxBytes;
+    this.ttlMillis = ttlMillis;
+  }
+
+  /**
+   * Computes a cache key from the inputs to a cajoling request.
+   * Any of the parameters except {@code content} may be null.
+   *
+   * @param content the fetched bytes to be cajoled.
+   * @param uri the location the content was fetched from.  Relative URLs in
+   *     the output are resolved against it.
+   * @param transform the requested transform.
+   * @param inputContentType the content-type of {@code content}.
+   * @param outputContentType the requested output content-type.
+   * @param charSet the character set of {@code content}.
+   * @param buildVersion the version of the cajoler producing the output.
+   */
+  public static String makeKey(
+      byte[] content, String uri, CajolingService.Transform transform,
+      String inputContentType, String outputContentType, String charSet,
+      String buildVersion) {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new RuntimeException(ex);  // Required of every Java platform.
+    }
+    md.update(content);
+    String[] parts = {
+      uri, transform != null ? transform.name() : null,
+      inputContentType, outputContentType, charSet, buildVersion
+    };
+    for (String part : parts) {
+      // Prefix each part with a marker so that null and the empty string
+      // differ, and so that no two different part lists digest the same.
+      if (part == null) {
+        md.update((byte) 0);
+      } else {
+        md.update((byte) 1);
+        byte[] bytes;
+        try {
+          bytes = part.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+          throw new RuntimeException(ex);
+        }
+        md.update(intBytes(bytes.length));
+        md.update(bytes);
+      }
+    }
+    byte[] digest = md.digest();
+    StringBuilder sb = new StringBuilder(digest.length * 2);
+    for (byte b : digest) {
+      sb.append("0123456789abcdef".charAt((b >> 4) & 0xf))
+          .append("0123456789abcdef".charAt(b & 0xf));
+    }
+    return sb.toString();
+  }
+
+  private static byte[] intBytes(int n) {
+    return new byte[] {
+      (byte) (n >>> 24), (byte) (n >>> 16), (byte) (n >>> 8), (byte) n
+    };
+  }
+
+  /**
+   * @return the entry for the given key or null if there is no such entry or
+   *     it has expired.
+   */
+  public synchronized Entry get(String key) {
+    Entry e = entries.get(key);
+    if (e != null && now() - e.createdMillis >= ttlMillis) {
+      remove(key);
+      e = null;
+    }
+    if (e == null) {
+      ++misses;
+    } else {
+      ++hits;
+    }
+    return e;
+  }
+
+  /**
+   * Adds an entry, evicting least recently used entries as needed to stay
+   * within the byte budget.  Content larger than the whole budget is not
+   * cached.
+   *
+   * @param content the cajoled output.  Not copied, so must not be modified
+   *     by the caller after this call.
+   */
+  public synchronized void put(
+      String key, byte[] content, String contentType, String charSet) {
+    if (content.length > maxBytes) { return; }
+    remove(key);
+    entries.put(key, new Entry(content, contentType, charSet, now()));
+    totalBytes += content.length;
+    for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+         totalBytes > maxBytes && it.hasNext();) {
+      Entry lru = it.next().getValue();
+      it.remove();
+      totalBytes -= lru.content.length;
+      ++evictions;
+    }
+  }
+
+  private void remove(String key) {
+    Entry old = entries.remove(key);
+    if (old != null) { totalBytes -= old.content.length; }
+  }
+
+  /** Removes all entries.  Does not reset the counters. */
+  public synchronized void clear() {
+    entries.clear();
+    totalBytes = 0;
+  }
+
+  /** The number of lookups that found an unexpired entry. */
+  public synchronized long getHitCount() { return hits; }
+  /** The number of lookups that did not find an unexpired entry. */
+  public synchronized long getMissCount() { return misses; }
+  /** The number of entries removed to stay within the byte budget. */
+  public synchronized long getEvictionCount() { return evictions; }
+  /** The number of entries currently cached, including expired ones. */
+  public synchronized int size() { return entries.size(); }
+  /** The total size in bytes of the content of all cached entries. */
+  public synchronized long getTotalBytes() { return totalBytes; }
+
+  /** The current time in milliseconds.  Overridable for testing. */
+  protected long now() { return System.currentTimeMillis(); }
+
+  /** A cached cajoling result. */
+  public static final class Entry {
+    private final byte[] content;
+    private final String contentType;
+    private final String charSet;
+    private final long createdMillis;
+
+    Entry(byte[] content, String contentType, String charSet,
+          long createdMillis) {
+      this.content = content;
+      this.contentType = contentType;
+      this.charSet = charSet;
+      this.createdMillis = createdMillis;
+    }
+
+    /** The cajoled output.  Callers must not modify the returned array. */
+    public byte[] getContent() { return content; }
+    /** The content-type of the output. */
+    public String getContentType() { return contentType; }
+    /** The character set of the output or null. */
+    public String getCharSet() { return charSet; }
+  }
+}
@@ -14,6 +14,8 @@
 
 package com.google.caja.service;
 
+import com.google.caja.parser.quasiliteral.RuleProfile;
+import com.google.caja.plugin.SchemaRegistry;
 import com.google.caja.reporting.BuildInfo;
 import com.google.caja.util.Pair;
 import com.google.caja.lexer.ExternalReference;
@@ -25,12 +27,16 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.io.Reader;
+import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -50,16 +56,153 @@ public class CajolingService extends HttpServlet {
   private List<ContentHandler> handlers = new Vector<ContentHandler>();
   private ContentTypeCheck typeCheck = new LooseContentTypeCheck();
   private String host = "http://caja.appspot.com/cajoler";
+  private final BuildInfo buildInfo;
+  private final CajoledOutputCache cache;
+  private final SchemaRegistry schemaRegistry;
+  private boolean streaming;
+  private RequestCoalescer<List<String>, Outcome> coalescer;
+  private volatile RuleProfile ruleProfile;
+
+  /** The size of the chunks in which streamed output is sent. */
+  private static final int STREAM_CHUNK_SIZE = 8192;
+  /**
+   * Streamed output larger than this is not cached, so that streaming
+   * requests need not hold a copy of large outputs.
+   */
+  private static final int MAX_RETAINED_STREAM_SIZE = 1 << 18;  // 256kB
 
   public CajolingService(BuildInfo buildInfo) {
-    registerHandlers(buildInfo);
+    this(buildInfo, new CajoledOutputCache());
   }
 
   public CajolingService(BuildInfo buildInfo, String host) {
+    this(buildInfo, host, new CajoledOutputCache());
+  }
+
+  /**
+   * @param cache caches cajoled output across requests, or null to cajole
+   *     every request anew.
+   */
+  public CajolingService(BuildInfo buildInfo, CajoledOutputCache cache) {
+    this.buildInfo = buildInfo;
+    this.cache = cache;
+    this.schemaRegistry = null;
+    registerHandlers(buildInfo);
+  }
+
+  public CajolingService(
+      BuildInfo buildInfo, String host, CajoledOutputCache cache) {
+    this(buildInfo, host, cache, null);
+  }
+
+  /**
+   * @param schemaRegistry supplies the CSS and HTML whitelists for each
+   *     request, or null to use the default whitelists.
+   */
+  public CajolingService(
+      BuildInfo buildInfo, String host, CajoledOutputCache cache,
+      SchemaRegistry schemaRegistry) {
     this.host = host;
+    this.buildInfo = buildInfo;
+    this.cache = cache;
+    this.schemaRegistry = schemaRegistry;
     registerHandlers(buildInfo);
   }
 
+  /**
+   * The cache of cajoled output, which exposes hit, miss, and eviction counts,
+   * or null if caching is disabled.
+   */
+  public CajoledOutputCache getCache() { return cache; }
+
+  /**
+   * The whitelists used to cajole requests, or null if the default whitelists
+   * are used.
+   */
+  public SchemaRegistry getSchemaRegistry() { return schemaRegistry; }
+
+  /**
+   * If true, output is written to the response in fixed size chunks as it is
+   * produced instead of being buffered in full.  A content handler that fails
+   * after the first chunk has been sent truncates the response instead of
+   * producing an error status.
+   */
+  public void setStreaming(boolean streaming) { this.streaming = streaming; }
+
+  public boolean isStreaming() { return streaming; }
+
+  /**
+   * If true, concurrent GET requests with the same url, mime-types, and
+   * transform are served by one fetch and cajole.  The output is buffered,
+   * even when streaming, and each request writes its own copy once it is
+   * ready.
+   */
+  public void setCoalescing(boolean coalescing) {
+    if (coalescing != (coalescer != null)) {
+      coalescer = coalescing
+          ? new RequestCoalescer<List<String>, Outcome>() : null;
+    }
+  }
+
+  /**
+   * Counts coalesced requests, or null if coalescing is disabled.
+   */
+  public RequestCoalescer<?, ?> getCoalescer() { return coalescer; }
+
+  /**
+   * If true, the rewriter rules used to cajole requests are profiled, and
+   * their statistics are aggregated across requests until profiling is
+   * turned off.
+   */
+  public void setProfiling(boolean profiling) {
+    if (profiling != (ruleProfile != null)) {
+      ruleProfile = profiling ? new RuleProfile() : null;
+      for (ContentHandler handler : handlers) {
+        setRuleProfile(handler, ruleProfile);
+      }
+    }
+  }
+
+  /**
+   * Statistics about the rewriter rules used to cajole requests, or null if
+   * profiling is disabled.
+   */
+  public RuleProfile getRuleProfile() { return ruleProfile; }
+
+  private static void setRuleProfile(ContentHandler h, RuleProfile profile) {
+    if (h instanceof JsHandler) {
+      ((JsHandler) h).setRuleProfile(profile);
+    } else if (h instanceof InnocentHandler) {
+      ((InnocentHandler) h).setRuleProfile(profile);
+    } else if (h instanceof HtmlHandler) {
+      ((HtmlHandler) h).setRuleProfile(profile);
+    }
+  }
+
+  /**
+   * Responds with the {@link RuleProfile#toJson JSON form} of the rule
+   * profile, or with a NOT_FOUND status if profiling is disabled.
+   */
+  public void writeRuleProfile(HttpServletResponse resp)
+      throws ServletException {
+    RuleProfile profile = ruleProfile;
+    if (profile == null) {
+      try {
+        resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+      } catch (IOException ex) {
+        throw (ServletException) new ServletException().initCause(ex);
+      }
+      return;
+    }
+    try {
+      writeResponse(
+          resp, Pair.pair("application/json", "UTF-8"),
+          profile.toJson().toJSONString().getBytes("UTF-8"));
+    } catch (UnsupportedEncodingException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
   /**
    * Read the remainder of the input request, send a BAD_REQUEST http status
    * to browser and close the connection
@@ -74,6 +217,27 @@ public class CajolingService extends HttpServlet {
     }
   }
 
+  /**
+   * Send a SERVICE_UNAVAILABLE http status to the browser and close the
+   * connection.
+   *
+   * @param retryAfterSeconds the value of the Retry-After header, or null
+   *     for none.
+   */
+  static void closeUnavailable(
+      HttpServletResponse resp, String retryAfterSeconds)
+      throws ServletException {
+    try {
+      if (retryAfterSeconds != null) {
+        resp.setHeader("Retry-After", retryAfterSeconds);
+      }
+      resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      resp.getWriter().close();
+    } catch (IOException ex) {
+      throw (ServletException) new ServletException().initCause(ex);
+    }
+  }
+
   /**
    * Fetch query parameter from request
    */
@@ -121,83 +285,272 @@ public class CajolingService extends HttpServlet {
   }
 
   @Override
-  public void doGet(HttpServletRequest req, HttpServletResponse resp)
+  public void doGet(final HttpServletRequest req, HttpServletResponse resp)
       throws ServletException {
     String inputUrlString = getParam(req, "url", true /* required */);
-    URI inputUri;
+    final URI inputUri;
     try {
       inputUri = new URI(inputUrlString);
     } catch (URISyntaxException ex) {
       throw (ServletException) new ServletException().initCause(ex);
     }
 
-    String expectedInputContentType = getParam(req, "mime-type",
-        false /* required */);
-    if (expectedInputContentType == null) {
-      expectedInputContentType = getParam(req, "input-mime-type",
-          true /* required */);
+    String mimeType = getParam(req, "mime-type", false /* required */);
+    final String expectedInputContentType = mimeType != null
+        ? mimeType : getParam(req, "input-mime-type", true /* required */);
+
+    if (coalescer == null) {
+      FetchedData fetchedData = fetchChecked(
+          inputUri, expectedInputContentType);
+      if (fetchedData == null) {
+        closeBadRequest(resp);
+      } else {
+        handle(req, resp, inputUri, fetchedData);
+      }
+      return;
+    }
+
+    List<String> key = Arrays.asList(
+        inputUrlString, expectedInputContentType,
+        getParam(req, "output-mime-type", false /* required */),
+        getParam(req, "transform", false /* required */));
+    // The shared computation does not touch any response, so that a failure
+    // writing to one client cannot affect the others.  Every request,
+    // including the one that ran the computation, writes its own response.
+    while (true) {
+      final boolean[] computed = new boolean[1];
+      Outcome outcome;
+      try {
+        outcome = coalescer.run(key, new Callable<Outcome>() {
+          public Outcome call() throws ServletException {
+            computed[0] = true;
+            FetchedData fetchedData = fetchChecked(
+                inputUri, expectedInputContentType);
+            return fetchedData != null
+                ? cajole(req, inputUri, fetchedData) : Outcome.REJECTED;
+          }
+        });
+      } catch (ExecutionException ex) {
+        Throwable th = ex.getCause();
+        if (th instanceof ServletException) { throw (ServletException) th; }
+        if (th instanceof RuntimeException) { throw (RuntimeException) th; }
+        if (th instanceof Error) { throw (Error) th; }
+        throw (ServletException) new ServletException().initCause(th);
+      } catch (InterruptedException ex) {
+        // Cancelled while waiting for another request's result.
+        closeUnavailable(resp, null);
+        Thread.currentThread().interrupt();
+        return;
+      }
+      // Another request's cancellation says nothing about this one's
+      // deadline, so try again.
+      if (outcome == Outcome.UNAVAILABLE && !computed[0]) { continue; }
+      writeOutcome(resp, outcome);
+      return;
     }
+  }
 
+  /**
+   * Fetches the content at inputUri.
+   * @return null if it could not be fetched or is not of the expected type.
+   */
+  private FetchedData fetchChecked(
+      URI inputUri, String expectedInputContentType) {
     FetchedData fetchedData;
     try {
       fetchedData = fetch(inputUri);
     } catch (IOException ex) {
-      closeBadRequest(resp);
-      return;
+      return null;
     }
-
     if (!typeCheck.check(expectedInputContentType,
             fetchedData.getContentType())) {
-      closeBadRequest(resp);
-      return;
+      return null;
     }
-
-    handle(req, resp, inputUri, fetchedData);
+    return fetchedData;
   }
 
+  /**
+   * Answers a request for fetchedData, streaming the output to resp if
+   * streaming is enabled.
+   */
   private void handle(HttpServletRequest req, HttpServletResponse resp,
                       URI inputUri, FetchedData fetchedData)
       throws ServletException {
-    String outputContentType = getParam(req, "output-mime-type",
-        false /* required */);
-    if (outputContentType == null) {
-      outputContentType = "*/*";
+    if (!streaming) {
+      writeOutcome(resp, cajole(req, inputUri, fetchedData));
+      return;
+    }
+
+    String outputContentType = getOutputContentType(req);
+    Transform transform = getTransform(req);
+    String cacheKey = makeCacheKey(
+        inputUri, transform, fetchedData, outputContentType);
+    if (cacheKey != null) {
+      CajoledOutputCache.Entry cached = cache.get(cacheKey);
+      if (cached != null) {
+        writeResponse(resp, cached);
+        return;
+      }
+    }
+
+    ContentHandler handler = findHandler(
+        inputUri, transform, fetchedData.getContentType(), outputContentType);
+    if (handler == null) {
+      closeBadRequest(resp);
+      return;
     }
 
-    Transform transform;
+    ChunkedResponseStream out = new ChunkedResponseStream(
+        resp, STREAM_CHUNK_SIZE,
+        handler.getOutputContentInfo(
+            inputUri, transform, fetchedData.getContentType(),
+            outputContentType),
+        cache != null ? MAX_RETAINED_STREAM_SIZE : 0);
+    Pair<String, String> contentInfo;
     try {
-      transform = Transform.valueOf(
-          getParam(req, "transform", false /* required */));
-    } catch (Exception e ) {
-      transform = null;
+      contentInfo = handler.apply(
+          inputUri, transform, fetchedData.getContentType(),
+          outputContentType, fetchedData.getCharSet(),
+          fetchedData.getContent(), out);
+    } catch (UnsupportedContentTypeException e) {
+      if (!out.isCommitted()) {
+        closeBadRequest(resp);
+        return;
+      }
+      throw truncate(resp, e);
+    } catch (CancellationException e) {
+      if (!out.isCommitted()) {
+        closeUnavailable(resp, null);
+        return;
+      }
+      throw truncate(resp, e);
+    }
+    try {
+      out.close();
+    } catch (IOException ex) {
+      throw (ServletException) new ServletException().initCause(ex);
     }
+    byte[] captured = out.getCapturedBytes();
+    if (captured != null) {
+      cache.put(cacheKey, captured, contentInfo.a, contentInfo.b);
+    }
+  }
+
+  /**
+   * Cajoles fetchedData into memory without writing to any response, so that
+   * the outcome can be shared by several requests.
+   */
+  private Outcome cajole(
+      HttpServletRequest req, URI inputUri, FetchedData fetchedData)
+      throws ServletException {
+    String outputContentType = getOutputContentType(req);
+    Transform transform = getTransform(req);
+    String cacheKey = makeCacheKey(
+        inputUri, transform, fetchedData, outputContentType);
+    if (cacheKey != null) {
+      CajoledOutputCache.Entry cached = cache.get(cacheKey);
+      if (cached != null) { return new Outcome(cached); }
+    }
+
+    ContentHandler handler = findHandler(
+        inputUri, transform, fetchedData.getContentType(), outputContentType);
+    if (handler == null) { return Outcome.REJECTED; }
 
     ByteArrayOutputStream intermediateResponse = new ByteArrayOutputStream();
     Pair<String, String> contentInfo;
     try {
-      contentInfo = applyHandler(
-          inputUri,
-          transform, fetchedData.getContentType(), outputContentType,
-          fetchedData.getCharSet(), fetchedData.getContent(),
-          intermediateResponse);
+      contentInfo = handler.apply(
+          inputUri, transform, fetchedData.getContentType(),
+          outputContentType, fetchedData.getCharSet(),
+          fetchedData.getContent(), intermediateResponse);
     } catch (UnsupportedContentTypeException e) {
-      closeBadRequest(resp);
-      return;
+      return Outcome.REJECTED;
+    } catch (CancellationException e) {
+      return Outcome.UNAVAILABLE;
+    }
+    CajoledOutputCache.Entry output = new CajoledOutputCache.Entry(
+        intermediateResponse.toByteArray(), contentInfo.a, contentInfo.b, 0);
+    if (cacheKey != null) {
+      cache.put(cacheKey, output.getContent(), output.getContentType(),
+                output.getCharSet());
     }
+    return new Outcome(output);
+  }
 
-    byte[] response = intermediateResponse.toByteArray();
-    int responseLength = response.length;
+  private String getOutputContentType(HttpServletRequest req)
+      throws ServletException {
+    String outputContentType = getParam(req, "output-mime-type",
+        false /* required */);
+    return outputContentType != null ? outputContentType : "*/*";
+  }
 
-    resp.setStatus(HttpServletResponse.SC_OK);
-    String responseContentType = contentInfo.a;
-    if (contentInfo.b != null) {
-      responseContentType += ";charset=" + contentInfo.b;
+  private Transform getTransform(HttpServletRequest req)
+      throws ServletException {
+    try {
+      return Transform.valueOf(
+          getParam(req, "transform", false /* required */));
+    } catch (Exception e ) {
+      return null;
     }
-    if (containsNewline(responseContentType)) {
-      throw new IllegalArgumentException(responseContentType);
+  }
+
+  /** The key under which output is cached, or null if caching is disabled. */
+  private String makeCacheKey(
+      URI inputUri, Transform transform, FetchedData fetchedData,
+      String outputContentType) {
+    if (cache == null) { return null; }
+    String version = buildInfo.getBuildVersion();
+    if (schemaRegistry != null) {
+      // Output cajoled against replaced whitelists must not be served.
+      version += "/" + schemaRegistry.getGeneration();
+    }
+    return CajoledOutputCache.makeKey(
+        fetchedData.getContent(), inputUri.toString(), transform,
+        fetchedData.getContentType(), outputContentType,
+        fetchedData.getCharSet(), version);
+  }
+
+  private static void writeOutcome(HttpServletResponse resp, Outcome outcome)
+      throws ServletException {
+    if (outcome == Outcome.REJECTED) {
+      closeBadRequest(resp);
+    } else if (outcome == Outcome.UNAVAILABLE) {
+      closeUnavailable(resp, null);
+    } else {
+      writeResponse(resp, outcome.output);
     }
-    resp.setContentType(responseContentType);
-    resp.setContentLength(responseLength);
+  }
+
+  /**
+   * Ends a response whose headers have already been sent without sending the
+   * rest of its content.
+   * @return an exception describing the failure for the caller to throw.
+   */
+  private static ServletException truncate(
+      HttpServletResponse resp, Exception cause) {
+    try {
+      resp.getOutputStream().close();
+    } catch (IOException ex) {
+      // The failure is reported via cause.
+    }
+    return (ServletException) new ServletException().initCause(cause);
+  }
+
+  private static void writeResponse(
+      HttpServletResponse resp, CajoledOutputCache.Entry output)
+      throws ServletException {
+    writeResponse(
+        resp, Pair.pair(output.getContentType(), output.getCharSet()),
+        output.getContent());
+  }
+
+  private static void writeResponse(
+      HttpServletResponse resp, Pair<String, String> contentInfo,
+      byte[] response)
+      throws ServletException {
+    resp.setStatus(HttpServletResponse.SC_OK);
+    resp.setContentType(toContentTypeHeader(contentInfo));
+    resp.setContentLength(response.length);
 
     try {
       resp.getOutputStream().write(response);
@@ -207,6 +560,21 @@ public class CajolingService extends HttpServlet {
     }
   }
 
+  /**
+   * Formats the content-type and charset returned by a content handler as the
+   * value of a Content-type header.
+   */
+  static String toContentTypeHeader(Pair<String, String> contentInfo) {
+    String responseContentType = contentInfo.a;
+    if (contentInfo.b != null) {
+      responseContentType += ";charset=" + contentInfo.b;
+    }
+    if (containsNewline(responseContentType)) {
+      throw new IllegalArgumentException(responseContentType);
+    }
+    return responseContentType;
+  }
+
   public void registerHandlers(BuildInfo buildInfo) {
     UriCallback retriever = new UriCallback() {
       public Reader retrieve(ExternalReference extref, String mimeType)
@@ -226,27 +594,28 @@ public class CajolingService extends HttpServlet {
     };
     handlers.add(new JsHandler(buildInfo));
     handlers.add(new ImageHandler());
-    handlers.add(new GadgetHandler(buildInfo, retriever));
+    handlers.add(new GadgetHandler(buildInfo, retriever, schemaRegistry));
     handlers.add(new InnocentHandler());
-    handlers.add(new HtmlHandler(buildInfo, host, retriever));
+    handlers.add(new HtmlHandler(buildInfo, host, retriever, schemaRegistry));
+    for (ContentHandler handler : handlers) {
+      setRuleProfile(handler, ruleProfile);
+    }
   }
 
   protected FetchedData fetch(URI uri) throws IOException {
     return new FetchedData(uri);
   }
 
-  private Pair<String, String> applyHandler(
-      URI uri, Transform t, String inputContentType, String outputContentType,
-      String charSet, byte[] content, OutputStream response)
-      throws UnsupportedContentTypeException {
+  private ContentHandler findHandler(
+      URI uri, Transform t, String inputContentType,
+      String outputContentType) {
     for (ContentHandler handler : handlers) {
       if (handler.canHandle(uri, t, inputContentType,
               outputContentType, typeCheck)) {
-        return handler.apply(uri, t, inputContentType,
-            outputContentType, charSet, content, response);
+        return handler;
       }
     }
-    throw new UnsupportedContentTypeException();
+    return null;
   }
 
   // Used to protect against header splitting attacks.
@@ -254,6 +623,22 @@ public class CajolingService extends HttpServlet {
     return s.indexOf('\n') >= 0 || s.indexOf('\r') >= 0;
   }
 
+  /** The result of a request, shareable with identical requests. */
+  private static final class Outcome {
+    /** Answered with a FORBIDDEN status. */
+    static final Outcome REJECTED = new Outcome(null);
+    /**
+     * Cajoling was cancelled, which is answered with a SERVICE_UNAVAILABLE
+     * status.
+     */
+    static final Outcome UNAVAILABLE = new Outcome(null);
+
+    /** The response body. */
+    final CajoledOutputCache.Entry output;
+
+    Outcome(CajoledOutputCache.Entry output) { this.output = output; }
+  }
+
   public static enum Transform {
     INNOCENT,
     VALIJA,
@@ -14,7 +14,17 @@
 
 package com.google.caja.service;
 
+import com.google.caja.config.AllowedFileResolver;
+import com.google.caja.parser.quasiliteral.QuasiBuilder;
+import com.google.caja.plugin.SchemaRegistry;
 import com.google.caja.reporting.BuildInfo;
+import com.google.caja.reporting.MessageQueue;
+import com.google.caja.reporting.SimpleMessageQueue;
+
+import java.io.File;
+import java.net.URI;
+import java.util.HashSet;
+import java.util.Set;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -29,27 +39,117 @@ import org.mortbay.jetty.handler.AbstractHandler;
  *   <li>cajoles any gadgets
  *   <li>checks requested and retrieved mime-types
  * </ul>
+ * Requests are cajoled on a bounded worker pool configured by the system
+ * properties {@code caja.service.threads}, {@code caja.service.maxQueued}
+ * and {@code caja.service.deadlineMillis}.
+ * The CSS and HTML whitelists are loaded from the URIs in the system
+ * properties {@code caja.service.cssPropertiesWhitelist},
+ * {@code caja.service.cssFunctionsWhitelist},
+ * {@code caja.service.htmlElementsWhitelist} and
+ * {@code caja.service.htmlAttributesWhitelist}, which default to the
+ * whitelists on the classpath.  Whitelists given as {@code file:} URIs are
+ * reloaded when they change, checking every
+ * {@code caja.service.whitelistPollMillis}.
+ * If the system property {@code caja.service.profileRules} is true, the
+ * rewriter rules used are profiled and their statistics are served as JSON
+ * from {@code /rule-profile}.  That path is not authenticated, so rules should
+ * only be profiled on a server that is not publicly reachable.
  *
  * @author jasvir@gmail.com (Jasvir Nagra)
  */
 public class CajolingServiceMain {
   public static void main(String[] args) throws Exception {
+    long startTime = System.currentTimeMillis();
+    // Parse the rewriters' quasi patterns before accepting requests so the
+    // first requests are as fast as later ones.
+    int nPatterns = QuasiBuilder.warmUp();
+    System.err.println(
+        "Parsed " + nPatterns + " quasi patterns in "
+        + (System.currentTimeMillis() - startTime) + " ms");
+
     // http://docs.codehaus.org/display/JETTY/Embedding+Jetty
     int port = 8887;
     Server server = new Server(port);
     
+    SchemaRegistry schemaRegistry = makeSchemaRegistry();
+    schemaRegistry.startPolling(
+        Long.getLong("caja.service.whitelistPollMillis", 5000));
+
     final CajolingService service
     = new CajolingService(BuildInfo.getInstance(),
-        "http://localhost:" + port);
-    
+        "http://localhost:" + port, new CajoledOutputCache(), schemaRegistry);
+    service.setStreaming(true);
+    service.setCoalescing(true);
+    final boolean profiling = Boolean.getBoolean("caja.service.profileRules");
+    service.setProfiling(profiling);
+
+    int nThreads = Integer.getInteger(
+        "caja.service.threads", Runtime.getRuntime().availableProcessors());
+    final CajolingWorkerPool pool = new CajolingWorkerPool(
+        service, nThreads,
+        Integer.getInteger("caja.service.maxQueued", 4 * nThreads),
+        Long.getLong("caja.service.deadlineMillis", 10000));
+
     server.setHandler(new AbstractHandler() {
       public void handle(
           String target, HttpServletRequest req, HttpServletResponse resp,
           int dispatch)
           throws ServletException {
-        service.doGet(req, resp);
+        if (profiling && "/rule-profile".equals(target)) {
+          service.writeRuleProfile(resp);
+        } else {
+          pool.serve(req, resp);
+        }
+      }
+
+      @Override
+      protected void doStop() throws Exception {
+        pool.shutdown();
+        super.doStop();
       }
     });
     server.start();
+    System.err.println(
+        "Ready to serve fast responses "
+        + (System.currentTimeMillis() - startTime) + " ms after startup");
+  }
+
+  private static SchemaRegistry makeSchemaRegistry() throws Exception {
+    URI cssProperties = whitelistUri(
+        "caja.service.cssPropertiesWhitelist",
+        "resource:///com/google/caja/lang/css/css-extensions.json");
+    URI cssFunctions = whitelistUri(
+        "caja.service.cssFunctionsWhitelist",
+        "resource:///com/google/caja/lang/css/css-extensions-fns.json");
+    URI htmlElements = whitelistUri(
+        "caja.service.htmlElementsWhitelist",
+        "resource:///com/google/caja/lang/html/"
+        + "html4-elements-extensions.json");
+    URI htmlAttributes = whitelistUri(
+        "caja.service.htmlAttributesWhitelist",
+        "resource:///com/google/caja/lang/html/"
+        + "html4-attributes-extensions.json");
+    // Only the configured files may be read.  Whitelists they inherit must be
+    // on the classpath.
+    Set<File> allowedFiles = new HashSet<File>();
+    for (URI uri : new URI[] {
+             cssProperties, cssFunctions, htmlElements, htmlAttributes }) {
+      if ("file".equals(uri.getScheme())) { allowedFiles.add(new File(uri)); }
+    }
+    MessageQueue mq = new SimpleMessageQueue();
+    try {
+      return new SchemaRegistry(
+          cssProperties, cssFunctions, htmlElements, htmlAttributes,
+          new AllowedFileResolver(allowedFiles), mq);
+    } finally {
+      if (!mq.getMessages().isEmpty()) {
+        System.err.println(mq.getMessages());
+      }
+    }
+  }
+
+  private static URI whitelistUri(String property, String defaultUri) {
+    return new File(".").toURI().resolve(
+        System.getProperty(property, defaultUri));
   }
 }
@@ -0,0 +1,259 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.service;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Runs cajoling requests on a fixed number of worker threads so that the
+ * number of concurrent compilations is bounded regardless of the number of
+ * connections.
+ * <p>
+ * Requests that arrive when too many are already waiting are shed with a
+ * 503 and a Retry-After header instead of queueing indefinitely.
+ * A request that has not finished by its deadline, measured from its arrival,
+ * is cancelled by interrupting its worker.  The rewriter and pipeline check
+ * for interruption between steps and abort with a
+ * {@link CancellationException}, which the service answers with a 503 if no
+ * output has been sent yet.  If the worker has neither answered nor started
+ * sending output shortly after the deadline, as when it is blocked in I/O
+ * that ignores interrupts, the pool sends the 503 itself and abandons the
+ * worker.
+ */
+public final class CajolingWorkerPool {
+  private final CajolingService service;
+  private final ThreadPoolExecutor executor;
+  private final long deadlineMillis;
+  private final String retryAfterSeconds;
+  private final AtomicLong shedCount = new AtomicLong();
+  private final AtomicLong timeoutCount = new AtomicLong();
+
+  /**
+   * How long past the deadline a worker has to answer a cancelled request
+   * itself before the pool answers it.
+   */
+  private static final long CANCEL_GRACE_MILLIS = 250;
+
+  // Values of a request's owner, the thread that may write its response.
+  private static final int UNCLAIMED = 0;
+  private static final int WORKER = 1;
+  private static final int POOL = 2;
+
+  /**
+   * @param nThreads the number of requests that can be cajoled concurrently.
+   * @param maxQueued the number of requests that can wait for a worker
+   *     before further requests are shed.
+   * @param deadlineMillis the time after arrival at which a request is
+   *     cancelled.
+   */
+  public CajolingWorkerPool(
+      CajolingService service, int nThreads, int maxQueued,
+      long deadlineMillis) {
+    if (nThreads <= 0 || maxQueued <= 0 || deadlineMillis <= 0) {
+      throw new IllegalArgumentException();
+    }
+    this.service = service;
+    this.executor = new ThreadPoolExecutor(
+        nThreads, nThreads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(maxQueued));
+    this.deadlineMillis = deadlineMillis;
+    this.retryAfterSeconds = "" + Math.max(1, (deadlineMillis + 999) / 1000);
+  }
+
+  /**
+   * Answers a GET request on a worker thread, blocking until it has been
+   * answered or the deadline has passed.
+   */
+  public void serve(
+      final HttpServletRequest req, final HttpServletResponse resp)
+      throws ServletException {
+    // The worker only claims the response when it first writes to it, so
+    // until then this thread can answer a request whose worker is stuck,
+    // e.g. in I/O that ignores interrupts.
+    final AtomicInteger owner = new AtomicInteger(UNCLAIMED);
+    final CountDownLatch done = new CountDownLatch(1);
+    Future<Void> result;
+    try {
+      result = executor.submit(new Callable<Void>() {
+        public Void call() throws ServletException {
+          try {
+            if (owner.get() == UNCLAIMED) {
+              service.doGet(req, new ClaimingResponse(resp, owner));
+            }
+          } finally {
+            done.countDown();
+          }
+          return null;
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      shedCount.incrementAndGet();
+      CajolingService.closeUnavailable(resp, retryAfterSeconds);
+      return;
+    }
+
+    try {
+      result.get(deadlineMillis, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException ex) {
+      timeoutCount.incrementAndGet();
+      result.cancel(true);
+      // Give the worker a chance to notice the interrupt and answer.
+      if (awaitUninterruptibly(done, CANCEL_GRACE_MILLIS)) { return; }
+      if (owner.compareAndSet(UNCLAIMED, POOL)) {
+        CajolingService.closeUnavailable(resp, retryAfterSeconds);
+      } else {
+        // The worker is already sending its output and will stop at its next
+        // check for interruption.  The response cannot be handed back to the
+        // server while another thread writes to it.
+        awaitUninterruptibly(done, Long.MAX_VALUE);
+      }
+    } catch (ExecutionException ex) {
+      Throwable th = ex.getCause();
+      if (th instanceof ServletException) { throw (ServletException) th; }
+      if (th instanceof RuntimeException) { throw (RuntimeException) th; }
+      if (th instanceof Error) { throw (Error) th; }
+      throw (ServletException) new ServletException().initCause(th);
+    } catch (InterruptedException ex) {
+      result.cancel(true);
+      Thread.currentThread().interrupt();
+      throw (ServletException) new ServletException().initCause(ex);
+    }
+  }
+
+  /** @return true if latch reached zero before the timeout. */
+  private static boolean awaitUninterruptibly(
+      CountDownLatch latch, long timeoutMillis) {
+    boolean interrupted = false;
+    long end = System.currentTimeMillis() + timeoutMillis;
+    if (end < 0) { end = Long.MAX_VALUE; }  // Overflow
+    try {
+      while (true) {
+        try {
+          return latch.await(
+              end - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (interrupted) { Thread.currentThread().interrupt(); }
+    }
+  }
+
+  /** Stops accepting requests and interrupts running ones. */
+  public void shutdown() { executor.shutdownNow(); }
+
+  /** The number of requests turned away because the queue was full. */
+  public long getShedCount() { return shedCount.get(); }
+
+  /** The number of requests that did not finish by their deadline. */
+  public long getTimeoutCount() { return timeoutCount.get(); }
+
+  /** The number of requests waiting for a worker. */
+  public int getQueueDepth() { return executor.getQueue().size(); }
+
+  /**
+   * The response seen by a worker, which claims the underlying response for
+   * the worker on the first call that could send anything.
+   * If the pool has already answered the request, those calls throw a
+   * {@link CancellationException} instead.
+   */
+  private static final class ClaimingResponse implements HttpServletResponse {
+    private final HttpServletResponse resp;
+    private final AtomicInteger owner;
+
+    ClaimingResponse(HttpServletResponse resp, AtomicInteger owner) {
+      this.resp = resp;
+      this.owner = owner;
+    }
+
+    private HttpServletResponse claim() {
+      if (owner.get() != WORKER && !owner.compareAndSet(UNCLAIMED, WORKER)) {
+        throw new CancellationException("Answered after the deadline");
+      }
+      return resp;
+    }
+
+    public void addCookie(Cookie cookie) { claim().addCookie(cookie); }
+    public boolean containsHeader(String name) {
+      return resp.containsHeader(name);
+    }
+    public String encodeRedirectURL(String url) {
+      return resp.encodeRedirectURL(url);
+    }
+    @Deprecated
+    public String encodeRedirectUrl(String url) {
+      return resp.encodeRedirectUrl(url);
+    }
+    public String encodeURL(String url) { return resp.encodeURL(url); }
+    @Deprecated
+    public String encodeUrl(String url) { return resp.encodeUrl(url); }
+    public void sendError(int code) throws IOException {
+      claim().sendError(code);
+    }
+    public void sendError(int code, String msg) throws IOException {
+      claim().sendError(code, msg);
+    }
+    public void sendRedirect(String location) throws IOException {
+      claim().sendRedirect(location);
+    }
+    public void setDateHeader(String name, long date) {
+      claim().setDateHeader(name, date);
+    }
+    public void setHeader(String name, String value) {
+      claim().setHeader(name, value);
+    }
+    public void setIntHeader(String name, int value) {
+      claim().setIntHeader(name, value);
+    }
+    public void setStatus(int code) { claim().setStatus(code); }
+    @Deprecated
+    public void setStatus(int code, String msg) {
+      claim().setStatus(code, msg);
+    }
+    public String getCharacterEncoding() {
+      return resp.getCharacterEncoding();
+    }
+    public ServletOutputStream getOutputStream() throws IOException {
+      return claim().getOutputStream();
+    }
+    public PrintWriter getWriter() throws IOException {
+      return claim().getWriter();
+    }
+    public void setContentLength(int length) {
+      claim().setContentLength(length);
+    }
+    public void setContentType(String type) { claim().setContentType(type); }
+  }
+}
@@ -0,0 +1,136 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.service;
+
+import com.google.caja.util.Pair;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * An output stream that writes to a servlet response in fixed size chunks.
+ * <p>
+ * Response headers are not sent until the first chunk is full, so that a
+ * content handler that fails before then can still be answered with an error
+ * status.  Once the headers are sent the response is <i>committed</i> and an
+ * error can only truncate it.
+ * If the whole output fits in one chunk, then {@link #close} sends it with an
+ * accurate content length.
+ */
+final class ChunkedResponseStream extends OutputStream {
+  private final HttpServletResponse resp;
+  private final Pair<String, String> contentInfo;
+  private final byte[] buf;
+  private int pos;
+  private OutputStream out;
+  private boolean closed;
+  /**
+   * A copy of everything written, or null if capturing was not requested or
+   * the output grew larger than the capture limit.
+   */
+  private ByteArrayOutputStream capture;
+  private final int captureLimit;
+
+  /**
+   * @param resp the response to write to.
+   * @param chunkSize the number of bytes buffered before a write to resp.
+   * @param contentInfo the content-type and charset of the response.
+   * @param captureLimit the maximum number of bytes of output to keep for
+   *     {@link #getCapturedBytes}, or 0 to keep none.
+   */
+  ChunkedResponseStream(
+      HttpServletResponse resp, int chunkSize,
+      Pair<String, String> contentInfo, int captureLimit) {
+    if (chunkSize <= 0) { throw new IllegalArgumentException(); }
+    this.resp = resp;
+    this.contentInfo = contentInfo;
+    this.buf = new byte[chunkSize];
+    this.captureLimit = captureLimit;
+    if (captureLimit > 0) { this.capture = new ByteArrayOutputStream(); }
+  }
+
+  /** True if headers and output have been sent to the client. */
+  boolean isCommitted() { return out != null; }
+
+  /**
+   * The complete output if it was no larger than the capture limit and the
+   * stream has been closed, or null otherwise.
+   */
+  byte[] getCapturedBytes() {
+    return closed && capture != null ? capture.toByteArray() : null;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (pos == buf.length) { flushChunk(); }
+    buf[pos++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] bytes, int off, int len) throws IOException {
+    while (len > 0) {
+      if (pos == buf.length) { flushChunk(); }
+      int n = Math.min(len, buf.length - pos);
+      System.arraycopy(bytes, off, buf, pos, n);
+      pos += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * Sends the buffered chunk if it is full.  A partial chunk is held back,
+   * since sending it would commit the response before the content handler
+   * has had a chance to fail.
+   */
+  @Override
+  public void flush() throws IOException {
+    if (pos == buf.length) { flushChunk(); }
+  }
+
+  /** Sends any buffered output and completes the response. */
+  @Override
+  public void close() throws IOException {
+    if (closed) { return; }
+    if (out == null) {
+      resp.setContentLength(pos);
+    }
+    flushChunk();
+    closed = true;
+    out.close();
+  }
+
+  private void flushChunk() throws IOException {
+    if (closed) { throw new IOException("Stream closed"); }
+    if (out == null) {
+      resp.setStatus(HttpServletResponse.SC_OK);
+      resp.setContentType(CajolingService.toContentTypeHeader(contentInfo));
+      out = resp.getOutputStream();
+    }
+    if (capture != null) {
+      if (capture.size() + pos > captureLimit) {
+        capture = null;
+      } else {
+        capture.write(buf, 0, pos);
+      }
+    }
+    out.write(buf, 0, pos);
+    out.flush();
+    pos = 0;
+  }
+}
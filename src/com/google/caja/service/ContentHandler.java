@@ -41,6 +41,21 @@ public interface ContentHandler {
       String inputContentType, String outputContentType,
       ContentTypeCheck checker);
 
+  /**
+   * Returns the content-type and content-encoding of the output that
+   * {@link #apply} would produce for the same inputs, so that response
+   * headers can be sent before all the output has been produced.
+   *
+   * @param uri URI of content
+   * @param trans Type of rewriting to perform
+   * @param inputContentType The actual input content-type
+   * @param outputContentType Requested output content-type
+   * @return the content-type and content-encoding of the resulting output
+   */
+  public Pair<String, String> getOutputContentInfo(
+      URI uri, CajolingService.Transform trans,
+      String inputContentType, String outputContentType);
+
   /**
    * Reads content from {@code stream} and writes it to {@code response}.
    * Checks to ensure that content has type compatible with {@code contentType}
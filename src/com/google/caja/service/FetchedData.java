@@ -47,7 +47,7 @@ final class FetchedData {
   }
 
   public FetchedData(URI uri) throws IOException {
-    this(uri.toURL().openConnection());
+    this(openConnection(uri));
   }
 
   public FetchedData(URLConnection connection) throws IOException {
@@ -75,6 +75,19 @@ final class FetchedData {
    */
   public String getCharSet() { return charSet; }
 
+  /**
+   * Bounds the time spent connecting and waiting for data, since a blocked
+   * read is not interrupted when a request is cancelled.
+   */
+  private static final int FETCH_TIMEOUT_MILLIS = 10000;
+
+  private static URLConnection openConnection(URI uri) throws IOException {
+    URLConnection connection = uri.toURL().openConnection();
+    connection.setConnectTimeout(FETCH_TIMEOUT_MILLIS);
+    connection.setReadTimeout(FETCH_TIMEOUT_MILLIS);
+    return connection;
+  }
+
   private static int MAX_RESPONSE_SIZE_BYTES = 1 << 18;  // 256kB
   protected static byte[] readStream(InputStream is) throws IOException {
     ByteArrayOutputStream buffer = new ByteArrayOutputStream();
@@ -21,6 +21,8 @@ import com.google.caja.opensocial.DefaultGadgetRewriter;
 import com.google.caja.opensocial.GadgetRewriteException;
 import com.google.caja.opensocial.UriCallback;
 import com.google.caja.opensocial.UriCallbackException;
+import com.google.caja.plugin.CompilerContext;
+import com.google.caja.plugin.SchemaRegistry;
 import com.google.caja.reporting.MessageQueue;
 import com.google.caja.reporting.SimpleMessageQueue;
 import com.google.caja.reporting.BuildInfo;
@@ -38,10 +40,22 @@ import java.net.URLEncoder;
 public class GadgetHandler implements ContentHandler {
   private final BuildInfo buildInfo;
   private final UriCallback retriever;
+  private final SchemaRegistry schemaRegistry;
 
   public GadgetHandler(BuildInfo buildInfo, UriCallback retriever) {
+    this(buildInfo, retriever, null);
+  }
+
+  /**
+   * @param schemaRegistry supplies the whitelists for each request, or null
+   *     to use the default whitelists.
+   */
+  public GadgetHandler(
+      BuildInfo buildInfo, UriCallback retriever,
+      SchemaRegistry schemaRegistry) {
     this.buildInfo = buildInfo;
     this.retriever = retriever;
+    this.schemaRegistry = schemaRegistry;
   }
 
   public boolean canHandle(
@@ -52,6 +66,12 @@ public class GadgetHandler implements ContentHandler {
         && checker.check(outputContentType, "text/javascript");
   }
 
+  public Pair<String, String> getOutputContentInfo(
+      URI uri, CajolingService.Transform transform,
+      String inputContentType, String outputContentType) {
+    return new Pair<String, String>("text/javascript", "UTF-8");
+  }
+
   public Pair<String, String> apply(URI uri, CajolingService.Transform trans, 
       String inputContentType, String outputContentType, String charSet,
       byte[] content, OutputStream response)
@@ -80,6 +100,12 @@ public class GadgetHandler implements ContentHandler {
       throws ParseException, GadgetRewriteException, IOException {
     MessageQueue mq = new SimpleMessageQueue();
     DefaultGadgetRewriter rewriter = new DefaultGadgetRewriter(buildInfo, mq);
+    if (schemaRegistry != null) {
+      // Take both whitelists from one context so that they match.
+      CompilerContext context = schemaRegistry.newContext(buildInfo);
+      rewriter.setCssSchema(context.getCssSchema());
+      rewriter.setHtmlSchema(context.getHtmlSchema());
+    }
 
     UriCallback uriCallback = new UriCallback() {
       public Reader retrieve(ExternalReference extref, String mimeType)
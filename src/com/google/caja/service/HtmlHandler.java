@@ -25,10 +25,13 @@ import com.google.caja.parser.ParseTreeNode;
 import com.google.caja.parser.html.DomParser;
 import com.google.caja.parser.html.Nodes;
 import com.google.caja.parser.js.CajoledModule;
+import com.google.caja.parser.quasiliteral.RuleProfile;
+import com.google.caja.plugin.CompilerContext;
 import com.google.caja.plugin.Dom;
 import com.google.caja.plugin.PluginCompiler;
 import com.google.caja.plugin.PluginEnvironment;
 import com.google.caja.plugin.PluginMeta;
+import com.google.caja.plugin.SchemaRegistry;
 import com.google.caja.render.Concatenator;
 import com.google.caja.render.JsMinimalPrinter;
 import com.google.caja.reporting.BuildInfo;
@@ -38,6 +41,7 @@ import com.google.caja.reporting.MessageLevel;
 import com.google.caja.reporting.MessageQueue;
 import com.google.caja.reporting.RenderContext;
 import com.google.caja.reporting.SimpleMessageQueue;
+import com.google.caja.util.Callback;
 import com.google.caja.util.Pair;
 
 import java.io.IOException;
@@ -50,7 +54,6 @@ import java.net.URI;
 import java.net.URLEncoder;
 
 import org.w3c.dom.Document;
-import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
 /**
@@ -60,7 +63,11 @@ import org.w3c.dom.Node;
  */
 public class HtmlHandler implements ContentHandler {
   private final BuildInfo buildInfo;
-  private final PluginMeta meta;
+  private final SchemaRegistry schemaRegistry;
+  /** The context used for every request when there is no registry. */
+  private final CompilerContext defaultContext;
+  private final PluginEnvironment env;
+  private volatile RuleProfile ruleProfile;
   private final static String DEFAULT_HOSTED_SERVICE =
     "http://caja.appsport.com/cajoler";
 
@@ -68,11 +75,24 @@ public class HtmlHandler implements ContentHandler {
     this(buildInfo, DEFAULT_HOSTED_SERVICE, null);
   }
 
+  public HtmlHandler(
+      BuildInfo buildInfo, String hostedService, UriCallback retriever) {
+    this(buildInfo, hostedService, retriever, null);
+  }
+
+  /**
+   * @param schemaRegistry supplies the whitelists for each request, or null
+   *     to use the default whitelists.
+   */
   public HtmlHandler(
       BuildInfo buildInfo, final String hostedService,
-      final UriCallback retriever) {
+      final UriCallback retriever, SchemaRegistry schemaRegistry) {
     this.buildInfo = buildInfo;
-    this.meta = new PluginMeta(new PluginEnvironment() {
+    this.schemaRegistry = schemaRegistry;
+    this.defaultContext = schemaRegistry == null
+        ? CompilerContext.getDefault(buildInfo, new SimpleMessageQueue())
+        : null;
+    this.env = new PluginEnvironment() {
       public CharProducer loadExternalResource(
           ExternalReference ref, String mimeType) {
         try {
@@ -102,9 +122,15 @@ public class HtmlHandler implements ContentHandler {
         }
       }
 
-    });
-    // HtmlHandler only cajoles in valija mode
-    meta.setValijaMode(true);
+    };
+  }
+
+  /**
+   * Sets the profile that receives statistics about the rules used to cajole
+   * content, or null to stop profiling.
+   */
+  public void setRuleProfile(RuleProfile ruleProfile) {
+    this.ruleProfile = ruleProfile;
   }
 
   public boolean canHandle(URI uri, CajolingService.Transform transform,
@@ -115,6 +141,12 @@ public class HtmlHandler implements ContentHandler {
         && checker.check(outputContentType, "text/html");
   }
 
+  public Pair<String, String> getOutputContentInfo(
+      URI uri, CajolingService.Transform transform,
+      String inputContentType, String outputContentType) {
+    return new Pair<String, String>("text/javascript", "UTF-8");
+  }
+
   public Pair<String,String> apply(URI uri, CajolingService.Transform transform,
       String inputContentType, String outputContentType, String charset,
       byte[] content, OutputStream response)
@@ -158,31 +190,49 @@ public class HtmlHandler implements ContentHandler {
       ParseTreeNode html = new Dom(p.parseFragment(doc));
       p.getTokenQueue().expectEmpty();
 
-      PluginCompiler compiler = new PluginCompiler(buildInfo, meta, mq);
+      // Requests may be handled concurrently, so each gets its own meta.
+      PluginMeta meta = new PluginMeta(env);
+      // HtmlHandler only cajoles in valija mode
+      meta.setValijaMode(true);
+      meta.setRuleProfile(ruleProfile);
+      // Fetch the whitelists once per request so that a reload cannot
+      // change them part way through.
+      CompilerContext context = schemaRegistry != null
+          ? schemaRegistry.newContext(buildInfo) : defaultContext;
+      PluginCompiler compiler = new PluginCompiler(context, meta, mq);
 
       compiler.addInput(AncestorChain.instance(html));
       if (okToContinue) {
         okToContinue &= compiler.run();
       }
       if (okToContinue) {
+        // Rendered straight into the response so that the output is never
+        // held in memory in full.
+        final IOException[] failure = new IOException[1];
+        Callback<IOException> exHandler = new Callback<IOException>() {
+          public void handle(IOException ex) {
+            if (failure[0] == null) { failure[0] = ex; }
+          }
+        };
         Node staticHtml = compiler.getStaticHtml();
         if (staticHtml != null) {
-          output.append(Nodes.render(staticHtml));
+          Nodes.render(
+              staticHtml,
+              new RenderContext(new Concatenator(output, exHandler)));
         }
         CajoledModule js = compiler.getJavascript();
         if (js != null) {
-          StringBuilder jsOut = new StringBuilder();
+          // Embeddable output cannot contain a </script> end tag, so it needs
+          // no escaping.
+          output.append("<script type=\"text/javascript\">");
           RenderContext rc = new RenderContext(
-              new JsMinimalPrinter(new Concatenator(jsOut)))
+              new JsMinimalPrinter(new Concatenator(output, exHandler)))
               .withEmbeddable(true);
           js.render(rc);
           rc.getOut().noMoreTokens();
-
-          Element script = doc.createElement("SCRIPT");
-          script.setAttribute("type", "text/javascript");
-          script.appendChild(doc.createTextNode(jsOut.toString()));
-          output.append(Nodes.render(script));
+          output.append("</script>");
         }
+        if (failure[0] != null) { throw failure[0]; }
       } else {
         MessageContext mc = new MessageContext();
         printMessages(mq, mc, System.err);
@@ -34,6 +34,12 @@ public class ImageHandler implements ContentHandler {
         && checker.check(outputContentType, inputContentType);
   }
 
+  public Pair<String, String> getOutputContentInfo(
+      URI uri, CajolingService.Transform transform,
+      String inputContentType, String outputContentType) {
+    return new Pair<String, String>(inputContentType, "");
+  }
+
   public Pair<String, String> apply(URI uri, CajolingService.Transform trans,
       String inputContentType, String outputContentType, String charSet,
       byte[] content, OutputStream response)
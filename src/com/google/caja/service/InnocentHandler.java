@@ -22,6 +22,7 @@ import com.google.caja.parser.js.Block;
 import com.google.caja.parser.js.Parser;
 import com.google.caja.parser.quasiliteral.InnocentCodeRewriter;
 import com.google.caja.parser.quasiliteral.Rewriter;
+import com.google.caja.parser.quasiliteral.RuleProfile;
 import com.google.caja.reporting.MessageQueue;
 import com.google.caja.reporting.SimpleMessageQueue;
 import com.google.caja.util.Pair;
@@ -39,6 +40,15 @@ import java.net.URI;
  * @author jasvir@google.com (Jasvir Nagra)
  */
 public class InnocentHandler implements ContentHandler {
+  private volatile RuleProfile ruleProfile;
+
+  /**
+   * Sets the profile that receives statistics about the rules used to cajole
+   * content, or null to stop profiling.
+   */
+  public void setRuleProfile(RuleProfile ruleProfile) {
+    this.ruleProfile = ruleProfile;
+  }
 
   public boolean canHandle(URI uri, CajolingService.Transform transform,
       String inputContentType, String outputContentType,
@@ -48,6 +58,12 @@ public class InnocentHandler implements ContentHandler {
       && checker.check(outputContentType, "text/javascript");
   }
 
+  public Pair<String, String> getOutputContentInfo(
+      URI uri, CajolingService.Transform transform,
+      String inputContentType, String outputContentType) {
+    return new Pair<String, String>("text/javascript", "UTF-8");
+  }
+
   public Pair<String,String> apply(URI uri, CajolingService.Transform transform,
       String inputContentType, String outputContentType, String charset,
       byte[] content, OutputStream response)
@@ -77,7 +93,10 @@ public class InnocentHandler implements ContentHandler {
       tq.expectEmpty();
 
       Rewriter rw = new InnocentCodeRewriter(mq, false /* logging */);
-      output.append(Rewriter.render(rw.expand(input)));
+      rw.setProfile(ruleProfile);
+      // Rendered straight into the response so that the output is never
+      // held in memory in full.
+      Rewriter.render(rw.expand(input), output);
     } catch (ParseException e) {
       throw new UnsupportedContentTypeException();
     } catch (IllegalArgumentException e) {
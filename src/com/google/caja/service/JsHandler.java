@@ -24,6 +24,7 @@ import com.google.caja.parser.js.UncajoledModule;
 import com.google.caja.parser.quasiliteral.CajitaRewriter;
 import com.google.caja.parser.quasiliteral.DefaultValijaRewriter;
 import com.google.caja.parser.quasiliteral.Rewriter;
+import com.google.caja.parser.quasiliteral.RuleProfile;
 import com.google.caja.reporting.MessageQueue;
 import com.google.caja.reporting.SimpleMessageQueue;
 import com.google.caja.reporting.BuildInfo;
@@ -43,11 +44,20 @@ import java.net.URI;
  */
 public class JsHandler implements ContentHandler {
   private final BuildInfo buildInfo;
+  private volatile RuleProfile ruleProfile;
 
   public JsHandler(BuildInfo buildInfo) {
     this.buildInfo = buildInfo;
   }
 
+  /**
+   * Sets the profile that receives statistics about the rules used to cajole
+   * content, or null to stop profiling.
+   */
+  public void setRuleProfile(RuleProfile ruleProfile) {
+    this.ruleProfile = ruleProfile;
+  }
+
   public boolean canHandle(URI uri, CajolingService.Transform transform,
       String inputContentType, String outputContentType,
       ContentTypeCheck checker) {
@@ -58,6 +68,12 @@ public class JsHandler implements ContentHandler {
             || transform.equals(CajolingService.Transform.VALIJA));
   }
 
+  public Pair<String, String> getOutputContentInfo(
+      URI uri, CajolingService.Transform transform,
+      String inputContentType, String outputContentType) {
+    return new Pair<String, String>("text/javascript", "UTF-8");
+  }
+
   public Pair<String,String> apply(URI uri, CajolingService.Transform transform,
       String inputContentType, String outputContentType, String charset,
       byte[] content, OutputStream response)
@@ -88,11 +104,15 @@ public class JsHandler implements ContentHandler {
 
       Rewriter vrw = new DefaultValijaRewriter(mq, false /* logging */);
       Rewriter crw = new CajitaRewriter(buildInfo, mq, false /* logging */);
+      vrw.setProfile(ruleProfile);
+      crw.setProfile(ruleProfile);
       UncajoledModule ucm = new UncajoledModule(input);
+      // Rendered straight into the response so that the output is never
+      // held in memory in full.
       if (valijaMode) {
-        output.append(Rewriter.render(crw.expand(vrw.expand(ucm))));
+        Rewriter.render(crw.expand(vrw.expand(ucm)), output);
       } else {
-        output.append(Rewriter.render(crw.expand(ucm)));
+        Rewriter.render(crw.expand(ucm), output);
       }
     } catch (ParseException e) {
       throw new UnsupportedContentTypeException();
@@ -0,0 +1,71 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.service;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collapses concurrent computations of the same key into one.
+ * The first caller for a key runs the computation in its own thread, and
+ * callers that arrive while it is running wait for and share its result.
+ * Results are not retained once the computation finishes.
+ *
+ * @param <K> the type of key identifying equivalent computations.
+ * @param <V> the type of the result of a computation.
+ */
+public final class RequestCoalescer<K, V> {
+  private final ConcurrentMap<K, FutureTask<V>> inFlight
+      = new ConcurrentHashMap<K, FutureTask<V>>();
+  private final AtomicLong computedCount = new AtomicLong();
+  private final AtomicLong coalescedCount = new AtomicLong();
+
+  /**
+   * Returns the result of computation, or of an equivalent computation
+   * already running for the same key.
+   *
+   * @throws ExecutionException wrapping any exception thrown by the
+   *     computation, whether it ran in this thread or another.
+   */
+  public V run(K key, Callable<V> computation)
+      throws ExecutionException, InterruptedException {
+    FutureTask<V> task = new FutureTask<V>(computation);
+    FutureTask<V> running = inFlight.putIfAbsent(key, task);
+    if (running != null) {
+      coalescedCount.incrementAndGet();
+      return running.get();
+    }
+    computedCount.incrementAndGet();
+    try {
+      task.run();
+    } finally {
+      inFlight.remove(key, task);
+    }
+    return task.get();
+  }
+
+  /** The number of calls to {@link #run} that ran their computation. */
+  public long getComputedCount() { return computedCount.get(); }
+
+  /** The number of calls to {@link #run} that shared another's result. */
+  public long getCoalescedCount() { return coalescedCount.get(); }
+
+  /** The number of computations currently running. */
+  public int getInFlightCount() { return inFlight.size(); }
+}
@@ -61,18 +61,29 @@ import org.apache.tools.ant.BuildException;
  * attacks fail, so we ignore expected warnings from those.  The value is a
  * comma or space separated list of message
  * {@link com.google.caja.reporting.MessageTypeInt#name name}s.
+ * <p>
+ * The optional {@code cacheDir} attribute on the {@code <transform>} element
+ * names a directory in which to cache successful builds, so that outputs whose
+ * inputs have not changed are not recompiled even when the outputs are
+ * missing or older than their inputs.
  *
  * @author mikesamuel@gmail.com
  */
 public class TransformAntTask extends AbstractCajaAntTask {
+  private File cacheDir;
+
   @Override
   protected boolean run(BuildService buildService, PrintWriter logger,
                         List<File> depends, List<File> inputs, File output,
                         Map<String, Object> options)
        throws BuildException {
+    if (cacheDir != null) { options.put("cacheDir", cacheDir); }
     return buildService.cajole(logger, depends, inputs, output, options);
   }
 
+  // Invoked reflectively by ANT.
+  public void setCacheDir(File cacheDir) { this.cacheDir = cacheDir; }
+
   @Override
   Output makeOutput() {
     return new TranslateTaskOutput();
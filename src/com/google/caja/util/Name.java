@@ -18,6 +18,8 @@ import com.google.caja.parser.html.Html5ElementStack;
 import com.google.caja.reporting.MessageContext;
 import com.google.caja.reporting.MessagePart;
 import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * A case insensitive identifier such as an element or identifier name that can
@@ -28,13 +30,33 @@ import java.io.IOException;
  * that it's obvious what kind of case-sensitivity conventions are required for
  * the label.
  *
+ * <p>
+ * Names that appear in a whitelist are {@link #intern interned} and given a
+ * small integer {@link #getInternedId id} so that schemas can look them up in
+ * arrays.  The factory methods return the interned instance when there is one,
+ * so looking up a known name does not allocate a new {@code Name}.
+ *
  * @author mikesamuel@gmail.com
  */
 public final class Name implements Comparable<Name>, MessagePart {
   private final String canonicalForm;
+  /** The interned id or -1 if this instance was not interned. */
+  private final int id;
 
-  private Name(String canonicalForm) {
+  /** Interned names by canonical form. */
+  private static final ConcurrentMap<String, Name> INTERNED
+      = new ConcurrentHashMap<String, Name>();
+  /** Guarded by INTERNED. */
+  private static int internedCount;
+
+  private Name(String canonicalForm, int id) {
     this.canonicalForm = canonicalForm;
+    this.id = id;
+  }
+
+  private static Name make(String canonicalForm) {
+    Name interned = INTERNED.get(canonicalForm);
+    return interned != null ? interned : new Name(canonicalForm, -1);
   }
 
   /**
@@ -43,27 +65,58 @@ public final class Name implements Comparable<Name>, MessagePart {
    * name-spaces are not.
    */
   public static Name html(String htmlName) {
-    return new Name(Html5ElementStack.canonicalizeName(htmlName));
+    return make(Html5ElementStack.canonicalizeName(htmlName));
   }
 
   /** The name of a case-sensitive XML element or attribute. */
   public static Name xml(String xmlName) {
-    return new Name(xmlName);
+    return make(xmlName);
   }
 
   /**
    * The case-insensitive name of a CSS property, symbol, function or keyword.
    */
   public static Name css(String cssName) {
-    return new Name(Strings.toLowerCase(cssName));
+    return make(Strings.toLowerCase(cssName));
   }
 
   public String getCanonicalForm() { return canonicalForm; }
 
+  /**
+   * The unique name equal to this one that has an {@link #getInternedId id}.
+   * Interned names live as long as the class, so only names from whitelists
+   * and other trusted configuration should be interned.
+   */
+  public Name intern() {
+    if (id >= 0) { return this; }
+    synchronized (INTERNED) {
+      Name interned = INTERNED.get(canonicalForm);
+      if (interned == null) {
+        interned = new Name(canonicalForm, internedCount++);
+        INTERNED.put(canonicalForm, interned);
+      }
+      return interned;
+    }
+  }
+
+  /**
+   * A small non-negative integer that is the same for all equal names, or -1
+   * if no equal name has been {@link #intern interned}.
+   */
+  public int getInternedId() {
+    if (id >= 0) { return id; }
+    Name interned = INTERNED.get(canonicalForm);
+    return interned != null ? interned.id : -1;
+  }
+
   @Override
   public boolean equals(Object o) {
+    if (this == o) { return true; }
     if (o == null || o.getClass() != Name.class) { return false; }
-    return canonicalForm.equals(((Name) o).canonicalForm);
+    Name that = (Name) o;
+    // There is only one interned name with a given canonical form.
+    if (this.id >= 0 && that.id >= 0) { return false; }
+    return canonicalForm.equals(that.canonicalForm);
   }
 
   @Override
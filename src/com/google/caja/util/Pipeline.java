@@ -16,6 +16,7 @@ package com.google.caja.util;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 
 /**
  * A pipeline takes an input and passes it through multiple stages, like a
@@ -30,8 +31,18 @@ public class Pipeline<T> {
 
   public final List<Stage<T>> getStages() { return stages; }
 
+  /**
+   * Applies each stage in turn until one fails.
+   *
+   * @throws CancellationException if the current thread is interrupted
+   *     between stages.
+   */
   public final boolean apply(T input) {
     for (Stage<T> stage : stages) {
+      if (Thread.currentThread().isInterrupted()) {
+        throw new CancellationException(
+            "Interrupted before " + stage.getClass().getSimpleName());
+      }
       if (!applyStage(stage, input)) { return false; }
     }
     return true;
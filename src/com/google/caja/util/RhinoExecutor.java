@@ -18,7 +18,6 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
-import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -27,30 +26,81 @@ import java.net.URLConnection;
 import java.net.URLStreamHandler;
 import java.net.URLStreamHandlerFactory;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.ContextFactory;
 import org.mozilla.javascript.EcmaError;
+import org.mozilla.javascript.Script;
 import org.mozilla.javascript.ScriptableObject;
 
 /**
  * Do not instantiate directly.  Use {@link Executor.Factory} instead.
  * This will be obsoleted once a JDK ships with builtin scripting language
  * support.
+ * <p>
+ * Compiled scripts are cached by source name and text, so that libraries like
+ * {@code cajita.js} that are loaded by many runs are parsed once.  Each run
+ * executes in a fresh global scope, since such libraries modify the standard
+ * objects.
+ * The optimization level is read from the system property
+ * {@code com.google.caja.util.RhinoExecutor.optimizationLevel}: -1, the
+ * default, interprets scripts, and 0 through 9 compile them to bytecode, which
+ * is slower to compile but faster to run.
  *
  * @author mikesamuel@gmail.com
  */
 public final class RhinoExecutor implements Executor {
+  /** The Rhino optimization level at which scripts are compiled. */
+  static final int OPTIMIZATION_LEVEL = Integer.getInteger(
+      "com.google.caja.util.RhinoExecutor.optimizationLevel", -1);
+  /** Compiled scripts by source name and text, least recently used first. */
+  private static final Map<Pair<String, String>, Script> SCRIPT_CACHE
+      = Collections.synchronizedMap(
+          new LinkedHashMap<Pair<String, String>, Script>(128, 0.75f, true) {
+            @Override
+            public boolean removeEldestEntry(
+                Map.Entry<Pair<String, String>, Script> eldest) {
+              return this.size() > 100;
+            }
+          });
+
   private final Executor.Input[] srcs;
 
   public RhinoExecutor(Executor.Input[] srcs) { this.srcs = srcs.clone(); }
 
+  /**
+   * Enters a context configured for running scripts.  Callers must call
+   * {@link Context#exit} when done with it.
+   */
+  static Context enterContext() {
+    Context context = ContextFactory.getGlobal().enterContext();
+    context.setOptimizationLevel(OPTIMIZATION_LEVEL);
+    return context;
+  }
+
+  /**
+   * Compiles the given source, or returns the script compiled from an earlier
+   * identical source.  Scripts hold no per-run state, so a cached script can
+   * be executed in any number of scopes, on any thread.
+   */
+  static Script compile(Context context, String js, String source) {
+    Pair<String, String> key = Pair.pair(source, js);
+    Script script = SCRIPT_CACHE.get(key);
+    if (script == null) {
+      // Racing threads may both compile, but either script will do.
+      script = context.compileString(js, source, 1, null);
+      SCRIPT_CACHE.put(key, script);
+    }
+    return script;
+  }
+
   public <T> T run(Map<String, ?> actuals, Class<T> expectedResultType)
       throws AbnormalExitException {
-    Context context = ContextFactory.getGlobal().enterContext();
-    context.setOptimizationLevel(-1);
+    Context context = enterContext();
     try {
       return runInContext(context, actuals, expectedResultType);
     } finally {
@@ -74,8 +124,8 @@ public final class RhinoExecutor implements Executor {
       for (Input src : srcs) {
         String inputRead = drain(src.input);
         try {
-          result = context.evaluateReader(
-              globalScope, new StringReader(inputRead), src.source, 1, null);
+          result = compile(context, inputRead, src.source)
+              .exec(context, globalScope);
         } catch (EcmaError ex) {
           System.err.println(withLineNums(inputRead));
           throw new AbnormalExitException(ex);
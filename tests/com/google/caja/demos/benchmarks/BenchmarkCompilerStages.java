@@ -0,0 +1,336 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.demos.benchmarks;
+
+import com.google.caja.lang.css.CssSchema;
+import com.google.caja.lang.html.HtmlSchema;
+import com.google.caja.lexer.CharProducer;
+import com.google.caja.lexer.HtmlLexer;
+import com.google.caja.lexer.InputSource;
+import com.google.caja.lexer.JsLexer;
+import com.google.caja.lexer.JsTokenQueue;
+import com.google.caja.lexer.TokenConsumer;
+import com.google.caja.parser.AncestorChain;
+import com.google.caja.parser.ParseTreeNode;
+import com.google.caja.parser.css.CssParser;
+import com.google.caja.parser.css.CssTree;
+import com.google.caja.parser.html.DomParser;
+import com.google.caja.parser.html.Nodes;
+import com.google.caja.parser.js.Block;
+import com.google.caja.parser.js.Parser;
+import com.google.caja.parser.js.UncajoledModule;
+import com.google.caja.parser.quasiliteral.CajitaRewriter;
+import com.google.caja.parser.quasiliteral.DefaultValijaRewriter;
+import com.google.caja.plugin.CssDeclarationCache;
+import com.google.caja.plugin.CssValidator;
+import com.google.caja.render.Concatenator;
+import com.google.caja.render.JsMinimalPrinter;
+import com.google.caja.reporting.MessageLevel;
+import com.google.caja.reporting.MessageQueue;
+import com.google.caja.reporting.RenderContext;
+import com.google.caja.reporting.SimpleMessageQueue;
+import com.google.caja.reporting.TestBuildInfo;
+import com.google.caja.util.CajaTestCase;
+
+import java.net.URI;
+
+import org.w3c.dom.Element;
+
+/**
+ * Measures the throughput of each stage of the compiler separately, over the
+ * V8 benchmark scripts and sample gadgets, using {@link ThroughputHarness}.
+ * Run via the {@code benchmarks.compiler} build target.
+ * Format:
+ * VarZ:benchmark.compiler.<stage>.<input>.<kbPerSec|kbPerSecStdDev|
+ *     allocBytesPerKb>
+ * VarZ:benchmark.compiler.cssValidatorCached.hitRate
+ */
+public class BenchmarkCompilerStages extends CajaTestCase {
+  private static final String[] JS = {
+      "v8-richards.js", "v8-deltablue.js", "v8-crypto.js",
+      "v8-earley-boyer.js", "v8-raytrace.js",
+  };
+  private static final String[] CSS = { "testbed.css", "widget.css" };
+  private static final String[] HTML = {
+      "domita_test_untrusted.html", "life.html",
+  };
+
+  private final ThroughputHarness harness = new ThroughputHarness(
+      Long.getLong("benchmark.compiler.warmupMillis", 1000),
+      Long.getLong("benchmark.compiler.sampleMillis", 200),
+      Integer.getInteger("benchmark.compiler.samples", 10));
+
+  public final void testJsLexer() throws Exception {
+    measureAll(JS, new ThroughputHarness.Stage<CharProducer>("jsLexer") {
+      @Override
+      CharProducer prepare(String content, String name) {
+        return producer(content, name);
+      }
+      @Override
+      CharProducer copy(CharProducer cp) { return cp.clone(); }
+      @Override
+      Object run(CharProducer cp) throws Exception {
+        JsLexer lexer = new JsLexer(cp);
+        int n = 0;
+        for (; lexer.hasNext(); lexer.next()) { ++n; }
+        return n;
+      }
+    });
+  }
+
+  public final void testJsParser() throws Exception {
+    measureAll(JS, new ThroughputHarness.Stage<CharProducer>("jsParser") {
+      @Override
+      CharProducer prepare(String content, String name) {
+        return producer(content, name);
+      }
+      @Override
+      CharProducer copy(CharProducer cp) { return cp.clone(); }
+      @Override
+      Object run(CharProducer cp) throws Exception {
+        return parseJs(cp, new SimpleMessageQueue());
+      }
+    });
+  }
+
+  public final void testValijaRewriter() throws Exception {
+    measureAll(JS, new ThroughputHarness.Stage<Block>("valijaRewriter") {
+      @Override
+      Block prepare(String content, String name) throws Exception {
+        return parseJs(content, name);
+      }
+      @Override
+      Block copy(Block js) { return (Block) js.clone(); }
+      @Override
+      Object run(Block js) {
+        return new DefaultValijaRewriter(new SimpleMessageQueue(), false)
+            .expand(new UncajoledModule(js));
+      }
+    });
+  }
+
+  public final void testCajitaRewriter() throws Exception {
+    // Cajita input is produced by the Valija rewriter since the V8 benchmarks
+    // are not written in Cajita.
+    measureAll(
+        JS, new ThroughputHarness.Stage<ParseTreeNode>("cajitaRewriter") {
+      @Override
+      ParseTreeNode prepare(String content, String name) throws Exception {
+        return new DefaultValijaRewriter(new SimpleMessageQueue(), false)
+            .expand(new UncajoledModule(parseJs(content, name)));
+      }
+      @Override
+      ParseTreeNode copy(ParseTreeNode intermediate) {
+        return intermediate.clone();
+      }
+      @Override
+      Object run(ParseTreeNode intermediate) {
+        return new CajitaRewriter(
+            new TestBuildInfo(), new SimpleMessageQueue(), false)
+            .expand(intermediate);
+      }
+    });
+  }
+
+  public final void testJsPrettyPrinter() throws Exception {
+    measureAll(JS, new ThroughputHarness.Stage<Block>("jsPrettyPrinter") {
+      @Override
+      Block prepare(String content, String name) throws Exception {
+        return parseJs(content, name);
+      }
+      @Override
+      Object run(Block js) { return render(js); }
+    });
+  }
+
+  public final void testJsMinimalPrinter() throws Exception {
+    measureAll(JS, new ThroughputHarness.Stage<Block>("jsMinimalPrinter") {
+      @Override
+      Block prepare(String content, String name) throws Exception {
+        return parseJs(content, name);
+      }
+      @Override
+      Object run(Block js) {
+        StringBuilder sb = new StringBuilder();
+        TokenConsumer tc = new JsMinimalPrinter(new Concatenator(sb));
+        js.render(new RenderContext(tc));
+        tc.noMoreTokens();
+        return sb;
+      }
+    });
+  }
+
+  public final void testCssParser() throws Exception {
+    measureAll(CSS, new ThroughputHarness.Stage<CharProducer>("cssParser") {
+      @Override
+      CharProducer prepare(String content, String name) {
+        return producer(content, name);
+      }
+      @Override
+      CharProducer copy(CharProducer cp) { return cp.clone(); }
+      @Override
+      Object run(CharProducer cp) throws Exception {
+        return parseCss(cp, new SimpleMessageQueue());
+      }
+    });
+  }
+
+  public final void testCssValidator() throws Exception {
+    final CssSchema cssSchema = CssSchema.getDefaultCss21Schema(mq);
+    final HtmlSchema htmlSchema = HtmlSchema.getDefault(mq);
+    measureAll(
+        CSS, new ThroughputHarness.Stage<CssTree.StyleSheet>("cssValidator") {
+      @Override
+      CssTree.StyleSheet prepare(String content, String name)
+          throws Exception {
+        return parseCss(content, name);
+      }
+      @Override
+      CssTree.StyleSheet copy(CssTree.StyleSheet ss) {
+        return (CssTree.StyleSheet) ss.clone();
+      }
+      @Override
+      Object run(CssTree.StyleSheet ss) {
+        return new CssValidator(
+            cssSchema, htmlSchema, new SimpleMessageQueue())
+            .withDeclarationCache(null)
+            .validateCss(AncestorChain.instance(ss));
+      }
+    });
+  }
+
+  /** Validation when declarations have been seen by an earlier validator. */
+  public final void testCssValidatorWithDeclarationCache() throws Exception {
+    final CssSchema cssSchema = CssSchema.getDefaultCss21Schema(mq);
+    final HtmlSchema htmlSchema = HtmlSchema.getDefault(mq);
+    final CssDeclarationCache cache = new CssDeclarationCache(
+        CssDeclarationCache.DEFAULT_MAX_ENTRIES);
+    measureAll(
+        CSS,
+        new ThroughputHarness.Stage<CssTree.StyleSheet>("cssValidatorCached") {
+      @Override
+      CssTree.StyleSheet prepare(String content, String name)
+          throws Exception {
+        return parseCss(content, name);
+      }
+      @Override
+      CssTree.StyleSheet copy(CssTree.StyleSheet ss) {
+        return (CssTree.StyleSheet) ss.clone();
+      }
+      @Override
+      Object run(CssTree.StyleSheet ss) {
+        return new CssValidator(
+            cssSchema, htmlSchema, new SimpleMessageQueue())
+            .withDeclarationCache(cache)
+            .validateCss(AncestorChain.instance(ss));
+      }
+    });
+    System.out.println(
+        "VarZ:benchmark.compiler.cssValidatorCached.hitRate="
+        + cache.getHitRate());
+  }
+
+  public final void testCssPrettyPrinter() throws Exception {
+    measureAll(
+        CSS,
+        new ThroughputHarness.Stage<CssTree.StyleSheet>("cssPrettyPrinter") {
+      @Override
+      CssTree.StyleSheet prepare(String content, String name)
+          throws Exception {
+        return parseCss(content, name);
+      }
+      @Override
+      Object run(CssTree.StyleSheet ss) { return render(ss); }
+    });
+  }
+
+  public final void testDomParser() throws Exception {
+    measureAll(HTML, new ThroughputHarness.Stage<CharProducer>("domParser") {
+      @Override
+      CharProducer prepare(String content, String name) {
+        return producer(content, name);
+      }
+      @Override
+      CharProducer copy(CharProducer cp) { return cp.clone(); }
+      @Override
+      Object run(CharProducer cp) throws Exception {
+        return parseHtml(cp, new SimpleMessageQueue());
+      }
+    });
+  }
+
+  public final void testHtmlRenderer() throws Exception {
+    measureAll(HTML, new ThroughputHarness.Stage<Element>("htmlRenderer") {
+      @Override
+      Element prepare(String content, String name) throws Exception {
+        return parseHtml(content, name);
+      }
+      @Override
+      Object run(Element el) { return Nodes.render(el); }
+    });
+  }
+
+  private <T> void measureAll(
+      String[] inputs, ThroughputHarness.Stage<T> stage)
+      throws Exception {
+    for (String input : inputs) {
+      harness.measure(stage, input, plain(fromResource(input)));
+    }
+  }
+
+  private static CharProducer producer(String content, String name) {
+    return CharProducer.Factory.fromString(
+        content, new InputSource(URI.create("bench:///" + name)));
+  }
+
+  // Messages from parsing inputs outside the timed runs are not interesting.
+  private static Block parseJs(String content, String name) throws Exception {
+    return parseJs(producer(content, name), new SimpleMessageQueue());
+  }
+
+  private static CssTree.StyleSheet parseCss(String content, String name)
+      throws Exception {
+    return parseCss(producer(content, name), new SimpleMessageQueue());
+  }
+
+  private static Element parseHtml(String content, String name)
+      throws Exception {
+    return parseHtml(producer(content, name), new SimpleMessageQueue());
+  }
+
+  private static Block parseJs(CharProducer cp, MessageQueue mq)
+      throws Exception {
+    JsLexer lexer = new JsLexer(cp);
+    JsTokenQueue tq = new JsTokenQueue(
+        lexer, cp.getCurrentPosition().source(), JsTokenQueue.NO_COMMENT);
+    Block b = new Parser(tq, mq).parse();
+    tq.expectEmpty();
+    return b;
+  }
+
+  private static CssTree.StyleSheet parseCss(CharProducer cp, MessageQueue mq)
+      throws Exception {
+    return new CssParser(
+        CssParser.makeTokenQueue(cp, mq, false), mq, MessageLevel.FATAL_ERROR)
+        .parseStyleSheet();
+  }
+
+  private static Element parseHtml(CharProducer cp, MessageQueue mq)
+      throws Exception {
+    return new DomParser(
+        new HtmlLexer(cp), cp.getCurrentPosition().source(), mq)
+        .parseDocument();
+  }
+}
@@ -0,0 +1,112 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.demos.benchmarks;
+
+import com.google.caja.lexer.CharProducer;
+import com.google.caja.lexer.HtmlLexer;
+import com.google.caja.lexer.InputSource;
+import com.google.caja.parser.AncestorChain;
+import com.google.caja.parser.html.DomParser;
+import com.google.caja.plugin.CompilerContext;
+import com.google.caja.plugin.Dom;
+import com.google.caja.plugin.PluginCompiler;
+import com.google.caja.plugin.PluginMeta;
+import com.google.caja.reporting.MessageLevel;
+import com.google.caja.reporting.MessageQueue;
+import com.google.caja.reporting.SimpleMessageQueue;
+import com.google.caja.reporting.TestBuildInfo;
+import com.google.caja.util.CajaTestCase;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures the throughput of compilations that share one
+ * {@link CompilerContext}, run on increasing numbers of threads.
+ * On a machine with enough cores, throughput should scale with the number of
+ * threads.
+ * Format:
+ * VarZ:benchmark.concurrentCompilation.<threads>.compilesPerSecond
+ */
+public class BenchmarkConcurrentCompilation extends CajaTestCase {
+  private static final int[] THREADS = { 1, 2, 4, 8 };
+  private static final int COMPILES_PER_THREAD = 8;
+
+  public final void testConcurrentCompilation() throws Exception {
+    final CompilerContext context = CompilerContext.getDefault(
+        new TestBuildInfo(), new SimpleMessageQueue());
+    final String html = (
+        "<div onclick=\"go()\">Run</div><p>Hello, World!</p>"
+        + "<script>" + plain(fromResource("v8-richards.js")) + "</script>");
+    final String expected = compile(context, html);
+
+    for (int nThreads : THREADS) {
+      ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+      try {
+        // The first round warms the JIT and the pool's threads.
+        for (int round = 0; round < 2; ++round) {
+          long t0 = System.nanoTime();
+          List<Future<String>> outputs = new ArrayList<Future<String>>();
+          for (int i = nThreads * COMPILES_PER_THREAD; --i >= 0;) {
+            outputs.add(pool.submit(new Callable<String>() {
+              public String call() throws Exception {
+                return compile(context, html);
+              }
+            }));
+          }
+          for (Future<String> output : outputs) {
+            assertEquals(expected, output.get());
+          }
+          long nanos = System.nanoTime() - t0;
+          if (round != 0) {
+            System.out.println(
+                "VarZ:benchmark.concurrentCompilation." + nThreads
+                + ".compilesPerSecond="
+                + (nThreads * COMPILES_PER_THREAD * 1000000000L / nanos));
+          }
+        }
+      } finally {
+        pool.shutdown();
+      }
+    }
+  }
+
+  /**
+   * Compiles html using only the shared context and state private to this
+   * compilation.
+   */
+  private static String compile(CompilerContext context, String html)
+      throws Exception {
+    InputSource is = new InputSource(URI.create("http://example.org/"));
+    MessageQueue mq = new SimpleMessageQueue();
+    DomParser p = new DomParser(
+        new HtmlLexer(CharProducer.Factory.fromString(html, is)), is, mq);
+    Dom input = new Dom(p.parseFragment(DomParser.makeDocument(null, null)));
+
+    PluginMeta meta = new PluginMeta();
+    meta.setValijaMode(true);
+    PluginCompiler compiler = new PluginCompiler(context, meta, mq);
+    compiler.addInput(AncestorChain.instance(input));
+    boolean ok = compiler.run();
+    assertTrue(ok);
+    assertFalse(mq.hasMessageAtLevel(MessageLevel.ERROR));
+    return render(compiler.getJavascript());
+  }
+}
@@ -0,0 +1,136 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.demos.benchmarks;
+
+import com.google.caja.parser.ParseTreeNode;
+import com.google.caja.parser.js.Block;
+import com.google.caja.parser.js.FunctionConstructor;
+import com.google.caja.parser.js.SyntheticNodes;
+import com.google.caja.parser.js.UncajoledModule;
+import com.google.caja.parser.quasiliteral.CajitaRewriter;
+import com.google.caja.parser.quasiliteral.DefaultValijaRewriter;
+import com.google.caja.parser.quasiliteral.Scope;
+import com.google.caja.reporting.MessageLevel;
+import com.google.caja.reporting.MessageQueue;
+import com.google.caja.reporting.SimpleMessageQueue;
+import com.google.caja.reporting.TestBuildInfo;
+import com.google.caja.util.CajaTestCase;
+
+/**
+ * Measures scope analysis and rewriting of deeply nested functions, where
+ * any per-scope work that is proportional to the size of a function's body
+ * makes the whole quadratic in the nesting depth.
+ * Synthetic functions are transparent to scope analysis, so the scope of a
+ * synthetic function includes the symbols of all the synthetic functions
+ * nested in it.
+ * Format:
+ * VarZ:benchmark.nested.<depth>.<scopes|syntheticScopes>.micros
+ * VarZ:benchmark.nested.<depth>.rewrite.millis
+ */
+public class BenchmarkNestedScopes extends CajaTestCase {
+  private static final int[] DEPTHS = { 10, 20, 40, 80 };
+  private static final int RUNS = 5;
+  private static final int SCOPE_RUNS = 200;
+
+  public final void testNestedScopes() throws Exception {
+    for (int depth : DEPTHS) {
+      Block program = js(fromString(nestedFunctions(depth)));
+      MessageQueue runMq = new SimpleMessageQueue();
+      Block valija = (Block) ((UncajoledModule) new DefaultValijaRewriter(
+          runMq, false).expand(new UncajoledModule(program))).getModuleBody();
+      assertFalse(runMq.hasMessageAtLevel(MessageLevel.ERROR));
+
+      long t0 = 0;
+      for (int i = 0; i <= 2 * SCOPE_RUNS; ++i) {
+        // The first half of the runs warm the JIT.
+        if (i == SCOPE_RUNS) { t0 = System.nanoTime(); }
+        Scope programScope = Scope.fromProgram(valija, runMq);
+        assertTrue(countFunctionScopes(valija, programScope) >= depth);
+      }
+      varz(
+          depth, "scopes.micros",
+          (System.nanoTime() - t0) / (SCOPE_RUNS * 1000L));
+
+      Block synthetic = (Block) program.clone();
+      markFunctionsSynthetic(synthetic);
+      for (int i = 0; i <= 2 * SCOPE_RUNS; ++i) {
+        if (i == SCOPE_RUNS) { t0 = System.nanoTime(); }
+        Scope programScope = Scope.fromProgram(synthetic, runMq);
+        assertEquals(depth, countFunctionScopes(synthetic, programScope));
+        assertTrue(programScope.isDefined("y" + (depth - 1)));
+      }
+      varz(
+          depth, "syntheticScopes.micros",
+          (System.nanoTime() - t0) / (SCOPE_RUNS * 1000L));
+
+      for (int i = 0; i <= RUNS; ++i) {
+        if (i == 1) { t0 = System.nanoTime(); }  // First run warms the JIT.
+        MessageQueue rewriteMq = new SimpleMessageQueue();
+        new CajitaRewriter(new TestBuildInfo(), rewriteMq, false).expand(
+            new DefaultValijaRewriter(rewriteMq, false).expand(
+                new UncajoledModule((Block) program.clone())));
+        assertFalse(rewriteMq.hasMessageAtLevel(MessageLevel.ERROR));
+      }
+      varz(
+          depth, "rewrite.millis",
+          (System.nanoTime() - t0) / (RUNS * 1000000L));
+    }
+  }
+
+  /**
+   * Creates a scope for every function, synthetic or not, the way the
+   * rewriters do as they descend into each.
+   * @return the number of scopes created.
+   */
+  private static int countFunctionScopes(ParseTreeNode node, Scope scope) {
+    int count = 0;
+    if (node instanceof FunctionConstructor) {
+      scope = Scope.fromFunctionConstructor(scope, (FunctionConstructor) node);
+      ++count;
+    }
+    for (ParseTreeNode child : node.children()) {
+      count += countFunctionScopes(child, scope);
+    }
+    return count;
+  }
+
+  private static void markFunctionsSynthetic(ParseTreeNode node) {
+    if (node instanceof FunctionConstructor) {
+      SyntheticNodes.s((FunctionConstructor) node);
+    }
+    for (ParseTreeNode child : node.children()) {
+      markFunctionsSynthetic(child);
+    }
+  }
+
+  private static String nestedFunctions(int depth) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < depth; ++i) {
+      sb.append("var f").append(i).append(" = function (x").append(i)
+          .append(") {\n  var y").append(i).append(" = x").append(i)
+          .append(" + 1;\n  try { g(y").append(i).append("); } catch (e")
+          .append(i).append(") { h(e").append(i).append("); }\n  for (var k")
+          .append(i).append(" in o) { h(k").append(i).append("); }\n");
+    }
+    sb.append("return 0;\n");
+    for (int i = 0; i < depth; ++i) { sb.append("};\n"); }
+    return sb.toString();
+  }
+
+  private void varz(int depth, String metric, long value) {
+    System.out.println("VarZ:benchmark.nested." + depth + "." + metric
+        + "=" + value);
+  }
+}
@@ -0,0 +1,84 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.demos.benchmarks;
+
+import com.google.caja.parser.js.Block;
+import com.google.caja.parser.js.UncajoledModule;
+import com.google.caja.parser.quasiliteral.CajitaRewriter;
+import com.google.caja.parser.quasiliteral.DefaultValijaRewriter;
+import com.google.caja.parser.quasiliteral.Rewriter;
+import com.google.caja.reporting.MessageQueue;
+import com.google.caja.reporting.SimpleMessageQueue;
+import com.google.caja.reporting.TestBuildInfo;
+import com.google.caja.util.CajaTestCase;
+
+/**
+ * Measures how many rules the rewriters try per node, with rules dispatched
+ * by node class alone and by the discriminating rule index.
+ * Format:
+ * VarZ:benchmark.<benchmark>.dispatch.<cajita|valija>.<byClass|indexed>
+ *               .<firesPerNode|millis>
+ */
+public class BenchmarkRuleDispatch extends CajaTestCase {
+  private static final String[][] PURE_JS = {
+      {"v8-richards.js", "testRichards"},
+      {"v8-deltablue.js", "testDeltaBlue"},
+      {"v8-crypto.js", "testCrypto"},
+      {"v8-earley-boyer.js", "testEarleyBoyer"},
+      {"v8-raytrace.js", "testRayTrace"},
+  };
+  private static final int RUNS = 5;
+
+  public final void testDispatch() throws Exception {
+    for (String[] pair : PURE_JS) {
+      Block js = js(fromResource(pair[0]));
+      for (boolean valija : new boolean[] { false, true }) {
+        String lang = valija ? "valija" : "cajita";
+        double byClass = measure(pair[1], lang, "byClass", js, valija, false);
+        double indexed = measure(pair[1], lang, "indexed", js, valija, true);
+        assertTrue(pair[1] + " " + lang, indexed <= byClass);
+      }
+    }
+  }
+
+  /** @return the average number of rules tried per node expanded. */
+  private double measure(
+      String name, String lang, String dispatch, Block js, boolean valija,
+      boolean discriminating) {
+    Rewriter rw = null;
+    long t0 = 0;
+    for (int i = 0; i <= RUNS; ++i) {
+      if (i == 1) { t0 = System.nanoTime(); }  // First run warms the JIT.
+      MessageQueue runMq = new SimpleMessageQueue();
+      rw = valija
+          ? new DefaultValijaRewriter(runMq, false)
+          : new CajitaRewriter(new TestBuildInfo(), runMq, false);
+      rw.setDiscriminatingDispatch(discriminating);
+      rw.expand(new UncajoledModule((Block) js.clone()));
+    }
+    long millis = (System.nanoTime() - t0) / (RUNS * 1000000L);
+    double firesPerNode = ((double) rw.getFireCount()) / rw.getExpandCount();
+    varz(name, lang, dispatch, "firesPerNode", firesPerNode);
+    varz(name, lang, dispatch, "millis", millis);
+    return firesPerNode;
+  }
+
+  private void varz(
+      String name, String lang, String dispatch, String metric,
+      double value) {
+    System.out.println("VarZ:benchmark." + name + ".dispatch." + lang + "."
+        + dispatch + "." + metric + "=" + value);
+  }
+}
@@ -0,0 +1,80 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.demos.benchmarks;
+
+import com.google.caja.parser.ParseTreeNode;
+import com.google.caja.parser.js.Block;
+import com.google.caja.parser.js.UncajoledModule;
+import com.google.caja.parser.quasiliteral.CajitaRewriter;
+import com.google.caja.parser.quasiliteral.DefaultValijaRewriter;
+import com.google.caja.parser.quasiliteral.Rewriter;
+import com.google.caja.reporting.MessageLevel;
+import com.google.caja.reporting.MessageQueue;
+import com.google.caja.reporting.SimpleMessageQueue;
+import com.google.caja.reporting.TestBuildInfo;
+import com.google.caja.util.CajaTestCase;
+
+/**
+ * Measures the time taken to rewrite Valija to Cajita, split into the Valija
+ * pass, which builds the intermediate module, and the Cajita pass over it.
+ * Format:
+ * VarZ:benchmark.<benchmark>.valijaPipeline.<valija|cajita|render>.millis
+ */
+public class BenchmarkValijaPipeline extends CajaTestCase {
+  private static final String[][] PURE_JS = {
+      {"v8-richards.js", "testRichards"},
+      {"v8-deltablue.js", "testDeltaBlue"},
+      {"v8-crypto.js", "testCrypto"},
+      {"v8-earley-boyer.js", "testEarleyBoyer"},
+      {"v8-raytrace.js", "testRayTrace"},
+  };
+  private static final int RUNS = 5;
+
+  public final void testValijaPipeline() throws Exception {
+    for (String[] pair : PURE_JS) {
+      Block js = js(fromResource(pair[0]));
+      long valijaNanos = 0, cajitaNanos = 0, renderNanos = 0;
+      String output = null;
+      for (int i = 0; i <= RUNS; ++i) {
+        MessageQueue runMq = new SimpleMessageQueue();
+        long t0 = System.nanoTime();
+        ParseTreeNode intermediate = new DefaultValijaRewriter(runMq, false)
+            .expand(new UncajoledModule((Block) js.clone()));
+        long t1 = System.nanoTime();
+        ParseTreeNode cajoled = new CajitaRewriter(
+            new TestBuildInfo(), runMq, false).expand(intermediate);
+        long t2 = System.nanoTime();
+        String rendered = Rewriter.render(cajoled);
+        long t3 = System.nanoTime();
+        assertFalse(runMq.hasMessageAtLevel(MessageLevel.ERROR));
+        if (output != null) { assertEquals(output, rendered); }
+        output = rendered;
+        if (i != 0) {  // First run warms the JIT.
+          valijaNanos += t1 - t0;
+          cajitaNanos += t2 - t1;
+          renderNanos += t3 - t2;
+        }
+      }
+      varz(pair[1], "valija", valijaNanos);
+      varz(pair[1], "cajita", cajitaNanos);
+      varz(pair[1], "render", renderNanos);
+    }
+  }
+
+  private void varz(String name, String phase, long nanos) {
+    System.out.println("VarZ:benchmark." + name + ".valijaPipeline." + phase
+        + ".millis=" + (nanos / (RUNS * 1000000L)));
+  }
+}
@@ -0,0 +1,150 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.demos.benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+
+/**
+ * Measures the throughput of a compiler stage over an input, with a warmup
+ * period so that the JIT has compiled the hot paths before measurement starts,
+ * and several measured samples so that the noise in the result is visible.
+ * Format:
+ * VarZ:benchmark.compiler.<stage>.<input>.<kbPerSec|kbPerSecStdDev|
+ *     allocBytesPerKb>
+ *
+ * <p>Allocation is only reported on JVMs whose thread MXBean can count the
+ * bytes allocated by a thread.
+ */
+final class ThroughputHarness {
+  /**
+   * A step of the compiler.
+   * @param <T> the type of the stage's input.
+   */
+  static abstract class Stage<T> {
+    final String name;
+
+    Stage(String name) { this.name = name; }
+
+    /** Called once per input, and not timed. */
+    abstract T prepare(String content, String inputName) throws Exception;
+
+    /**
+     * Called before each run, and not timed.
+     * Stages that modify their input should return a copy.
+     */
+    T copy(T prepared) { return prepared; }
+
+    /** The timed step.  Returns its output so that it cannot be elided. */
+    abstract Object run(T input) throws Exception;
+  }
+
+  private final long warmupNanos;
+  private final long sampleNanos;
+  private final int samples;
+
+  ThroughputHarness(long warmupMillis, long sampleMillis, int samples) {
+    this.warmupNanos = warmupMillis * 1000000L;
+    this.sampleNanos = sampleMillis * 1000000L;
+    this.samples = samples;
+  }
+
+  /** Runs stage over content and prints the results as VarZ lines. */
+  <T> void measure(Stage<T> stage, String inputName, String content)
+      throws Exception {
+    T prepared = stage.prepare(content, inputName);
+    double kb = content.length() / 1024d;
+
+    // Warm up.  Run at least a few times so that stages too slow to run
+    // repeatedly within the warmup period are still compiled.
+    long warmupEnd = System.nanoTime() + warmupNanos;
+    for (int i = 0; i < 3 || System.nanoTime() < warmupEnd; ++i) {
+      sink(stage.run(stage.copy(prepared)));
+    }
+
+    double[] kbPerSec = new double[samples];
+    long allocated = 0;
+    long totalRuns = 0;
+    for (int s = 0; s < samples; ++s) {
+      long timed = 0;
+      int runs = 0;
+      while (timed < sampleNanos || runs == 0) {
+        T input = stage.copy(prepared);
+        long alloc0 = allocatedBytes();
+        long t0 = System.nanoTime();
+        Object output = stage.run(input);
+        long t1 = System.nanoTime();
+        long alloc1 = allocatedBytes();
+        sink(output);
+        timed += t1 - t0;
+        allocated += alloc1 - alloc0;
+        ++runs;
+      }
+      totalRuns += runs;
+      kbPerSec[s] = kb * runs / (timed / 1e9);
+    }
+
+    double mean = 0;
+    for (double x : kbPerSec) { mean += x; }
+    mean /= samples;
+    double variance = 0;
+    for (double x : kbPerSec) { variance += (x - mean) * (x - mean); }
+    double stdDev = samples > 1 ? Math.sqrt(variance / (samples - 1)) : 0;
+
+    String prefix = "VarZ:benchmark.compiler." + stage.name + "." + inputName;
+    System.out.println(prefix + ".kbPerSec=" + Math.round(mean));
+    System.out.println(prefix + ".kbPerSecStdDev=" + Math.round(stdDev));
+    if (ALLOCATED_BYTES != null) {
+      System.out.println(prefix + ".allocBytesPerKb="
+          + Math.round(allocated / (kb * totalRuns)));
+    }
+  }
+
+  private int sinkHash;
+  /** Consumes a stage's output so the JIT cannot discard the stage's work. */
+  private void sink(Object o) {
+    sinkHash ^= System.identityHashCode(o);
+  }
+
+  /**
+   * {@code com.sun.management.ThreadMXBean.getThreadAllocatedBytes}, looked up
+   * reflectively since it is not available on all JVMs.
+   */
+  private static final Method ALLOCATED_BYTES;
+  private static final Object THREAD_MX_BEAN
+      = ManagementFactory.getThreadMXBean();
+  static {
+    Method m = null;
+    try {
+      Class<?> beanClass = Class.forName("com.sun.management.ThreadMXBean");
+      if (beanClass.isInstance(THREAD_MX_BEAN)) {
+        m = beanClass.getMethod("getThreadAllocatedBytes", Long.TYPE);
+        if (((Long) m.invoke(THREAD_MX_BEAN, Thread.currentThread().getId()))
+            < 0) {
+          m = null;  // Allocation counting is disabled.
+        }
+      }
+    } catch (Exception ex) {
+      m = null;
+    }
+    ALLOCATED_BYTES = m;
+  }
+
+  private static long allocatedBytes() throws Exception {
+    if (ALLOCATED_BYTES == null) { return 0; }
+    return ((Long) ALLOCATED_BYTES.invoke(
+        THREAD_MX_BEAN, Thread.currentThread().getId())).longValue();
+  }
+}
@@ -0,0 +1,119 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.lang.css;
+
+import com.google.caja.parser.css.CssPropertySignature;
+import com.google.caja.reporting.MessageContext;
+import com.google.caja.reporting.SimpleMessageQueue;
+import com.google.caja.util.CajaTestCase;
+import com.google.caja.util.Name;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+public class CssSchemaSnapshotTest extends CajaTestCase {
+  private static final String[] ELEMENTS_AND_MEDIA = {
+    "a", "body", "img", "li", "table", "td", "tr", "all", "aural", "print",
+    "screen", "tv", "bogus", "", null,
+  };
+
+  public final void testRoundTripOfDefaultSchema() throws Exception {
+    SimpleMessageQueue smq = new SimpleMessageQueue();
+    CssSchema schema = CssSchema.loadDefaultFromWhiteLists(smq);
+    assertTrue(smq.getMessages().isEmpty());
+    CssSchema read = roundTrip(schema);
+
+    Map<Name, CssSchema.CssPropertyInfo> properties
+        = new HashMap<Name, CssSchema.CssPropertyInfo>();
+    for (CssSchema.CssPropertyInfo pi : read.getCssProperties()) {
+      properties.put(pi.name, pi);
+    }
+    assertTrue(properties.size() > 100);
+    assertEquals(schema.getCssProperties().size(), properties.size());
+    for (CssSchema.CssPropertyInfo pi : schema.getCssProperties()) {
+      CssSchema.CssPropertyInfo rpi = properties.get(pi.name);
+      assertNotNull(pi.name.getCanonicalForm(), rpi);
+      assertSame(rpi, read.getCssProperty(pi.name));
+      assertEquals(format(pi.sig), format(rpi.sig));
+      assertEquals(pi.inherited, rpi.inherited);
+      assertEquals(pi.defaultValue, rpi.defaultValue);
+      assertEquals(pi.dom2properties, rpi.dom2properties);
+      for (String s : ELEMENTS_AND_MEDIA) {
+        assertEquals(pi.appliesTo.accept(s), rpi.appliesTo.accept(s));
+        assertEquals(pi.mediaGroups.accept(s), rpi.mediaGroups.accept(s));
+      }
+      assertEquals(schema.isPropertyAllowed(pi.name),
+                   read.isPropertyAllowed(pi.name));
+    }
+    assertEquals(schema.getSymbols().size(), read.getSymbols().size());
+    for (CssSchema.SymbolInfo si : schema.getSymbols()) {
+      CssSchema.SymbolInfo rsi = read.getSymbol(si.name);
+      assertNotNull(si.name.getCanonicalForm(), rsi);
+      assertEquals(format(si.sig), format(rsi.sig));
+    }
+    assertEquals(schema.functionsAllowed, read.functionsAllowed);
+    assertEquals(schema.propertiesAllowed, read.propertiesAllowed);
+    for (String kw : new String[] {
+           "inherit", "initial", "auto", "bold", "none", "bogus" }) {
+      assertEquals(kw, schema.isKeyword(Name.css(kw)),
+                   read.isKeyword(Name.css(kw)));
+    }
+  }
+
+  public final void testSignatureRoundTrip() throws Exception {
+    for (String sig : new String[] {
+           "[ <length> | auto ]{1,4} | inherit",
+           "[ 'font-style' || 'font-variant' ]? \"/\" <number>+",
+           "rgb( <number> , <number> , <number> )",
+           "progid:DXImageTransform.Microsoft.Alpha(opacity=<number>)",
+         }) {
+      CssPropertySignature parsed
+          = CssPropertySignature.Parser.parseSignature(sig);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      parsed.write(new DataOutputStream(out));
+      CssPropertySignature read = CssPropertySignature.read(
+          new DataInputStream(new ByteArrayInputStream(out.toByteArray())));
+      assertEquals(sig, format(parsed), format(read));
+      assertEquals(sig, parsed.toString(), read.toString());
+    }
+  }
+
+  public final void testBadInput() throws Exception {
+    try {
+      CssSchemaSnapshot.read(
+          new ByteArrayInputStream(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }));
+      fail();
+    } catch (IOException ex) {
+      // pass
+    }
+  }
+
+  private static CssSchema roundTrip(CssSchema schema) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CssSchemaSnapshot.write(schema, out);
+    return CssSchemaSnapshot.read(new ByteArrayInputStream(out.toByteArray()));
+  }
+
+  private static String format(CssPropertySignature sig) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    sig.format(new MessageContext(), sb);
+    return sb.toString();
+  }
+}
@@ -0,0 +1,87 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.lang.html;
+
+import com.google.caja.reporting.SimpleMessageQueue;
+import com.google.caja.util.CajaTestCase;
+import com.google.caja.util.Name;
+import com.google.caja.util.Pair;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+public class HtmlSchemaSnapshotTest extends CajaTestCase {
+  public final void testRoundTripOfDefaultSchema() throws Exception {
+    SimpleMessageQueue smq = new SimpleMessageQueue();
+    HtmlSchema schema = HtmlSchema.loadDefaultFromWhiteLists(smq);
+    assertTrue(smq.getMessages().isEmpty());
+    HtmlSchema read = roundTrip(schema);
+
+    assertEquals(schema.getElementNames(), read.getElementNames());
+    assertEquals(schema.allowedElements, read.allowedElements);
+    for (Name name : schema.getElementNames()) {
+      HTML.Element el = schema.lookupElement(name);
+      HTML.Element rel = read.lookupElement(name);
+      assertEquals(name.getCanonicalForm(), el.getName(), rel.getName());
+      assertEquals(el.isEmpty(), rel.isEmpty());
+      assertEquals(el.isEndTagOptional(), rel.isEndTagOptional());
+      assertEquals(el.getAttributes().size(), rel.getAttributes().size());
+      for (int i = 0; i < el.getAttributes().size(); ++i) {
+        HTML.Attribute a = rel.getAttributes().get(i);
+        assertSame(a, read.lookupAttribute(a.getElementName(),
+                                           a.getAttributeName()));
+      }
+      assertEquals(schema.isElementAllowed(name), read.isElementAllowed(name));
+    }
+
+    assertEquals(schema.getAttributeNames(), read.getAttributeNames());
+    assertEquals(schema.allowedAttributes, read.allowedAttributes);
+    for (Pair<Name, Name> key : schema.getAttributeNames()) {
+      HTML.Attribute a = schema.lookupAttribute(key.a, key.b);
+      HTML.Attribute ra = read.lookupAttribute(key.a, key.b);
+      String msg = key.a + "::" + key.b;
+      assertEquals(msg, a.getElementName(), ra.getElementName());
+      assertEquals(msg, a.getAttributeName(), ra.getAttributeName());
+      assertEquals(msg, a.getType(), ra.getType());
+      assertEquals(msg, a.getDefaultValue(), ra.getDefaultValue());
+      assertEquals(msg, a.getSafeValue(), ra.getSafeValue());
+      assertEquals(msg, a.isValueless(), ra.isValueless());
+      assertEquals(msg, a.isOptional(), ra.isOptional());
+      assertEquals(msg, a.getMimeTypes(), ra.getMimeTypes());
+      assertEquals(msg, a.getValueCriterion().toRegularExpression(),
+                   ra.getValueCriterion().toRegularExpression());
+      assertEquals(msg, schema.isAttributeAllowed(key.a, key.b),
+                   read.isAttributeAllowed(key.a, key.b));
+    }
+  }
+
+  public final void testBadInput() throws Exception {
+    try {
+      HtmlSchemaSnapshot.read(
+          new ByteArrayInputStream(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }));
+      fail();
+    } catch (IOException ex) {
+      // pass
+    }
+  }
+
+  private static HtmlSchema roundTrip(HtmlSchema schema) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    HtmlSchemaSnapshot.write(schema, out);
+    return HtmlSchemaSnapshot.read(
+        new ByteArrayInputStream(out.toByteArray()));
+  }
+}
@@ -133,6 +133,21 @@ public class HtmlSchemaTest extends TestCase {
         schema.lookupAttribute(id("B"), id("ID")),
         withId(b.getAttributes(), id("ID")));
   }
+  public final void testUninternedNames() {
+    // Names that no whitelist mentions are not interned.
+    Name bogusEl = id("bogus-element"), bogusAttr = id("bogus-attribute");
+    assertEquals(-1, bogusEl.getInternedId());
+    assertFalse(schema.isElementAllowed(bogusEl));
+    assertNull(schema.lookupElement(bogusEl));
+    assertNull(schema.lookupAttribute(id("a"), bogusAttr));
+    assertNull(schema.lookupAttribute(bogusEl, bogusAttr));
+    // Attributes allowed on all elements are found via the wildcard.
+    assertEquals(schema.lookupAttribute(id("*"), id("title")),
+                 schema.lookupAttribute(bogusEl, id("title")));
+    assertTrue(schema.isAttributeAllowed(bogusEl, id("title")));
+    assertFalse(schema.isAttributeAllowed(id("a"), bogusAttr));
+  }
+
   private static HTML.Attribute withId(List<HTML.Attribute> attrs, Name name) {
     HTML.Attribute result = null;
     for (HTML.Attribute a : attrs) {
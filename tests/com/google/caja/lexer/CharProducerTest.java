@@ -17,6 +17,10 @@ package com.google.caja.lexer;
 import com.google.caja.util.Pair;
 import com.google.caja.util.TestUtil;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.StringReader;
 import java.net.URI;
@@ -57,6 +61,53 @@ public final class CharProducerTest extends TestCase {
         );
   }
 
+  public final void testFromFile() throws Exception {
+    InputSource src = new InputSource(
+        TestUtil.getResource(CharProducerTest.class, "testinput1.txt"));
+    testProducer(
+        CharProducer.Factory.fromFile(new File(src.getUri()), "UTF-8", src),
+        "The quick brown fox\njumps over\nthe lazy dog\n",
+        ss(0,  "testinput1.txt:1+1@1"),
+        ss(19, "testinput1.txt:1+20@20"),
+        ss(20, "testinput1.txt:2+1@21"),
+        ss(44, "testinput1.txt:4+1@45")
+        );
+  }
+
+  public final void testFromFileDecodesLikeAReader() throws Exception {
+    StringBuilder sb = new StringBuilder();
+    // Long enough to be memory mapped.
+    while (sb.length() < 100000) {
+      sb.append("caf\u00e9 \ud834\udd1e\r\n");
+    }
+    byte[] utf8 = sb.toString().getBytes("UTF-8");
+    byte[] malformed = { 'a', (byte) 0xc3, 'b', (byte) 0xff };
+    for (byte[] bytes : new byte[][] { utf8, malformed, new byte[0] }) {
+      File f = File.createTempFile("CharProducerTest", ".txt");
+      try {
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+          out.write(bytes);
+        } finally {
+          out.close();
+        }
+        InputSource src = new InputSource(f.toURI());
+        CharProducer fromFile = CharProducer.Factory.fromFile(
+            f, "UTF-8", src);
+        CharProducer fromReader = CharProducer.Factory.create(
+            new InputStreamReader(new ByteArrayInputStream(bytes), "UTF-8"),
+            src);
+        assertEquals(fromReader.toString(), fromFile.toString());
+        int end = fromFile.getLimit();
+        assertEquals(
+            fromReader.filePositionForOffsets(end, end).toString(),
+            fromFile.filePositionForOffsets(end, end).toString());
+      } finally {
+        f.delete();
+      }
+    }
+  }
+
   public final void testFromString() throws Exception {
     String s =
       "but was shocked to learn\n\rthe lazy dog had\r\na fox-seeking missle.";
@@ -0,0 +1,160 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.lexer;
+
+import com.google.caja.reporting.MessageType;
+import com.google.caja.util.CajaTestCase;
+import com.google.caja.util.Criterion;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class JsTokenQueueTest extends CajaTestCase {
+  private static final String SRC = (
+      "/* a */ var x = 1; // b\n"
+      + "x = x / 2 + /re/g.exec('s' + \"t\\\n u\") /* c */;\n"
+      + "// d\n");
+
+  public final void testPackedMatchesUnpacked() throws Exception {
+    assertEquals(describe(unpackedQueue(SRC)), describe(packedQueue(SRC)));
+  }
+
+  public final void testTextComparisons() throws Exception {
+    JsTokenQueue tq = packedQueue("var x = 1;");
+    assertFalse(tq.checkToken("x"));
+    assertTrue(tq.lookaheadToken("var"));
+    assertTrue(tq.checkToken("var"));
+    assertEquals("x", tq.peek().text);
+    tq.expectToken("x");
+    try {
+      tq.expectToken(";");
+      fail();
+    } catch (ParseException ex) {
+      assertEquals(MessageType.EXPECTED_TOKEN,
+                   ex.getCajaMessage().getMessageType());
+    }
+    tq.expectToken("=");
+    assertEquals(JsTokenType.INTEGER,
+                 tq.expectTokenOfType(JsTokenType.INTEGER).type);
+    tq.expectToken(";");
+    tq.expectEmpty();
+    try {
+      tq.expectToken(";");
+      fail();
+    } catch (ParseException ex) {
+      assertEquals(MessageType.EXPECTED_TOKEN,
+                   ex.getCajaMessage().getMessageType());
+    }
+  }
+
+  public final void testMarkAndRewind() throws Exception {
+    JsTokenQueue tq = packedQueue("/* a */ f(/* b */ x)");
+    assertNull(tq.lastPosition());
+    TokenQueue.Mark start = tq.mark();
+    assertEquals("f", tq.pop().text);
+    TokenQueue.Mark paren = tq.mark();
+    tq.expectToken("(");
+    assertEquals("[/* b */]", texts(tq.filteredTokens()));
+    assertEquals("x", tq.pop().text);
+    tq.expectToken(")");
+    assertTrue(tq.isEmpty());
+    assertEquals("testMarkAndRewind:1+21@21",
+                 tq.mark().getFilePosition().toString());
+    tq.rewind(paren);
+    assertEquals("testMarkAndRewind:1+10@10 - 11@11",
+                 paren.getFilePosition().toString());
+    assertEquals("(", tq.peek().text);
+    tq.rewind(start);
+    assertEquals("[/* a */]", texts(tq.filteredTokens()));
+    assertEquals("f", tq.peek().text);
+    try {
+      tq.rewind(packedQueue("f").mark());
+      fail();
+    } catch (IllegalStateException ex) {
+      // pass
+    }
+  }
+
+  public final void testLongUnmarkedQueues() throws Exception {
+    // Long enough that tokens are dropped as the queues advance.
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 500; ++i) {
+      sb.append("x").append(i).append(" = /* ").append(i).append(" */ y;\n");
+    }
+    String src = sb.toString();
+    assertEquals(describe(unpackedQueue(src)), describe(packedQueue(src)));
+  }
+
+  public final void testRewindAfterManyTokens() throws Exception {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 500; ++i) {
+      sb.append("/* c */ a ").append(i).append(' ');
+    }
+    JsTokenQueue tq = packedQueue(sb.toString());
+    for (int i = 0; i < 300; ++i) { tq.advance(); }
+    TokenQueue.Mark m = tq.mark();
+    Token<JsTokenType> t = tq.peek();
+    for (int i = 0; i < 600; ++i) { tq.advance(); }
+    tq.rewind(m);
+    assertSame(t, tq.peek());
+    assertEquals("[/* c */]", texts(tq.filteredTokens()));
+    assertEquals("a", tq.pop().text);
+    assertEquals(t.pos, tq.lastPosition());
+  }
+
+  private JsTokenQueue packedQueue(String src) {
+    return new JsTokenQueue(
+        new JsLexer(fromString(src)), is, JsTokenQueue.NO_COMMENT);
+  }
+
+  /** A queue whose lexer and filter keep it from storing offsets. */
+  private JsTokenQueue unpackedQueue(String src) {
+    final JsLexer lexer = new JsLexer(fromString(src));
+    return new JsTokenQueue(
+        new TokenStream<JsTokenType>() {
+          public boolean hasNext() throws ParseException {
+            return lexer.hasNext();
+          }
+          public Token<JsTokenType> next() throws ParseException {
+            return lexer.next();
+          }
+        },
+        is,
+        new Criterion<Token<JsTokenType>>() {
+          public boolean accept(Token<JsTokenType> t) {
+            return JsTokenQueue.NO_COMMENT.accept(t);
+          }
+        });
+  }
+
+  private static String describe(JsTokenQueue tq) throws ParseException {
+    List<String> out = new ArrayList<String>();
+    while (!tq.isEmpty()) {
+      out.add(texts(tq.filteredTokens()));
+      FilePosition pos = tq.currentPosition();
+      Token<JsTokenType> t = tq.pop();
+      assertSame(pos, t.pos);
+      out.add(t.type + " " + t.text + " " + t.pos);
+      assertEquals(t.pos, tq.lastPosition());
+    }
+    return out.toString();
+  }
+
+  private static String texts(List<Token<JsTokenType>> tokens) {
+    List<String> texts = new ArrayList<String>();
+    for (Token<JsTokenType> t : tokens) { texts.add(t.text); }
+    return texts.toString();
+  }
+}
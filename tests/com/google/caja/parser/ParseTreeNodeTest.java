@@ -679,6 +679,43 @@ public class ParseTreeNodeTest extends TestCase {
                  ie.getNums().toString());
   }
 
+  public final void testFailedAppendRolledBack() {
+    Block block = (Block) b9.children().get(0);
+    List<? extends ParseTreeNode> before
+        = new ArrayList<ParseTreeNode>(block.children());
+    ExpressionStmt added = new ExpressionStmt(
+        FilePosition.UNKNOWN, new IntegerLiteral(FilePosition.UNKNOWN, 13));
+    try {
+      block.createMutation()
+          .appendChildren(Arrays.asList(added, null))
+          .execute();
+      fail("null child accepted");
+    } catch (NullPointerException ex) {
+      // expected
+    }
+    assertEquals(before, block.children());
+
+    block.createMutation().appendChildren(Arrays.asList(added)).execute();
+    assertEquals(4, block.children().size());
+    assertSame(added, block.children().get(3));
+  }
+
+  public final void testAppendChildrenCopiesNodes() {
+    Block block = (Block) b9.children().get(0);
+    ExpressionStmt added = new ExpressionStmt(
+        FilePosition.UNKNOWN, new IntegerLiteral(FilePosition.UNKNOWN, 13));
+    List<ParseTreeNode> toAdd = new ArrayList<ParseTreeNode>();
+    toAdd.add(added);
+    MutableParseTreeNode.Mutation mutation
+        = block.createMutation().appendChildren(toAdd);
+    // Changes after the call do not affect the mutation.
+    toAdd.add(new ExpressionStmt(
+        FilePosition.UNKNOWN, new IntegerLiteral(FilePosition.UNKNOWN, 14)));
+    mutation.execute();
+    assertEquals(4, block.children().size());
+    assertSame(added, block.children().get(3));
+  }
+
   static class IntEnqueuer implements Visitor {
     private List<Number> nums = new ArrayList<Number>();
 
@@ -0,0 +1,246 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.parser.js;
+
+import com.google.caja.lexer.CharProducer;
+import com.google.caja.lexer.FilePosition;
+import com.google.caja.lexer.InputSource;
+import com.google.caja.lexer.JsLexer;
+import com.google.caja.lexer.JsTokenQueue;
+import com.google.caja.lexer.ParseException;
+import com.google.caja.lexer.Token;
+import com.google.caja.parser.ParseTreeNode;
+import com.google.caja.parser.ParseTreeNodes;
+import com.google.caja.parser.quasiliteral.CajitaRewriter;
+import com.google.caja.reporting.MessageLevel;
+import com.google.caja.reporting.SimpleMessageQueue;
+import com.google.caja.reporting.TestBuildInfo;
+import com.google.caja.util.CajaTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class JsTreeSerializerTest extends CajaTestCase {
+  public final void testRoundTripCorpus() throws Exception {
+    List<File> files = new ArrayList<File>();
+    findJs(new File("tests"), files);
+    int nParsed = 0;
+    for (File f : files) {
+      Block program = parseOrNull(f);
+      if (program == null) { continue; }
+      ++nParsed;
+      assertRoundTrips(program);
+    }
+    assertTrue("" + nParsed, nParsed > 20);
+  }
+
+  public final void testRoundTripCajoledModule() throws Exception {
+    CajoledModule module = (CajoledModule) new CajitaRewriter(
+        new TestBuildInfo(), mq, false).expand(new UncajoledModule(js(
+            fromString("var x = 1; function f(a) { return a.b; }"
+                       + "f(x ? 'a' : null, 1.5, -2, void 0);"))));
+    assertNoErrors();
+    CajoledModule copy = JsTreeSerializer.deserialize(
+        JsTreeSerializer.serialize(module), CajoledModule.class);
+    assertSameTree(module, copy);
+  }
+
+  public final void testCommentsAndAttributes() throws Exception {
+    Block program = js(fromString(
+        "/** @type {number} */ var x = /* init */ 1;"));
+    Identifier id = ((Declaration) program.children().get(0)).getIdentifier();
+    id.getAttributes().set(SyntheticNodes.SYNTHETIC, true);
+    program.getAttributes().set(ParseTreeNode.TAINTED, true);
+    Block copy = JsTreeSerializer.deserialize(
+        JsTreeSerializer.serialize(program), Block.class);
+    assertSameTree(program, copy);
+    assertTrue(((Declaration) copy.children().get(0)).getIdentifier()
+               .getAttributes().is(SyntheticNodes.SYNTHETIC));
+    assertTrue(copy.getAttributes().is(ParseTreeNode.TAINTED));
+    assertFalse(copy.children().get(0).getAttributes().is(
+        SyntheticNodes.SYNTHETIC));
+  }
+
+  public final void testStreams() throws Exception {
+    Block program = js(fromString("a[b] = c;"));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    JsTreeSerializer.serialize(program, out);
+    assertSameTree(program, JsTreeSerializer.deserialize(
+        new ByteArrayInputStream(out.toByteArray())));
+  }
+
+  public final void testMalformedInput() throws Exception {
+    byte[] bytes = JsTreeSerializer.serialize(js(fromString("f(x, 'y');")));
+    for (int n = 0; n < bytes.length; ++n) {
+      byte[] truncated = new byte[n];
+      System.arraycopy(bytes, 0, truncated, 0, n);
+      try {
+        JsTreeSerializer.deserialize(truncated);
+        fail("Truncated to " + n);
+      } catch (IOException ex) {
+        // pass
+      }
+    }
+    try {
+      JsTreeSerializer.deserialize(bytes, Expression.class);
+      fail();
+    } catch (IOException ex) {
+      // pass
+    }
+    try {
+      JsTreeSerializer.deserialize("not a tree".getBytes("UTF-8"));
+      fail();
+    } catch (IOException ex) {
+      // pass
+    }
+
+    // Counts and lengths that are negative or too large for the input must
+    // fail before anything is allocated for them.
+    byte[] id = JsTreeSerializer.serialize(
+        new Identifier(FilePosition.UNKNOWN, "x"));
+    // The last byte is the count of children.
+    assertEquals(0, id[id.length - 1]);
+    for (byte[] count : new byte[][] { MINUS_ONE, MAX_INT }) {
+      try {
+        JsTreeSerializer.deserialize(splice(id, id.length - 1, count));
+        fail();
+      } catch (IOException ex) {
+        // pass
+      }
+    }
+    // Replace each byte in turn so that every count, length, and reference
+    // is corrupted somewhere.  Anything but an IOException fails the test.
+    bytes = JsTreeSerializer.serialize(js(fromString(
+        "/* c */ f(x, 'y', 1.5);\nvar z = /a/g;")));
+    for (int i = 0; i < bytes.length; ++i) {
+      for (byte[] value : new byte[][] { MINUS_ONE, MAX_INT }) {
+        try {
+          JsTreeSerializer.deserialize(splice(bytes, i, value));
+        } catch (IOException ex) {
+          // pass
+        }
+      }
+    }
+  }
+
+  private static final byte[] MINUS_ONE = {
+    (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x0f
+  };
+  private static final byte[] MAX_INT = {
+    (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07
+  };
+
+  /** bytes with the byte at i replaced with replacement. */
+  private static byte[] splice(byte[] bytes, int i, byte[] replacement) {
+    byte[] out = new byte[bytes.length - 1 + replacement.length];
+    System.arraycopy(bytes, 0, out, 0, i);
+    System.arraycopy(replacement, 0, out, i, replacement.length);
+    System.arraycopy(
+        bytes, i + 1, out, i + replacement.length, bytes.length - i - 1);
+    return out;
+  }
+
+  public final void testRepeatedStringsWrittenOnce() throws Exception {
+    int shortSize = serializedSize(repeat("a;", 100));
+    int longSize = serializedSize(repeat("aLongIdentifierName;", 100));
+    assertTrue(longSize + " vs " + shortSize,
+               longSize < shortSize + "aLongIdentifierName".length() * 2);
+  }
+
+  private void assertRoundTrips(ParseTreeNode node) throws IOException {
+    byte[] bytes = JsTreeSerializer.serialize(node);
+    ParseTreeNode copy = JsTreeSerializer.deserialize(bytes);
+    assertSameTree(node, copy);
+    // Serializing is deterministic.
+    assertTrue(Arrays.equals(bytes, JsTreeSerializer.serialize(copy)));
+  }
+
+  private int serializedSize(String src) throws ParseException {
+    // Position offsets fit in a byte for both inputs, so only the
+    // identifiers differ in size.
+    return JsTreeSerializer.serialize(js(fromString(src))).length;
+  }
+
+  private static String repeat(String s, int n) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < n; ++i) { sb.append(s); }
+    return sb.toString();
+  }
+
+  private static void assertSameTree(ParseTreeNode a, ParseTreeNode b) {
+    assertTrue(ParseTreeNodes.deepEquals(a, b));
+    assertEquals(render(a), render(b));
+    assertSamePositions(a, b);
+  }
+
+  private static void assertSamePositions(ParseTreeNode a, ParseTreeNode b) {
+    assertSamePosition(a.getFilePosition(), b.getFilePosition());
+    assertEquals(a.getComments().size(), b.getComments().size());
+    for (int i = 0, n = a.getComments().size(); i < n; ++i) {
+      Token<?> ac = a.getComments().get(i), bc = b.getComments().get(i);
+      assertEquals(ac.text, bc.text);
+      assertEquals(ac.type, bc.type);
+      assertSamePosition(ac.pos, bc.pos);
+    }
+    assertEquals(
+        a.getAttributes().is(SyntheticNodes.SYNTHETIC),
+        b.getAttributes().is(SyntheticNodes.SYNTHETIC));
+    for (int i = 0, n = a.children().size(); i < n; ++i) {
+      assertSamePositions(a.children().get(i), b.children().get(i));
+    }
+  }
+
+  private static void assertSamePosition(FilePosition a, FilePosition b) {
+    assertEquals(a, b);
+    // equals does not compare line numbers.
+    assertEquals(a.startLineNo(), b.startLineNo());
+    assertEquals(a.startCharInLine(), b.startCharInLine());
+    assertEquals(a.endLineNo(), b.endLineNo());
+    assertEquals(a.endCharInLine(), b.endCharInLine());
+  }
+
+  private static void findJs(File f, List<File> out) {
+    if (f.isDirectory()) {
+      File[] children = f.listFiles();
+      Arrays.sort(children);
+      for (File child : children) { findJs(child, out); }
+    } else if (f.getName().endsWith(".js")) {
+      out.add(f);
+    }
+  }
+
+  /** Null if the file is not a well-formed program, e.g. a quasi. */
+  private static Block parseOrNull(File f) throws IOException {
+    InputSource is = new InputSource(f);
+    CharProducer cp = CharProducer.Factory.create(
+        new InputStreamReader(new FileInputStream(f), "UTF-8"), is);
+    SimpleMessageQueue mq = new SimpleMessageQueue();
+    try {
+      JsTokenQueue tq = new JsTokenQueue(new JsLexer(cp), is);
+      Block program = new Parser(tq, mq).parse();
+      tq.expectEmpty();
+      return mq.hasMessageAtLevel(MessageLevel.ERROR) ? null : program;
+    } catch (ParseException ex) {
+      return null;
+    }
+  }
+}
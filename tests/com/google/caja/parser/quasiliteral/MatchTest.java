@@ -400,6 +400,44 @@ public class MatchTest extends CajaTestCase {
             "body", m.get("body"))));
   }
 
+  public final void testRepeatedHoleNames() throws Exception {
+    match("@a + @a", "x + x");
+    assertNotNull(m);
+    assertEquals("x", ((Reference) m.get("a")).getIdentifierName());
+
+    match("@a + @a", "x + y");
+    assertNull(m);
+
+    match("f(@as*); g(@as*);", "f(1, 2); g(1, 2);");
+    assertNotNull(m);
+    assertEquals(2, m.get("as").children().size());
+
+    match("f(@as*); g(@as*);", "f(1, 2); g(1);");
+    assertNull(m);
+  }
+
+  public final void testBindingFrameReuse() throws Exception {
+    QuasiNode call = QuasiBuilder.parseQuasiNode("@f(@a, @b, @rest*)");
+    QuasiNode member = QuasiBuilder.parseQuasiNode("@o.@p");
+    BindingFrame frame = new BindingFrame();
+
+    assertTrue(call.match(jsExpr(fromString("f(1, 2, 3, 4)")), frame));
+    Map<String, ParseTreeNode> bindings = frame.toMap();
+    assertEquals("[f, a, b, rest]", bindings.keySet().toString());
+    assertEquals(2, bindings.get("rest").children().size());
+
+    // A failed match leaves nothing bound.
+    assertFalse(member.match(jsExpr(fromString("f(1)")), frame));
+    assertTrue(frame.toMap().isEmpty());
+
+    // Bindings from earlier matches do not leak into later ones.
+    assertTrue(member.match(jsExpr(fromString("o.p")), frame));
+    assertEquals("[o, p]", frame.toMap().keySet().toString());
+    assertFalse(call.match(jsExpr(fromString("g(1)")), frame));
+    assertTrue(call.match(jsExpr(fromString("g(1, 2)")), frame));
+    assertEquals(0, frame.toMap().get("rest").children().size());
+  }
+
   private void match(String pattern, String source)
       throws Exception {
     QuasiNode qn = QuasiBuilder.parseQuasiNode(
@@ -15,9 +15,15 @@
 package com.google.caja.parser.quasiliteral;
 
 import com.google.caja.lexer.InputSource;
+import com.google.caja.lexer.ParseException;
+import com.google.caja.parser.ParseTreeNode;
+import com.google.caja.reporting.MessageQueue;
+import com.google.caja.reporting.SimpleMessageQueue;
+import com.google.caja.reporting.TestBuildInfo;
 import junit.framework.TestCase;
 
 import java.net.URI;
+import java.util.Map;
 
 /**
  *
@@ -30,4 +36,50 @@ public class QuasiBuilderTest extends TestCase {
         "function @a() { @b.@c = @d; @e = @f; }");
     assertTrue(n instanceof SimpleQuasiNode);
   }
-}
\ No newline at end of file
+
+  public final void testWarmUp() throws Exception {
+    QuasiBuilder.warmUp();
+    MessageQueue mq = new SimpleMessageQueue();
+    Rewriter rw = new CajitaRewriter(new TestBuildInfo(), mq, false);
+    // A second warm up finds everything cached.
+    assertEquals(0, QuasiBuilder.warmUp(rw));
+    int nMatchPatterns = 0;
+    for (Rule rule : rw.getRules()) {
+      String pattern = rule.getRuleDescription().matches();
+      try {
+        QuasiBuilder.parseQuasiNode(pattern);
+      } catch (ParseException ex) {
+        continue;  // Descriptive text, not a pattern.
+      }
+      assertTrue(pattern, QuasiBuilder.isCached(pattern));
+      ++nMatchPatterns;
+    }
+    assertTrue(nMatchPatterns > 0);
+  }
+
+  public final void testConcurrentMatching() throws Exception {
+    final String pattern = "@a.@b = @c + 1";
+    final ParseTreeNode specimen = QuasiBuilder.substV(
+        "x.y = z + 1",
+        new Object[0]);
+    final boolean[] failed = new boolean[1];
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; ++i) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 100; ++j) {
+            Map<String, ParseTreeNode> bindings = Rule.makeBindings();
+            if (!QuasiBuilder.match(pattern, specimen, bindings)
+                || bindings.size() != 3) {
+              synchronized (failed) { failed[0] = true; }
+            }
+          }
+        }
+      };
+    }
+    for (Thread t : threads) { t.start(); }
+    for (Thread t : threads) { t.join(); }
+    assertFalse(failed[0]);
+  }
+}
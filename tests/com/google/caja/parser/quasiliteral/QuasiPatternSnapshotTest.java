@@ -0,0 +1,140 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.parser.quasiliteral;
+
+import com.google.caja.parser.ParseTreeNode;
+import com.google.caja.util.CajaTestCase;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class QuasiPatternSnapshotTest extends CajaTestCase {
+  public final void testRoundTripOfRulePatterns() throws Exception {
+    Map<String, QuasiNode> patterns = parseRulePatterns();
+    assertTrue(patterns.size() > 100);
+
+    byte[] bytes = write(patterns);
+    Map<String, QuasiNode> read = QuasiPatternSnapshot.read(
+        new ByteArrayInputStream(bytes));
+    assertEquals(patterns.keySet(), read.keySet());
+    for (Map.Entry<String, QuasiNode> e : patterns.entrySet()) {
+      assertEquals(e.getKey(), e.getValue().render(),
+                   read.get(e.getKey()).render());
+    }
+    assertTrue(Arrays.equals(bytes, write(read)));
+  }
+
+  /**
+   * The snapshot is only rebuilt when the files it depends on change, so
+   * check that the one on the classpath matches what the parser produces now.
+   */
+  public final void testBuiltSnapshotIsCurrent() throws Exception {
+    InputStream in = QuasiPatternSnapshot.class.getResourceAsStream(
+        QuasiPatternSnapshot.RESOURCE_NAME);
+    assertNotNull(QuasiPatternSnapshot.RESOURCE_NAME, in);
+    Map<String, QuasiNode> built;
+    try {
+      built = QuasiPatternSnapshot.read(new BufferedInputStream(in));
+    } finally {
+      in.close();
+    }
+    Map<String, QuasiNode> parsed = parseRulePatterns();
+    assertEquals(parsed.keySet(), built.keySet());
+    for (Map.Entry<String, QuasiNode> e : parsed.entrySet()) {
+      String pattern = e.getKey();
+      QuasiNode node = built.get(pattern);
+      assertEquals(pattern, e.getValue().render(), node.render());
+      // The encoding includes node types and values that render does not.
+      assertTrue(pattern, Arrays.equals(
+          write(Collections.singletonMap(pattern, e.getValue())),
+          write(Collections.singletonMap(pattern, node))));
+    }
+  }
+
+  public final void testMatchAndSubstitute() throws Exception {
+    assertMatchesAfterRoundTrip(
+        "@o.@m(@as*)", "foo.bar(1, x)");
+    assertMatchesAfterRoundTrip(
+        "function @f?(@ps*) { @body*; }", "function (a, b) { return a; }");
+    assertMatchesAfterRoundTrip(
+        "function @f?(@ps*) { @body*; }", "function f() { f(); }");
+    assertMatchesAfterRoundTrip("@x__ = @y", "x__ = 1");
+  }
+
+  public final void testLiteralValues() throws Exception {
+    String pattern
+        = "x = [null, true, 1, 1.5, 'str', /re/g, -@y, { @k*: @v* }]";
+    QuasiNode node = roundTrip(pattern).get(pattern);
+    ParseTreeNode specimen = jsExpr(fromString(
+        "x = [null, true, 1, 1.5, 'str', /re/g, -z, { a: 1 }]"));
+    Map<String, ParseTreeNode> bindings = node.match(specimen);
+    assertNotNull(bindings);
+    assertEquals(render(specimen), render(node.substitute(bindings)));
+  }
+
+  public final void testBadInput() throws Exception {
+    try {
+      QuasiPatternSnapshot.read(
+          new ByteArrayInputStream(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }));
+      fail();
+    } catch (IOException ex) {
+      // pass
+    }
+  }
+
+  private void assertMatchesAfterRoundTrip(String pattern, String code)
+      throws Exception {
+    QuasiNode node = roundTrip(pattern).get(pattern);
+    ParseTreeNode specimen = jsExpr(fromString(code));
+    Map<String, ParseTreeNode> bindings = node.match(specimen);
+    assertNotNull(pattern, bindings);
+    assertEquals(
+        QuasiBuilder.parseQuasiNode(pattern).match(specimen).keySet(),
+        bindings.keySet());
+    assertEquals(render(specimen), render(node.substitute(bindings)));
+  }
+
+  private static Map<String, QuasiNode> parseRulePatterns() {
+    Map<String, QuasiNode> patterns = new LinkedHashMap<String, QuasiNode>();
+    for (String pattern
+         : QuasiBuilder.rulePatterns(QuasiBuilder.defaultRewriters())) {
+      QuasiNode node = QuasiBuilder.tryParse(pattern);
+      if (node != null) { patterns.put(pattern, node); }
+    }
+    return patterns;
+  }
+
+  private static Map<String, QuasiNode> roundTrip(String pattern)
+      throws Exception {
+    Map<String, QuasiNode> patterns = new LinkedHashMap<String, QuasiNode>();
+    patterns.put(pattern, QuasiBuilder.parseQuasiNode(pattern));
+    return QuasiPatternSnapshot.read(
+        new ByteArrayInputStream(write(patterns)));
+  }
+
+  private static byte[] write(Map<String, QuasiNode> patterns)
+      throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    QuasiPatternSnapshot.write(patterns, out);
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,83 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.parser.quasiliteral;
+
+import com.google.caja.parser.ParseTreeNode;
+import com.google.caja.reporting.TestBuildInfo;
+import com.google.caja.util.CajaTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class RuleChainTest extends CajaTestCase {
+  private RuleChain chain;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    chain = new RuleChain();
+    for (Rule rule : new CajitaRewriter(new TestBuildInfo(), mq, false)
+             .getRules()) {
+      chain.add(rule);
+    }
+  }
+
+  public final void testOperator() throws Exception {
+    ParseTreeNode memberAccess = jsExpr(fromString("o.p"));
+    assertTrue(ruleNames(memberAccess).contains("readPublic"));
+    assertFalse(ruleNames(memberAccess).contains("callFunc"));
+    ParseTreeNode call = jsExpr(fromString("f(1)"));
+    assertTrue(ruleNames(call).contains("callFunc"));
+    assertFalse(ruleNames(call).contains("readPublic"));
+  }
+
+  public final void testTrailingUnderscores() throws Exception {
+    assertTrue(ruleNames(jsExpr(fromString("x__"))).contains("varBadSuffix"));
+    assertFalse(ruleNames(jsExpr(fromString("x_"))).contains("varBadSuffix"));
+    assertFalse(ruleNames(jsExpr(fromString("x"))).contains("varBadSuffix"));
+  }
+
+  public final void testIdentifierName() throws Exception {
+    assertTrue(ruleNames(jsExpr(fromString("this"))).contains("varThisBad"));
+    assertFalse(ruleNames(jsExpr(fromString("that"))).contains("varThisBad"));
+  }
+
+  public final void testOrderPreserved() throws Exception {
+    for (String code : new String[] {
+           "o.p", "o[0]", "f(1)", "new C(1, 2)", "x__", "this", "a = b",
+           "a += 1", "{ a: 1 }", "function f() {}" }) {
+      ParseTreeNode node = jsExpr(fromString(code));
+      List<Rule> indexed = chain.applicableTo(node);
+      chain.setDiscriminating(false);
+      List<Rule> byClass = chain.applicableTo(node);
+      chain.setDiscriminating(true);
+      assertTrue(code, indexed.size() <= byClass.size());
+      // indexed is an ordered subsequence of byClass
+      int pos = 0;
+      for (Rule rule : indexed) {
+        while (pos < byClass.size() && byClass.get(pos) != rule) { ++pos; }
+        assertTrue(code + " : " + rule.getName(), pos < byClass.size());
+      }
+      // The catch-all rule is always last.
+      assertEquals(code, "recurse", indexed.get(indexed.size() - 1).getName());
+    }
+  }
+
+  private List<String> ruleNames(ParseTreeNode node) {
+    List<String> names = new ArrayList<String>();
+    for (Rule rule : chain.applicableTo(node)) { names.add(rule.getName()); }
+    return names;
+  }
+}
@@ -0,0 +1,97 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.parser.quasiliteral;
+
+import com.google.caja.parser.ParseTreeNode;
+import com.google.caja.parser.js.UncajoledModule;
+import com.google.caja.reporting.TestBuildInfo;
+import com.google.caja.util.CajaTestCase;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+public class RuleProfileTest extends CajaTestCase {
+  public final void testCounts() throws Exception {
+    RuleProfile profile = new RuleProfile();
+    Rewriter rw = new CajitaRewriter(new TestBuildInfo(), mq, false);
+    rw.setProfile(profile);
+    rw.expand(new UncajoledModule(js(fromString("f(1); g(2, 3);"))));
+    assertEquals(2, profile.getFirings("CajitaRewriter.callFunc"));
+    assertTrue(profile.getAttempts("CajitaRewriter.callFunc") >= 2);
+    assertEquals(0, profile.getFirings("CajitaRewriter.readPublic"));
+
+    // Statistics aggregate across rewriters.
+    Rewriter rw2 = new CajitaRewriter(new TestBuildInfo(), mq, false);
+    rw2.setProfile(profile);
+    rw2.expand(new UncajoledModule(js(fromString("h(o.p);"))));
+    assertEquals(3, profile.getFirings("CajitaRewriter.callFunc"));
+    assertEquals(1, profile.getFirings("CajitaRewriter.readPublic"));
+
+    profile.clear();
+    assertEquals(0, profile.getFirings("CajitaRewriter.callFunc"));
+  }
+
+  public final void testJson() throws Exception {
+    RuleProfile profile = new RuleProfile();
+    Rewriter rw = new CajitaRewriter(new TestBuildInfo(), mq, false);
+    rw.setProfile(profile);
+    rw.expand(new UncajoledModule(js(fromString("f(1);"))));
+    JSONObject json = profile.toJson();
+    JSONObject stats = (JSONObject) json.get("CajitaRewriter.callFunc");
+    assertEquals(1L, stats.get("firings"));
+    long nanos = (Long) stats.get("nanos");
+    long selfNanos = (Long) stats.get("selfNanos");
+    assertTrue(0 <= selfNanos && selfNanos <= nanos);
+    assertEquals(0L, stats.get("exceptionCount"));
+    assertEquals(0, ((JSONArray) stats.get("exceptions")).size());
+    // The module rule encloses all others.
+    JSONObject module = (JSONObject) json.get("CajitaRewriter.module");
+    assertTrue((Long) module.get("nanos") >= nanos);
+  }
+
+  public final void testExceptions() throws Exception {
+    RuleProfile profile = new RuleProfile();
+    Rewriter rw = new Rewriter(mq, false, false) {
+      {
+        addRule(new Rule() {
+          @Override
+          @RuleDescription(
+              name="fail",
+              synopsis="",
+              reason="")
+          public ParseTreeNode fire(ParseTreeNode node, Scope scope) {
+            throw new IllegalStateException("boom");
+          }
+        });
+      }
+    };
+    rw.setProfile(profile);
+    for (int i = 0; i < RuleProfile.MAX_EXCEPTIONS_PER_RULE + 2; ++i) {
+      try {
+        rw.expand(js(fromString("x;")));
+        fail();
+      } catch (IllegalStateException ex) {
+        // expected
+      }
+    }
+    JSONObject stats = (JSONObject) profile.toJson().get(".fail");
+    assertEquals(
+        (long) RuleProfile.MAX_EXCEPTIONS_PER_RULE + 2,
+        stats.get("exceptionCount"));
+    JSONArray exceptions = (JSONArray) stats.get("exceptions");
+    assertEquals(RuleProfile.MAX_EXCEPTIONS_PER_RULE, exceptions.size());
+    assertEquals("java.lang.IllegalStateException: boom", exceptions.get(0));
+  }
+}
@@ -23,6 +23,7 @@ import com.google.caja.parser.js.CatchStmt;
 import com.google.caja.parser.js.FunctionConstructor;
 import com.google.caja.parser.js.FunctionDeclaration;
 import com.google.caja.parser.js.Identifier;
+import com.google.caja.parser.js.SyntheticNodes;
 import com.google.caja.parser.js.TryStmt;
 import com.google.caja.parser.js.Declaration;
 import com.google.caja.reporting.MessageLevel;
@@ -32,6 +33,7 @@ import com.google.caja.reporting.Message;
 import com.google.caja.util.CajaTestCase;
 
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  *
@@ -527,6 +529,39 @@ public class ScopeTest extends CajaTestCase {
         MessagePart.Factory.valueOf("arguments"));
   }
 
+  public final void testSyntheticFunctionsSeenThrough() throws Exception {
+    Block b = js(fromString(
+        "function f(a) {"
+        + "  var b;"
+        + "  function g(c) {"
+        + "    var d = a + c + e;"
+        + "    try { h(x); } catch (x) { var i = x; }"
+        + "  }"
+        + "}"));
+    FunctionConstructor f = findFunctionConstructor(b, "f");
+    FunctionConstructor g = findFunctionConstructor(b, "g");
+    SyntheticNodes.s(g);
+    Scope s0 = Scope.fromProgram(b, mq);
+    Scope s1 = Scope.fromFunctionConstructor(s0, f);
+    Scope s2 = Scope.fromFunctionConstructor(s1, g);
+
+    assertEquals("[f, a, b, g, c, d, i]", locals(s1));
+    assertEquals("[g, c, d, i]", locals(s2));
+    assertEquals("[e, h, x]", s0.getImportedVariables().toString());
+
+    // A function that is not part of the program is analyzed on demand.
+    Scope s1Copy = Scope.fromFunctionConstructor(
+        s0, (FunctionConstructor) f.clone());
+    assertEquals(locals(s1), locals(s1Copy));
+    assertEquals("[e, h, x]", s0.getImportedVariables().toString());
+  }
+
+  private static String locals(Scope s) {
+    List<String> locals = new ArrayList<String>();
+    for (String local : s.getLocals()) { locals.add(local); }
+    return locals.toString();
+  }
+
   private FunctionConstructor findFunctionConstructor(ParseTreeNode root, String name) {
     return findNodeWithIdentifier(root, FunctionConstructor.class, name);
   }
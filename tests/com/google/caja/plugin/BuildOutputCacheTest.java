@@ -0,0 +1,188 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.plugin;
+
+import com.google.caja.reporting.BuildInfo;
+import com.google.caja.util.CajaTestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+public class BuildOutputCacheTest extends CajaTestCase {
+  private File tmpDir;
+  private File cacheDir;
+  private BuildInfo buildInfo;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    tmpDir = File.createTempFile("BuildOutputCacheTest", "");
+    assertTrue(tmpDir.delete());
+    assertTrue(tmpDir.mkdir());
+    cacheDir = new File(tmpDir, "cache");
+    buildInfo = BuildInfo.getInstance();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    super.tearDown();
+    delete(tmpDir);
+  }
+
+  public final void testRoundTrip() throws Exception {
+    BuildOutputCache cache = new BuildOutputCache(cacheDir);
+    assertNull(cache.get("k"));
+    cache.put("k", new BuildOutputCache.Entry(
+        Arrays.asList("WARNING : foo", "LINT : \u2603"), "var x = 1;"));
+    BuildOutputCache.Entry e = new BuildOutputCache(cacheDir).get("k");
+    assertEquals(Arrays.asList("WARNING : foo", "LINT : \u2603"), e.log);
+    assertEquals("var x = 1;", e.output);
+
+    cache.put("k", new BuildOutputCache.Entry(
+        Collections.<String>emptyList(), ""));
+    assertEquals("", cache.get("k").output);
+  }
+
+  public final void testCorruptEntryIsMiss() throws Exception {
+    BuildOutputCache cache = new BuildOutputCache(cacheDir);
+    cache.put("k", new BuildOutputCache.Entry(
+        Collections.<String>emptyList(), "var x = 1;"));
+    File entry = new File(cacheDir, "k");
+    FileOutputStream out = new FileOutputStream(entry);
+    out.write(new byte[] { 0, 0, 0, 1, 0, 0 });  // Truncated.
+    out.close();
+    assertNull(cache.get("k"));
+  }
+
+  public final void testKey() throws Exception {
+    File a = write("a.js", "var a = 1;");
+    File b = write("b.js", "var b = 2;");
+    File out = new File(tmpDir, "out.js");
+    Map<String, Object> options = options("cajita");
+    List<File> none = Collections.<File>emptyList();
+
+    String key = BuildOutputCache.key(
+        buildInfo, none, Arrays.asList(a, b), out, options);
+    assertEquals(key, BuildOutputCache.key(
+        buildInfo, none, Arrays.asList(a, b), out, options("cajita")));
+    // Order of inputs matters, since it is the order of the output.
+    assertFalse(key.equals(BuildOutputCache.key(
+        buildInfo, none, Arrays.asList(b, a), out, options)));
+    // Dependees are distinguished from inputs.
+    assertFalse(key.equals(BuildOutputCache.key(
+        buildInfo, Arrays.asList(b), Arrays.asList(a), out, options)));
+    assertFalse(key.equals(BuildOutputCache.key(
+        buildInfo, none, Arrays.asList(a, b), out, options("valija"))));
+    assertFalse(key.equals(BuildOutputCache.key(
+        buildInfo, none, Arrays.asList(a, b), new File(tmpDir, "out.html"),
+        options)));
+    // The cache directory does not affect the output.
+    options.put("cacheDir", cacheDir);
+    assertEquals(key, BuildOutputCache.key(
+        buildInfo, none, Arrays.asList(a, b), out, options));
+
+    write("b.js", "var b = 3;");
+    assertFalse(key.equals(BuildOutputCache.key(
+        buildInfo, none, Arrays.asList(a, b), out, options)));
+  }
+
+  public final void testCajoleUsesCache() throws Exception {
+    File input = write("in.js", "var x = 1;");
+    File output = new File(tmpDir, "out.js");
+    Map<String, Object> options = options("cajita");
+    options.put("cacheDir", cacheDir);
+    List<File> inputs = Arrays.asList(input);
+    List<File> none = Collections.<File>emptyList();
+
+    assertTrue(cajole(none, inputs, output, options));
+    String compiled = read(output);
+    assertTrue(compiled, compiled.contains("___.loadModule"));
+
+    // Replace the cached output with something distinguishable so we can
+    // tell that the next build does not recompile.
+    String key = BuildOutputCache.key(
+        buildInfo, none, inputs, output, options);
+    new BuildOutputCache(cacheDir).put(key, new BuildOutputCache.Entry(
+        Collections.<String>emptyList(), "cached"));
+    assertTrue(output.delete());
+    assertTrue(cajole(none, inputs, output, options));
+    assertEquals("cached", read(output));
+
+    // A changed input misses.
+    write("in.js", "var x = 2;");
+    assertTrue(cajole(none, inputs, output, options));
+    compiled = read(output);
+    assertTrue(compiled, compiled.contains("___.loadModule"));
+  }
+
+  private boolean cajole(
+      List<File> dependees, List<File> inputs, File output,
+      Map<String, Object> options) {
+    StringWriter log = new StringWriter();
+    return new BuildServiceImplementation().cajole(
+        new PrintWriter(log), dependees, inputs, output, options);
+  }
+
+  private static Map<String, Object> options(String language) {
+    Map<String, Object> options = new HashMap<String, Object>();
+    options.put("debug", Boolean.FALSE);
+    options.put("language", language);
+    options.put("renderer", "minify");
+    options.put("toIgnore", new LinkedHashSet<String>());
+    return options;
+  }
+
+  private File write(String name, String content) throws IOException {
+    File f = new File(tmpDir, name);
+    Writer w = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
+    w.write(content);
+    w.close();
+    return f;
+  }
+
+  private static String read(File f) throws IOException {
+    byte[] bytes = new byte[(int) f.length()];
+    FileInputStream in = new FileInputStream(f);
+    try {
+      for (int n = 0, k; n < bytes.length; n += k) {
+        k = in.read(bytes, n, bytes.length - n);
+        if (k < 0) { throw new IOException("Truncated " + f); }
+      }
+    } finally {
+      in.close();
+    }
+    return new String(bytes, "UTF-8");
+  }
+
+  private static void delete(File f) {
+    File[] children = f.listFiles();
+    if (children != null) {
+      for (File child : children) { delete(child); }
+    }
+    f.delete();
+  }
+}
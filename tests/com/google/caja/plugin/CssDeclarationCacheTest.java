@@ -0,0 +1,144 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.plugin;
+
+import com.google.caja.config.ConfigUtil;
+import com.google.caja.lang.css.CssSchema;
+import com.google.caja.lang.html.HtmlSchema;
+import com.google.caja.parser.AncestorChain;
+import com.google.caja.parser.css.CssTree;
+import com.google.caja.reporting.Message;
+import com.google.caja.reporting.MessageContext;
+import com.google.caja.reporting.MessageQueue;
+import com.google.caja.reporting.SimpleMessageQueue;
+import com.google.caja.util.CajaTestCase;
+import com.google.caja.util.SyntheticAttributeKey;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+public class CssDeclarationCacheTest extends CajaTestCase {
+  private CssDeclarationCache cache;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    cache = new CssDeclarationCache(CssDeclarationCache.DEFAULT_MAX_ENTRIES);
+  }
+
+  public final void testReplayedAnnotations() throws Exception {
+    String css = "p { font: bold 12px/1.5 'Arial', serif;"
+        + " background: url(bg.png) no-repeat rgb(0, 0, 255) }";
+    String uncached = validate(css, null);
+    assertEquals(uncached, validate(css, cache));
+    assertEquals(0, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+    assertEquals(uncached, validate(css, cache));
+    assertEquals(2, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+    assertEquals(0.5, cache.getHitRate(), 0);
+  }
+
+  public final void testReplayedFailures() throws Exception {
+    for (String css : new String[] {
+           "p { font: 12px }",  // specialized
+           "p { color: bogus }",  // malformed
+           "p { bogus: red }",  // unknown
+           "p { _color: red }",  // underscore hack
+           "p { font-size: 12px }\n\np { font-size: 12px }",
+         }) {
+      String uncached = validate(css, null);
+      assertEquals(css, uncached, validate(css, cache));
+      assertEquals(css, uncached, validate(css, cache));
+    }
+    // The last stylesheet repeats a declaration.
+    assertEquals(5, cache.getMissCount());
+    assertEquals(7, cache.getHitCount());
+  }
+
+  public final void testCaseOfKeywordsIgnored() throws Exception {
+    validate("p { color: RED }", cache);
+    String uncached = validate("p { color: red }", null);
+    assertEquals(uncached, validate("p { color: red }", cache));
+    assertEquals(1, cache.getHitCount());
+    // But not the case of strings.
+    validate("p { font-family: 'Arial' }", cache);
+    validate("p { font-family: 'arial' }", cache);
+    assertEquals(1, cache.getHitCount());
+  }
+
+  public final void testWarningsNotCached() throws Exception {
+    String css = "p { width: -1px }";
+    String uncached = validate(css, null);
+    assertTrue(uncached, uncached.contains("WARNING"));
+    assertEquals(uncached, validate(css, cache));
+    assertEquals(uncached, validate(css, cache));
+    assertEquals(0, cache.size());
+  }
+
+  public final void testSchemasDistinguished() throws Exception {
+    CssSchema other = new CssSchema(
+        ConfigUtil.loadWhiteListFromJson(
+            URI.create(
+                "resource:///com/google/caja/lang/css/css-extensions.json"),
+            ConfigUtil.RESOURCE_RESOLVER, mq),
+        ConfigUtil.loadWhiteListFromJson(
+            URI.create(
+                "resource:///com/google/caja/lang/css/css-extensions-fns.json"),
+            ConfigUtil.RESOURCE_RESOLVER, mq));
+    validate("p { color: red }", cache);
+    CssTree t = css(fromString("p { color: red }"));
+    new CssValidator(other, HtmlSchema.getDefault(mq), mq)
+        .withDeclarationCache(cache)
+        .validateCss(AncestorChain.instance(t));
+    assertEquals(0, cache.getHitCount());
+    assertEquals(2, cache.size());
+  }
+
+  public final void testBounded() throws Exception {
+    cache = new CssDeclarationCache(2);
+    validate("p { color: red; color: blue; color: green }", cache);
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.getEvictionCount());
+    // red was least recently used.
+    validate("p { color: blue; color: green; color: red }", cache);
+    assertEquals(2, cache.getHitCount());
+  }
+
+  private String validate(String css, CssDeclarationCache cache)
+      throws Exception {
+    MessageQueue smq = new SimpleMessageQueue();
+    CssTree t = css(fromString(css), true);
+    new CssValidator(
+        CssSchema.getDefaultCss21Schema(smq), HtmlSchema.getDefault(smq), smq)
+        .withDeclarationCache(cache)
+        .validateCss(AncestorChain.instance(t));
+    MessageContext mc = new MessageContext();
+    mc.relevantKeys = new LinkedHashSet<SyntheticAttributeKey<?>>(
+        Arrays.<SyntheticAttributeKey<?>>asList(
+            CssValidator.CSS_PROPERTY_PART_TYPE,
+            CssValidator.CSS_PROPERTY_PART, CssValidator.INVALID));
+    StringBuilder sb = new StringBuilder();
+    t.format(mc, sb);
+    List<String> messages = new ArrayList<String>();
+    for (Message msg : smq.getMessages()) {
+      messages.add(msg.getMessageLevel() + ": " + msg.format(mc));
+    }
+    return sb + "\n" + messages;
+  }
+}
@@ -27,6 +27,7 @@ import com.google.caja.reporting.MessageQueue;
 import com.google.caja.reporting.SimpleMessageQueue;
 import com.google.caja.util.CajaTestCase;
 import com.google.caja.util.MoreAsserts;
+import com.google.caja.util.Name;
 import com.google.caja.util.SyntheticAttributeKey;
 
 import java.util.ArrayList;
@@ -1577,6 +1578,16 @@ public final class CssValidatorTest extends CajaTestCase {
     fails("blockquote[cite] { font-weight: bold }");
   }
 
+  public final void testCompiledSignaturesShared() throws Exception {
+    CssSchema schema = CssSchema.getDefaultCss21Schema(mq);
+    CssSchema.CssPropertyInfo font = schema.getCssProperty(Name.css("font"));
+    CssSignatureMatcher.Cache cache = CssSignatureMatcher.cacheFor(schema);
+    assertSame(cache, CssSignatureMatcher.cacheFor(schema));
+    CssSignatureMatcher m = cache.compile(schema, font.sig, font.name);
+    assertSame(m, cache.compile(schema, font.sig, font.name));
+    assertNotSame(m, cache.compile(schema, font.sig, Name.css("x")));
+  }
+
   private void fails(String css) throws Exception {
     CssTree t = css(fromString(css), true);
     mq.getMessages().clear();
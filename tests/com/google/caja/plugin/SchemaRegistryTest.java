@@ -0,0 +1,167 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.plugin;
+
+import com.google.caja.config.AllowedFileResolver;
+import com.google.caja.lexer.ParseException;
+import com.google.caja.reporting.BuildInfo;
+import com.google.caja.reporting.MessageLevel;
+import com.google.caja.util.CajaTestCase;
+import com.google.caja.util.Name;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashSet;
+
+public class SchemaRegistryTest extends CajaTestCase {
+  private File tmpDir;
+  private File cssProperties, cssFunctions, htmlElements, htmlAttributes;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    tmpDir = File.createTempFile("SchemaRegistryTest", "");
+    assertTrue(tmpDir.delete());
+    assertTrue(tmpDir.mkdir());
+    cssProperties = new File(tmpDir, "css.json");
+    cssFunctions = new File(tmpDir, "css-fns.json");
+    htmlElements = new File(tmpDir, "elements.json");
+    htmlAttributes = new File(tmpDir, "attributes.json");
+    write(cssProperties, extending("css/css-extensions.json", ""));
+    write(cssFunctions, extending("css/css-extensions-fns.json", ""));
+    write(htmlElements, extending("html/html4-elements-extensions.json", ""));
+    write(htmlAttributes,
+          extending("html/html4-attributes-extensions.json", ""));
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    super.tearDown();
+    File[] children = tmpDir.listFiles();
+    if (children != null) {
+      for (File child : children) { child.delete(); }
+    }
+    tmpDir.delete();
+  }
+
+  public final void testReloadOnChange() throws Exception {
+    SchemaRegistry registry = newRegistry();
+    assertEquals(
+        new HashSet<File>(Arrays.asList(
+            cssProperties, cssFunctions, htmlElements, htmlAttributes)),
+        registry.getWatchedFiles());
+    assertEquals(0, registry.getGeneration());
+    assertFalse(registry.checkForChanges(mq));
+
+    CompilerContext before = registry.newContext(BuildInfo.getInstance());
+    assertTrue(before.getCssSchema().isPropertyAllowed(Name.css("color")));
+    assertTrue(before.getHtmlSchema().isElementAllowed(Name.html("b")));
+
+    write(cssProperties,
+          extending("css/css-extensions.json", ", \"denied\": [\"color\"]"));
+    write(htmlElements,
+          extending("html/html4-elements-extensions.json",
+                    ", \"denied\": [\"B\"]"));
+    assertTrue(registry.checkForChanges(mq));
+    assertEquals(1, registry.getGeneration());
+    assertFalse(registry.checkForChanges(mq));
+
+    CompilerContext after = registry.newContext(BuildInfo.getInstance());
+    assertFalse(after.getCssSchema().isPropertyAllowed(Name.css("color")));
+    assertFalse(after.getHtmlSchema().isElementAllowed(Name.html("b")));
+    // A context obtained before the reload is unaffected.
+    assertTrue(before.getCssSchema().isPropertyAllowed(Name.css("color")));
+    assertTrue(before.getHtmlSchema().isElementAllowed(Name.html("b")));
+  }
+
+  public final void testBadReloadKeepsSchemas() throws Exception {
+    SchemaRegistry registry = newRegistry();
+    write(cssFunctions, "{ \"inherits\": [ 42 ] }");
+    assertFalse(registry.checkForChanges(mq));
+    assertEquals(0, registry.getGeneration());
+    assertFalse(registry.getLastReloadMessages().isEmpty());
+    assertTrue(mq.hasMessageAtLevel(MessageLevel.ERROR));
+    assertTrue(registry.getCssSchema().isFunctionAllowed(Name.css("rgb")));
+    // Not retried until the file changes again.
+    mq.getMessages().clear();
+    assertFalse(registry.checkForChanges(mq));
+    assertTrue(mq.getMessages().isEmpty());
+
+    write(cssFunctions, extending("css/css-extensions-fns.json", ""));
+    assertTrue(registry.checkForChanges(mq));
+    assertEquals(1, registry.getGeneration());
+    assertTrue(registry.getLastReloadMessages().isEmpty());
+  }
+
+  public final void testBadInitialLoad() throws Exception {
+    write(htmlAttributes, "[]");
+    try {
+      newRegistry();
+      fail();
+    } catch (ParseException ex) {
+      assertTrue(mq.hasMessageAtLevel(MessageLevel.ERROR));
+    }
+  }
+
+  public final void testPolling() throws Exception {
+    SchemaRegistry registry = newRegistry();
+    registry.startPolling(10);
+    try {
+      write(cssProperties,
+            extending("css/css-extensions.json", ", \"denied\": [\"color\"]"));
+      long deadline = System.currentTimeMillis() + 10000;
+      // The poller may see the file mid-write, so wait for the final content.
+      while (registry.getCssSchema().isPropertyAllowed(Name.css("color"))
+             && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+    } finally {
+      registry.stopPolling();
+    }
+    assertFalse(registry.getCssSchema().isPropertyAllowed(Name.css("color")));
+    assertTrue(registry.getGeneration() >= 1);
+  }
+
+  private SchemaRegistry newRegistry() throws ParseException {
+    return new SchemaRegistry(
+        cssProperties.toURI(), cssFunctions.toURI(),
+        htmlElements.toURI(), htmlAttributes.toURI(),
+        new AllowedFileResolver(new HashSet<File>(Arrays.asList(
+            cssProperties, cssFunctions, htmlElements, htmlAttributes))),
+        mq);
+  }
+
+  private static String extending(String resource, String rest) {
+    return "{ \"inherits\": [ \"resource:///com/google/caja/lang/"
+        + resource + "\" ]" + rest + " }";
+  }
+
+  private static void write(File f, String content) throws IOException {
+    // Make sure the change is visible even on file systems with a coarse
+    // modification time.
+    long lastModified = f.lastModified();
+    Writer out = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
+    try {
+      out.write(content);
+    } finally {
+      out.close();
+    }
+    if (lastModified != 0) { f.setLastModified(lastModified + 2000); }
+  }
+}
@@ -0,0 +1,132 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.plugin.stages;
+
+import com.google.caja.lang.css.CssSchema;
+import com.google.caja.lang.html.HtmlSchema;
+import com.google.caja.lexer.InputSource;
+import com.google.caja.parser.AncestorChain;
+import com.google.caja.plugin.Job;
+import com.google.caja.plugin.Jobs;
+import com.google.caja.plugin.PluginMeta;
+import com.google.caja.reporting.Message;
+import com.google.caja.reporting.MessageContext;
+import com.google.caja.reporting.MessagePart;
+import com.google.caja.reporting.MessageType;
+import com.google.caja.reporting.SimpleMessageQueue;
+import com.google.caja.util.CajaTestCase;
+import com.google.caja.util.MoreAsserts;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class PerJobStageTest extends CajaTestCase {
+  private ExecutorService executor;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    executor = Executors.newFixedThreadPool(3);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    super.tearDown();
+    executor.shutdown();
+    executor = null;
+  }
+
+  public final void testConcurrentRunMatchesSequentialRun() throws Exception {
+    Jobs sequential = cssJobs(8);
+    Jobs concurrent = cssJobs(8);
+    concurrent.setExecutor(executor);
+
+    assertTrue(applyCssStages(sequential));
+    assertTrue(applyCssStages(concurrent));
+
+    List<String> messages = messages(sequential);
+    assertFalse(messages.isEmpty());
+    MoreAsserts.assertListsEqual(messages, messages(concurrent));
+    MoreAsserts.assertListsEqual(outputs(sequential), outputs(concurrent));
+  }
+
+  public final void testFailureReportedAfterEarlierMessages() throws Exception {
+    Jobs jobs = cssJobs(4);
+    jobs.setExecutor(executor);
+    final Job failing = jobs.getJobs().get(2);
+    PerJobStage stage = new PerJobStage(Job.JobType.CSS) {
+      public boolean apply(Jobs jobs) { return applyToJobs(jobs); }
+
+      @Override
+      protected boolean applyToJob(Job job, Jobs jobs) {
+        jobs.getMessageQueue().addMessage(
+            MessageType.CHECKPOINT, MessagePart.Factory.valueOf(
+                job.getRoot().node.getFilePosition().source().toString()),
+            MessagePart.Factory.valueOf(0));
+        if (job == failing) { throw new IllegalStateException(); }
+        return true;
+      }
+    };
+    try {
+      stage.apply(jobs);
+      fail("Expected failure");
+    } catch (IllegalStateException ex) {
+      // Expected.
+    }
+    // The messages from jobs before the failure, and from the failing job.
+    assertEquals(3, jobs.getMessageQueue().getMessages().size());
+  }
+
+  private Jobs cssJobs(int n) throws Exception {
+    Jobs jobs = new Jobs(
+        new MessageContext(), new SimpleMessageQueue(), new PluginMeta());
+    for (int i = 0; i < n; ++i) {
+      InputSource src = new InputSource(
+          URI.create("test:///style" + i + ".css"));
+      jobs.getJobs().add(new Job(AncestorChain.instance(css(fromString(
+          "p.c" + i + " { color: red; bogus-" + i + ": 1 }\n"
+          + "#id" + i + " a:visited { width: -" + i + "px }",
+          src)))));
+    }
+    return jobs;
+  }
+
+  private boolean applyCssStages(Jobs jobs) {
+    CssSchema cssSchema = CssSchema.getDefaultCss21Schema(mq);
+    HtmlSchema htmlSchema = HtmlSchema.getDefault(mq);
+    return new ValidateCssStage(cssSchema, htmlSchema).apply(jobs)
+        && new RewriteCssStage().apply(jobs);
+  }
+
+  private static List<String> messages(Jobs jobs) {
+    List<String> messages = new ArrayList<String>();
+    for (Message m : jobs.getMessageQueue().getMessages()) {
+      messages.add(m.getMessageLevel() + ": "
+                   + m.format(jobs.getMessageContext()));
+    }
+    return messages;
+  }
+
+  private static List<String> outputs(Jobs jobs) {
+    List<String> outputs = new ArrayList<String>();
+    for (Job job : jobs.getJobs()) {
+      outputs.add(render(job.getRoot().node));
+    }
+    return outputs;
+  }
+}
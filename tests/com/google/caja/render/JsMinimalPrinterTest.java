@@ -224,6 +224,24 @@ public class JsMinimalPrinterTest extends CajaTestCase {
         out.toString());
   }
 
+  public final void testOutputIsStreamed() {
+    StringBuilder out = new StringBuilder();
+    JsMinimalPrinter pp = new JsMinimalPrinter(new Concatenator(out));
+    String[] stmt = { "var", "x", "=", "1", ";" };
+    int n = 10000;
+    for (int i = 1; i <= n; ++i) {
+      for (String tok : stmt) { pp.consume(tok); }
+      // Each statement is rendered as "var x=1;", and the space may be a
+      // newline.
+      int lag = 8 * i - out.length();
+      assertTrue("" + lag, lag < 200);
+    }
+    pp.noMoreTokens();
+    // The last semicolon is dropped.
+    assertEquals(8 * n - 1, out.length());
+    assertEquals("var x=1;var x=1;", out.substring(0, 16));
+  }
+
   private static final JsTokenType[] TYPES = JsTokenType.values();
   private static final String[] PUNCTUATORS;
   static {
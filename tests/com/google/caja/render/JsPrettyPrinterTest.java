@@ -299,6 +299,25 @@ public class JsPrettyPrinterTest extends CajaTestCase {
     assertTokens("return /**/ 4;", "return", "//", "4", ";");
   }
 
+  public final void testOutputIsStreamed() {
+    StringBuilder out = new StringBuilder();
+    JsPrettyPrinter pp = new JsPrettyPrinter(new Concatenator(out));
+    pp.consume("{");
+    String[] stmt = { "x", "=", "f", "(", "a", ",", "b", ")", ";" };
+    int n = 10000;
+    for (int i = 1; i <= n; ++i) {
+      for (String tok : stmt) { pp.consume(tok); }
+      // Each statement is rendered on its own line as "\n  x = f(a, b);".
+      int lag = 1 + 15 * i - out.length();
+      assertTrue("" + lag, lag < 200);
+    }
+    pp.consume("}");
+    pp.noMoreTokens();
+    assertEquals(2 + 15 * n + 1, out.length());
+    assertEquals("{\n  x = f(a, b);\n", out.substring(0, 17));
+    assertEquals("\n  x = f(a, b);\n}", out.substring(out.length() - 17));
+  }
+
   private static final JsTokenType[] TYPES = JsTokenType.values();
   private static final Operator[] OPERATORS = Operator.values();
   private static final Keyword[] KEYWORDS = Keyword.values();
@@ -0,0 +1,120 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.service;
+
+import junit.framework.TestCase;
+
+public class CajoledOutputCacheTest extends TestCase {
+  private long time;
+
+  private CajoledOutputCache makeCache(long maxBytes, long ttlMillis) {
+    return new CajoledOutputCache(maxBytes, ttlMillis) {
+      @Override
+      protected long now() { return time; }
+    };
+  }
+
+  public final void testKeyDependsOnAllInputs() {
+    byte[] content = { 1, 2, 3 };
+    String base = CajoledOutputCache.makeKey(
+        content, "http://foo/", CajolingService.Transform.CAJITA,
+        "text/javascript", "*/*", "UTF-8", "1");
+    assertEquals(base, CajoledOutputCache.makeKey(
+        new byte[] { 1, 2, 3 }, "http://foo/",
+        CajolingService.Transform.CAJITA, "text/javascript", "*/*", "UTF-8",
+        "1"));
+    assertFalse(base.equals(CajoledOutputCache.makeKey(
+        new byte[] { 1, 2, 4 }, "http://foo/",
+        CajolingService.Transform.CAJITA, "text/javascript", "*/*", "UTF-8",
+        "1")));
+    assertFalse(base.equals(CajoledOutputCache.makeKey(
+        content, "http://foo/", CajolingService.Transform.VALIJA,
+        "text/javascript", "*/*", "UTF-8", "1")));
+    assertFalse(base.equals(CajoledOutputCache.makeKey(
+        content, "http://foo/", null,
+        "text/javascript", "*/*", "UTF-8", "1")));
+    assertFalse(base.equals(CajoledOutputCache.makeKey(
+        content, "http://foo/", CajolingService.Transform.CAJITA,
+        "text/javascript", "*/*", "UTF-8", "2")));
+    assertFalse(base.equals(CajoledOutputCache.makeKey(
+        content, "http://foo/", CajolingService.Transform.CAJITA,
+        "text/javascript", "*/*", "ISO-8859-1", "1")));
+    // Moving characters between parts changes the key.
+    assertFalse(CajoledOutputCache.makeKey(
+        content, null, null, "ab", "c", null, null).equals(
+        CajoledOutputCache.makeKey(
+            content, null, null, "a", "bc", null, null)));
+    assertFalse(CajoledOutputCache.makeKey(
+        content, null, null, "", null, null, null).equals(
+        CajoledOutputCache.makeKey(
+            content, null, null, null, null, null, null)));
+  }
+
+  public final void testHitsAndMisses() {
+    CajoledOutputCache cache = makeCache(100, 1000);
+    assertNull(cache.get("a"));
+    cache.put("a", new byte[] { 42 }, "text/javascript", "UTF-8");
+    CajoledOutputCache.Entry e = cache.get("a");
+    assertEquals(1, e.getContent().length);
+    assertEquals(42, e.getContent()[0]);
+    assertEquals("text/javascript", e.getContentType());
+    assertEquals("UTF-8", e.getCharSet());
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+    assertEquals(0, cache.getEvictionCount());
+  }
+
+  public final void testLeastRecentlyUsedEvictedFirst() {
+    CajoledOutputCache cache = makeCache(10, 1000);
+    cache.put("a", new byte[4], "text/plain", null);
+    cache.put("b", new byte[4], "text/plain", null);
+    assertNotNull(cache.get("a"));  // b is now least recently used.
+    cache.put("c", new byte[4], "text/plain", null);
+    assertEquals(1, cache.getEvictionCount());
+    assertEquals(8, cache.getTotalBytes());
+    assertNotNull(cache.get("a"));
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("c"));
+  }
+
+  public final void testOversizedContentNotCached() {
+    CajoledOutputCache cache = makeCache(10, 1000);
+    cache.put("a", new byte[4], "text/plain", null);
+    cache.put("b", new byte[11], "text/plain", null);
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("a"));
+    assertEquals(0, cache.getEvictionCount());
+  }
+
+  public final void testReplaceKeepsSizeAccurate() {
+    CajoledOutputCache cache = makeCache(10, 1000);
+    cache.put("a", new byte[4], "text/plain", null);
+    cache.put("a", new byte[6], "text/plain", null);
+    assertEquals(1, cache.size());
+    assertEquals(6, cache.getTotalBytes());
+  }
+
+  public final void testExpiry() {
+    CajoledOutputCache cache = makeCache(10, 1000);
+    time = 5000;
+    cache.put("a", new byte[4], "text/plain", null);
+    time = 5999;
+    assertNotNull(cache.get("a"));
+    time = 6000;
+    assertNull(cache.get("a"));
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.getTotalBytes());
+  }
+}
@@ -14,7 +14,13 @@
 
 package com.google.caja.service;
 
+import com.google.caja.reporting.TestBuildInfo;
+
+import java.io.IOException;
+import java.net.URI;
 import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Tests the running the cajoler as a webservice
@@ -58,4 +64,231 @@ public class CajolingServiceTest extends ServiceTestCase {
     assertEquals("ERROR",
         requestGet("?url=http://foo/bar.gif&mime-type=image/*"));
   }
+
+  public final void testCachedOutputReused() throws Exception {
+    registerUri("http://foo/bar.js", "g(1);", "text/javascript");
+    CajoledOutputCache cache = getService().getCache();
+    Object first = requestGet(
+        "?url=http://foo/bar.js&mime-type=text/javascript&transform=CAJITA");
+    assertEquals(0, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+    Object second = requestGet(
+        "?url=http://foo/bar.js&mime-type=text/javascript&transform=CAJITA");
+    assertEquals(first, second);
+    assertEquals(1, cache.getHitCount());
+
+    // A different transform is a different cache entry.
+    requestGet(
+        "?url=http://foo/bar.js&mime-type=text/javascript&transform=VALIJA");
+    assertEquals(1, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+
+    // Changed content is a different cache entry.
+    registerUri("http://foo/bar.js", "g(2);", "text/javascript");
+    Object third = requestGet(
+        "?url=http://foo/bar.js&mime-type=text/javascript&transform=CAJITA");
+    assertFalse(first.equals(third));
+    assertEquals(3, cache.getMissCount());
+  }
+
+  public final void testStreamedOutputMatchesBuffered() throws Exception {
+    registerUri("http://foo/bar.js", "g(1);", "text/javascript");
+    Object buffered = requestGet(
+        "?url=http://foo/bar.js&mime-type=text/javascript&transform=VALIJA");
+    getService().getCache().clear();
+    getService().setStreaming(true);
+    Object streamed = requestGet(
+        "?url=http://foo/bar.js&mime-type=text/javascript&transform=VALIJA");
+    assertEquals(buffered, streamed);
+    // The streamed output was captured for the cache.
+    assertEquals(1, getService().getCache().size());
+    assertEquals(streamed, requestGet(
+        "?url=http://foo/bar.js&mime-type=text/javascript&transform=VALIJA"));
+    assertEquals(1, getService().getCache().getHitCount());
+  }
+
+  public final void testStreamedErrorBeforeFirstChunk() throws Exception {
+    getService().setStreaming(true);
+    registerUri("http://foo/bar.js", "g(", "text/javascript");
+    assertEquals(
+        "ERROR",
+        requestGet("?url=http://foo/bar.js&mime-type=text/javascript"));
+  }
+
+  public final void testCoalescingServesSequentialRequests() throws Exception {
+    getService().setCoalescing(true);
+    registerUri("http://foo/bar.js", "g(1);", "text/javascript");
+    Object first = requestGet(
+        "?url=http://foo/bar.js&mime-type=text/javascript&transform=VALIJA");
+    assertEquals(
+        valijaModule("moduleResult___ = $v.cf($v.ro('g'), [ 1 ]);"), first);
+    assertEquals("ERROR", requestGet(
+        "?url=http://foo/baz.js&mime-type=text/javascript&transform=VALIJA"));
+    // Requests that do not overlap in time each do their own work.
+    assertEquals(2, getService().getCoalescer().getComputedCount());
+    assertEquals(0, getService().getCoalescer().getCoalescedCount());
+    assertEquals(0, getService().getCoalescer().getInFlightCount());
+  }
+
+  public final void testCoalescedRequestsWriteTheirOwnResponses()
+      throws Exception {
+    final CountDownLatch fetching = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CajolingService service = blockingService(fetching, release);
+    service.setCoalescing(true);
+    final String query
+        = "?url=http://foo/bar.js&mime-type=text/javascript&transform=VALIJA";
+    final TestHttpServletResponse leaderResp = new TestHttpServletResponse();
+    leaderResp.disconnect();
+    final Exception[] leaderFailure = new Exception[1];
+    Thread leader = new Thread() {
+      @Override
+      public void run() {
+        try {
+          service.doGet(new TestHttpServletRequest(query), leaderResp);
+        } catch (Exception ex) {
+          leaderFailure[0] = ex;
+        }
+      }
+    };
+    final TestHttpServletResponse followerResp = new TestHttpServletResponse();
+    Thread follower = new Thread() {
+      @Override
+      public void run() {
+        try {
+          service.doGet(new TestHttpServletRequest(query), followerResp);
+        } catch (Exception ex) {
+          ex.printStackTrace();
+        }
+      }
+    };
+    leader.start();
+    assertTrue(fetching.await(10, TimeUnit.SECONDS));
+    follower.start();
+    for (int i = 0; service.getCoalescer().getCoalescedCount() < 1; ++i) {
+      assertTrue(i < 1000);
+      Thread.sleep(10);
+    }
+    release.countDown();
+    leader.join();
+    follower.join();
+
+    assertEquals(1, service.getCoalescer().getComputedCount());
+    // Only the disconnected client sees its own failure.
+    assertNotNull(leaderFailure[0]);
+    assertEquals(
+        valijaModule("moduleResult___ = $v.cf($v.ro('g'), [ 1 ]);"),
+        followerResp.getOutputObject());
+  }
+
+  public final void testCoalescedRequestCancelledWhileWaiting()
+      throws Exception {
+    CountDownLatch fetching = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    final CajolingService service = blockingService(fetching, release);
+    service.setCoalescing(true);
+    final String query
+        = "?url=http://foo/bar.js&mime-type=text/javascript&transform=VALIJA";
+    final TestHttpServletResponse leaderResp = new TestHttpServletResponse();
+    Thread leader = new Thread() {
+      @Override
+      public void run() {
+        try {
+          service.doGet(new TestHttpServletRequest(query), leaderResp);
+        } catch (Exception ex) {
+          ex.printStackTrace();
+        }
+      }
+    };
+    final TestHttpServletResponse followerResp = new TestHttpServletResponse();
+    final boolean[] stillInterrupted = new boolean[1];
+    Thread follower = new Thread() {
+      @Override
+      public void run() {
+        try {
+          service.doGet(new TestHttpServletRequest(query), followerResp);
+        } catch (Exception ex) {
+          ex.printStackTrace();
+        }
+        stillInterrupted[0] = Thread.interrupted();
+      }
+    };
+    leader.start();
+    assertTrue(fetching.await(10, TimeUnit.SECONDS));
+    follower.start();
+    for (int i = 0; service.getCoalescer().getCoalescedCount() < 1; ++i) {
+      assertTrue(i < 1000);
+      Thread.sleep(10);
+    }
+    follower.interrupt();
+    follower.join();
+    assertEquals(503, followerResp.getStatus());
+    assertTrue(stillInterrupted[0]);
+
+    release.countDown();
+    leader.join();
+    assertEquals(200, leaderResp.getStatus());
+    assertEquals(
+        valijaModule("moduleResult___ = $v.cf($v.ro('g'), [ 1 ]);"),
+        leaderResp.getOutputObject());
+  }
+
+  /** A service whose fetches of g(1); wait until release. */
+  private static CajolingService blockingService(
+      final CountDownLatch fetching, final CountDownLatch release) {
+    return new CajolingService(new TestBuildInfo()) {
+      @Override
+      protected FetchedData fetch(URI uri) throws IOException {
+        fetching.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException ex) {
+          throw new IOException(ex.toString());
+        }
+        return new FetchedData(
+            "g(1);".getBytes("UTF-8"), "text/javascript", "UTF-8");
+      }
+    };
+  }
+
+  public final void testRuleProfileAggregatesRequests() throws Exception {
+    TestHttpServletResponse resp = new TestHttpServletResponse();
+    getService().writeRuleProfile(resp);
+    assertEquals(404, resp.getStatus());
+
+    getService().setProfiling(true);
+    registerUri("http://foo/bar.js", "g(1);", "text/javascript");
+    requestGet(
+        "?url=http://foo/bar.js&mime-type=text/javascript&transform=VALIJA");
+    long firings = getService().getRuleProfile().getFirings(
+        "DefaultValijaRewriter.callFunc");
+    assertTrue(firings > 0);
+    registerUri("http://foo/bar.js", "g(2);", "text/javascript");
+    requestGet(
+        "?url=http://foo/bar.js&mime-type=text/javascript&transform=VALIJA");
+    assertEquals(
+        2 * firings,
+        getService().getRuleProfile().getFirings(
+            "DefaultValijaRewriter.callFunc"));
+    assertEquals(
+        2, getService().getRuleProfile().getFirings("CajitaRewriter.module"));
+
+    resp = new TestHttpServletResponse();
+    getService().writeRuleProfile(resp);
+    assertEquals(200, resp.getStatus());
+    assertTrue(((String) resp.getOutputObject()).contains(
+        "\"DefaultValijaRewriter.callFunc\":{"));
+  }
+
+  public final void testInterruptedCajolingAbandoned() throws Exception {
+    registerUri("http://foo/bar.js", "g(1);", "text/javascript");
+    Thread.currentThread().interrupt();
+    try {
+      assertEquals("ERROR", requestGet(
+          "?url=http://foo/bar.js&mime-type=text/javascript"));
+    } finally {
+      assertTrue(Thread.interrupted());
+    }
+    assertEquals(0, getService().getCache().size());
+  }
 }
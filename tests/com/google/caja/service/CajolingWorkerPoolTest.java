@@ -0,0 +1,157 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.service;
+
+import com.google.caja.reporting.TestBuildInfo;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+public class CajolingWorkerPoolTest extends TestCase {
+  /** A service whose requests block until released or interrupted. */
+  private static class BlockingService extends CajolingService {
+    final CountDownLatch release = new CountDownLatch(1);
+
+    BlockingService() { super(new TestBuildInfo()); }
+
+    @Override
+    public void doGet(HttpServletRequest req, HttpServletResponse resp)
+        throws ServletException {
+      try {
+        release.await();
+      } catch (InterruptedException ex) {
+        closeUnavailable(resp, null);
+        return;
+      }
+      resp.setStatus(HttpServletResponse.SC_OK);
+    }
+  }
+
+  /** A service whose requests ignore interrupts until released. */
+  private static class StuckService extends CajolingService {
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch finished = new CountDownLatch(1);
+    volatile Exception failure;
+
+    StuckService() { super(new TestBuildInfo()); }
+
+    @Override
+    public void doGet(HttpServletRequest req, HttpServletResponse resp) {
+      try {
+        while (true) {
+          try {
+            release.await();
+            break;
+          } catch (InterruptedException ex) {
+            // Like a blocked socket read.
+          }
+        }
+        resp.setStatus(HttpServletResponse.SC_OK);
+      } catch (Exception ex) {
+        failure = ex;
+      } finally {
+        finished.countDown();
+      }
+    }
+  }
+
+  private static Thread serveInBackground(
+      final CajolingWorkerPool pool, final TestHttpServletResponse resp) {
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        try {
+          pool.serve(new TestHttpServletRequest("?url=http://foo/"), resp);
+        } catch (ServletException ex) {
+          ex.printStackTrace();
+        }
+      }
+    };
+    t.start();
+    return t;
+  }
+
+  public final void testShedsWhenQueueFull() throws Exception {
+    BlockingService service = new BlockingService();
+    CajolingWorkerPool pool = new CajolingWorkerPool(service, 1, 1, 60000);
+    try {
+      TestHttpServletResponse running = new TestHttpServletResponse();
+      TestHttpServletResponse queued = new TestHttpServletResponse();
+      Thread a = serveInBackground(pool, running);
+      Thread b = serveInBackground(pool, queued);
+      for (int i = 0; pool.getQueueDepth() < 1; ++i) {
+        assertTrue(i < 1000);
+        Thread.sleep(10);
+      }
+
+      TestHttpServletResponse shed = new TestHttpServletResponse();
+      pool.serve(new TestHttpServletRequest("?url=http://foo/"), shed);
+      assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                   shed.getStatus());
+      assertTrue(shed.containsHeader("retry-after"));
+      assertEquals(1, pool.getShedCount());
+
+      service.release.countDown();
+      a.join();
+      b.join();
+      assertEquals(HttpServletResponse.SC_OK, running.getStatus());
+      assertEquals(HttpServletResponse.SC_OK, queued.getStatus());
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  public final void testDeadlineInterruptsWorker() throws Exception {
+    BlockingService service = new BlockingService();
+    CajolingWorkerPool pool = new CajolingWorkerPool(service, 1, 1, 50);
+    try {
+      TestHttpServletResponse resp = new TestHttpServletResponse();
+      pool.serve(new TestHttpServletRequest("?url=http://foo/"), resp);
+      assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                   resp.getStatus());
+      assertEquals(1, pool.getTimeoutCount());
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  public final void testStuckWorkerAbandoned() throws Exception {
+    StuckService service = new StuckService();
+    CajolingWorkerPool pool = new CajolingWorkerPool(service, 1, 1, 50);
+    try {
+      TestHttpServletResponse resp = new TestHttpServletResponse();
+      pool.serve(new TestHttpServletRequest("?url=http://foo/"), resp);
+      assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                   resp.getStatus());
+      assertEquals(1, pool.getTimeoutCount());
+
+      // The worker cannot answer once the pool has.
+      service.release.countDown();
+      assertTrue(service.finished.await(10, TimeUnit.SECONDS));
+      assertTrue(service.failure instanceof CancellationException);
+      assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                   resp.getStatus());
+    } finally {
+      pool.shutdown();
+    }
+  }
+}
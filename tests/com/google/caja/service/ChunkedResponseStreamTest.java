@@ -0,0 +1,85 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.service;
+
+import com.google.caja.util.Pair;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class ChunkedResponseStreamTest extends TestCase {
+  private static final Pair<String, String> JS
+      = Pair.pair("text/javascript", "UTF-8");
+
+  public final void testSmallOutputSentOnClose() throws Exception {
+    TestHttpServletResponse resp = new TestHttpServletResponse();
+    ChunkedResponseStream out = new ChunkedResponseStream(resp, 16, JS, 0);
+    out.write("hello".getBytes("UTF-8"));
+    out.flush();
+    assertFalse(out.isCommitted());
+    assertNull(resp.getOutputObject());
+    out.close();
+    assertTrue(out.isCommitted());
+    assertTrue(resp.containsHeader("content-length"));
+    assertEquals("hello", resp.getOutputObject());
+    assertNull(out.getCapturedBytes());
+  }
+
+  public final void testLargeOutputCommitsEarly() throws Exception {
+    TestHttpServletResponse resp = new TestHttpServletResponse();
+    ChunkedResponseStream out = new ChunkedResponseStream(resp, 4, JS, 0);
+    out.write("abcd".getBytes("UTF-8"));
+    assertFalse(out.isCommitted());
+    out.write('e');
+    assertTrue(out.isCommitted());
+    assertEquals("abcd", resp.getOutputObject());
+    out.write("fghij".getBytes("UTF-8"));
+    out.close();
+    assertFalse(resp.containsHeader("content-length"));
+    assertEquals("abcdefghij", resp.getOutputObject());
+  }
+
+  public final void testFlushSendsFullChunk() throws Exception {
+    TestHttpServletResponse resp = new TestHttpServletResponse();
+    ChunkedResponseStream out = new ChunkedResponseStream(resp, 4, JS, 0);
+    out.write("abc".getBytes("UTF-8"));
+    out.flush();
+    assertFalse(out.isCommitted());
+    out.write('d');
+    out.flush();
+    assertTrue(out.isCommitted());
+    assertEquals("abcd", resp.getOutputObject());
+    out.close();
+    assertEquals("abcd", resp.getOutputObject());
+  }
+
+  public final void testCapture() throws Exception {
+    TestHttpServletResponse resp = new TestHttpServletResponse();
+    ChunkedResponseStream out = new ChunkedResponseStream(resp, 4, JS, 8);
+    out.write("abcdef".getBytes("UTF-8"));
+    assertNull(out.getCapturedBytes());  // Not closed yet.
+    out.close();
+    assertTrue(Arrays.equals(
+        "abcdef".getBytes("UTF-8"), out.getCapturedBytes()));
+
+    resp = new TestHttpServletResponse();
+    out = new ChunkedResponseStream(resp, 4, JS, 8);
+    out.write("abcdefghi".getBytes("UTF-8"));
+    out.close();
+    assertNull(out.getCapturedBytes());  // Over the capture limit.
+    assertEquals("abcdefghi", resp.getOutputObject());
+  }
+}
@@ -14,7 +14,21 @@
 
 package com.google.caja.service;
 
+import com.google.caja.config.ConfigUtil;
+import com.google.caja.plugin.SchemaRegistry;
 import com.google.caja.reporting.MessageLevel;
+import com.google.caja.reporting.SimpleMessageQueue;
+import com.google.caja.reporting.TestBuildInfo;
+import com.google.caja.util.TestUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @author jasvir@google.com (Jasvir Nagra)
@@ -68,4 +82,65 @@ public class HtmlHandlerTest extends ServiceTestCase {
         + "}</script>",
         (String) requestGet("?url=http://foo/bar.html&mime-type=*/*"));
   }
+
+  public final void testRequestsDoNotShareGeneratedNames() throws Exception {
+    HtmlHandler handler = new HtmlHandler(new TestBuildInfo(), null, null);
+    String first = cajole(handler, "<a onclick=\"foo()\">Click</a>");
+    assertTrue(first, first.contains("c_1___"));
+    assertEquals(first, cajole(handler, "<a onclick=\"foo()\">Click</a>"));
+  }
+
+  public final void testConcurrentRequests() throws Exception {
+    final HtmlHandler handler = new HtmlHandler(
+        new TestBuildInfo(), null, null);
+    final String html
+        = "<a onclick=\"foo()\">Click</a><b onclick=\"bar()\">Me</b>";
+    String expected = cajole(handler, html);
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<String>> results = new ArrayList<Future<String>>();
+      for (int i = 0; i < 16; ++i) {
+        results.add(pool.submit(new Callable<String>() {
+          public String call() throws Exception {
+            return cajole(handler, html);
+          }
+        }));
+      }
+      for (Future<String> result : results) {
+        assertEquals(expected, result.get());
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  public final void testWhitelistsFromRegistry() throws Exception {
+    String html = "<b>Bold</b><i>Italic</i>";
+    String lang = "resource:///com/google/caja/lang/";
+    SchemaRegistry registry = new SchemaRegistry(
+        URI.create(lang + "css/css-extensions.json"),
+        URI.create(lang + "css/css-extensions-fns.json"),
+        URI.create(TestUtil.makeContentUrl(
+            "{ \"inherits\": [ \"" + lang
+            + "html/html4-elements-extensions.json\" ],"
+            + " \"denied\": [ \"B\" ] }")),
+        URI.create(lang + "html/html4-attributes-extensions.json"),
+        ConfigUtil.RESOURCE_RESOLVER, new SimpleMessageQueue());
+    String withDefaults = cajole(
+        new HtmlHandler(new TestBuildInfo(), null, null), html);
+    assertTrue(withDefaults, withDefaults.contains("<b>"));
+    String withRegistry = cajole(
+        new HtmlHandler(new TestBuildInfo(), null, null, registry), html);
+    assertFalse(withRegistry, withRegistry.contains("<b>"));
+    assertTrue(withRegistry, withRegistry.contains("<i>"));
+  }
+
+  private static String cajole(HtmlHandler handler, String html)
+      throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    handler.apply(
+        URI.create("http://foo/bar.html"), CajolingService.Transform.VALIJA,
+        "text/html", "text/html", "UTF-8", html.getBytes("UTF-8"), out);
+    return out.toString("UTF-8");
+  }
 }
@@ -0,0 +1,99 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class RequestCoalescerTest extends TestCase {
+  public final void testConcurrentCallsShareOneComputation()
+      throws Exception {
+    final RequestCoalescer<String, String> coalescer
+        = new RequestCoalescer<String, String>();
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger computations = new AtomicInteger();
+    final Callable<String> slow = new Callable<String>() {
+      public String call() throws InterruptedException {
+        computations.incrementAndGet();
+        started.countDown();
+        release.await();
+        return "result";
+      }
+    };
+
+    final int nThreads = 4;
+    final List<String> results = new ArrayList<String>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < nThreads; ++i) {
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          try {
+            String result = coalescer.run("k", slow);
+            synchronized (results) { results.add(result); }
+          } catch (Exception ex) {
+            ex.printStackTrace();
+          }
+        }
+      });
+    }
+    threads.get(0).start();
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    for (Thread t : threads.subList(1, nThreads)) { t.start(); }
+    // Wait until the other threads are blocked on the first's computation.
+    for (int i = 0; coalescer.getCoalescedCount() < nThreads - 1; ++i) {
+      assertTrue(i < 1000);
+      Thread.sleep(10);
+    }
+    release.countDown();
+    for (Thread t : threads) { t.join(); }
+
+    assertEquals(1, computations.get());
+    assertEquals(nThreads, results.size());
+    for (String result : results) { assertEquals("result", result); }
+    assertEquals(1, coalescer.getComputedCount());
+    assertEquals(nThreads - 1, coalescer.getCoalescedCount());
+    assertEquals(0, coalescer.getInFlightCount());
+
+    // Once done, a computation is not reused.
+    assertEquals("again", coalescer.run("k", new Callable<String>() {
+      public String call() { return "again"; }
+    }));
+  }
+
+  public final void testFailuresPropagate() throws Exception {
+    RequestCoalescer<String, String> coalescer
+        = new RequestCoalescer<String, String>();
+    try {
+      coalescer.run("k", new Callable<String>() {
+        public String call() throws Exception {
+          throw new IllegalStateException("boom");
+        }
+      });
+      fail();
+    } catch (ExecutionException ex) {
+      assertTrue(ex.getCause() instanceof IllegalStateException);
+    }
+    assertEquals(0, coalescer.getInFlightCount());
+  }
+}
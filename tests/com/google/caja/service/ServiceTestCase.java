@@ -54,6 +54,8 @@ public abstract class ServiceTestCase extends CajaTestCase {
     super.tearDown();
   }
 
+  protected CajolingService getService() { return service; }
+
   protected void registerUri(String uri, String content, String contentType) {
     ByteArrayOutputStream out = new ByteArrayOutputStream();
     try {
@@ -38,6 +38,7 @@ final class TestHttpServletResponse implements HttpServletResponse {
   private int status = 200;
   private Hashtable<String, String> headers = new Hashtable<String, String>();
   private Object output;
+  private boolean disconnected;
   public void addCookie(Cookie a) { throw new UnsupportedOperationException(); }
   public boolean containsHeader(String n) { return headers.containsKey(n); }
   public String encodeRedirectURL(String arg0) {
@@ -102,9 +103,14 @@ final class TestHttpServletResponse implements HttpServletResponse {
     final OutputStream out = (OutputStream) output;
     return new ServletOutputStream() {
       @Override
-      public void write(int arg0) throws IOException { out.write(arg0); }
+      public void write(int arg0) throws IOException {
+        if (disconnected) { throw new IOException("Connection reset"); }
+        out.write(arg0);
+      }
     };
   }
+  /** Makes subsequent writes to the output stream fail. */
+  public void disconnect() { disconnected = true; }
   public PrintWriter getWriter() {
     if (output == null) { output = new StringWriter(); }
     return new PrintWriter((Writer) output);
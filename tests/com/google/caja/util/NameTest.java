@@ -40,4 +40,27 @@ public class NameTest extends TestCase {
     assertEquals("Foo:Bar", Name.xml("Foo:Bar").getCanonicalForm());
     assertEquals("FOO:BAR", Name.xml("FOO:BAR").getCanonicalForm());
   }
+
+  public final void testIntern() {
+    Name before = Name.css("-test-intern-before");
+    assertEquals(-1, before.getInternedId());
+    Name interned = before.intern();
+    assertNotSame(before, interned);
+    assertSame(interned, interned.intern());
+    assertSame(interned, before.intern());
+    assertTrue(interned.getInternedId() >= 0);
+    // Equal names created before interning share its id.
+    assertEquals(interned.getInternedId(), before.getInternedId());
+    assertEquals(before, interned);
+    assertEquals(interned, before);
+    assertEquals(before.hashCode(), interned.hashCode());
+    // The factories return the interned instance.
+    assertSame(interned, Name.css("-TEST-Intern-Before"));
+    assertSame(interned, Name.xml("-test-intern-before"));
+
+    Name other = Name.css("-test-intern-other").intern();
+    assertFalse(other.equals(interned));
+    assertFalse(other.getInternedId() == interned.getInternedId());
+    assertEquals(-1, Name.css("-test-intern-never").getInternedId());
+  }
 }
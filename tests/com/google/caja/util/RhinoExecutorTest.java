@@ -0,0 +1,60 @@
+// Copyright (C) 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.caja.util;
+
+import java.util.Collections;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.mozilla.javascript.Context;
+
+public class RhinoExecutorTest extends TestCase {
+  private static final String COUNTER
+      = "Object.prototype.count_ = (Object.prototype.count_ || 0) + 1;"
+      + "var n = (typeof n === 'number' ? n : 0) + 1;"
+      + "n * 10 + ({}).count_";
+
+  public final void testRunsDoNotShareGlobals() throws Exception {
+    Map<String, Object> noActuals = Collections.emptyMap();
+    for (int i = 0; i < 3; ++i) {
+      Executor exec = Executor.Factory.createJsExecutor(
+          new Executor.Input(COUNTER, "counter.js"));
+      assertEquals(Double.valueOf(11), exec.run(noActuals, Number.class));
+    }
+  }
+
+  public final void testCompiledScriptsReused() {
+    Context context = RhinoExecutor.enterContext();
+    try {
+      assertSame(
+          RhinoExecutor.compile(context, COUNTER, "counter.js"),
+          RhinoExecutor.compile(context, COUNTER, "counter.js"));
+      // Error messages and stack traces mention the source.
+      assertNotSame(
+          RhinoExecutor.compile(context, COUNTER, "counter.js"),
+          RhinoExecutor.compile(context, COUNTER, "other.js"));
+    } finally {
+      Context.exit();
+    }
+  }
+
+  public final void testActuals() throws Exception {
+    Executor exec = Executor.Factory.createJsExecutor(
+        new Executor.Input("x + 1", "actuals.js"));
+    assertEquals(
+        "21", exec.run(Collections.singletonMap("x", "2"), String.class));
+  }
+}
@@ -57,7 +57,6 @@ import junit.framework.Assert;
 import junit.framework.AssertionFailedError;
 
 import org.mozilla.javascript.Context;
-import org.mozilla.javascript.ContextFactory;
 import org.mozilla.javascript.RhinoException;
 import org.mozilla.javascript.ScriptableObject;
 import org.w3c.dom.Attr;
@@ -77,10 +76,9 @@ public class RhinoTestBed {
    * result.
    */
   public static Object runJs(Input... inputs) throws IOException {
-    Context context = ContextFactory.getGlobal().enterContext();
-    // Don't bother to compile tests to a class file.  Removing this causes
-    // a 5x slow-down in Rhino-heavy tests.
-    context.setOptimizationLevel(-1);
+    // By default, this doesn't bother to compile tests to a class file.
+    // Compiling causes a 5x slow-down in Rhino-heavy tests.
+    Context context = RhinoExecutor.enterContext();
     try {
       ScriptableObject globalScope = context.initStandardObjects();
       Object stderr = Context.javaToJS(System.err, globalScope);
@@ -91,8 +89,8 @@ public class RhinoTestBed {
         String js = readReader(input.input);
         input.input.close();
         try {
-          result = context.evaluateReader(
-              globalScope, new StringReader(js), input.source, 1, null);
+          result = RhinoExecutor.compile(context, js, input.source)
+              .exec(context, globalScope);
         } catch (RhinoException e) {
           if (e.getCause() instanceof AssertionFailedError) {
             throw (AssertionFailedError) e.getCause();